@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The bump pointer allocator selected with --alloc=arena. Memory comes from the C library in
+ * chunks that calloc has already zeroed as a whole, and is handed out by moving a pointer through
+ * the current chunk, so the fast path is a compare and an add. Like with plain calloc nothing is
+ * ever freed.
+ */
+class ArenaRuntime {
+
+    static final long CHUNK_SIZE = 1 << 20;
+
+    // Builds the allocator into module and returns it's entry point, which takes a size in bytes
+    static IrFunction build(IrModule module, IrFunction calloc) {
+        // The leading dot keeps the names apart from Class.method, like the vtables
+        IrGlobal next = module.addGlobal(IrGlobal.variable(".arena.next", IrType.I8_PTR)); // Free space of the current chunk
+        IrGlobal end = module.addGlobal(IrGlobal.variable(".arena.end", IrType.I8_PTR));
+
+        IrFunction grow = module.addFunction(new IrFunction("arena_grow", IrType.I8_PTR, sizeParam(), false, null));
+        IrFunction alloc = module.addFunction(new IrFunction("arena_alloc", IrType.I8_PTR, sizeParam(), false, null));
+        grow.isRuntime = true;
+        alloc.isRuntime = true;
+        alloc.inlineAlways = true;
+
+        // Fast path: round up to whole words, then bump the pointer if the chunk has room left
+        IrBuilder b = new IrBuilder(alloc);
+        IrValue size = b.binary(IrBinary.Op.AND, b.binary(IrBinary.Op.ADD, alloc.params.get(0), i64(7)), i64(-8));
+        IrValue current = b.load(next);
+        IrValue room = b.binary(IrBinary.Op.SUB, b.cast(IrCast.Op.PTRTOINT, b.load(end), IrType.I64), b.cast(IrCast.Op.PTRTOINT, current, IrType.I64));
+
+        IrBlock bump = b.createBlock("bump");
+        IrBlock slow = b.createBlock("slow");
+        b.condBr(b.compare(IrCompare.Pred.ULE, size, room), bump, slow);
+
+        b.startBlock(bump);
+        b.store(b.gep(current, size), next);
+        b.ret(current);
+
+        b.startBlock(slow);
+        b.ret(b.call(grow, size));
+
+        // Slow path: objects too big for a chunk get memory of their own, anything else starts a new chunk
+        b = new IrBuilder(grow);
+        size = grow.params.get(0);
+
+        IrBlock large = b.createBlock("large");
+        IrBlock chunk = b.createBlock("chunk");
+        b.condBr(b.compare(IrCompare.Pred.UGT, size, i64(CHUNK_SIZE / 4)), large, chunk);
+
+        b.startBlock(large);
+        b.ret(b.call(calloc, IrConst.i32(8), b.cast(IrCast.Op.TRUNC, b.binary(IrBinary.Op.ASHR, size, i64(3)), IrType.I32)));
+
+        b.startBlock(chunk);
+        IrValue memory = b.call(calloc, IrConst.i32(8), IrConst.i32(CHUNK_SIZE / 8));
+        b.store(b.gep(memory, size), next);
+        b.store(b.gep(memory, i64(CHUNK_SIZE)), end);
+        b.ret(memory);
+
+        return alloc;
+    }
+
+    private static List<IrArgument> sizeParam() {
+        List<IrArgument> params = new ArrayList<IrArgument>();
+        params.add(new IrArgument("size", IrType.I64, 0));
+        return params;
+    }
+
+    private static IrConst i64(long value) {
+        return new IrConst(IrType.I64, value);
+    }
+}
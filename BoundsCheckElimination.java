@@ -0,0 +1,404 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Removes array bounds checks that can be proven to pass. A check "idx <u length(arr)" passes when
+ *
+ *  - idx is known to be non-negative: a non-negative constant, an array length, or an induction
+ *    variable that starts non-negative and only ever grows by one while below some bound, and
+ *  - a condition that dominates the check bounds idx by the length of the same array (an earlier
+ *    check of the same access included), or by a constant no larger than the array's allocated length.
+ *
+ * Two reads of the same field of this are the same array if neither the function nor anything it
+ * may call ever stores to that field offset, of this or of any other object. Every check that
+ * cannot be proven is kept.
+ */
+class BoundsCheckElimination implements IrPass {
+
+    // A condition known to hold: lhs < rhs, compared signed or unsigned
+    private static class Fact {
+        final IrValue lhs;
+        final IrValue rhs;
+        final boolean unsigned;
+
+        Fact(IrValue lhs, IrValue rhs, boolean unsigned) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.unsigned = unsigned;
+        }
+    }
+
+    private static final Set<Integer> ALL_FIELDS = null; // Stands for "may write any field"
+
+    private int checks;
+    private int removed;
+
+    private Map<IrFunction, Set<Integer>> fieldWrites;
+
+    // State of the function being optimized
+    private DominatorTree dom;
+    private Set<Integer> writtenHere;
+    private Map<IrBlock, List<Fact>> factCache;
+
+    @Override
+    public String name() {
+        return "bce";
+    }
+
+    @Override
+    public String report() {
+        return "removed " + removed + " of " + checks + " bounds checks";
+    }
+
+    @Override
+    public void run(IrModule module) {
+        this.fieldWrites = computeFieldWrites(module);
+
+        for(IrFunction function : module.functions) {
+            if(!function.isDeclaration() && !function.isRuntime)
+                runOnFunction(function);
+        }
+    }
+
+    private void runOnFunction(IrFunction function) {
+        dom = new DominatorTree(function);
+        writtenHere = fieldWrites.get(function);
+        factCache = new HashMap<IrBlock, List<Fact>>();
+
+        boolean changed = false;
+
+        for(IrBlock block : dom.reversePostorder) {
+            IrTerminator term = block.terminator();
+            if(!(term instanceof IrCondBranch) || !isBoundsCheck((IrCondBranch) term))
+                continue;
+
+            IrCondBranch check = (IrCondBranch) term;
+            checks++;
+            IrCompare compare = (IrCompare) check.cond();
+            IrValue index = compare.operand(0);
+            IrValue array = ((IrLoad) compare.operand(1)).pointer();
+
+            if(isInBounds(index, array, block))
+            {
+                for(IrInstr instr : check.ifFalse.instrs) {
+                    if(!(instr instanceof IrPhi))
+                        break;
+                    ((IrPhi) instr).removeIncoming(block);
+                }
+
+                block.instrs.remove(check);
+                block.add(new IrBranch(check.ifTrue));
+                removed++;
+                changed = true;
+            }
+        }
+
+        if(changed)
+        {
+            function.removeUnreachableBlocks();
+            function.removeDeadInstructions();
+        }
+    }
+
+    // br (icmp ult idx, (load arr)), ok, oob where oob reports the failure
+    private static boolean isBoundsCheck(IrCondBranch branch) {
+        if(!(branch.cond() instanceof IrCompare))
+            return false;
+
+        IrCompare compare = (IrCompare) branch.cond();
+        if(compare.pred != IrCompare.Pred.ULT || !(compare.operand(1) instanceof IrLoad))
+            return false;
+        if(!compare.operand(1).type.equals(IrType.I32) || !((IrLoad) compare.operand(1)).pointer().type.equals(IrType.I32_PTR))
+            return false;
+
+        for(IrInstr instr : branch.ifFalse.instrs) {
+            if(instr instanceof IrCall && ((IrCall) instr).directCallee() != null && ((IrCall) instr).directCallee().name.equals("throw_oob"))
+                return true;
+        }
+
+        return false;
+    }
+
+    private boolean isInBounds(IrValue index, IrValue array, IrBlock block) {
+        boolean lowerProven = isNonNegative(index, new HashSet<IrValue>());
+        boolean upperProven = false;
+
+        for(Fact fact : factsAt(block)) {
+            if(fact.lhs != index)
+                continue;
+
+            boolean bounded = (fact.rhs instanceof IrLoad && sameArray(((IrLoad) fact.rhs).pointer(), array) && isLengthLoad((IrLoad) fact.rhs))
+                || (fact.rhs instanceof IrConst && ((IrConst) fact.rhs).value <= allocatedLength(array));
+
+            if(bounded)
+            {
+                upperProven = true;
+                if(fact.unsigned) // Lengths are non-negative, so idx <u length also rules out idx < 0
+                    lowerProven = true;
+            }
+        }
+
+        if(index instanceof IrConst && ((IrConst) index).value < allocatedLength(array))
+            upperProven = true;
+
+        return lowerProven && upperProven;
+    }
+
+    // A read of the length word an array handle points to, not of an element or an int field
+    private static boolean isLengthLoad(IrLoad load) {
+        if(!load.type.equals(IrType.I32))
+            return false;
+
+        CommonSubexpressions.Location location = CommonSubexpressions.locate(load.pointer());
+        return location.offsetKnown && location.offset == 0 && location.root.type.equals(IrType.I32_PTR) && !(location.root instanceof IrAlloca);
+    }
+
+    // Length of an array allocated in this function with a constant size, or -1
+    private static long allocatedLength(IrValue array) {
+        if(!(array instanceof IrCast) || !(((IrCast) array).operand(0) instanceof IrCall))
+            return -1;
+
+        IrCall call = (IrCall) ((IrCast) array).operand(0);
+        if(call.directCallee() == null || !call.directCallee().name.equals("calloc") || !(call.arg(1) instanceof IrConst))
+            return -1;
+
+        // new int[n] allocates n + 1 elements, the first holding the length
+        return ((IrConst) call.arg(1)).value - 1;
+    }
+
+    private boolean isNonNegative(IrValue value, Set<IrValue> assumed) {
+        if(value instanceof IrConst)
+            return ((IrConst) value).value >= 0;
+
+        if(value instanceof IrLoad)
+            return isLengthLoad((IrLoad) value);
+
+        if(value instanceof IrPhi)
+        {
+            // Optimistically assume the phi is non-negative while checking it's inputs, which proves induction variables
+            if(!assumed.add(value))
+                return true;
+
+            for(IrValue incoming : ((IrPhi) value).operands) {
+                if(!isNonNegative(incoming, assumed))
+                {
+                    assumed.remove(value);
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        if(value instanceof IrBinary && ((IrBinary) value).op == IrBinary.Op.ADD)
+        {
+            IrBinary add = (IrBinary) value;
+            IrValue base = add.operand(0);
+            IrValue step = add.operand(1);
+            if(!(step instanceof IrConst))
+            {
+                base = add.operand(1);
+                step = add.operand(0);
+            }
+
+            if(!(step instanceof IrConst) || !isNonNegative(base, assumed))
+                return false;
+
+            long increment = ((IrConst) step).value;
+            if(increment == 0)
+                return true;
+
+            // base + 1 cannot overflow where base is known to be below some int
+            return increment == 1 && isBelowSomeInt(base, add.block);
+        }
+
+        return false;
+    }
+
+    private boolean isBelowSomeInt(IrValue value, IrBlock block) {
+        for(Fact fact : factsAt(block)) {
+            if(fact.lhs == value && (!fact.unsigned || isNonNegative(fact.rhs, new HashSet<IrValue>())))
+                return true;
+        }
+
+        return false;
+    }
+
+    // Conditions that hold on entry to block: those of every branch edge that dominates it
+    private List<Fact> factsAt(IrBlock block) {
+        List<Fact> facts = factCache.get(block);
+        if(facts != null)
+            return facts;
+
+        facts = new ArrayList<Fact>();
+        IrBlock idom = dom.idom(block);
+        if(idom != null)
+            facts.addAll(factsAt(idom));
+
+        List<IrBlock> preds = dom.predecessors.get(block);
+        if(preds.size() == 1 && preds.get(0).terminator() instanceof IrCondBranch)
+        {
+            IrCondBranch branch = (IrCondBranch) preds.get(0).terminator();
+            if(branch.ifTrue != branch.ifFalse)
+                addFacts(branch.cond(), branch.ifTrue == block, facts);
+        }
+
+        factCache.put(block, facts);
+        return facts;
+    }
+
+    private void addFacts(IrValue cond, boolean holds, List<Fact> facts) {
+        if(cond instanceof IrBinary && ((IrBinary) cond).op == IrBinary.Op.XOR && IrConst.TRUE.equals(((IrBinary) cond).operand(1)))
+        {
+            addFacts(((IrBinary) cond).operand(0), !holds, facts);
+        }
+        else if(cond instanceof IrPhi && holds)
+        {
+            // a && b: false if the first clause failed, otherwise b; so when it holds, both clauses held
+            IrPhi phi = (IrPhi) cond;
+            if(phi.operands.size() != 2)
+                return;
+
+            for(int i = 0; i < 2; i++) {
+                if(!IrConst.FALSE.equals(phi.operand(i)))
+                    continue;
+
+                addFacts(phi.operand(1 - i), true, facts);
+
+                IrTerminator shortCircuit = phi.incomingBlocks.get(i).terminator();
+                if(shortCircuit instanceof IrCondBranch && ((IrCondBranch) shortCircuit).ifFalse == phi.block && ((IrCondBranch) shortCircuit).ifTrue != phi.block)
+                    addFacts(((IrCondBranch) shortCircuit).cond(), true, facts);
+            }
+        }
+        else if(cond instanceof IrCompare)
+        {
+            IrCompare compare = (IrCompare) cond;
+            IrValue a = compare.operand(0);
+            IrValue b = compare.operand(1);
+
+            switch(compare.pred)
+            {
+                case SLT: if(holds) facts.add(new Fact(a, b, false)); break;
+                case SGT: if(holds) facts.add(new Fact(b, a, false)); break;
+                case SGE: if(!holds) facts.add(new Fact(a, b, false)); break;
+                case SLE: if(!holds) facts.add(new Fact(b, a, false)); break;
+                case ULT: if(holds) facts.add(new Fact(a, b, true)); break;
+                case UGT: if(holds) facts.add(new Fact(b, a, true)); break;
+                case UGE: if(!holds) facts.add(new Fact(a, b, true)); break;
+                case ULE: if(!holds) facts.add(new Fact(b, a, true)); break;
+                default: break;
+            }
+        }
+    }
+
+    private boolean sameArray(IrValue a, IrValue b) {
+        if(a == b)
+            return true;
+
+        Integer fieldA = stableField(a);
+        return fieldA != null && fieldA.equals(stableField(b));
+    }
+
+    // The offset of the field of this that value was read from, if no code run by this function can change that field
+    private Integer stableField(IrValue value) {
+        if(!(value instanceof IrLoad))
+            return null;
+
+        Integer offset = fieldOffset(((IrLoad) value).pointer());
+        if(offset == null || writtenHere == ALL_FIELDS || writtenHere.contains(offset))
+            return null;
+
+        return offset;
+    }
+
+    // Byte offset of a pointer into this, or null
+    static Integer fieldOffset(IrValue pointer) {
+        IrGep field = fieldPointer(pointer);
+        if(field == null)
+            return null;
+
+        IrValue base = field.operand(0);
+        if(!(base instanceof IrArgument) || ((IrArgument) base).index != 0 || ((IrArgument) base).function.method == null)
+            return null;
+
+        return (int) ((IrConst) field.operand(1)).value;
+    }
+
+    // The constant offset gep a field of some object is reached through, or null
+    private static IrGep fieldPointer(IrValue pointer) {
+        while(pointer instanceof IrCast && ((IrCast) pointer).op == IrCast.Op.BITCAST)
+            pointer = ((IrCast) pointer).operand(0);
+
+        if(!(pointer instanceof IrGep) || ((IrGep) pointer).operands.size() != 2)
+            return null;
+
+        IrGep gep = (IrGep) pointer;
+        if(!(gep.operand(1) instanceof IrConst) || !gep.sourceType.equals(IrType.I8))
+            return null;
+
+        return gep;
+    }
+
+    // For every function, the field offsets it or any function it may call stores to
+    private static Map<IrFunction, Set<Integer>> computeFieldWrites(IrModule module) {
+        Map<IrFunction, Set<Integer>> writes = new HashMap<IrFunction, Set<Integer>>();
+        Map<IrFunction, Set<IrFunction>> callees = new HashMap<IrFunction, Set<IrFunction>>();
+
+        for(IrFunction function : module.functions) {
+            Set<Integer> own = new HashSet<Integer>();
+            Set<IrFunction> called = new HashSet<IrFunction>();
+
+            for(IrBlock block : function.blocks) {
+                for(IrInstr instr : block.instrs) {
+                    if(instr instanceof IrStore)
+                    {
+                        // Through any object, not only this: inlined setters store through the loaded receiver of the call
+                        IrGep field = fieldPointer(((IrStore) instr).pointer());
+                        if(field != null && own != ALL_FIELDS)
+                            own.add((int) ((IrConst) field.operand(1)).value);
+                    }
+                    else if(instr instanceof IrCall && own != ALL_FIELDS)
+                    {
+                        Set<IrFunction> targets = module.possibleTargets((IrCall) instr);
+                        if(targets == null)
+                            own = ALL_FIELDS;
+                        else
+                            called.addAll(targets);
+                    }
+                }
+            }
+
+            writes.put(function, own);
+            callees.put(function, called);
+        }
+
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+
+            for(IrFunction function : module.functions) {
+                Set<Integer> own = writes.get(function);
+                if(own == ALL_FIELDS)
+                    continue;
+
+                for(IrFunction callee : callees.get(function)) {
+                    Set<Integer> calleeWrites = writes.get(callee);
+                    if(calleeWrites == ALL_FIELDS)
+                    {
+                        writes.put(function, ALL_FIELDS);
+                        changed = true;
+                        break;
+                    }
+                    if(own.addAll(calleeWrites))
+                        changed = true;
+                }
+            }
+        }
+
+        return writes;
+    }
+}
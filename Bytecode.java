@@ -0,0 +1,108 @@
+/**
+ * The register based bytecode run by VirtualMachine, compiled from the IR by BytecodeCompiler.
+ * Every value of a function lives in a register of it's frame, a long: integers sign extended
+ * (i1 as 0 or 1), pointers as addresses into the machine's memory. A function's code is an int
+ * array of instructions, each an opcode followed by it's operands, mostly register numbers:
+ *
+ *   ADD32 d a b          d = (int) (a + b)
+ *   ADDI d a imm         d = a + imm
+ *   GEP d base idx scale d = base + idx * scale
+ *   LOAD32 d a imm       d = the int at address a + imm
+ *   STORE32 v a imm      the int at address a + imm = v
+ *   CALL d fn n args     d = function fn of the program applied to n argument registers (d is -1 for void)
+ *   VCALL d p slot site n args
+ *                        calls the method in a vtable slot, p being the register with the address of the
+ *                        receiver's vtable pointer; site indexes the function's inline caches
+ *   BR target            jump to a code offset
+ *
+ * and so on, see the opcodes below. Phis have no instructions of their own: the moves into them
+ * are made on the edges that lead to their block.
+ */
+class Bytecode {
+
+    static final int MOV = 0;
+
+    static final int ADD32 = 1;
+    static final int SUB32 = 2;
+    static final int MUL32 = 3;
+    static final int SHL32 = 4;
+    static final int ASHR32 = 5;
+    static final int ADD64 = 6;
+    static final int SUB64 = 7;
+    static final int MUL64 = 8;
+    static final int SHL64 = 9;
+    static final int ASHR64 = 10;
+    static final int AND = 11;
+    static final int OR = 12;
+    static final int XOR = 13;
+    static final int ADDI = 14;
+    static final int GEP = 15;
+
+    static final int EQ = 16;
+    static final int NE = 17;
+    static final int SLT = 18;
+    static final int SLE = 19;
+    static final int SGT = 20;
+    static final int SGE = 21;
+    static final int ULT32 = 22;
+    static final int ULE32 = 23;
+    static final int UGT32 = 24;
+    static final int UGE32 = 25;
+    static final int ULT64 = 26;
+    static final int ULE64 = 27;
+    static final int UGT64 = 28;
+    static final int UGE64 = 29;
+
+    static final int ZEXT8 = 30;     // d = a & 0xff
+    static final int ZEXT32 = 31;    // d = a & 0xffffffff
+    static final int TRUNC1 = 32;    // d = a & 1
+    static final int TRUNC8 = 33;    // d = (byte) a
+    static final int TRUNC32 = 34;   // d = (int) a
+
+    static final int LOAD8 = 35;
+    static final int LOAD32 = 36;
+    static final int LOAD64 = 37;
+    static final int STORE8 = 38;
+    static final int STORE32 = 39;
+    static final int STORE64 = 40;
+
+    static final int CALL = 41;
+    static final int CALLI = 42;     // CALLI d f n args: f holds a function pointer
+    static final int VCALL = 43;
+    static final int NATIVE = 44;    // NATIVE d id n args: a function of the C library (see VirtualMachine)
+    static final int RET = 45;
+    static final int RETVOID = 46;
+    static final int BR = 47;
+    static final int CONDBR = 48;    // CONDBR c t f
+    static final int UNREACHABLE = 49;
+
+    /**
+     * A compiled function. Registers 0 to params - 1 hold the arguments and the registers from
+     * constantsStart on hold constants, which are written once, when a frame is created.
+     */
+    static class Function {
+        final String name;
+        final int index;
+
+        int[] code;
+        int params;
+        int registers;
+        int constantsStart;
+        long[] constants;
+
+        int[] allocaRegisters;      // The registers of the function's stack slots
+        int[] allocaSizes;          // Bytes each slot takes; frames get their stack memory when they are created
+
+        long[] siteVtables;         // VCALL inline caches: the vtable last seen at each site,
+        Function[] siteTargets;     // and the method it held in the called slot
+
+        // Frames are kept for reuse, one per active call: a recursion depth never needs new ones again
+        long[][] frames = new long[4][];
+        int depth;
+
+        Function(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+}
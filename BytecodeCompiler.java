@@ -0,0 +1,582 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates the functions of an IrModule to Bytecode. Besides giving every value a register it
+ * does what keeps the interpreter's work down: casts between pointers and integers reuse the
+ * register of their operand, constant address arithmetic is folded into the loads and stores it
+ * feeds, virtual calls become VCALLs that find the vtable themselves (so the loads of the vtable
+ * entry are dropped) and values nothing needs are not computed at all.
+ */
+class BytecodeCompiler {
+
+    // Where the machine placed the globals, and the functions of the program
+    private final Map<IrGlobal, Long> globalAddresses;
+    private final Map<IrFunction, Bytecode.Function> functions;
+
+    // State of the function being compiled
+    private Bytecode.Function target;
+    private Map<IrValue, List<IrInstr>> users;
+    private Map<IrCall, IrValue> vtableCalls;    // Virtual call -> the address of it's receiver's vtable pointer
+    private Set<IrValue> needed;
+    private Map<IrValue, Integer> registers;
+    private Map<IrValue, Integer> constants;
+    private List<Long> constantValues;
+    private int firstTemp;
+    private int[] code;
+    private int size;
+
+    BytecodeCompiler(Map<IrGlobal, Long> globalAddresses, Map<IrFunction, Bytecode.Function> functions) {
+        this.globalAddresses = globalAddresses;
+        this.functions = functions;
+    }
+
+    void compile(IrFunction function) throws Exception {
+        target = functions.get(function);
+        users = new HashMap<IrValue, List<IrInstr>>();
+        vtableCalls = new HashMap<IrCall, IrValue>();
+        needed = new HashSet<IrValue>();
+        registers = new HashMap<IrValue, Integer>();
+        constants = new LinkedHashMap<IrValue, Integer>();
+        constantValues = new ArrayList<Long>();
+        code = new int[64];
+        size = 0;
+
+        for(IrBlock block : function.blocks) {
+            for(IrInstr instr : block.instrs) {
+                for(IrValue operand : instr.operands) {
+                    List<IrInstr> list = users.get(operand);
+                    if(list == null)
+                    {
+                        list = new ArrayList<IrInstr>();
+                        users.put(operand, list);
+                    }
+                    list.add(instr);
+                }
+
+                if(instr instanceof IrCall)
+                {
+                    IrValue vtablePointer = vtablePointer((IrCall) instr);
+                    if(vtablePointer != null)
+                        vtableCalls.put((IrCall) instr, vtablePointer);
+                }
+            }
+        }
+
+        findNeeded(function);
+        assignRegisters(function);
+        emit(function);
+    }
+
+    // Marks what the side effects of the function depend on, following only the registers instructions read
+    private void findNeeded(IrFunction function) {
+        List<IrValue> work = new ArrayList<IrValue>();
+        for(IrBlock block : function.blocks) {
+            for(IrInstr instr : block.instrs) {
+                if(instr.hasSideEffects() || instr instanceof IrTerminator)
+                    work.add(instr);
+            }
+        }
+
+        while(!work.isEmpty()) {
+            IrValue value = work.remove(work.size() - 1);
+            if(!(value instanceof IrInstr) || !needed.add(value))
+                continue;
+
+            work.addAll(registerOperands((IrInstr) value));
+        }
+    }
+
+    private List<IrValue> registerOperands(IrInstr instr) {
+        List<IrValue> operands = new ArrayList<IrValue>();
+
+        if(instr instanceof IrLoad)
+            operands.add(addressBase(((IrLoad) instr).pointer()));
+        else if(instr instanceof IrStore)
+        {
+            operands.add(((IrStore) instr).value());
+            operands.add(addressBase(((IrStore) instr).pointer()));
+        }
+        else if(instr instanceof IrCall && vtableCalls.containsKey(instr))
+        {
+            operands.add(addressBase(vtableCalls.get(instr)));
+            operands.addAll(instr.operands.subList(1, instr.operands.size()));
+        }
+        else if(instr instanceof IrGep && isFolded(instr))
+            ; // Never computed, it's loads and stores use it's base
+        else
+            operands.addAll(instr.operands);
+
+        return operands;
+    }
+
+    private void assignRegisters(IrFunction function) {
+        int next = 0;
+        for(IrArgument param : function.params)
+            registers.put(param, next++);
+
+        int temps = 0;
+        List<Integer> allocaRegisters = new ArrayList<Integer>();
+        List<Integer> allocaSizes = new ArrayList<Integer>();
+
+        for(IrBlock block : function.blocks) {
+            int phis = 0;
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrPhi)
+                    phis++;
+
+                if(!needed.contains(instr) || instr.type.isVoid() || isAlias(instr) || (instr instanceof IrGep && isFolded(instr)))
+                    continue;
+
+                registers.put(instr, next);
+                if(instr instanceof IrAlloca)
+                {
+                    allocaRegisters.add(next);
+                    allocaSizes.add(sizeOf(((IrAlloca) instr).allocatedType));
+                }
+                next++;
+            }
+            temps = Math.max(temps, phis);
+        }
+
+        firstTemp = next;
+        target.params = function.params.size();
+        target.constantsStart = next + temps;
+        target.allocaRegisters = toArray(allocaRegisters);
+        target.allocaSizes = toArray(allocaSizes);
+    }
+
+    private void emit(IrFunction function) throws Exception {
+        Map<IrBlock, Integer> offsets = new HashMap<IrBlock, Integer>();
+        List<Integer> fixups = new ArrayList<Integer>();          // Code positions that hold a block's offset,
+        List<IrBlock> fixupTargets = new ArrayList<IrBlock>();    // to be filled in once all blocks are placed
+        List<IrBlock[]> stubs = new ArrayList<IrBlock[]>();       // Edges of conditional branches that need moves
+        List<Integer> stubFixups = new ArrayList<Integer>();
+        int sites = 0;
+
+        for(IrBlock block : function.blocks) {
+            offsets.put(block, size);
+
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrTerminator)
+                {
+                    if(instr instanceof IrBranch)
+                    {
+                        IrBlock to = ((IrBranch) instr).target;
+                        emitMoves(block, to);
+                        add(Bytecode.BR);
+                        fixups.add(size);
+                        fixupTargets.add(to);
+                        add(0);
+                    }
+                    else if(instr instanceof IrCondBranch)
+                    {
+                        IrCondBranch branch = (IrCondBranch) instr;
+                        add(Bytecode.CONDBR, reg(branch.cond()));
+                        for(IrBlock to : new IrBlock[] { branch.ifTrue, branch.ifFalse }) {
+                            if(hasMoves(block, to))
+                            {
+                                stubs.add(new IrBlock[] { block, to });
+                                stubFixups.add(size);
+                            }
+                            else
+                            {
+                                fixups.add(size);
+                                fixupTargets.add(to);
+                            }
+                            add(0);
+                        }
+                    }
+                    else if(instr instanceof IrReturn)
+                    {
+                        IrValue value = ((IrReturn) instr).value();
+                        if(value == null)
+                            add(Bytecode.RETVOID);
+                        else
+                            add(Bytecode.RET, reg(value));
+                    }
+                    else
+                        add(Bytecode.UNREACHABLE);
+                    break;
+                }
+
+                if(!needed.contains(instr) || instr instanceof IrPhi || instr instanceof IrAlloca || isAlias(instr))
+                    continue;
+
+                if(instr instanceof IrCall)
+                    emitCall((IrCall) instr, sites++);
+                else
+                    emitInstr(instr);
+            }
+        }
+
+        // Moves into the phis of a conditional branch's target run on their own, then jump there
+        for(int i = 0; i < stubs.size(); i++) {
+            code[stubFixups.get(i)] = size;
+            emitMoves(stubs.get(i)[0], stubs.get(i)[1]);
+            add(Bytecode.BR);
+            fixups.add(size);
+            fixupTargets.add(stubs.get(i)[1]);
+            add(0);
+        }
+
+        for(int i = 0; i < fixups.size(); i++)
+            code[fixups.get(i)] = offsets.get(fixupTargets.get(i));
+
+        target.code = new int[size];
+        System.arraycopy(code, 0, target.code, 0, size);
+        target.registers = target.constantsStart + constantValues.size();
+        target.constants = new long[constantValues.size()];
+        for(int i = 0; i < constantValues.size(); i++)
+            target.constants[i] = constantValues.get(i);
+        target.siteVtables = new long[sites];
+        target.siteTargets = new Bytecode.Function[sites];
+    }
+
+    private void emitInstr(IrInstr instr) throws Exception {
+        if(instr instanceof IrBinary)
+        {
+            IrBinary binary = (IrBinary) instr;
+            boolean wide = binary.type.bits > 32;
+            int op;
+            switch(binary.op)
+            {
+                case ADD: op = wide ? Bytecode.ADD64 : Bytecode.ADD32; break;
+                case SUB: op = wide ? Bytecode.SUB64 : Bytecode.SUB32; break;
+                case MUL: op = wide ? Bytecode.MUL64 : Bytecode.MUL32; break;
+                case SHL: op = wide ? Bytecode.SHL64 : Bytecode.SHL32; break;
+                case ASHR: op = wide ? Bytecode.ASHR64 : Bytecode.ASHR32; break;
+                case AND: op = Bytecode.AND; break;
+                case OR: op = Bytecode.OR; break;
+                default: op = Bytecode.XOR; break;
+            }
+            add(op, reg(instr), reg(binary.operand(0)), reg(binary.operand(1)));
+            normalize(instr);
+        }
+        else if(instr instanceof IrCompare)
+        {
+            IrCompare compare = (IrCompare) instr;
+            boolean wide = compare.operand(0).type.isPointer() || compare.operand(0).type.bits > 32;
+            int op;
+            switch(compare.pred)
+            {
+                case EQ: op = Bytecode.EQ; break;
+                case NE: op = Bytecode.NE; break;
+                case SLT: op = Bytecode.SLT; break;
+                case SLE: op = Bytecode.SLE; break;
+                case SGT: op = Bytecode.SGT; break;
+                case SGE: op = Bytecode.SGE; break;
+                case ULT: op = wide ? Bytecode.ULT64 : Bytecode.ULT32; break;
+                case ULE: op = wide ? Bytecode.ULE64 : Bytecode.ULE32; break;
+                case UGT: op = wide ? Bytecode.UGT64 : Bytecode.UGT32; break;
+                default: op = wide ? Bytecode.UGE64 : Bytecode.UGE32; break;
+            }
+            add(op, reg(instr), reg(compare.operand(0)), reg(compare.operand(1)));
+        }
+        else if(instr instanceof IrCast) // Only extensions and truncations, other casts share their operand's register
+        {
+            IrCast cast = (IrCast) instr;
+            int from = cast.operand(0).type.bits;
+            int op;
+            if(cast.op == IrCast.Op.ZEXT)
+                op = from == 1 ? Bytecode.MOV : from == 8 ? Bytecode.ZEXT8 : Bytecode.ZEXT32;
+            else
+                op = cast.type.bits == 1 ? Bytecode.TRUNC1 : cast.type.bits == 8 ? Bytecode.TRUNC8 : Bytecode.TRUNC32;
+            add(op, reg(instr), reg(cast.operand(0)));
+        }
+        else if(instr instanceof IrGep)
+        {
+            IrGep gep = (IrGep) instr;
+            int result = reg(instr);
+            int base = reg(gep.operand(0));
+            long offset = 0;
+
+            IrType type = gep.sourceType;
+            for(int i = 1; i < gep.operands.size(); i++) {
+                IrValue index = gep.operand(i);
+                if(index instanceof IrConst)
+                    offset += ((IrConst) index).value * sizeOf(type);
+                else
+                {
+                    add(Bytecode.GEP, result, base, reg(index), sizeOf(type));
+                    base = result;
+                }
+                type = type.element;
+            }
+
+            if(offset != 0 || base != result)
+                add(Bytecode.ADDI, result, base, immediate(offset));
+        }
+        else if(instr instanceof IrLoad)
+        {
+            IrLoad load = (IrLoad) instr;
+            int width = widthOf(load.type);
+            add(width == 8 ? Bytecode.LOAD8 : width == 32 ? Bytecode.LOAD32 : Bytecode.LOAD64,
+                    reg(instr), reg(addressBase(load.pointer())), immediate(addressOffset(load.pointer())));
+        }
+        else if(instr instanceof IrStore)
+        {
+            IrStore store = (IrStore) instr;
+            int width = widthOf(store.value().type);
+            add(width == 8 ? Bytecode.STORE8 : width == 32 ? Bytecode.STORE32 : Bytecode.STORE64,
+                    reg(store.value()), reg(addressBase(store.pointer())), immediate(addressOffset(store.pointer())));
+        }
+        else
+            throw new Exception("The virtual machine cannot run " + instr.getClass().getName() + ".");
+    }
+
+    // Wraps the result of 64 bit arithmetic on narrower integers
+    private void normalize(IrInstr instr) {
+        int bits = instr.type.bits;
+        if(bits == 1 && !(instr instanceof IrBinary && isBitwise(((IrBinary) instr).op)))
+            add(Bytecode.TRUNC1, reg(instr), reg(instr));
+        else if(bits == 8)
+            add(Bytecode.TRUNC8, reg(instr), reg(instr));
+    }
+
+    private static boolean isBitwise(IrBinary.Op op) {
+        return op == IrBinary.Op.AND || op == IrBinary.Op.OR || op == IrBinary.Op.XOR;
+    }
+
+    private void emitCall(IrCall call, int site) throws Exception {
+        int result = call.type.isVoid() ? -1 : reg(call);
+        IrFunction callee = call.directCallee();
+
+        if(vtableCalls.containsKey(call))
+        {
+            IrValue vtablePointer = vtableCalls.get(call);
+            add(Bytecode.VCALL, result, reg(addressBase(vtablePointer)), immediate(vtableSlot(call)), site);
+        }
+        else if(callee == null)
+            add(Bytecode.CALLI, result, reg(call.callee()));
+        else if(callee.isDeclaration())
+            add(Bytecode.NATIVE, result, VirtualMachine.nativeId(callee.name));
+        else
+            add(Bytecode.CALL, result, functions.get(callee).index);
+
+        add(call.argCount());
+        for(int i = 0; i < call.argCount(); i++)
+            add(reg(call.arg(i)));
+    }
+
+    private boolean hasMoves(IrBlock from, IrBlock to) {
+        for(IrInstr instr : to.instrs) {
+            if(!(instr instanceof IrPhi))
+                break;
+
+            if(needed.contains(instr) && reg(((IrPhi) instr).incomingFor(from)) != reg(instr))
+                return true;
+        }
+
+        return false;
+    }
+
+    // Sets the phis of to to the values they take coming from from, all at once
+    private void emitMoves(IrBlock from, IrBlock to) {
+        List<Integer> dests = new ArrayList<Integer>();
+        List<Integer> sources = new ArrayList<Integer>();
+        for(IrInstr instr : to.instrs) {
+            if(!(instr instanceof IrPhi))
+                break;
+
+            if(!needed.contains(instr)) // Nor is what it's incoming values compute, they may have no register
+                continue;
+
+            int source = reg(((IrPhi) instr).incomingFor(from));
+            if(source != reg(instr))
+            {
+                dests.add(reg(instr));
+                sources.add(source);
+            }
+        }
+
+        boolean overlap = false;
+        for(int dest : dests)
+            overlap |= sources.contains(dest);
+
+        if(!overlap)
+        {
+            for(int i = 0; i < dests.size(); i++)
+                add(Bytecode.MOV, dests.get(i), sources.get(i));
+            return;
+        }
+
+        for(int i = 0; i < dests.size(); i++)
+            add(Bytecode.MOV, firstTemp + i, sources.get(i));
+        for(int i = 0; i < dests.size(); i++)
+            add(Bytecode.MOV, dests.get(i), firstTemp + i);
+    }
+
+    // The register holding value; constants, globals and functions get registers of their own
+    private int reg(IrValue value) {
+        while(isAlias(value))
+            value = ((IrInstr) value).operand(0);
+
+        Integer register = registers.get(value);
+        if(register != null)
+            return register;
+
+        register = constants.get(value);
+        if(register == null)
+        {
+            register = target.constantsStart + constantValues.size();
+            constants.put(value, register);
+            constantValues.add(constantValue(value));
+        }
+
+        return register;
+    }
+
+    private long constantValue(IrValue value) {
+        if(value instanceof IrConst)
+            return ((IrConst) value).value;
+        if(value instanceof IrGlobal)
+            return globalAddresses.get(value);
+
+        return VirtualMachine.FUNCTION_BASE + functions.get((IrFunction) value).index;
+    }
+
+    // Casts that do not change a value's bits share the register of their operand
+    private static boolean isAlias(IrValue value) {
+        return value instanceof IrCast && ((IrCast) value).op != IrCast.Op.ZEXT && ((IrCast) value).op != IrCast.Op.TRUNC;
+    }
+
+    // A gep with constant indices that only loads and stores use (possibly after a cast) is folded into them
+    private boolean isFolded(IrInstr gep) {
+        for(IrValue index : gep.operands.subList(1, gep.operands.size())) {
+            if(!(index instanceof IrConst))
+                return false;
+        }
+
+        return onlyAddresses(gep);
+    }
+
+    private boolean onlyAddresses(IrValue pointer) {
+        List<IrInstr> uses = users.get(pointer);
+        if(uses == null)
+            return true;
+
+        for(IrInstr user : uses) {
+            if(user instanceof IrLoad)
+                continue;
+            if(user instanceof IrStore && ((IrStore) user).value() != pointer)
+                continue;
+            if(isAlias(user) && onlyAddresses(user))
+                continue;
+            if(user instanceof IrGep && isFolded(user) && user.operand(0) == pointer)
+                continue;
+
+            return false;
+        }
+
+        return true;
+    }
+
+    // The value a load or store address is computed from, after folding constant offsets
+    private IrValue addressBase(IrValue pointer) {
+        while(true) {
+            if(isAlias(pointer))
+                pointer = ((IrInstr) pointer).operand(0);
+            else if(pointer instanceof IrGep && isFolded((IrInstr) pointer))
+                pointer = ((IrInstr) pointer).operand(0);
+            else
+                return pointer;
+        }
+    }
+
+    private long addressOffset(IrValue pointer) {
+        long offset = 0;
+        while(true) {
+            if(isAlias(pointer))
+                pointer = ((IrInstr) pointer).operand(0);
+            else if(pointer instanceof IrGep && isFolded((IrInstr) pointer))
+            {
+                IrGep gep = (IrGep) pointer;
+                IrType type = gep.sourceType;
+                for(int i = 1; i < gep.operands.size(); i++) {
+                    offset += ((IrConst) gep.operand(i)).value * sizeOf(type);
+                    type = type.element;
+                }
+                pointer = gep.operand(0);
+            }
+            else
+                return offset;
+        }
+    }
+
+    // The address of the receiver's vtable pointer if call is a virtual call through a vtable, which
+    // IntermediateCodeVisitor builds as a load of the vtable pointer, then of the slot, then a cast
+    private IrValue vtablePointer(IrCall call) {
+        if(call.method == null || call.directCallee() != null)
+            return null;
+
+        IrValue callee = call.callee();
+        while(isAlias(callee))
+            callee = ((IrInstr) callee).operand(0);
+        if(!(callee instanceof IrLoad))
+            return null;
+
+        IrValue slot = ((IrLoad) callee).pointer();
+        if(!(addressBase(slot) instanceof IrLoad) || addressOffset(slot) % 8 != 0)
+            return null;
+
+        IrValue vtablePointer = ((IrLoad) addressBase(slot)).pointer();
+        return addressOffset(vtablePointer) == 0 ? vtablePointer : null;
+    }
+
+    private long vtableSlot(IrCall call) {
+        IrValue callee = call.callee();
+        while(isAlias(callee))
+            callee = ((IrInstr) callee).operand(0);
+
+        return addressOffset(((IrLoad) callee).pointer()) / 8;
+    }
+
+    private static int immediate(long value) throws Exception {
+        if(value != (int) value)
+            throw new Exception("Offset " + value + " does not fit an instruction.");
+
+        return (int) value;
+    }
+
+    static int sizeOf(IrType type) {
+        if(type.isPointer())
+            return 8;
+        if(type.kind == IrType.Kind.ARRAY)
+            return type.length * sizeOf(type.element);
+
+        return Math.max(1, type.bits / 8);
+    }
+
+    private static int widthOf(IrType type) {
+        if(type.isPointer() || type.bits > 32)
+            return 64;
+
+        return type.bits > 8 ? 32 : 8;
+    }
+
+    private void add(int... words) {
+        for(int word : words) {
+            if(size == code.length)
+            {
+                int[] grown = new int[size * 2];
+                System.arraycopy(code, 0, grown, 0, size);
+                code = grown;
+            }
+            code[size++] = word;
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for(int i = 0; i < array.length; i++)
+            array[i] = list.get(i);
+
+        return array;
+    }
+}
@@ -1,66 +1,21 @@
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import syntaxtree.*;
 import visitor.GJDepthFirst;
 
-class Argument {
-    public String argumentName;
-    public String argumentType;
+class ClassDefVisitor extends GJDepthFirst<String, Scope> {
 
-    Argument(String argumentName, String argumentType) {
-        this.argumentName = argumentName;
-        this.argumentType = argumentType;
-    }
-
-    static List<String> typeList(List<Argument> argList) {
-        List<String> tl = new ArrayList<String>();
-        for (Argument arg : argList) {
-            tl.add(arg.argumentType);
-        }
-        
-        return tl;
-    }   
-}
+    SymbolTable symbols;
 
-class ClassDefVisitor extends GJDepthFirst<String, String> {
+    private List<FormalParameter> paramList;
 
-    Map<String, Map<String, List<Argument>>> classToMethods;
-    Map<String, Map<String, String>> scopeToVars;
-    Map<String, String> inheritanceChain;
-
-    private List<Argument> argList;
-
-    ClassDefVisitor(Map<String, Map<String, List<Argument>>> classToMethods,
-                    Map<String, Map<String, String>> scopeToVars,
-                    Map<String, String> inheritanceChain ) throws Exception 
+    ClassDefVisitor(SymbolTable symbols) throws Exception
     {
         super();
-        this.classToMethods = classToMethods;
-        this.scopeToVars = scopeToVars;
-        this.inheritanceChain = inheritanceChain;
+        this.symbols = symbols;
 
-        this.argList = new ArrayList<Argument>();
-    }
-
-    // Utility functions
-
-    private List<Argument> findMethodData(String methodName, String startScope) {
-
-        if(startScope == null)
-            return null;
-
-        Map<String, List<Argument>> methods = classToMethods.get(startScope);
-        List<Argument> args = methods.get(methodName);
-        if( args == null )
-        {
-            String parentClass = inheritanceChain.get(startScope);
-            return findMethodData(methodName, parentClass);
-        }
-        
-        return args;
+        this.paramList = new ArrayList<FormalParameter>();
     }
 
     // Visit functions
@@ -71,7 +26,7 @@ class ClassDefVisitor extends GJDepthFirst<String, String> {
      * f2 -> <EOF>
      */
     @Override
-    public String visit(Goal n, String argu) throws Exception {
+    public String visit(Goal n, Scope argu) throws Exception {
         n.f0.accept(this, argu);
         if( n.f1.present() )
             n.f1.accept(this, argu);
@@ -100,18 +55,11 @@ class ClassDefVisitor extends GJDepthFirst<String, String> {
      * f17 -> "}"
      */
     @Override
-    public String visit(MainClass n, String argu) throws Exception {
+    public String visit(MainClass n, Scope argu) throws Exception {
         String className = n.f1.accept(this, argu);
-        
-        if (scopeToVars.containsKey(className)) // Check if class has already been defined.
-            throw new Exception("Redefinition Error: Class " + className + " already exists.");
-
-        classToMethods.put(className, new HashMap<String, List<Argument>>());
-        scopeToVars.put(className, new HashMap<String, String>());
 
-        classToMethods.put(className + ".main", new HashMap<String, List<Argument>>());
-        scopeToVars.put(className + ".main", new HashMap<String, String>());
-        inheritanceChain.put(className + ".main", className);
+        ClassSymbol cls = symbols.declareClass(className, null);
+        symbols.declareMainMethod(cls);
 
         return null;
     }
@@ -125,17 +73,13 @@ class ClassDefVisitor extends GJDepthFirst<String, String> {
      * f5 -> "}"
      */
     @Override
-    public String visit(ClassDeclaration n, String argu) throws Exception {
+    public String visit(ClassDeclaration n, Scope argu) throws Exception {
         String className = n.f1.accept(this, argu);
 
-        if (scopeToVars.containsKey(className))
-            throw new Exception("Redefinition Error: Class " + className + " already exists.");
-        
-        classToMethods.put(className, new HashMap<String, List<Argument>>());
-        scopeToVars.put(className, new HashMap<String, String>());
+        ClassSymbol cls = symbols.declareClass(className, null);
 
         if( n.f4.present() )
-            n.f4.accept(this, className);
+            n.f4.accept(this, cls.scope);
 
         return null;
     }
@@ -151,24 +95,19 @@ class ClassDefVisitor extends GJDepthFirst<String, String> {
      * f7 -> "}"
      */
     @Override
-    public String visit(ClassExtendsDeclaration n, String argu) throws Exception {
+    public String visit(ClassExtendsDeclaration n, Scope argu) throws Exception {
         String className = n.f1.accept(this, argu);
-
-        if (scopeToVars.containsKey(className))
-            throw new Exception("Redefinition Error: Class " + className + " already exists.");
-
-        classToMethods.put(className, new HashMap<String, List<Argument>>());
-        scopeToVars.put(className, new HashMap<String, String>());
-
         String parentClass = n.f3.accept(this, argu);
 
-        if( !classToMethods.containsKey(parentClass) )
+        ClassSymbol parent = symbols.lookupClass(parentClass);
+
+        if( parent == null || parentClass.equals(className) )
             throw new Exception("Inheritance Error: Class " + parentClass + " must be defined before class " + className + ".");
-        
-        inheritanceChain.put(className, parentClass);
+
+        ClassSymbol cls = symbols.declareClass(className, parent);
 
         if( n.f6.present() )
-            n.f6.accept(this, className);
+            n.f6.accept(this, cls.scope);
 
         return null;
     }
@@ -189,56 +128,51 @@ class ClassDefVisitor extends GJDepthFirst<String, String> {
      * f12 -> "}"
      */
     @Override
-    public String visit(MethodDeclaration n, String argu) throws Exception {
-        String methodType = n.f1.accept(this, argu);
+    public String visit(MethodDeclaration n, Scope argu) throws Exception {
+        ClassSymbol cls = argu.owner();
+        TypeSymbol methodType = symbols.resolveType(n.f1);
         String methodName = n.f2.accept(this, argu);
 
-        Map<String, List<Argument> > classMethods = classToMethods.get(argu);
-
-        if( classMethods.containsKey(methodName) )
+        if( cls.methods.containsKey(methodName) )
             throw new Exception("Redefinition Error: Method " + argu + "." + methodName + " already defined.");
 
-        List<Argument> methodData = findMethodData(methodName, argu);
-
-        Map<String, String> argumentsToTypes = new HashMap<String,String>();
+        MethodSymbol method = symbols.declareMethod(cls, methodName, methodType);
 
         if( n.f4.present() )
         {
             n.f4.accept(this, argu);
-            List<String> typeList = Argument.typeList(argList);
-            if(methodData == null)
-            {
-                methodData = new ArrayList<Argument>(argList);
-                methodData.add(0, new Argument("", methodType));
-                classMethods.put(methodName, methodData);
+
+            for (FormalParameter param : paramList) {
+                String paramName = param.f1.f0.toString();
+                TypeSymbol paramType = symbols.resolveType(param.f0);
+
+                VarSymbol seek = method.vars.get(paramName);
+                if (seek != null)
+                    throw new Exception("Scope: " + method + "\n\tRedefinition Error: variable \"" + paramName + "\" has already been defined as type "
+                            + seek.type + ".");
+
+                symbols.declareParam(method, paramName, paramType);
             }
-            else if(methodType != methodData.get(0).argumentType || !Argument.typeList(methodData.subList(1, methodData.size())).equals(typeList))
-                throw new Exception("Overload Error: Cannot overload function " + argu + "." + methodName + "");
 
-            for (Argument arg : argList)
-                argumentsToTypes.put(arg.argumentName, arg.argumentType);
-            
-            argList.clear();
+            paramList.clear();
         }
-        else
+
+        // A method with the same name in a superclass must have the exact same signature
+        if( cls.superclass != null )
         {
-            if(methodData == null)
+            MethodSymbol inherited = cls.superclass.lookupMethod(methodName);
+
+            if( inherited != null )
             {
-                methodData = new ArrayList<Argument>();
-                methodData.add(0, new Argument("", methodType));
-                classMethods.put(methodName, methodData);
+                if( !method.hasSameSignature(inherited) )
+                    throw new Exception("Overload Error: Cannot overload function " + argu + "." + methodName);
+
+                method.overridden = inherited;
             }
-            else if(methodType != methodData.get(0).argumentType )
-                throw new Exception("Overload Error: Cannot overload function " + argu + "." + methodName);
-            
         }
 
-        String currScope = argu + "." + methodName;
-        scopeToVars.put(currScope, argumentsToTypes);
-        inheritanceChain.put(currScope, argu);
-        
-        classMethods.put(methodName, methodData);
-        
+        cls.methods.put(methodName, method);
+
         return null;
     }
 
@@ -247,8 +181,8 @@ class ClassDefVisitor extends GJDepthFirst<String, String> {
      * f1 -> Identifier()
      */
     @Override
-    public String visit(FormalParameter n, String argu) throws Exception {
-        argList.add(new Argument(n.f1.accept(this, argu), n.f0.accept(this, argu)));
+    public String visit(FormalParameter n, Scope argu) throws Exception {
+        paramList.add(n);
         return null;
     }
 
@@ -256,33 +190,7 @@ class ClassDefVisitor extends GJDepthFirst<String, String> {
      * f0 -> <IDENTIFIER>
      */
     @Override
-    public String visit(Identifier n, String argu) throws Exception {
+    public String visit(Identifier n, Scope argu) throws Exception {
         return n.f0.toString();
     }
-
-    /**
-     * f0 -> "int"
-     * f1 -> "["
-     * f2 -> "]"
-     */
-    @Override
-    public String visit(ArrayType n, String argu) throws Exception {
-        return "array";
-    }
-
-    /**
-     * f0 -> "boolean"
-     */
-    @Override
-    public String visit(BooleanType n, String argu) throws Exception {
-        return "boolean";
-    }
-
-    /**
-     * f0 -> "int"
-     */
-    @Override
-    public String visit(IntegerType n, String argu) throws Exception {
-        return "int";
-    }
 }
\ No newline at end of file
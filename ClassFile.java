@@ -0,0 +1,415 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A JVM class file being written, for JvmCodeVisitor. Only what MiniJava needs is supported: int,
+ * boolean, int[] and object values, fields, and methods with a single Code attribute. Class files
+ * are written in version 49, which the JVM verifies by type inference, so methods carry no stack
+ * map frames. Method code tracks it's own stack depth and locals, so max_stack and max_locals come
+ * out of emitting it.
+ */
+class ClassFile {
+
+    static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_SUPER = 0x0020;
+
+    // The opcodes Code emits
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int IALOAD = 0x2e;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3a;
+    static final int IASTORE = 0x4f;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IXOR = 0x82;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int NEW = 0xbb;
+    static final int NEWARRAY = 0xbc;
+    static final int ARRAYLENGTH = 0xbe;
+    static final int WIDE = 0xc4;
+
+    static final int T_INT = 10; // newarray's element type
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    public final String name;      // Internal names, like java/lang/Object
+    public final String superName;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> constants = new HashMap<String, Integer>(); // Entry -> index, so each is written once
+    private int poolSize = 1;
+
+    private final List<int[]> fields = new ArrayList<int[]>(); // access, name, descriptor
+    private final List<Code> methods = new ArrayList<Code>();
+
+    ClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    void addField(int access, String fieldName, String descriptor) {
+        fields.add(new int[] { access, utf8(fieldName), utf8(descriptor) });
+    }
+
+    // Starts a method; it's code is emitted through the returned Code
+    Code addMethod(int access, String methodName, String descriptor) {
+        Code code = new Code(access, utf8(methodName), utf8(descriptor), argumentSlots(descriptor) + ((access & ACC_STATIC) == 0 ? 1 : 0));
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toByteArray() throws Exception {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int codeIndex = utf8("Code");
+
+        for(Code method : methods)
+            method.resolveJumps();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(VERSION);
+        out.writeShort(poolSize);
+        pool.flush();
+        poolBytes.writeTo(out);
+
+        out.writeShort(ACC_PUBLIC | ACC_SUPER);
+        out.writeShort(thisIndex);
+        out.writeShort(superIndex);
+        out.writeShort(0); // No interfaces
+
+        out.writeShort(fields.size());
+        for(int[] field : fields) {
+            out.writeShort(field[0]);
+            out.writeShort(field[1]);
+            out.writeShort(field[2]);
+            out.writeShort(0);
+        }
+
+        out.writeShort(methods.size());
+        for(Code method : methods) {
+            out.writeShort(method.access);
+            out.writeShort(method.nameIndex);
+            out.writeShort(method.descriptorIndex);
+            out.writeShort(1);
+
+            byte[] code = method.bytes.toByteArray();
+            if(code.length > 65535)
+                throw new Exception("Method is too large for the JVM backend, it's code takes " + code.length + " bytes.");
+
+            out.writeShort(codeIndex);
+            out.writeInt(12 + code.length);
+            out.writeShort(method.maxStack);
+            out.writeShort(method.maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // No exception table
+            out.writeShort(0); // and no attributes
+        }
+
+        out.writeShort(0);
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    // Constant pool
+
+    private int utf8(String value) {
+        Integer index = constants.get("U" + value);
+        if(index != null)
+            return index;
+
+        try{
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        }
+        catch(IOException ex){
+            throw new IllegalStateException(ex); // Never happens, the pool is in memory
+        }
+        return add("U" + value, 1);
+    }
+
+    private int integer(int value) {
+        Integer index = constants.get("I" + value);
+        if(index != null)
+            return index;
+
+        write(CONSTANT_INTEGER, value >>> 16, value & 0xffff);
+        return add("I" + value, 1);
+    }
+
+    int classRef(String className) {
+        Integer index = constants.get("C" + className);
+        if(index != null)
+            return index;
+
+        int nameIndex = utf8(className);
+        write(CONSTANT_CLASS, nameIndex);
+        return add("C" + className, 1);
+    }
+
+    private int member(int tag, String owner, String memberName, String descriptor) {
+        String key = tag + owner + "." + memberName + ":" + descriptor;
+        Integer index = constants.get(key);
+        if(index != null)
+            return index;
+
+        int ownerIndex = classRef(owner);
+        String nameAndType = "N" + memberName + ":" + descriptor;
+        Integer nameAndTypeIndex = constants.get(nameAndType);
+        if(nameAndTypeIndex == null)
+        {
+            int nameIndex = utf8(memberName);
+            int descriptorIndex = utf8(descriptor);
+            write(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+            nameAndTypeIndex = add(nameAndType, 1);
+        }
+
+        write(tag, ownerIndex, nameAndTypeIndex);
+        return add(key, 1);
+    }
+
+    private void write(int tag, int... shorts) {
+        try{
+            pool.writeByte(tag);
+            for(int value : shorts)
+                pool.writeShort(value);
+        }
+        catch(IOException ex){
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private int add(String key, int slots) {
+        int index = poolSize;
+        poolSize += slots;
+        constants.put(key, index);
+        return index;
+    }
+
+    // Stack slots the arguments of a method descriptor take; MiniJava has no long or double values
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while(descriptor.charAt(i) != ')') {
+            while(descriptor.charAt(i) == '[')
+                i++;
+            if(descriptor.charAt(i) == 'L')
+                i = descriptor.indexOf(';', i);
+            i++;
+            slots++;
+        }
+
+        return slots;
+    }
+
+    /**
+     * A position in a method's code that jumps can target before it is placed.
+     */
+    static class Label {
+        private int position = -1;
+        private int depth = -1; // Stack depth on arrival, once a jump to the label is emitted
+    }
+
+    /**
+     * The body of a method, emitted in order. Every emit updates the stack depth, so max_stack is known
+     * once the method ends; code after a goto takes it's depth from the label it is placed at.
+     */
+    class Code {
+        private final int access;
+        private final int nameIndex;
+        private final int descriptorIndex;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Object[]> jumps = new ArrayList<Object[]>(); // opcode position, Label
+
+        private int depth;
+        private int maxStack;
+        private int maxLocals;
+
+        private Code(int access, int nameIndex, int descriptorIndex, int argumentSlots) {
+            this.access = access;
+            this.nameIndex = nameIndex;
+            this.descriptorIndex = descriptorIndex;
+            this.maxLocals = argumentSlots;
+        }
+
+        // An instruction without operands, which changes the stack depth by delta
+        void op(int opcode, int delta) {
+            bytes.write(opcode);
+            adjust(delta);
+        }
+
+        void pushInt(int value) {
+            if(value >= -1 && value <= 5)
+                bytes.write(ICONST_0 + value);
+            else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            {
+                bytes.write(BIPUSH);
+                bytes.write(value);
+            }
+            else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            {
+                bytes.write(SIPUSH);
+                u2(value);
+            }
+            else
+            {
+                int index = integer(value);
+                if(index < 256)
+                {
+                    bytes.write(LDC);
+                    bytes.write(index);
+                }
+                else
+                {
+                    bytes.write(LDC_W);
+                    u2(index);
+                }
+            }
+
+            adjust(1);
+        }
+
+        // iload, istore, aload or astore of a local
+        void local(int opcode, int slot) {
+            if(slot < 256)
+            {
+                bytes.write(opcode);
+                bytes.write(slot);
+            }
+            else
+            {
+                bytes.write(WIDE);
+                bytes.write(opcode);
+                u2(slot);
+            }
+
+            maxLocals = Math.max(maxLocals, slot + 1);
+            adjust(opcode == ILOAD || opcode == ALOAD ? 1 : -1);
+        }
+
+        // getfield, putfield, getstatic or putstatic; every MiniJava value takes a single slot
+        void field(int opcode, String owner, String fieldName, String descriptor) {
+            bytes.write(opcode);
+            u2(member(CONSTANT_FIELDREF, owner, fieldName, descriptor));
+
+            switch(opcode)
+            {
+                case GETSTATIC: adjust(1); break;
+                case PUTSTATIC: adjust(-1); break;
+                case PUTFIELD: adjust(-2); break;
+                default: break;
+            }
+        }
+
+        // invokevirtual or invokespecial
+        void invoke(int opcode, String owner, String methodName, String descriptor) {
+            bytes.write(opcode);
+            u2(member(CONSTANT_METHODREF, owner, methodName, descriptor));
+
+            boolean returnsValue = !descriptor.endsWith(")V");
+            adjust(-argumentSlots(descriptor) - 1 + (returnsValue ? 1 : 0));
+        }
+
+        void newObject(String className) {
+            bytes.write(NEW);
+            u2(classRef(className));
+            adjust(1);
+        }
+
+        void newIntArray() {
+            bytes.write(NEWARRAY);
+            bytes.write(T_INT);
+        }
+
+        // A conditional jump or a goto
+        void jump(int opcode, Label target) {
+            jumps.add(new Object[] { bytes.size(), target });
+            bytes.write(opcode);
+            u2(0); // Patched by resolveJumps
+
+            switch(opcode)
+            {
+                case GOTO: break;
+                case IFEQ:
+                case IFNE: adjust(-1); break;
+                default: adjust(-2); break;
+            }
+            target.depth = depth;
+        }
+
+        void place(Label label) {
+            label.position = bytes.size();
+            if(label.depth >= 0)
+                depth = label.depth;
+        }
+
+        private void resolveJumps() throws Exception {
+            byte[] code = bytes.toByteArray();
+            for(Object[] jump : jumps) {
+                int at = (Integer) jump[0];
+                int offset = ((Label) jump[1]).position - at;
+                if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                    throw new Exception("Method is too large for the JVM backend, a jump spans " + offset + " bytes.");
+
+                code[at + 1] = (byte) (offset >> 8);
+                code[at + 2] = (byte) offset;
+            }
+
+            bytes.reset();
+            bytes.write(code, 0, code.length);
+            jumps.clear();
+        }
+
+        private void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        private void adjust(int delta) {
+            depth += delta;
+            maxStack = Math.max(maxStack, depth);
+        }
+    }
+}
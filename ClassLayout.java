@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The final memory layout and vtable of a class, inherited members included. A layout is built
+ * once, starting from the already finished layout of the superclass, and is then only read.
+ *
+ * Fields are placed by pack once all of a class's fields are known: largest first, each at an
+ * offset that is a multiple of it's size, so every field is naturally aligned. The fields of the
+ * superclass keep their offsets, which makes a subclass layout start with it's parent's; padding
+ * the parent left behind is filled with smaller fields of the subclass where they fit. The
+ * offsets the fields would have in declaration order are kept for the offsets dump.
+ */
+class ClassLayout {
+
+    public static final int HEADER_SIZE = 8; // Every object starts with it's vtable pointer
+
+    public final ClassSymbol cls;
+
+    public final List<VarSymbol> fields;      // Fields declared by this class, in declaration order
+    public final List<MethodSymbol> vtable;   // Slot -> implementation, for every method visible in this class
+
+    public int fieldsEnd;                     // End of the last field, inherited ones included (relative to the end of the header)
+    public int declaredEnd;                   // The same, were fields laid out in declaration order
+
+    private final List<int[]> holes;          // Padding between fields, as [start, end) offsets
+
+    public final int firstOwnSlot;            // Slots from here on are introduced by this class
+
+    ClassLayout(ClassSymbol cls, ClassLayout parent) {
+        this.cls = cls;
+        this.fields = new ArrayList<VarSymbol>();
+
+        if(parent == null)
+        {
+            this.vtable = new ArrayList<MethodSymbol>();
+            this.holes = new ArrayList<int[]>();
+        }
+        else
+        {
+            this.vtable = new ArrayList<MethodSymbol>(parent.vtable);
+            this.holes = new ArrayList<int[]>();
+            for(int[] hole : parent.holes)
+                holes.add(hole.clone());
+
+            this.fieldsEnd = parent.fieldsEnd;
+            this.declaredEnd = parent.declaredEnd;
+        }
+
+        this.firstOwnSlot = vtable.size();
+    }
+
+    static int sizeOf(TypeSymbol type) {
+        if(type == TypeSymbol.INT)
+            return 4;
+        else if(type == TypeSymbol.BOOLEAN)
+            return 1;
+        else
+            return 8;
+    }
+
+    void addField(VarSymbol field) {
+        field.declaredOffset = declaredEnd;
+        declaredEnd += sizeOf(field.type);
+        fields.add(field);
+    }
+
+    // Places the fields declared by this class, once they are all added
+    void pack() {
+        List<VarSymbol> bySize = new ArrayList<VarSymbol>(fields);
+        Collections.sort(bySize, new Comparator<VarSymbol>() { // Stable, so equal sizes keep declaration order
+            @Override
+            public int compare(VarSymbol a, VarSymbol b) {
+                return sizeOf(b.type) - sizeOf(a.type);
+            }
+        });
+
+        for(VarSymbol field : bySize)
+            field.offset = place(sizeOf(field.type));
+    }
+
+    // The first offset where size bytes, aligned to size, fit: in padding if possible, or else at the end
+    private int place(int size) {
+        for(int i = 0; i < holes.size(); i++) {
+            int[] hole = holes.get(i);
+            int start = alignUp(hole[0], size);
+            if(start + size > hole[1])
+                continue;
+
+            holes.remove(i);
+            if(start + size < hole[1])
+                holes.add(i, new int[] { start + size, hole[1] });
+            if(hole[0] < start)
+                holes.add(i, new int[] { hole[0], start });
+            return start;
+        }
+
+        int start = alignUp(fieldsEnd, size);
+        if(fieldsEnd < start)
+            holes.add(new int[] { fieldsEnd, start });
+
+        fieldsEnd = start + size;
+        return start;
+    }
+
+    private static int alignUp(int offset, int alignment) {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+
+    // Bytes between fields, inherited ones included, that hold nothing
+    int padding() {
+        int padding = 0;
+        for(int[] hole : holes)
+            padding += hole[1] - hole[0];
+
+        return padding;
+    }
+
+    void addMethod(MethodSymbol method) {
+        if(method.overridden != null) // Overriding methods take over the slot of the method they override
+        {
+            method.vtableIndex = method.overridden.vtableIndex;
+            vtable.set(method.vtableIndex, method);
+        }
+        else
+        {
+            method.vtableIndex = vtable.size();
+            vtable.add(method);
+        }
+    }
+
+    int objectSize() {
+        return HEADER_SIZE + fieldsEnd;
+    }
+
+    // Byte offset of a field from the start of the object
+    static int objectOffset(VarSymbol field) {
+        return HEADER_SIZE + field.offset;
+    }
+
+    /**
+     * Writes the layout of every class except the main class in the following format:
+     *
+     * -----------Class A-----------
+     * --Variables---
+     * A.x : 0
+     * ---Methods---
+     * A.foo : 0
+     *
+     * Only members introduced by each class are listed. Fields are listed in declaration order at the
+     * offsets that order would give them, unless packed is set: then they are listed in memory order at
+     * their actual offsets, and a ---Size--- section gives the bytes after the header and the padding
+     * among them, inherited fields included, as in "A : 16 (3 padding)".
+     */
+    static void dump(SymbolTable symbols, OutputSink out, boolean packed) throws Exception {
+        for (ClassSymbol cls : symbols.classes) {
+            if(cls.isMainClass)
+                continue;
+
+            ClassLayout layout = cls.layout;
+
+            List<VarSymbol> fields = new ArrayList<VarSymbol>(layout.fields);
+            if(packed)
+            {
+                Collections.sort(fields, new Comparator<VarSymbol>() {
+                    @Override
+                    public int compare(VarSymbol a, VarSymbol b) {
+                        return a.offset - b.offset;
+                    }
+                });
+            }
+
+            out.write("-----------Class " + cls.name + "-----------\n");
+            out.write("--Variables---\n");
+            for (VarSymbol field : fields)
+                out.write(cls.name + "." + field.name + " : " + (packed ? field.offset : field.declaredOffset) + "\n");
+
+            if(packed)
+            {
+                out.write("---Size---\n");
+                out.write(cls.name + " : " + layout.fieldsEnd + " (" + layout.padding() + " padding)\n");
+            }
+
+            out.write("---Methods---\n");
+            for (int slot = layout.firstOwnSlot; slot < layout.vtable.size(); slot++)
+                out.write(cls.name + "." + layout.vtable.get(slot).methodName + " : " + (slot * 8) + "\n");
+
+            out.write("\n");
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes recomputations of values that are already available. Address arithmetic, casts,
+ * arithmetic and comparisons are reused anywhere their first computation dominates. A load is
+ * reused, or replaced by the value just stored to the same address, only within it's block and
+ * only until a store that may write the same memory or a call that may write it intervenes.
+ * Loads of memory that never changes once initialized (vtable pointers, array lengths and
+ * vtables) are reused like arithmetic.
+ */
+class CommonSubexpressions extends FunctionPass {
+
+    // What an instruction computes: two instructions with equal keys compute the same value
+    private static class Key {
+        final Class<?> kind;
+        final Object op;
+        final IrType type;
+        final List<IrValue> operands;
+
+        Key(IrInstr instr, Object op) {
+            this.kind = instr.getClass();
+            this.op = op;
+            this.type = instr.type;
+            this.operands = new ArrayList<IrValue>(instr.operands);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof Key))
+                return false;
+
+            Key key = (Key) other;
+            return kind == key.kind && op == key.op && type.equals(key.type) && operands.equals(key.operands);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.asList(kind, op, type, operands).hashCode();
+        }
+    }
+
+    // The memory a pointer addresses: an offset into the object, array, stack slot or global it was derived from
+    static class Location {
+        IrValue root;
+        long offset;
+        boolean offsetKnown;
+        int size;
+    }
+
+    private int expressions;
+    private int loads;
+
+    @Override
+    public String name() {
+        return "cse";
+    }
+
+    @Override
+    public String report() {
+        return "removed " + expressions + " redundant computations and " + loads + " redundant loads";
+    }
+
+    // The runtime's own code is left alone: the collector rewrites the first word of allocation
+    // headers, which isImmutable would take for the vtable pointer of an object
+    @Override
+    public void run(IrModule module) {
+        for(IrFunction function : module.functions) {
+            if(!function.isDeclaration() && !function.isRuntime)
+                runOnFunction(function);
+        }
+    }
+
+    @Override
+    void runOnFunction(IrFunction function) {
+        DominatorTree dom = new DominatorTree(function);
+        Map<IrValue, IrValue> replacements = new HashMap<IrValue, IrValue>();
+        Map<Key, IrInstr> available = new HashMap<Key, IrInstr>();
+
+        // Each entry is a block to visit, or a list of keys that go out of scope
+        List<Object> work = new ArrayList<Object>();
+        work.add(function.entry());
+
+        while(!work.isEmpty()) {
+            Object item = work.remove(work.size() - 1);
+
+            if(item instanceof List)
+            {
+                for(Object key : (List<?>) item)
+                    available.remove(key);
+                continue;
+            }
+
+            IrBlock block = (IrBlock) item;
+            List<Key> added = new ArrayList<Key>();
+            Map<IrValue, IrValue> memory = new LinkedHashMap<IrValue, IrValue>(); // Pointer -> value it holds
+
+            for(Iterator<IrInstr> it = block.instrs.iterator(); it.hasNext(); ) {
+                IrInstr instr = it.next();
+
+                for(int i = 0; i < instr.operands.size(); i++) {
+                    IrValue replacement = replacements.get(instr.operands.get(i));
+                    if(replacement != null)
+                        instr.operands.set(i, replacement);
+                }
+
+                Key key = keyOf(instr);
+                if(key != null)
+                {
+                    IrInstr existing = available.get(key);
+                    if(existing != null)
+                    {
+                        replacements.put(instr, existing);
+                        it.remove();
+                        if(instr instanceof IrLoad)
+                            loads++;
+                        else
+                            expressions++;
+                    }
+                    else
+                    {
+                        available.put(key, instr);
+                        added.add(key);
+                    }
+                }
+                else if(instr instanceof IrLoad)
+                {
+                    IrValue pointer = ((IrLoad) instr).pointer();
+                    IrValue known = memory.get(pointer);
+
+                    if(known != null && known.type.equals(instr.type))
+                    {
+                        replacements.put(instr, known);
+                        it.remove();
+                        loads++;
+                    }
+                    else
+                        memory.put(pointer, instr);
+                }
+                else if(instr instanceof IrStore)
+                {
+                    IrStore store = (IrStore) instr;
+                    Location written = locate(store.pointer());
+
+                    for(Iterator<IrValue> pointers = memory.keySet().iterator(); pointers.hasNext(); ) {
+                        if(mayAlias(written, locate(pointers.next())))
+                            pointers.remove();
+                    }
+
+                    memory.put(store.pointer(), store.value());
+                }
+                else if(instr instanceof IrCall)
+                {
+                    // The runtime library keeps it's state in globals, it never touches the program's objects and arrays
+                    IrFunction callee = ((IrCall) instr).directCallee();
+                    for(Iterator<IrValue> pointers = memory.keySet().iterator(); pointers.hasNext(); ) {
+                        IrValue pointer = pointers.next();
+                        if(callee == null || !callee.isRuntime || locate(pointer).root instanceof IrGlobal)
+                            pointers.remove();
+                    }
+                }
+            }
+
+            work.add(added);
+            List<IrBlock> children = dom.children(block);
+            for(int i = children.size() - 1; i >= 0; i--)
+                work.add(children.get(i));
+        }
+
+        if(!replacements.isEmpty())
+        {
+            for(Map.Entry<IrValue, IrValue> entry : replacements.entrySet())
+                entry.setValue(resolve(entry.getValue(), replacements));
+
+            function.replaceUses(replacements);
+            function.removeDeadInstructions();
+        }
+    }
+
+    private static IrValue resolve(IrValue value, Map<IrValue, IrValue> replacements) {
+        IrValue replacement;
+        while((replacement = replacements.get(value)) != null)
+            value = replacement;
+
+        return value;
+    }
+
+    // The key of an instruction whose result only depends on it's operands, or null
+    private static Key keyOf(IrInstr instr) {
+        if(instr instanceof IrBinary)
+            return new Key(instr, ((IrBinary) instr).op);
+        if(instr instanceof IrCompare)
+            return new Key(instr, ((IrCompare) instr).pred);
+        if(instr instanceof IrCast)
+            return new Key(instr, ((IrCast) instr).op);
+        if(instr instanceof IrGep)
+            return new Key(instr, null);
+        if(instr instanceof IrLoad && isImmutable(locate(((IrLoad) instr).pointer()), instr.type))
+            return new Key(instr, null);
+
+        return null;
+    }
+
+    // Memory written once, when it's object or array is allocated, and never again
+    private static boolean isImmutable(Location location, IrType type) {
+        if(location.root instanceof IrGlobal)
+            return ((IrGlobal) location.root).constant;
+        if(!location.offsetKnown || location.offset != 0 || location.root instanceof IrAlloca)
+            return false;
+
+        if(location.root.type.equals(IrType.I32_PTR)) // An array's length
+            return type.equals(IrType.I32);
+
+        return location.root.type.equals(IrType.I8_PTR) && type.isPointer(); // An object's vtable pointer
+    }
+
+    // Follows address arithmetic back to the object or array handle, global or stack slot it started from
+    static Location locate(IrValue pointer) {
+        Location location = new Location();
+        location.size = sizeOf(pointer.type.element);
+        location.offsetKnown = true;
+
+        while(true) {
+            if(pointer instanceof IrCast && ((IrCast) pointer).op == IrCast.Op.BITCAST)
+            {
+                // A new array's handle is a cast of the memory it was allocated in, so stop there
+                IrValue operand = ((IrCast) pointer).operand(0);
+                if(pointer.type.equals(IrType.I32_PTR) && !(operand instanceof IrGep))
+                    break;
+
+                pointer = operand;
+            }
+            else if(pointer instanceof IrGep)
+            {
+                IrGep gep = (IrGep) pointer;
+                if(gep.operands.size() == 2 && gep.operand(1) instanceof IrConst)
+                    location.offset += ((IrConst) gep.operand(1)).value * sizeOf(gep.sourceType);
+                else
+                    location.offsetKnown = false;
+
+                pointer = gep.operand(0);
+            }
+            else
+                break;
+        }
+
+        location.root = pointer;
+        return location;
+    }
+
+    private static int sizeOf(IrType type) {
+        if(type.isPointer())
+            return 8;
+
+        return Math.max(1, type.bits / 8);
+    }
+
+    private static boolean isHandle(IrValue value) {
+        return value.type.equals(IrType.I8_PTR) || value.type.equals(IrType.I32_PTR);
+    }
+
+    private static boolean mayAlias(Location a, Location b) {
+        if(a.root != b.root)
+        {
+            // Stack slots and globals are only reached through themselves, and objects never overlap arrays
+            if(a.root instanceof IrAlloca || b.root instanceof IrAlloca || a.root instanceof IrGlobal || b.root instanceof IrGlobal)
+                return false;
+
+            if(isHandle(a.root) && isHandle(b.root))
+                return a.root.type.equals(b.root.type);
+
+            return true;
+        }
+
+        if(!a.offsetKnown || !b.offsetKnown)
+            return true;
+
+        return a.offset < b.offset + b.size && b.offset < a.offset + a.size;
+    }
+}
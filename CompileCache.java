@@ -0,0 +1,268 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of compiler outputs. Entries are keyed by the SHA-256 of the source bytes, the
+ * options that change the outputs and a fingerprint of the compiler classes themselves, so a
+ * rebuilt compiler never reuses stale code.
+ *
+ * Every entry is one file, <key>.entry. A hit refreshes it's modification time, and when the
+ * cache grows past it's size limit the least recently used entries are deleted first.
+ */
+class CompileCache {
+
+    static final int FORMAT_VERSION = 1;
+    static final long DEFAULT_SIZE_MB = 64;
+
+    private static final String ENTRY_SUFFIX = ".entry";
+
+    private static final Map<String, CompileCache> openCaches = new HashMap<String, CompileCache>();
+    private static String compilerFingerprint;
+
+    static class Entry {
+        final byte[] llvm;
+        final byte[] offsets; // null if the offsets were not requested
+
+        Entry(byte[] llvm, byte[] offsets) {
+            this.llvm = llvm;
+            this.offsets = offsets;
+        }
+    }
+
+    private final File dir;
+    private volatile long maxBytes; // Of the latest compilation to open the cache, requests to a server may differ
+
+    private final AtomicLong currentBytes;
+    private final AtomicInteger hits;
+    private final AtomicInteger misses;
+    private final AtomicInteger stores;
+    private final AtomicInteger evictions;
+
+    private CompileCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.currentBytes = new AtomicLong(totalSize(listEntries()));
+        this.hits = new AtomicInteger();
+        this.misses = new AtomicInteger();
+        this.stores = new AtomicInteger();
+        this.evictions = new AtomicInteger();
+    }
+
+    // One instance per directory and process, so concurrent compilations share counters and size accounting
+    static synchronized CompileCache forDirectory(String dirName, long maxBytes) throws IOException {
+        File dir = new File(dirName).getCanonicalFile();
+        CompileCache cache = openCaches.get(dir.getPath());
+
+        if(cache == null)
+        {
+            if(!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Could not create cache directory " + dir + ".");
+
+            cache = new CompileCache(dir, maxBytes);
+            openCaches.put(dir.getPath(), cache);
+        }
+        else
+            cache.maxBytes = maxBytes; // Takes effect on the next store
+
+        return cache;
+    }
+
+    String key(byte[] source, String optionsSignature) throws IOException {
+        MessageDigest digest;
+
+        try{
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException ex){
+            throw new IOException(ex);
+        }
+
+        digest.update((FORMAT_VERSION + "\0" + fingerprint() + "\0" + optionsSignature + "\0").getBytes(StandardCharsets.UTF_8));
+        digest.update(source);
+
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+
+        return hex.toString();
+    }
+
+    // Returns the cached outputs for key, or null on a miss
+    Entry lookup(String key) {
+        File file = new File(dir, key + ENTRY_SUFFIX);
+
+        if(!file.isFile())
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            if(in.readInt() != FORMAT_VERSION)
+                throw new IOException("Unknown cache entry format.");
+
+            byte[] llvm = new byte[in.readInt()];
+            in.readFully(llvm);
+
+            byte[] offsets = null;
+            int offsetsLength = in.readInt();
+            if(offsetsLength >= 0)
+            {
+                offsets = new byte[offsetsLength];
+                in.readFully(offsets);
+            }
+
+            file.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return new Entry(llvm, offsets);
+        }
+        catch(IOException ex){ // Evicted by another process or truncated; compile again and overwrite it
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    void store(String key, Entry entry) throws IOException {
+        File file = new File(dir, key + ENTRY_SUFFIX);
+        File temp = File.createTempFile(key, ".tmp", dir);
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))){
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entry.llvm.length);
+            out.write(entry.llvm);
+
+            if(entry.offsets == null)
+                out.writeInt(-1);
+            else
+            {
+                out.writeInt(entry.offsets.length);
+                out.write(entry.offsets);
+            }
+        }
+
+        long replaced = file.length(); // 0 if the entry is new
+
+        // Readers see either the old entry or the complete new one
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        stores.incrementAndGet();
+        if(currentBytes.addAndGet(file.length() - replaced) > maxBytes)
+            evict();
+    }
+
+    private synchronized void evict() {
+        File[] entries = listEntries();
+        long total = totalSize(entries);
+        long limit = maxBytes;
+
+        if(total > limit)
+        {
+            Arrays.sort(entries, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+
+            for(int i = 0; i < entries.length && total > limit; i++) {
+                long size = entries[i].length();
+                if(entries[i].delete())
+                {
+                    total -= size;
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+
+        currentBytes.set(total);
+    }
+
+    private File[] listEntries() {
+        File[] entries = dir.listFiles();
+        if(entries == null)
+            return new File[0];
+
+        int count = 0;
+        for(File entry : entries) {
+            if(entry.getName().endsWith(ENTRY_SUFFIX))
+                entries[count++] = entry;
+        }
+
+        return Arrays.copyOf(entries, count);
+    }
+
+    private static long totalSize(File[] entries) {
+        long total = 0;
+        for(File entry : entries)
+            total += entry.length();
+
+        return total;
+    }
+
+    String stats() {
+        int lookups = hits.get() + misses.get();
+        int percent = lookups == 0 ? 0 : (int) (100L * hits.get() / lookups);
+
+        return "Compile cache: " + hits + "/" + lookups + " hits (" + percent + "%), "
+            + stores + " stored, " + evictions + " evicted, " + currentBytes + " of " + maxBytes + " bytes used";
+    }
+
+    // Changes whenever the compiler is rebuilt: the name, size and modification time of every class it was loaded from
+    private static synchronized String fingerprint() throws IOException {
+        if(compilerFingerprint != null)
+            return compilerFingerprint;
+
+        File location;
+        try{
+            location = new File(CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        }
+        catch(URISyntaxException ex){
+            throw new IOException(ex);
+        }
+
+        StringBuilder fingerprint = new StringBuilder();
+        if(location.isDirectory())
+            appendClasses(location, "", fingerprint);
+        else
+            appendClass(location, location.getName(), fingerprint);
+
+        compilerFingerprint = fingerprint.toString();
+        return compilerFingerprint;
+    }
+
+    // The generated parser and visitors live in the syntaxtree and visitor packages, so subdirectories count too
+    private static void appendClasses(File dir, String prefix, StringBuilder fingerprint) {
+        File[] files = dir.listFiles();
+        if(files == null)
+            return;
+
+        Arrays.sort(files);
+        for(File file : files) {
+            if(file.isDirectory())
+                appendClasses(file, prefix + file.getName() + "/", fingerprint);
+            else if(file.getName().endsWith(".class") || file.getName().endsWith(".jar"))
+                appendClass(file, prefix + file.getName(), fingerprint);
+        }
+    }
+
+    private static void appendClass(File file, String name, StringBuilder fingerprint) {
+        fingerprint.append(name).append(':').append(file.length()).append(':').append(file.lastModified()).append(';');
+    }
+}
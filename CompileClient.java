@@ -0,0 +1,58 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Thin command line front end for a compile server started with --server=<socket>.
+ * Takes the same options and input files as Main and exits with the same status.
+ */
+class CompileClient {
+
+    public static void main(String[] args) {
+        if(args.length < 2)
+        {
+            System.err.println("Usage: java CompileClient <socket> [options] <inputFile1> <inputFile2> ... <inputFileN>");
+            System.exit(1);
+        }
+
+        try{
+            System.exit(send(args));
+        }
+        catch(IOException ex){
+            System.err.println("Could not reach the compile server at " + args[0] + ": " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static int send(String[] args) throws IOException {
+        try(SocketChannel server = SocketChannel.open(UnixDomainSocketAddress.of(args[0]))){
+
+            // Input files are resolved against our working directory, not the server's
+            StringBuilder request = new StringBuilder("--cwd\t" + System.getProperty("user.dir"));
+            for(int i = 1; i < args.length; i++)
+                request.append('\t').append(args[i]);
+
+            PrintStream out = new PrintStream(Channels.newOutputStream(server), false, "UTF-8");
+            out.print(request + "\n" + CompileServer.QUIT + "\n");
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(server), StandardCharsets.UTF_8));
+
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.startsWith(CompileServer.EXIT_PREFIX))
+                    return Integer.parseInt(line.substring(CompileServer.EXIT_PREFIX.length()));
+
+                if(!line.startsWith(CompileServer.RESULT_PREFIX))
+                    System.out.println(line);
+            }
+        }
+
+        throw new IOException("Connection closed before the request was answered.");
+    }
+}
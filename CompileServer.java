@@ -0,0 +1,166 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long running compiler. The JVM, the generated parser and visitor classes and the JIT-compiled
+ * code stay loaded between requests, so each request only pays for the compilation itself.
+ *
+ * Requests are single lines holding the same arguments as the command line, separated by tabs
+ * (or by spaces if the line contains no tab). Every request is answered with the diagnostics of
+ * its files, followed by one line per file and a final status line:
+ *
+ * #result <inputFile> ok|error
+ * #exit 0|1
+ *
+ * A "quit" line ends the session: the server itself in stdin mode, the connection in socket mode.
+ */
+class CompileServer {
+
+    static final String RESULT_PREFIX = "#result ";
+    static final String EXIT_PREFIX = "#exit ";
+    static final String QUIT = "quit";
+
+    static void run(CompilerOptions serverOptions) throws IOException {
+        if(serverOptions.server.equals(CompilerOptions.STDIN_SERVER))
+            serve(System.in, System.out);
+        else
+            listen(serverOptions.server);
+    }
+
+    private static void listen(String socketPath) throws IOException {
+        final File socketFile = new File(socketPath);
+        removeStaleSocket(socketFile.toPath());
+
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socketFile.getPath()));
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                socketFile.delete();
+            }
+        });
+
+        ExecutorService connections = Executors.newCachedThreadPool();
+
+        System.err.println("Compile server listening on " + socketPath);
+
+        while(true) {
+            final SocketChannel client = server.accept();
+
+            connections.submit(new Runnable() {
+                public void run() {
+                    try{
+                        serve(Channels.newInputStream(client), Channels.newOutputStream(client));
+                    }
+                    catch(IOException ex){
+                        System.err.println("Connection closed: " + ex.getMessage());
+                    }
+                    catch(RuntimeException | Error ex){ // The executor would keep these to itself
+                        System.err.println("Connection failed: " + ex);
+                    }
+                    finally{
+                        try{
+                            client.close();
+                        }
+                        catch(IOException ex){
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    // Removes a socket left behind by a server that did not shut down cleanly, but nothing that is not a socket
+    private static void removeStaleSocket(Path socket) throws IOException {
+        BasicFileAttributes attributes;
+        try{
+            attributes = Files.readAttributes(socket, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch(NoSuchFileException ex){
+            return;
+        }
+
+        if(!attributes.isOther())
+            throw new IOException("Cannot listen on " + socket + ": it exists and is not a socket.");
+
+        Files.delete(socket);
+    }
+
+    // Answers requests until the input ends or a quit line is read
+    private static void serve(InputStream requests, OutputStream responses) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(requests, StandardCharsets.UTF_8));
+        PrintStream out = new PrintStream(responses, false, "UTF-8");
+
+        String line;
+        while((line = in.readLine()) != null) {
+            line = line.trim();
+
+            if(line.isEmpty())
+                continue;
+
+            if(line.equals(QUIT))
+                break;
+
+            handle(line, out);
+            out.flush();
+        }
+
+        out.flush();
+    }
+
+    private static void handle(String request, PrintStream out) {
+        CompilerOptions options;
+
+        try{
+            options = CompilerOptions.parse(splitArguments(request));
+
+            if(options.server != null)
+                throw new Exception("Option --server cannot be used in a request.");
+        }
+        catch(Exception ex){
+            out.println(ex.getMessage());
+            out.println(EXIT_PREFIX + 1);
+            return;
+        }
+
+        if(options.help || options.inputFiles.isEmpty())
+        {
+            out.println(CompilerOptions.USAGE);
+            out.println(EXIT_PREFIX + (options.help ? 0 : 1));
+            return;
+        }
+
+        List<CompileResult> results = Main.compileAll(options, out);
+
+        for(CompileResult result : results)
+            out.println(RESULT_PREFIX + result.fileName + " " + (result.succeeded ? "ok" : "error"));
+
+        out.println(EXIT_PREFIX + (Main.allSucceeded(results) ? 0 : 1));
+    }
+
+    static String[] splitArguments(String request) {
+        if(request.indexOf('\t') >= 0)
+            return request.split("\t");
+
+        return request.split(" +");
+    }
+}
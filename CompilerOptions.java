@@ -0,0 +1,328 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+class CompilerOptions {
+
+    public static final String STDIN_SERVER = "-";
+
+    public static final String USAGE =
+          "Usage: java Main [options] <inputFile1> <inputFile2> ... <inputFileN>\n"
+        + "Options:\n"
+        + "\t--jobs <N>, -j <N>\tCompile up to N files concurrently (default: 1)\n"
+        + "\t--sink <kind>\t\tWhere generated code is written: file (default), mapped, memory or stdout\n"
+        + "\t-O<level>\t\tOptimization level: 0 emits the IR as built, 1 (default) runs the optimization passes\n"
+        + "\t--inline-budget <N>\tInline direct calls to methods of at most N instructions, 0 disables (default: 40)\n"
+        + "\t--alloc <kind>\t\tHow compiled programs allocate objects and arrays: calloc (default), arena,\n"
+        + "\t\t\t\ta bump pointer allocator carving them out of large zeroed chunks, or gc, a\n"
+        + "\t\t\t\tmark-sweep collected heap that prints it's statistics to stderr at exit\n"
+        + "\t--offsets[=layout]\tAlso write the field and method offsets of every class to <inputFile>.offset;\n"
+        + "\t\t\t\tfields in declaration order, or with =layout where they actually are\n"
+        + "\t--asm\t\t\tWrite x86-64 assembly for the GNU assembler to <inputFile>.s instead of LLVM code\n"
+        + "\t--run\t\t\tRun every program in the bytecode virtual machine instead of writing it's LLVM code\n"
+        + "\t--jvm-run\t\tTranslate every program to JVM classes and run them in this JVM instead\n"
+        + "\t--stats\t\t\tPrint name resolution cache and optimization statistics for every file\n"
+        + "\t--time-passes[=<file>]\tPrint the time, allocation and output of every phase and IR pass for every file;\n"
+        + "\t\t\t\twith =file also write them to file as JSON\n"
+        + "\t--cache <dir>\t\tReuse the outputs of unchanged files from an on-disk cache in dir\n"
+        + "\t--cache-size <MB>\tEvict least recently used cache entries beyond this size (default: 64)\n"
+        + "\t--server[=<socket>]\tKeep running and compile the files of every request line read from stdin,\n"
+        + "\t\t\t\tor from connections to the given Unix domain socket (see CompileServer)\n"
+        + "\t--cwd <dir>\t\tResolve relative input files against dir instead of the working directory\n"
+        + "\t--help\t\t\tPrint this message and exit";
+
+    public int jobs;
+    public String sink;
+    public int optLevel;
+    public int inlineBudget;
+    public String allocator;
+    public boolean offsets;
+    public boolean offsetsLayout; // Dump the packed field layout rather than declaration order offsets
+    public boolean asm;
+    public boolean run;
+    public boolean jvmRun;
+    public boolean stats;
+    public boolean timePasses;
+    public String timePassesFile; // null unless the timings are also written as JSON
+    public boolean help;
+
+    public String cacheDir;   // null if caching is disabled
+    public long cacheSize;    // In bytes
+
+    public String server;     // null, STDIN_SERVER or the path of a Unix domain socket
+    public String workingDir; // Relative input files are resolved against this directory when set
+
+    public List<String> inputFiles;
+
+    CompilerOptions() {
+        this.jobs = 1;
+        this.sink = "file";
+        this.optLevel = 1;
+        this.inlineBudget = Inliner.DEFAULT_BUDGET;
+        this.allocator = "calloc";
+        this.offsets = false;
+        this.offsetsLayout = false;
+        this.asm = false;
+        this.run = false;
+        this.jvmRun = false;
+        this.stats = false;
+        this.timePasses = false;
+        this.timePassesFile = null;
+        this.help = false;
+        this.cacheDir = null;
+        this.cacheSize = CompileCache.DEFAULT_SIZE_MB << 20;
+        this.server = null;
+        this.workingDir = null;
+        this.inputFiles = new ArrayList<String>();
+    }
+
+    static CompilerOptions parse(String[] args) throws Exception {
+        CompilerOptions options = new CompilerOptions();
+
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if(arg.equals("--help") || arg.equals("-h"))
+            {
+                options.help = true;
+            }
+            else if(arg.equals("--jobs") || arg.equals("-j"))
+            {
+                if(i + 1 == args.length)
+                    throw new Exception("Option " + arg + " expects a number of jobs.");
+
+                options.jobs = parseJobs(args[++i]);
+            }
+            else if(arg.startsWith("--jobs="))
+            {
+                options.jobs = parseJobs(arg.substring("--jobs=".length()));
+            }
+            else if(arg.equals("--sink"))
+            {
+                if(i + 1 == args.length)
+                    throw new Exception("Option " + arg + " expects a sink kind.");
+
+                options.sink = parseSink(args[++i]);
+            }
+            else if(arg.startsWith("--sink="))
+            {
+                options.sink = parseSink(arg.substring("--sink=".length()));
+            }
+            else if(arg.startsWith("-O"))
+            {
+                options.optLevel = parseOptLevel(arg.substring("-O".length()));
+            }
+            else if(arg.equals("--offsets"))
+            {
+                options.offsets = true;
+            }
+            else if(arg.startsWith("--offsets="))
+            {
+                if(!arg.equals("--offsets=layout"))
+                    throw new Exception("Unknown offsets format " + arg.substring("--offsets=".length()) + ".");
+
+                options.offsets = true;
+                options.offsetsLayout = true;
+            }
+            else if(arg.equals("--asm"))
+            {
+                options.asm = true;
+            }
+            else if(arg.equals("--run"))
+            {
+                options.run = true;
+            }
+            else if(arg.equals("--jvm-run"))
+            {
+                options.jvmRun = true;
+            }
+            else if(arg.equals("--stats"))
+            {
+                options.stats = true;
+            }
+            else if(arg.equals("--time-passes"))
+            {
+                options.timePasses = true;
+            }
+            else if(arg.startsWith("--time-passes="))
+            {
+                options.timePasses = true;
+                options.timePassesFile = arg.substring("--time-passes=".length());
+                if(options.timePassesFile.isEmpty())
+                    throw new Exception("Option --time-passes= expects a file name.");
+            }
+            else if(arg.equals("--cache"))
+            {
+                if(i + 1 == args.length)
+                    throw new Exception("Option " + arg + " expects a directory.");
+
+                options.cacheDir = args[++i];
+            }
+            else if(arg.startsWith("--cache="))
+            {
+                options.cacheDir = arg.substring("--cache=".length());
+            }
+            else if(arg.equals("--inline-budget"))
+            {
+                if(i + 1 == args.length)
+                    throw new Exception("Option " + arg + " expects a number of instructions.");
+
+                options.inlineBudget = parseInlineBudget(args[++i]);
+            }
+            else if(arg.startsWith("--inline-budget="))
+            {
+                options.inlineBudget = parseInlineBudget(arg.substring("--inline-budget=".length()));
+            }
+            else if(arg.equals("--alloc"))
+            {
+                if(i + 1 == args.length)
+                    throw new Exception("Option " + arg + " expects an allocator.");
+
+                options.allocator = parseAllocator(args[++i]);
+            }
+            else if(arg.startsWith("--alloc="))
+            {
+                options.allocator = parseAllocator(arg.substring("--alloc=".length()));
+            }
+            else if(arg.equals("--cache-size"))
+            {
+                if(i + 1 == args.length)
+                    throw new Exception("Option " + arg + " expects a size in megabytes.");
+
+                options.cacheSize = parseCacheSize(args[++i]);
+            }
+            else if(arg.startsWith("--cache-size="))
+            {
+                options.cacheSize = parseCacheSize(arg.substring("--cache-size=".length()));
+            }
+            else if(arg.equals("--server"))
+            {
+                options.server = STDIN_SERVER;
+            }
+            else if(arg.startsWith("--server="))
+            {
+                options.server = arg.substring("--server=".length());
+                if(options.server.isEmpty())
+                    throw new Exception("Option --server= expects a socket path.");
+            }
+            else if(arg.equals("--cwd"))
+            {
+                if(i + 1 == args.length)
+                    throw new Exception("Option " + arg + " expects a directory.");
+
+                options.workingDir = args[++i];
+            }
+            else if(arg.startsWith("--cwd="))
+            {
+                options.workingDir = arg.substring("--cwd=".length());
+            }
+            else if(arg.startsWith("-") && arg.length() > 1)
+            {
+                throw new Exception("Unknown option " + arg + ".");
+            }
+            else
+            {
+                options.inputFiles.add(arg);
+            }
+        }
+
+        if(options.run && options.jvmRun)
+            throw new Exception("Options --run and --jvm-run can not be combined.");
+
+        if(options.workingDir != null)
+        {
+            for(int i = 0; i < options.inputFiles.size(); i++) {
+                File file = new File(options.inputFiles.get(i));
+                if(!file.isAbsolute())
+                    options.inputFiles.set(i, new File(options.workingDir, file.getPath()).getPath());
+            }
+        }
+
+        return options;
+    }
+
+    // Everything that changes the generated files must be part of this, since it is part of the cache key
+    String signature() {
+        return "O" + optLevel + " inline=" + inlineBudget + " alloc=" + allocator + " offsets=" + offsets + (offsetsLayout ? "/layout" : "") + (asm ? " asm" : "");
+    }
+
+    private static int parseOptLevel(String value) throws Exception {
+        if(value.equals("0"))
+            return 0;
+        else if(value.equals("1"))
+            return 1;
+        else
+            throw new Exception("Invalid optimization level: " + value + ".");
+    }
+
+    private static int parseInlineBudget(String value) throws Exception {
+        int budget;
+
+        try {
+            budget = Integer.parseInt(value);
+        }
+        catch(NumberFormatException ex) {
+            throw new Exception("Invalid inline budget: " + value + ".");
+        }
+
+        if(budget < 0)
+            throw new Exception("Invalid inline budget: " + value + ".");
+
+        return budget;
+    }
+
+    private static long parseCacheSize(String value) throws Exception {
+        long megabytes;
+
+        try {
+            megabytes = Long.parseLong(value);
+        }
+        catch(NumberFormatException ex) {
+            throw new Exception("Invalid cache size: " + value + ".");
+        }
+
+        if(megabytes <= 0)
+            throw new Exception("Invalid cache size: " + value + ".");
+
+        return megabytes << 20;
+    }
+
+    private static String parseAllocator(String value) throws Exception {
+        if(value.equals("calloc") || value.equals("arena") || value.equals("gc"))
+            return value;
+
+        throw new Exception("Unknown allocator " + value + ".");
+    }
+
+    private static String parseSink(String value) throws Exception {
+        switch(value)
+        {
+            case "file":
+            case "mapped":
+            case "memory":
+            case "stdout":
+                return value;
+
+            default:
+                throw new Exception("Unknown output sink " + value + ".");
+        }
+    }
+
+    private static int parseJobs(String value) throws Exception {
+        int jobs;
+
+        try {
+            jobs = Integer.parseInt(value);
+        }
+        catch(NumberFormatException ex) {
+            throw new Exception("Invalid number of jobs: " + value + ".");
+        }
+
+        if(jobs == 0) // 0 means one worker per available core
+            jobs = Runtime.getRuntime().availableProcessors();
+        else if(jobs < 0)
+            throw new Exception("Invalid number of jobs: " + value + ".");
+
+        return jobs;
+    }
+}
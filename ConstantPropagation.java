@@ -0,0 +1,317 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck). Values start out unknown and are
+ * only lowered, to a constant and then to "varying", while blocks are only considered once a
+ * branch that can actually be taken reaches them. Afterwards constant instructions are replaced
+ * by their value, branches on constants become plain branches and the blocks that can no longer
+ * be reached are deleted.
+ */
+class ConstantPropagation extends FunctionPass {
+
+    private static final Object VARYING = new Object(); // Lattice bottom; a missing entry is "unknown" (top)
+
+    private Map<IrValue, Object> lattice;
+    private Set<IrBlock> executable;
+    private Map<IrBlock, Set<IrBlock>> executableEdges; // Target -> sources
+    private Map<IrValue, List<IrInstr>> users;
+
+    private List<IrBlock> blockWork;
+    private List<IrInstr> instrWork;
+
+    @Override
+    public String name() {
+        return "sccp";
+    }
+
+    @Override
+    void runOnFunction(IrFunction function) {
+        lattice = new HashMap<IrValue, Object>();
+        executable = new HashSet<IrBlock>();
+        executableEdges = new HashMap<IrBlock, Set<IrBlock>>();
+        users = new HashMap<IrValue, List<IrInstr>>();
+        blockWork = new ArrayList<IrBlock>();
+        instrWork = new ArrayList<IrInstr>();
+
+        for(IrBlock block : function.blocks) {
+            executableEdges.put(block, new HashSet<IrBlock>());
+            for(IrInstr instr : block.instrs) {
+                for(IrValue operand : instr.operands) {
+                    List<IrInstr> list = users.get(operand);
+                    if(list == null)
+                    {
+                        list = new ArrayList<IrInstr>();
+                        users.put(operand, list);
+                    }
+                    list.add(instr);
+                }
+            }
+        }
+
+        executable.add(function.entry());
+        blockWork.add(function.entry());
+
+        while(!blockWork.isEmpty() || !instrWork.isEmpty()) {
+            while(!instrWork.isEmpty()) {
+                IrInstr instr = instrWork.remove(instrWork.size() - 1);
+                if(executable.contains(instr.block))
+                    visit(instr);
+            }
+
+            while(!blockWork.isEmpty()) {
+                IrBlock block = blockWork.remove(blockWork.size() - 1);
+                for(IrInstr instr : block.instrs)
+                    visit(instr);
+            }
+        }
+
+        rewrite(function);
+    }
+
+    private Object valueOf(IrValue value) {
+        if(value instanceof IrConst)
+            return value;
+        if(value instanceof IrInstr)
+            return lattice.get(value);
+
+        return VARYING; // Arguments, globals and functions
+    }
+
+    private static boolean isConst(Object value) {
+        return value instanceof IrConst;
+    }
+
+    private void lower(IrInstr instr, Object value) {
+        Object old = lattice.get(instr);
+        if(value == null || old == VARYING || (old != null && old.equals(value)))
+            return;
+
+        lattice.put(instr, old == null ? value : VARYING);
+
+        List<IrInstr> list = users.get(instr);
+        if(list != null)
+            instrWork.addAll(list);
+    }
+
+    private void markEdge(IrBlock from, IrBlock to) {
+        if(!executableEdges.get(to).add(from))
+            return;
+
+        if(executable.add(to))
+            blockWork.add(to);
+        else
+        {
+            for(IrInstr instr : to.instrs) { // A new way into the block: it's phis may merge one more value
+                if(!(instr instanceof IrPhi))
+                    break;
+                instrWork.add(instr);
+            }
+        }
+    }
+
+    private void visit(IrInstr instr) {
+        if(instr instanceof IrPhi)
+        {
+            IrPhi phi = (IrPhi) instr;
+            Object merged = null;
+
+            for(int i = 0; i < phi.operands.size(); i++) {
+                if(!executableEdges.get(phi.block).contains(phi.incomingBlocks.get(i)))
+                    continue;
+
+                Object incoming = valueOf(phi.operand(i));
+                if(incoming == null)
+                    continue;
+                if(merged == null)
+                    merged = incoming;
+                else if(!merged.equals(incoming))
+                    merged = VARYING;
+            }
+
+            lower(phi, merged);
+        }
+        else if(instr instanceof IrCondBranch)
+        {
+            IrCondBranch branch = (IrCondBranch) instr;
+            Object cond = valueOf(branch.cond());
+
+            if(isConst(cond))
+                markEdge(branch.block, ((IrConst) cond).value != 0 ? branch.ifTrue : branch.ifFalse);
+            else if(cond == VARYING)
+            {
+                markEdge(branch.block, branch.ifTrue);
+                markEdge(branch.block, branch.ifFalse);
+            }
+        }
+        else if(instr instanceof IrBranch)
+        {
+            markEdge(instr.block, ((IrBranch) instr).target);
+        }
+        else if(instr instanceof IrBinary)
+        {
+            lower(instr, evaluate((IrBinary) instr));
+        }
+        else if(instr instanceof IrCompare)
+        {
+            lower(instr, evaluate((IrCompare) instr));
+        }
+        else if(!instr.type.isVoid())
+        {
+            lower(instr, VARYING); // Loads, calls and address arithmetic are not tracked
+        }
+    }
+
+    private Object evaluate(IrBinary instr) {
+        Object lhs = valueOf(instr.operand(0));
+        Object rhs = valueOf(instr.operand(1));
+
+        // A zero factor decides the result even if the other operand varies
+        if(instr.op == IrBinary.Op.MUL || instr.op == IrBinary.Op.AND)
+        {
+            if(isZero(lhs) || isZero(rhs))
+                return new IrConst(instr.type, 0);
+        }
+
+        if(lhs == VARYING || rhs == VARYING)
+            return VARYING;
+        if(lhs == null || rhs == null)
+            return null;
+
+        return fold(instr.op, (IrConst) lhs, (IrConst) rhs);
+    }
+
+    private Object evaluate(IrCompare instr) {
+        Object lhs = valueOf(instr.operand(0));
+        Object rhs = valueOf(instr.operand(1));
+
+        if(lhs == VARYING || rhs == VARYING)
+            return VARYING;
+        if(lhs == null || rhs == null)
+            return null;
+
+        return fold(instr.pred, (IrConst) lhs, (IrConst) rhs);
+    }
+
+    private static boolean isZero(Object value) {
+        return isConst(value) && ((IrConst) value).value == 0;
+    }
+
+    // Truncates to the width of type, sign extending the result
+    static long normalize(IrType type, long value) {
+        if(type.bits == 1)
+            return value & 1;
+        if(type.bits == 8)
+            return (byte) value;
+        if(type.bits == 32)
+            return (int) value;
+
+        return value;
+    }
+
+    static IrConst fold(IrBinary.Op op, IrConst lhs, IrConst rhs) {
+        long a = lhs.value;
+        long b = rhs.value;
+        long result;
+
+        switch(op)
+        {
+            case ADD: result = a + b; break;
+            case SUB: result = a - b; break;
+            case MUL: result = a * b; break;
+            case AND: result = a & b; break;
+            case OR:  result = a | b; break;
+            case XOR: result = a ^ b; break;
+            case SHL: result = a << (b & 63); break;
+            default:  result = a >> (b & 63); break;
+        }
+
+        return new IrConst(lhs.type, normalize(lhs.type, result));
+    }
+
+    static IrConst fold(IrCompare.Pred pred, IrConst lhs, IrConst rhs) {
+        long a = lhs.value;
+        long b = rhs.value;
+        long mask = lhs.type.bits >= 64 ? -1L : (1L << lhs.type.bits) - 1;
+        int unsigned = Long.compareUnsigned(a & mask, b & mask);
+        boolean result;
+
+        switch(pred)
+        {
+            case EQ:  result = a == b; break;
+            case NE:  result = a != b; break;
+            case SLT: result = a < b; break;
+            case SLE: result = a <= b; break;
+            case SGT: result = a > b; break;
+            case SGE: result = a >= b; break;
+            case ULT: result = unsigned < 0; break;
+            case ULE: result = unsigned <= 0; break;
+            case UGT: result = unsigned > 0; break;
+            default:  result = unsigned >= 0; break;
+        }
+
+        return IrConst.i1(result);
+    }
+
+    private void rewrite(IrFunction function) {
+        Map<IrValue, IrValue> constants = new HashMap<IrValue, IrValue>();
+        for(Map.Entry<IrValue, Object> entry : lattice.entrySet()) {
+            if(isConst(entry.getValue()))
+                constants.put(entry.getKey(), (IrConst) entry.getValue());
+        }
+        function.replaceUses(constants);
+
+        for(IrBlock block : function.blocks) {
+            if(!executable.contains(block))
+                continue;
+
+            IrTerminator term = block.terminator();
+            if(!(term instanceof IrCondBranch))
+                continue;
+
+            IrCondBranch branch = (IrCondBranch) term;
+            Set<IrBlock> taken = new HashSet<IrBlock>();
+            for(IrBlock succ : branch.successors()) {
+                if(executableEdges.get(succ).contains(block))
+                    taken.add(succ);
+            }
+
+            if(taken.size() != 1)
+                continue;
+
+            IrBlock target = taken.iterator().next();
+            for(IrBlock succ : branch.successors()) {
+                if(succ != target)
+                    removePhiInputs(succ, block);
+            }
+
+            block.instrs.remove(branch);
+            block.add(new IrBranch(target));
+        }
+
+        function.removeUnreachableBlocks();
+
+        List<IrPhi> phis = new ArrayList<IrPhi>();
+        for(IrBlock block : function.blocks) {
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrPhi)
+                    phis.add((IrPhi) instr);
+            }
+        }
+        Mem2Reg.simplifyPhis(function, new HashSet<IrPhi>(phis));
+
+        function.removeDeadInstructions();
+    }
+
+    private static void removePhiInputs(IrBlock block, IrBlock pred) {
+        for(IrInstr instr : block.instrs) {
+            if(!(instr instanceof IrPhi))
+                break;
+            ((IrPhi) instr).removeIncoming(pred);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Class hierarchy analysis. A virtual call whose receiver's static class and every subclass of it
+ * share a single implementation of the method can only ever run that implementation, so the
+ * vtable lookup is replaced by a direct call to it.
+ */
+class Devirtualization implements IrPass {
+
+    private int virtualCalls;
+    private int devirtualized;
+
+    @Override
+    public String name() {
+        return "devirt";
+    }
+
+    @Override
+    public String report() {
+        return "devirtualized " + devirtualized + " of " + virtualCalls + " virtual call sites";
+    }
+
+    @Override
+    public void run(IrModule module) {
+        for(IrFunction function : module.functions) {
+            if(function.isDeclaration())
+                continue;
+
+            boolean changed = false;
+
+            for(IrBlock block : function.blocks) {
+                for(int i = 0; i < block.instrs.size(); i++) {
+                    IrInstr instr = block.instrs.get(i);
+                    if(!(instr instanceof IrCall) || ((IrCall) instr).method == null)
+                        continue;
+
+                    IrCall call = (IrCall) instr;
+                    virtualCalls++;
+
+                    Set<IrFunction> targets = module.possibleTargets(call);
+                    if(targets == null || targets.size() != 1)
+                        continue;
+
+                    IrFunction target = targets.iterator().next();
+                    List<IrValue> args = new ArrayList<IrValue>();
+                    for(int arg = 0; arg < call.argCount(); arg++)
+                        args.add(call.arg(arg));
+
+                    IrCall direct = new IrCall(target, target.type, args);
+                    direct.nameHint = call.nameHint;
+
+                    block.instrs.remove(i);
+                    block.add(i, direct);
+                    function.replaceUses(call, direct);
+
+                    devirtualized++;
+                    changed = true;
+                }
+            }
+
+            // The vtable and function pointer loads of the rewritten calls are unused now
+            if(changed)
+                function.removeDeadInstructions();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dominator tree and dominance frontiers of a function, computed with the iterative algorithm of
+ * Cooper, Harvey and Kennedy. Only blocks reachable from the entry are part of the tree.
+ */
+class DominatorTree {
+
+    public final IrFunction function;
+    public final List<IrBlock> reversePostorder;
+    public final Map<IrBlock, List<IrBlock>> predecessors;
+
+    private final Map<IrBlock, Integer> order;
+    private final Map<IrBlock, IrBlock> idom;
+    private final Map<IrBlock, List<IrBlock>> children;
+    private Map<IrBlock, Set<IrBlock>> frontiers;
+
+    DominatorTree(IrFunction function) {
+        this.function = function;
+        this.reversePostorder = reversePostorder(function);
+        this.predecessors = function.predecessors();
+        this.order = new HashMap<IrBlock, Integer>();
+        this.idom = new HashMap<IrBlock, IrBlock>();
+        this.children = new HashMap<IrBlock, List<IrBlock>>();
+
+        for(int i = 0; i < reversePostorder.size(); i++) {
+            order.put(reversePostorder.get(i), i);
+            children.put(reversePostorder.get(i), new ArrayList<IrBlock>());
+        }
+
+        IrBlock entry = function.entry();
+        idom.put(entry, entry);
+
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+
+            for(IrBlock block : reversePostorder) {
+                if(block == entry)
+                    continue;
+
+                IrBlock newIdom = null;
+                for(IrBlock pred : predecessors.get(block)) {
+                    if(!idom.containsKey(pred)) // Not processed yet, or unreachable
+                        continue;
+
+                    newIdom = newIdom == null ? pred : intersect(pred, newIdom);
+                }
+
+                if(newIdom != idom.get(block))
+                {
+                    idom.put(block, newIdom);
+                    changed = true;
+                }
+            }
+        }
+
+        for(IrBlock block : reversePostorder) {
+            if(block != entry)
+                children.get(idom.get(block)).add(block);
+        }
+    }
+
+    private IrBlock intersect(IrBlock a, IrBlock b) {
+        while(a != b) {
+            while(order.get(a) > order.get(b))
+                a = idom.get(a);
+            while(order.get(b) > order.get(a))
+                b = idom.get(b);
+        }
+
+        return a;
+    }
+
+    static List<IrBlock> reversePostorder(IrFunction function) {
+        List<IrBlock> postorder = new ArrayList<IrBlock>();
+        Set<IrBlock> visited = new HashSet<IrBlock>();
+
+        // Iterative depth first search; each stack entry is a block and the index of it's next successor
+        List<IrBlock> blockStack = new ArrayList<IrBlock>();
+        List<Integer> indexStack = new ArrayList<Integer>();
+
+        IrBlock entry = function.entry();
+        visited.add(entry);
+        blockStack.add(entry);
+        indexStack.add(0);
+
+        while(!blockStack.isEmpty()) {
+            int top = blockStack.size() - 1;
+            IrBlock block = blockStack.get(top);
+            List<IrBlock> succs = block.successors();
+            int next = indexStack.get(top);
+
+            if(next < succs.size())
+            {
+                indexStack.set(top, next + 1);
+                IrBlock succ = succs.get(next);
+                if(visited.add(succ))
+                {
+                    blockStack.add(succ);
+                    indexStack.add(0);
+                }
+            }
+            else
+            {
+                postorder.add(block);
+                blockStack.remove(top);
+                indexStack.remove(top);
+            }
+        }
+
+        Collections.reverse(postorder);
+        return postorder;
+    }
+
+    boolean isReachable(IrBlock block) {
+        return order.containsKey(block);
+    }
+
+    // Immediate dominator, or null for the entry block
+    IrBlock idom(IrBlock block) {
+        IrBlock dom = idom.get(block);
+        return dom == block ? null : dom;
+    }
+
+    List<IrBlock> children(IrBlock block) {
+        return children.get(block);
+    }
+
+    boolean dominates(IrBlock a, IrBlock b) {
+        for(IrBlock block = b; block != null; block = idom(block)) {
+            if(block == a)
+                return true;
+        }
+
+        return false;
+    }
+
+    // Whether instruction a is executed before b on every path that reaches b
+    boolean dominates(IrInstr a, IrInstr b) {
+        if(a.block == b.block)
+            return a.block.instrs.indexOf(a) < b.block.instrs.indexOf(b);
+
+        return dominates(a.block, b.block);
+    }
+
+    Set<IrBlock> frontier(IrBlock block) {
+        if(frontiers == null)
+            computeFrontiers();
+
+        return frontiers.get(block);
+    }
+
+    private void computeFrontiers() {
+        frontiers = new HashMap<IrBlock, Set<IrBlock>>();
+        for(IrBlock block : reversePostorder)
+            frontiers.put(block, new HashSet<IrBlock>());
+
+        for(IrBlock block : reversePostorder) {
+            List<IrBlock> preds = predecessors.get(block);
+            if(preds.size() < 2)
+                continue;
+
+            for(IrBlock pred : preds) {
+                if(!isReachable(pred))
+                    continue;
+
+                for(IrBlock runner = pred; runner != idom.get(block); runner = idom.get(runner))
+                    frontiers.get(runner).add(block);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves objects that never leave the method creating them from the heap to the stack. An object
+ * escapes when it, or an address inside it, is passed to a call, stored anywhere (a field
+ * included), returned or merged by a phi; only loads and stores through it's own fields are
+ * allowed. The stack storage is zeroed wherever the allocation used to be, so it starts out
+ * like the memory calloc returns.
+ */
+class EscapeAnalysis extends FunctionPass {
+
+    private int allocations;
+    private final List<String> moved = new ArrayList<String>();
+
+    @Override
+    public String name() {
+        return "escape";
+    }
+
+    @Override
+    public String report() {
+        String report = "moved " + moved.size() + " of " + allocations + " object allocations to the stack";
+        if(!moved.isEmpty())
+            report += " (" + String.join(", ", moved) + ")";
+
+        return report;
+    }
+
+    @Override
+    void runOnFunction(IrFunction function) {
+        Map<IrValue, List<IrInstr>> users = new HashMap<IrValue, List<IrInstr>>();
+        List<IrCall> sites = new ArrayList<IrCall>();
+
+        for(IrBlock block : function.blocks) {
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrCall && ((IrCall) instr).allocatedClass != null)
+                    sites.add((IrCall) instr);
+
+                for(IrValue operand : instr.operands) {
+                    List<IrInstr> list = users.get(operand);
+                    if(list == null)
+                    {
+                        list = new ArrayList<IrInstr>();
+                        users.put(operand, list);
+                    }
+                    list.add(instr);
+                }
+            }
+        }
+
+        for(IrCall site : sites) {
+            allocations++;
+
+            if(escapes(site, users))
+                continue;
+
+            moveToStack(function, site);
+            moved.add("new " + site.allocatedClass.name + "() in " + function.name);
+        }
+    }
+
+    // Whether pointer, an object or an address derived from it, may be seen outside the function
+    private static boolean escapes(IrValue pointer, Map<IrValue, List<IrInstr>> users) {
+        List<IrInstr> uses = users.get(pointer);
+        if(uses == null)
+            return false;
+
+        for(IrInstr user : uses) {
+            if(user instanceof IrLoad)
+                continue;
+
+            if(user instanceof IrStore)
+            {
+                if(((IrStore) user).value() == pointer) // The address itself is written to memory
+                    return true;
+                continue;
+            }
+
+            if(user instanceof IrGep || (user instanceof IrCast && ((IrCast) user).op == IrCast.Op.BITCAST))
+            {
+                if(user.operand(0) != pointer || escapes(user, users))
+                    return true;
+                continue;
+            }
+
+            return true; // Calls, returns, phis and anything else
+        }
+
+        return false;
+    }
+
+    private static void moveToStack(IrFunction function, IrCall site) {
+        // Whole words keep the storage aligned for the pointers inside the object
+        int words = (site.allocatedClass.layout.objectSize() + 7) / 8;
+        IrAlloca storage = new IrAlloca(IrType.array(words, IrType.I64));
+        storage.nameHint = site.nameHint;
+
+        IrBlock entry = function.entry();
+        int slot = 0;
+        while(slot < entry.instrs.size() && entry.instrs.get(slot) instanceof IrAlloca)
+            slot++;
+        entry.add(slot, storage);
+
+        // The slot is reused every time the allocation runs, so clear it each time, as calloc would
+        IrBlock block = site.block;
+        int index = block.instrs.indexOf(site);
+        block.instrs.remove(index);
+
+        for(int i = 0; i < words; i++) {
+            IrGep word = new IrGep(storage, IrConst.i32(0), IrConst.i32(i));
+            block.add(index++, word);
+            block.add(index++, new IrStore(new IrConst(IrType.I64, 0), word));
+        }
+
+        IrCast object = new IrCast(IrCast.Op.BITCAST, storage, IrType.I8_PTR);
+        object.nameHint = site.nameHint;
+        block.add(index, object);
+
+        function.replaceUses(site, object);
+    }
+}
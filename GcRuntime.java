@@ -0,0 +1,317 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The precise mark-sweep collector selected with --alloc=gc. Every allocation gets a header in
+ * front of it that links it into the list of all allocations and points to it's pointer map, the
+ * offsets of the fields that hold objects or arrays (arrays of ints have none). The roots are the
+ * frames of the shadow stack that every compiled function keeps up to date (see ShadowStack).
+ * Objects never move, so addresses the program holds stay valid across a collection. A summary is
+ * printed to stderr when the program exits.
+ *
+ * An allocation header is four words:
+ *   [0] the next allocation
+ *   [1] the next object on the mark stack
+ *   [2] the size in bytes, shifted left once; the low bit is the mark
+ *   [3] the pointer map, null if there is none
+ *
+ * A pointer map is an i32 table: the number of pointer fields, followed by their offsets.
+ */
+class GcRuntime {
+
+    static final int HEADER_SIZE = 32;
+    static final long INITIAL_HEAP = 1 << 20;  // Allowed on top of twice the memory that survived the last collection
+    static final String SHADOW_STACK = ".gc.top"; // No Class.method symbol starts with a dot
+
+    public final IrFunction alloc;  // (i64 size, i8* pointer map) -> zeroed memory
+
+    private final IrModule module;
+    private final IrFunction report;
+    private final IrFunction atexit;
+    private final Map<ClassSymbol, IrGlobal> pointerMaps;
+
+    private final IrGlobal top;         // Innermost shadow stack frame
+    private final IrGlobal objects;     // Every allocation, newest first
+    private final IrGlobal markStack;
+    private final IrGlobal heap;        // Bytes allocated and not freed
+    private final IrGlobal live;        // Bytes that survived the last collection
+    private final IrGlobal peak;
+    private final IrGlobal collections;
+    private final IrGlobal freed;
+
+    GcRuntime(IrModule module, IrFunction calloc) {
+        this.module = module;
+        this.pointerMaps = new HashMap<ClassSymbol, IrGlobal>();
+
+        top = module.addGlobal(IrGlobal.variable(SHADOW_STACK, IrType.I8_PTR));
+        objects = module.addGlobal(IrGlobal.variable(".gc.objects", IrType.I8_PTR));
+        markStack = module.addGlobal(IrGlobal.variable(".gc.stack", IrType.I8_PTR));
+        heap = module.addGlobal(IrGlobal.variable(".gc.heap", IrType.I64));
+        live = module.addGlobal(IrGlobal.variable(".gc.live", IrType.I64));
+        peak = module.addGlobal(IrGlobal.variable(".gc.peak", IrType.I64));
+        collections = module.addGlobal(IrGlobal.variable(".gc.collections", IrType.I64));
+        freed = module.addGlobal(IrGlobal.variable(".gc.freed", IrType.I64));
+
+        IrFunction free = module.addFunction(new IrFunction("free", IrType.VOID, params(IrType.I8_PTR), false, null));
+        IrFunction dprintf = module.addFunction(new IrFunction("dprintf", IrType.I32, params(IrType.I32, IrType.I8_PTR), true, null));
+        atexit = module.addFunction(new IrFunction("atexit", IrType.I32, params(IrType.pointer(IrType.function(IrType.VOID, new ArrayList<IrType>(), false))), false, null));
+
+        List<IrArgument> noParams = new ArrayList<IrArgument>();
+        IrFunction mark = module.addFunction(new IrFunction("gc_mark", IrType.VOID, params(IrType.I8_PTR), false, null));
+        IrFunction collect = module.addFunction(new IrFunction("gc_collect", IrType.VOID, noParams, false, null));
+        alloc = module.addFunction(new IrFunction("gc_alloc", IrType.I8_PTR, params(IrType.I64, IrType.I8_PTR), false, null));
+        report = module.addFunction(new IrFunction("gc_report", IrType.VOID, noParams, false, null));
+
+        for(IrFunction function : new IrFunction[] { free, dprintf, atexit, mark, collect, alloc, report })
+            function.isRuntime = true;
+        alloc.mayCollect = true;
+
+        buildMark(mark);
+        buildCollect(collect, mark, free);
+        buildAlloc(calloc, collect);
+        buildReport(dprintf);
+    }
+
+    // Has the summary printed when the program exits, called at the start of main
+    void printReportAtExit(IrBuilder b) {
+        b.call(atexit, report);
+    }
+
+    // The table of pointer fields of cls, inherited ones included, built on first use
+    IrGlobal pointerMap(ClassSymbol cls) {
+        IrGlobal map = pointerMaps.get(cls);
+        if(map != null)
+            return map;
+
+        List<Integer> offsets = new ArrayList<Integer>();
+        for(ClassSymbol c = cls; c != null; c = c.superclass) {
+            for(VarSymbol field : c.layout.fields) {
+                if(field.type != TypeSymbol.INT && field.type != TypeSymbol.BOOLEAN)
+                    offsets.add(ClassLayout.objectOffset(field));
+            }
+        }
+
+        int[] data = new int[offsets.size() + 1];
+        data[0] = offsets.size();
+        for(int i = 0; i < offsets.size(); i++)
+            data[i + 1] = offsets.get(i);
+
+        map = module.addGlobal(IrGlobal.ints("." + cls.name + "_ptrmap", data));
+        pointerMaps.put(cls, map);
+        return map;
+    }
+
+    // Pushes an unmarked allocation on the mark stack and marks it, so it is pushed only once
+    private void buildMark(IrFunction mark) {
+        IrBuilder b = new IrBuilder(mark);
+        IrValue object = mark.params.get(0);
+
+        IrBlock check = b.createBlock("check");
+        IrBlock push = b.createBlock("push");
+        IrBlock done = b.createBlock("done");
+        b.condBr(b.compare(IrCompare.Pred.EQ, object, IrConst.nullOf(IrType.I8_PTR)), done, check);
+
+        b.startBlock(check);
+        IrValue header = b.gep(object, i64(-HEADER_SIZE));
+        IrValue flags = b.load(word(b, header, 2, IrType.I64));
+        IrValue marked = b.compare(IrCompare.Pred.NE, b.binary(IrBinary.Op.AND, flags, i64(1)), i64(0));
+        b.condBr(marked, done, push);
+
+        b.startBlock(push);
+        b.store(b.binary(IrBinary.Op.OR, flags, i64(1)), word(b, header, 2, IrType.I64));
+        b.store(b.load(markStack), word(b, header, 1, IrType.I8_PTR));
+        b.store(header, markStack);
+        b.br(done);
+
+        b.startBlock(done);
+        b.ret(null);
+    }
+
+    private void buildCollect(IrFunction collect, IrFunction mark, IrFunction free) {
+        IrBuilder b = new IrBuilder(collect);
+        IrConst nullPtr = IrConst.nullOf(IrType.I8_PTR);
+
+        b.store(b.binary(IrBinary.Op.ADD, b.load(collections), i64(1)), collections);
+        IrValue innermost = b.load(top);
+        IrBlock entry = b.block;
+
+        // Mark everything the shadow stack frames hold, one frame at a time
+        IrBlock frames = b.createBlock("frames");
+        IrBlock frameRoots = b.createBlock("frame_roots");
+        IrBlock roots = b.createBlock("roots");
+        IrBlock root = b.createBlock("root");
+        IrBlock nextFrame = b.createBlock("next_frame");
+        IrBlock drain = b.createBlock("drain");
+        b.br(frames);
+
+        b.startBlock(frames);
+        IrPhi frame = b.phi(IrType.I8_PTR);
+        b.condBr(b.compare(IrCompare.Pred.EQ, frame, nullPtr), drain, frameRoots);
+
+        b.startBlock(frameRoots);
+        IrValue slots = b.bitcast(frame, IrType.pointer(IrType.I8_PTR));
+        IrValue count = b.cast(IrCast.Op.PTRTOINT, b.load(b.gep(slots, i64(1))), IrType.I64);
+        b.br(roots);
+
+        b.startBlock(roots);
+        IrPhi index = b.phi(IrType.I64);
+        b.condBr(b.compare(IrCompare.Pred.SLT, index, count), root, nextFrame);
+
+        b.startBlock(root);
+        b.call(mark, b.load(b.gep(slots, b.binary(IrBinary.Op.ADD, index, i64(2)))));
+        IrValue nextIndex = b.binary(IrBinary.Op.ADD, index, i64(1));
+        b.br(roots);
+
+        b.startBlock(nextFrame);
+        IrValue parent = b.load(slots);
+        b.br(frames);
+
+        frame.addIncoming(innermost, entry);
+        frame.addIncoming(parent, nextFrame);
+        index.addIncoming(i64(0), frameRoots);
+        index.addIncoming(nextIndex, root);
+
+        // Then everything reachable from them: pop an object, mark what it's pointer fields hold
+        IrBlock scan = b.createBlock("scan");
+        IrBlock fieldsStart = b.createBlock("fields_start");
+        IrBlock fields = b.createBlock("fields");
+        IrBlock field = b.createBlock("field");
+        IrBlock sweep = b.createBlock("sweep");
+
+        b.startBlock(drain);
+        IrValue header = b.load(markStack);
+        b.condBr(b.compare(IrCompare.Pred.EQ, header, nullPtr), sweep, scan);
+
+        b.startBlock(scan);
+        b.store(b.load(word(b, header, 1, IrType.I8_PTR)), markStack);
+        IrValue map = b.bitcast(b.load(word(b, header, 3, IrType.I8_PTR)), IrType.I32_PTR);
+        b.condBr(b.compare(IrCompare.Pred.EQ, map, IrConst.nullOf(IrType.I32_PTR)), drain, fieldsStart);
+
+        b.startBlock(fieldsStart);
+        IrValue fieldCount = b.load(map);
+        b.br(fields);
+
+        b.startBlock(fields);
+        IrPhi fieldIndex = b.phi(IrType.I32);
+        b.condBr(b.compare(IrCompare.Pred.SLE, fieldIndex, fieldCount), field, drain);
+
+        b.startBlock(field);
+        IrValue offset = b.binary(IrBinary.Op.ADD, b.load(b.gep(map, fieldIndex)), IrConst.i32(HEADER_SIZE));
+        IrValue slot = b.bitcast(b.gep(header, offset), IrType.pointer(IrType.I8_PTR));
+        b.call(mark, b.load(slot));
+        IrValue nextField = b.binary(IrBinary.Op.ADD, fieldIndex, IrConst.i32(1));
+        b.br(fields);
+
+        fieldIndex.addIncoming(IrConst.i32(1), fieldsStart);
+        fieldIndex.addIncoming(nextField, field);
+
+        // Finally free what was not marked, unlinking it from the list, and clear the marks of the rest
+        IrBlock sweepLoop = b.createBlock("sweep_loop");
+        IrBlock sweepObject = b.createBlock("sweep_object");
+        IrBlock keep = b.createBlock("keep");
+        IrBlock release = b.createBlock("release");
+        IrBlock finish = b.createBlock("finish");
+
+        b.startBlock(sweep);
+        b.br(sweepLoop);
+
+        b.startBlock(sweepLoop);
+        IrPhi link = b.phi(IrType.pointer(IrType.I8_PTR)); // Where the pointer to the current allocation is kept
+        IrValue current = b.load(link);
+        b.condBr(b.compare(IrCompare.Pred.EQ, current, nullPtr), finish, sweepObject);
+
+        b.startBlock(sweepObject);
+        IrValue flags = b.load(word(b, current, 2, IrType.I64));
+        IrValue marked = b.compare(IrCompare.Pred.NE, b.binary(IrBinary.Op.AND, flags, i64(1)), i64(0));
+        b.condBr(marked, keep, release);
+
+        b.startBlock(keep);
+        b.store(b.binary(IrBinary.Op.AND, flags, i64(-2)), word(b, current, 2, IrType.I64));
+        IrValue nextLink = word(b, current, 0, IrType.I8_PTR);
+        b.br(sweepLoop);
+
+        b.startBlock(release);
+        b.store(b.load(word(b, current, 0, IrType.I8_PTR)), link);
+        IrValue size = b.binary(IrBinary.Op.ASHR, flags, i64(1));
+        b.store(b.binary(IrBinary.Op.SUB, b.load(heap), size), heap);
+        b.store(b.binary(IrBinary.Op.ADD, b.load(freed), size), freed);
+        b.call(free, current);
+        b.br(sweepLoop);
+
+        link.addIncoming(objects, sweep);
+        link.addIncoming(nextLink, keep);
+        link.addIncoming(link, release);
+
+        b.startBlock(finish);
+        b.store(b.load(heap), live);
+        b.ret(null);
+    }
+
+    private void buildAlloc(IrFunction calloc, IrFunction collect) {
+        IrBuilder b = new IrBuilder(alloc);
+        IrValue size = alloc.params.get(0);
+
+        // Collect once the heap has grown past twice what survived the last collection, plus some room
+        IrValue limit = b.binary(IrBinary.Op.ADD, b.binary(IrBinary.Op.SHL, b.load(live), i64(1)), i64(INITIAL_HEAP));
+        IrValue needed = b.binary(IrBinary.Op.ADD, b.load(heap), size);
+
+        IrBlock full = b.createBlock("full");
+        IrBlock allocate = b.createBlock("allocate");
+        b.condBr(b.compare(IrCompare.Pred.UGT, needed, limit), full, allocate);
+
+        b.startBlock(full);
+        b.call(collect);
+        b.br(allocate);
+
+        b.startBlock(allocate);
+        IrValue words = b.binary(IrBinary.Op.ASHR, b.binary(IrBinary.Op.ADD, size, i64(HEADER_SIZE + 7)), i64(3));
+        IrValue header = b.call(calloc, IrConst.i32(8), b.cast(IrCast.Op.TRUNC, words, IrType.I32));
+        b.store(b.load(objects), word(b, header, 0, IrType.I8_PTR));
+        b.store(header, objects);
+        b.store(b.binary(IrBinary.Op.SHL, size, i64(1)), word(b, header, 2, IrType.I64));
+        b.store(alloc.params.get(1), word(b, header, 3, IrType.I8_PTR));
+
+        IrValue total = b.binary(IrBinary.Op.ADD, b.load(heap), size);
+        b.store(total, heap);
+
+        IrBlock newPeak = b.createBlock("new_peak");
+        IrBlock done = b.createBlock("done");
+        b.condBr(b.compare(IrCompare.Pred.UGT, total, b.load(peak)), newPeak, done);
+
+        b.startBlock(newPeak);
+        b.store(total, peak);
+        b.br(done);
+
+        b.startBlock(done);
+        b.ret(b.gep(header, i64(HEADER_SIZE)));
+    }
+
+    private void buildReport(IrFunction dprintf) {
+        IrGlobal format = module.addGlobal(IrGlobal.string("_cgc",
+                "gc: %ld collections, %ld bytes freed, peak heap %ld bytes, %ld bytes in use at exit\n"));
+
+        IrBuilder b = new IrBuilder(report);
+        b.call(dprintf, IrConst.i32(2), b.bitcast(format, IrType.I8_PTR),
+                b.load(collections), b.load(freed), b.load(peak), b.load(heap));
+        b.ret(null);
+    }
+
+    // The address of a header word, seen as a type
+    private static IrValue word(IrBuilder b, IrValue header, int index, IrType type) {
+        return b.bitcast(b.gep(header, i64(index * 8)), IrType.pointer(type));
+    }
+
+    private static List<IrArgument> params(IrType... types) {
+        List<IrArgument> params = new ArrayList<IrArgument>();
+        for(IrType type : types)
+            params.add(new IrArgument(null, type, params.size()));
+
+        return params;
+    }
+
+    private static IrConst i64(long value) {
+        return new IrConst(IrType.I64, value);
+    }
+}
@@ -0,0 +1,316 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces direct calls to small methods with a copy of the method's body. The callee's
+ * parameters become the call's arguments, so accesses to the fields of this turn into accesses
+ * to the fields of the receiver. Methods are visited callees first and only the calls a method
+ * makes itself are inlined into it, so a recursive method is never copied into itself. A second,
+ * late instance copies the runtime's fast paths (see IrFunction.inlineAlways) into every caller.
+ */
+class Inliner implements IrPass {
+
+    public static final int DEFAULT_BUDGET = 40;
+
+    private final int budget;      // Largest method inlined, in instructions
+    private final boolean runtime; // Inline the runtime's fast paths instead of methods
+
+    private int callSites;
+    private int inlined;
+
+    private Inliner(int budget, boolean runtime) {
+        this.budget = budget;
+        this.runtime = runtime;
+    }
+
+    static Inliner methods(int budget) {
+        return new Inliner(budget, false);
+    }
+
+    // Runs late, so passes that look for calls into the runtime (like escape analysis for allocations) still see them
+    static Inliner runtimeFastPaths() {
+        return new Inliner(0, true);
+    }
+
+    @Override
+    public String name() {
+        return runtime ? "inline-runtime" : "inline";
+    }
+
+    @Override
+    public String report() {
+        return runtime ? null : "inlined " + inlined + " of " + callSites + " direct call sites";
+    }
+
+    @Override
+    public void run(IrModule module) {
+        for(IrFunction function : bottomUp(module)) {
+            if(!function.isDeclaration() && !function.isRuntime)
+                runOnFunction(function);
+        }
+    }
+
+    // Callees before their callers, so a method's own calls are already inlined when it is copied into others
+    private static List<IrFunction> bottomUp(IrModule module) {
+        List<IrFunction> order = new ArrayList<IrFunction>();
+        Set<IrFunction> visited = new HashSet<IrFunction>();
+
+        // Iterative depth first search; each stack entry is a function and the calls it still has to visit
+        List<IrFunction> functionStack = new ArrayList<IrFunction>();
+        List<List<IrFunction>> calleeStack = new ArrayList<List<IrFunction>>();
+
+        for(IrFunction root : module.functions) {
+            if(!visited.add(root))
+                continue;
+
+            functionStack.add(root);
+            calleeStack.add(directCallees(root));
+
+            while(!functionStack.isEmpty()) {
+                int top = functionStack.size() - 1;
+                List<IrFunction> callees = calleeStack.get(top);
+
+                if(!callees.isEmpty())
+                {
+                    IrFunction callee = callees.remove(callees.size() - 1);
+                    if(visited.add(callee))
+                    {
+                        functionStack.add(callee);
+                        calleeStack.add(directCallees(callee));
+                    }
+                }
+                else
+                {
+                    order.add(functionStack.remove(top));
+                    calleeStack.remove(top);
+                }
+            }
+        }
+
+        return order;
+    }
+
+    private static List<IrFunction> directCallees(IrFunction function) {
+        List<IrFunction> callees = new ArrayList<IrFunction>();
+        for(IrBlock block : function.blocks) {
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrCall && ((IrCall) instr).directCallee() != null)
+                    callees.add(((IrCall) instr).directCallee());
+            }
+        }
+
+        return callees;
+    }
+
+    private void runOnFunction(IrFunction caller) {
+        // Only the calls written in the method itself are candidates. Calls in inlined bodies were already
+        // considered in the method they were copied from, and skipping them stops (mutual) recursion from
+        // being unrolled without end.
+        List<IrCall> calls = new ArrayList<IrCall>();
+        for(IrBlock block : caller.blocks) {
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrCall)
+                    calls.add((IrCall) instr);
+            }
+        }
+
+        for(IrCall call : calls) {
+            IrFunction callee = call.directCallee();
+            if(callee == null || callee.isDeclaration())
+                continue;
+
+            if(runtime)
+            {
+                if(callee.inlineAlways)
+                    inline(caller, call, callee);
+                continue;
+            }
+
+            if(callee.method == null)
+                continue;
+
+            callSites++;
+
+            if(callee == caller || size(callee) > budget)
+                continue;
+
+            inline(caller, call, callee);
+            inlined++;
+        }
+    }
+
+    private static int size(IrFunction function) {
+        int size = 0;
+        for(IrBlock block : function.blocks)
+            size += block.instrs.size();
+
+        return size;
+    }
+
+    private static void inline(IrFunction caller, IrCall call, IrFunction callee) {
+        IrBlock block = call.block;
+        int index = block.instrs.indexOf(call);
+
+        // Everything after the call continues in a new block, which the inlined returns branch to
+        IrBlock rest = new IrBlock("inline_end", caller);
+        List<IrInstr> tail = block.instrs.subList(index + 1, block.instrs.size());
+        for(IrInstr instr : tail)
+            rest.add(instr);
+        tail.clear();
+        block.instrs.remove(index);
+
+        for(IrBlock succ : rest.successors()) {
+            for(IrInstr instr : succ.instrs) {
+                if(!(instr instanceof IrPhi))
+                    break;
+
+                List<IrBlock> incoming = ((IrPhi) instr).incomingBlocks;
+                for(int i = 0; i < incoming.size(); i++) {
+                    if(incoming.get(i) == block)
+                        incoming.set(i, rest);
+                }
+            }
+        }
+
+        Map<IrValue, IrValue> values = new HashMap<IrValue, IrValue>();
+        for(int i = 0; i < callee.params.size(); i++)
+            values.put(callee.params.get(i), call.arg(i));
+
+        Map<IrBlock, IrBlock> blocks = new HashMap<IrBlock, IrBlock>();
+        List<IrBlock> copies = new ArrayList<IrBlock>();
+        for(IrBlock original : callee.blocks) {
+            IrBlock copy = new IrBlock(original == callee.entry() ? "inline" : original.hint, caller);
+            blocks.put(original, copy);
+            copies.add(copy);
+        }
+
+        List<IrInstr> copiedInstrs = new ArrayList<IrInstr>();
+        List<IrValue> returnValues = new ArrayList<IrValue>();
+        List<IrBlock> returnBlocks = new ArrayList<IrBlock>();
+
+        for(IrBlock original : callee.blocks) {
+            IrBlock copy = blocks.get(original);
+
+            for(IrInstr instr : original.instrs) {
+                if(instr instanceof IrReturn)
+                {
+                    if(!instr.operands.isEmpty())
+                    {
+                        returnValues.add(instr.operand(0));
+                        returnBlocks.add(copy);
+                    }
+                    copy.add(new IrBranch(rest));
+                    continue;
+                }
+
+                IrInstr clone = copy(instr, blocks);
+                clone.nameHint = instr.nameHint;
+                values.put(instr, clone);
+                copiedInstrs.add(clone);
+
+                if(clone instanceof IrAlloca) // Stack slots stay in the entry block, so loops around the call don't grow the stack
+                    caller.entry().add(0, clone);
+                else
+                    copy.add(clone);
+            }
+        }
+
+        for(IrInstr clone : copiedInstrs) {
+            for(int i = 0; i < clone.operands.size(); i++) {
+                IrValue value = values.get(clone.operands.get(i));
+                if(value != null)
+                    clone.operands.set(i, value);
+            }
+        }
+
+        block.add(new IrBranch(blocks.get(callee.entry())));
+
+        int position = caller.blocks.indexOf(block) + 1;
+        caller.blocks.addAll(position, copies);
+        caller.blocks.add(position + copies.size(), rest);
+
+        if(returnValues.isEmpty())
+            return;
+
+        IrValue result;
+        if(returnValues.size() == 1)
+            result = mapped(returnValues.get(0), values);
+        else
+        {
+            IrPhi phi = new IrPhi(call.type);
+            phi.nameHint = call.nameHint;
+            for(int i = 0; i < returnValues.size(); i++)
+                phi.addIncoming(mapped(returnValues.get(i), values), returnBlocks.get(i));
+            rest.add(0, phi);
+            result = phi;
+        }
+
+        caller.replaceUses(call, result);
+    }
+
+    private static IrValue mapped(IrValue value, Map<IrValue, IrValue> values) {
+        IrValue copy = values.get(value);
+        return copy == null ? value : copy;
+    }
+
+    // A copy of instr with the same operands, branching to the copies of it's targets
+    private static IrInstr copy(IrInstr instr, Map<IrBlock, IrBlock> blocks) {
+        if(instr instanceof IrBinary)
+            return new IrBinary(((IrBinary) instr).op, instr.operand(0), instr.operand(1));
+        if(instr instanceof IrCompare)
+            return new IrCompare(((IrCompare) instr).pred, instr.operand(0), instr.operand(1));
+        if(instr instanceof IrAlloca)
+            return new IrAlloca(((IrAlloca) instr).allocatedType);
+        if(instr instanceof IrLoad)
+            return new IrLoad(instr.operand(0));
+        if(instr instanceof IrStore)
+            return new IrStore(instr.operand(0), instr.operand(1));
+        if(instr instanceof IrCast)
+            return new IrCast(((IrCast) instr).op, instr.operand(0), instr.type);
+
+        if(instr instanceof IrGep)
+        {
+            List<IrValue> indices = instr.operands.subList(1, instr.operands.size());
+            return new IrGep(instr.operand(0), indices.toArray(new IrValue[indices.size()]));
+        }
+
+        if(instr instanceof IrCall)
+        {
+            IrCall call = (IrCall) instr;
+            List<IrValue> args = new ArrayList<IrValue>();
+            for(int i = 0; i < call.argCount(); i++)
+                args.add(call.arg(i));
+
+            IrCall copy = new IrCall(call.callee(), call.functionType, args);
+            copy.method = call.method;
+            copy.receiverClass = call.receiverClass;
+            copy.allocatedClass = call.allocatedClass;
+            return copy;
+        }
+
+        if(instr instanceof IrPhi)
+        {
+            IrPhi phi = (IrPhi) instr;
+            IrPhi copy = new IrPhi(phi.type);
+            for(int i = 0; i < phi.operands.size(); i++)
+                copy.addIncoming(phi.operand(i), blocks.get(phi.incomingBlocks.get(i)));
+            return copy;
+        }
+
+        if(instr instanceof IrBranch)
+            return new IrBranch(blocks.get(((IrBranch) instr).target));
+        if(instr instanceof IrCondBranch)
+        {
+            IrCondBranch branch = (IrCondBranch) instr;
+            return new IrCondBranch(branch.cond(), blocks.get(branch.ifTrue), blocks.get(branch.ifFalse));
+        }
+        if(instr instanceof IrUnreachable)
+            return new IrUnreachable();
+
+        throw new IllegalStateException("Cannot copy instruction " + instr.getClass().getName() + ".");
+    }
+}
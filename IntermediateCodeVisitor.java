@@ -1,264 +1,192 @@
-import java.io.File;
-import java.io.FileOutputStream;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
-import java.util.Map.Entry;
 import syntaxtree.*;
 import visitor.GJDepthFirst;
 
-public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
+/**
+ * Lowers a checked program to an IrModule. Every visit of an expression returns the IR value holding it's result.
+ */
+public class IntermediateCodeVisitor extends GJDepthFirst<IrValue, Scope> {
 
-    Map<String, Map<String, List<Argument>>> classToMethods;
-    Map<String, Map<String, String>> scopeToVars;
-    Map<String, String> inheritanceChain;
-    Map<String, OffsetMaps> classToOffsetMap;
+    SymbolTable symbols;
 
-    private String metaVar;
+    public final IrModule module;
 
-    private FileOutputStream llvmFos;
-    private String tabsToEmit;
-    private int regCount;
+    private TypeSymbol metaType; // Static type of the last identifier, allocation or call, used to resolve the receiver of a MessageSend
 
-    private Stack<List<String>> argListStack;
+    private IrFunction calloc;
+    private IrFunction arenaAlloc;             // null unless objects and arrays come from the arena allocator
+    private GcRuntime gc;                      // null unless objects and arrays come from the garbage collected heap
+    private IrFunction printInt;
+    private IrFunction throwOob;
 
-    public IntermediateCodeVisitor( String fileName,
-                                    Map<String, OffsetMaps> classToOffsetMap,
-                                    Map<String, Map<String, String>> scopeToVars,
-                                    Map<String, String> inheritanceChain,
-                                    Map<String, Map<String, List<Argument>>> classToMethods) throws Exception
-    {
-        super();
+    // State of the function being built
+    private IrBuilder builder;
+    private IrArgument thisArg;
+    private IrBlock oobBlock;                  // Shared by every failing bounds check of the function, created on first use
+    private Map<VarSymbol, IrValue> slots;     // Stack slot of every parameter and local
 
-        this.metaVar = "";
-        this.tabsToEmit = "";
-        this.regCount = 0;
+    private Stack<List<IrValue>> argListStack;
 
-        this.classToMethods = classToMethods;
-        this.scopeToVars = scopeToVars;
-        this.inheritanceChain = inheritanceChain;
-        this.classToOffsetMap = classToOffsetMap;
+    public IntermediateCodeVisitor(SymbolTable symbols, CompilerOptions options) {
+        super();
 
-        this.argListStack = new Stack<List<String>>();
+        this.metaType = null;
 
-        String llvmFileName;
+        this.symbols = symbols;
+        this.module = new IrModule();
 
-        if(fileName.endsWith(".javaa") || fileName.endsWith(".java"))
-        {
-            String baseFile = fileName.substring(0, fileName.lastIndexOf("."));
-            llvmFileName = baseFile + ".ll";
-        }
-        else
-        {
-            llvmFileName = fileName + ".ll";
-        }
-
-        // Open llvm output file
-        File llvmFile = new File(llvmFileName);
-        llvmFos = new FileOutputStream(llvmFile);
+        this.slots = new HashMap<VarSymbol, IrValue>();
+        this.argListStack = new Stack<List<IrValue>>();
 
-        // Create Vtable
+        declareFunctions();
 
-        Map<String, OffsetMaps> mergedOffsetMaps = new LinkedHashMap<String, OffsetMaps>();
+        // Create Vtable, reading the flattened layouts built by MainVisitor
+        for (ClassSymbol cls : symbols.classes) {
+            List<IrFunction> vtable = new ArrayList<IrFunction>();
+            for (MethodSymbol method : cls.layout.vtable)
+                vtable.add(module.functionOf(method));
 
-        for (Entry<String, OffsetMaps> offsetMap : classToOffsetMap.entrySet()) {
-            
-            pureEmit("@." + offsetMap.getKey() + "_vtable = global [");
+            module.addGlobal(IrGlobal.vtable(cls, vtable));
+        }
 
+        buildRuntime();
 
-            OffsetMaps mergedMap = mergeOffsetMaps(offsetMap.getKey(), offsetMap.getKey());
-            mergedMap.totalVarOffset = offsetMap.getValue().totalVarOffset;
-            mergedMap.totalMethodOffset = offsetMap.getValue().totalMethodOffset;
-            mergedOffsetMaps.put(offsetMap.getKey(), mergedMap);
+        if(options.allocator.equals("arena"))
+            arenaAlloc = ArenaRuntime.build(module, calloc);
+        else if(options.allocator.equals("gc"))
+            gc = new GcRuntime(module, calloc);
+    }
 
-            if(!mergedMap.methodOffsets.isEmpty())
-            {
-                
-                pureEmit(mergedMap.methodOffsets.size() + " x i8*] [");
-                boolean firstMethod = true;
-                for(Entry<String, OffsetMapData> entry : mergedMap.methodOffsets.entrySet()) {
-                    
+    // Creates the functions of every method up front, so calls and vtables can refer to methods defined later
+    private void declareFunctions() {
+        List<IrArgument> noArgs = new ArrayList<IrArgument>();
 
-                    if(!firstMethod)
-                        pureEmit(",\n\t");
-                    else
-                        firstMethod = false;
-                    
-                    List<Argument> methodData = findMethodData(entry.getKey(), offsetMap.getKey());
-                    List<Argument> args = methodData.subList(1, methodData.size());    
-                    
-                    pureEmit("i8* bitcast (" + javaToLlvmType(methodData.get(0).argumentType) + " (i8*");
+        calloc = module.addFunction(new IrFunction("calloc", IrType.I8_PTR, args(IrType.I32, IrType.I32), false, null));
+        module.addFunction(new IrFunction("printf", IrType.I32, args(IrType.I8_PTR), true, null));
+        module.addFunction(new IrFunction("exit", IrType.VOID, args(IrType.I32), false, null));
+        printInt = module.addFunction(new IrFunction("print_int", IrType.VOID, args(IrType.I32), false, null));
+        throwOob = module.addFunction(new IrFunction("throw_oob", IrType.VOID, noArgs, false, null));
+        module.addFunction(new IrFunction("TEST", IrType.VOID, noArgs, false, null));
 
-                    for (Argument arg : args) {
-                        pureEmit(", " + javaToLlvmType(arg.argumentType));
-                    }
+        for (IrFunction function : module.functions)
+            function.isRuntime = true;
 
-                    pureEmit(")* @" + entry.getValue().className + "." + entry.getKey() + " to i8*)");
+        for (ClassSymbol cls : symbols.classes) {
+            if(cls.isMainClass)
+                module.addFunction(new IrFunction("main", IrType.I32, noArgs, false, null));
 
-                }
-                pureEmit("]\n");
+            for (MethodSymbol method : cls.methods.values()) {
+                List<IrArgument> params = new ArrayList<IrArgument>();
+                params.add(new IrArgument("this", IrType.I8_PTR, 0));
+                for (VarSymbol param : method.params)
+                    params.add(new IrArgument("." + param.name, IrType.of(param.type), params.size()));
 
-            }
-            else
-            {
-                pureEmit("0 x i8*] []\n\n");
+                module.addFunction(new IrFunction(method.toString(), IrType.of(method.returnType), params, false, method));
             }
         }
-
-        this.classToOffsetMap = mergedOffsetMaps;
-
-        pureEmit( "declare i8* @calloc(i32, i32)\n"
-        + "declare i32 @printf(i8*, ...)\n"
-        + "declare void @exit(i32)\n\n"
-        + "@_cint = constant [4 x i8] c\"%d\\0a\\00\"\n"
-        + "@_cOOB = constant [15 x i8] c\"Out of bounds\\0a\\00\"\n"
-        + "@_testMsg = constant [6 x i8] c\"TEST\\0a\\00\"\n"
-        + "define void @print_int(i32 %i) {\n"
-        + "\t%_str = bitcast [4 x i8]* @_cint to i8*\n"
-        + "\tcall i32 (i8*, ...) @printf(i8* %_str, i32 %i)\n"
-        + "\tret void\n"
-        + "}\n\n"
-        + "define void @throw_oob() {\n"
-        + "\t%_str = bitcast [15 x i8]* @_cOOB to i8*\n"
-        + "\tcall i32 (i8*, ...) @printf(i8* %_str)\n"
-        + "\tcall void @exit(i32 1)\n"
-        + "\tret void\n"
-        + "}\n\n"
-        + "define void @TEST() {\n"
-        + "\t%_str = bitcast [6 x i8]* @_testMsg to i8*\n"
-        + "\tcall i32 (i8*, ...) @printf(i8* %_str)\n"
-        + "\tret void\n"
-        + "}\n\n");
-        
     }
 
-    // Utility Functions
+    private static List<IrArgument> args(IrType... types) {
+        List<IrArgument> args = new ArrayList<IrArgument>();
+        for (IrType type : types)
+            args.add(new IrArgument(null, type, args.size()));
 
-    private void emit(String code) throws Exception {
-        llvmFos.write((tabsToEmit + code + "\n").getBytes());
+        return args;
     }
 
-    private void pureEmit(String code) throws Exception {
-        llvmFos.write(code.getBytes());
-    }
+    private void buildRuntime() {
+        IrFunction printf = module.function("printf");
+        IrFunction exit = module.function("exit");
 
-    private String javaToLlvmType(String type) {
-        switch(type)
-        {
-            case "int":
-                return "i32";
+        IrGlobal intFormat = module.addGlobal(IrGlobal.string("_cint", "%d\n"));
+        IrGlobal oobMessage = module.addGlobal(IrGlobal.string("_cOOB", "Out of bounds\n"));
+        IrGlobal testMessage = module.addGlobal(IrGlobal.string("_testMsg", "TEST\n"));
 
-            case "boolean":
-                return "i1";
-            
-            case "array":
-                return "i32*";
+        printInt.params.set(0, new IrArgument("i", IrType.I32, 0));
+        printInt.params.get(0).function = printInt;
+        IrBuilder b = new IrBuilder(printInt);
+        b.call(printf, b.bitcast(intFormat, IrType.I8_PTR), printInt.params.get(0));
+        b.ret(null);
 
-            default:
-                return "i8*";
-        }
-    }
+        b = new IrBuilder(throwOob);
+        b.call(printf, b.bitcast(oobMessage, IrType.I8_PTR));
+        b.call(exit, IrConst.i32(1));
+        b.ret(null);
 
-    private String getMeta() {
-        String tmp = new String(this.metaVar);
-        this.metaVar = "";
-        return tmp;
+        b = new IrBuilder(module.function("TEST"));
+        b.call(printf, b.bitcast(testMessage, IrType.I8_PTR));
+        b.ret(null);
     }
 
-    private int nextReg() {
-        return regCount++;
-    }
+    // Utility Functions
 
-    private void increaseTabs()
-    {
-        tabsToEmit += "\t";
+    private static String name(Identifier n) {
+        return n.f0.toString();
     }
 
-    private void decreaseTabs()
-    {
-        tabsToEmit = tabsToEmit.substring(0, tabsToEmit.length() - 1);
+    private TypeSymbol getMeta() {
+        TypeSymbol tmp = this.metaType;
+        this.metaType = null;
+        return tmp;
     }
 
-    private OffsetMaps mergeOffsetMaps(String className, String bottomClass) {
-        String parentClass = inheritanceChain.get(className);
+    private void startFunction(IrFunction function) {
+        builder = new IrBuilder(function);
+        thisArg = function.params.isEmpty() ? null : function.params.get(0);
+        oobBlock = null;
+        slots.clear();
+    }
 
-        if(parentClass == null)
+    private void finishFunction() {
+        if(oobBlock != null) // Keep the cold block out of the way, after the rest of the function
         {
-            OffsetMaps map = classToOffsetMap.get(className);
-            OffsetMaps out = new OffsetMaps(className);
-
-            
-            for (Map.Entry<String, OffsetMapData> variable : map.variableOffsets.entrySet()) {
-                out.variableOffsets.put(variable.getKey(), variable.getValue());
-            }
-
-            for (Map.Entry<String, OffsetMapData> method : map.methodOffsets.entrySet()) {
-                
-                OffsetMapData temp = new OffsetMapData(method.getValue().offset, method.getValue().className);
-                if(classToMethods.get(bottomClass).containsKey(method.getKey()))
-                {
-                    temp.className = bottomClass;
-                }
-
-                out.methodOffsets.put(method.getKey(), temp);
-            }
-
-            return out;
+            builder.function.blocks.remove(oobBlock);
+            builder.function.blocks.add(oobBlock);
         }
+    }
 
-        OffsetMaps output = mergeOffsetMaps(parentClass, bottomClass);
-
-        OffsetMaps map = classToOffsetMap.get(className);
-        for (Map.Entry<String, OffsetMapData> variable : map.variableOffsets.entrySet()) {
-            output.variableOffsets.put(variable.getKey(), variable.getValue());
-        }
-
-        for (Map.Entry<String, OffsetMapData> method : map.methodOffsets.entrySet()) {
-
-            OffsetMapData temp = new OffsetMapData(method.getValue().offset, method.getValue().className);
-            if(classToMethods.get(bottomClass).containsKey(method.getKey()))
-            {
-                temp.className = bottomClass;
-            }
-
-            output.methodOffsets.put(method.getKey(), temp);
+    // Block that reports an out of bounds access and exits
+    private IrBlock oobBlock() {
+        if(oobBlock == null)
+        {
+            IrBlock current = builder.block;
+            oobBlock = builder.newBlock("oob");
+            builder.setBlock(oobBlock);
+            builder.call(throwOob);
+            builder.unreachable();
+            builder.setBlock(current);
         }
 
-        return output;
+        return oobBlock;
     }
 
-    private List<Argument> findMethodData(String methodName, String startScope) {
-
-        if(startScope == null)
-            return null;
-
-        Map<String, List<Argument>> methods = classToMethods.get(startScope);
-        List<Argument> args = methods.get(methodName);
-        if( args == null )
+    // Address of a variable: a stack slot, or a field of this
+    private IrValue addressOf(VarSymbol var) {
+        if(var.isField())
         {
-            String parentClass = inheritanceChain.get(startScope);
-            return findMethodData(methodName, parentClass);
+            IrGep fieldPtr = builder.gep(thisArg, IrConst.i32(ClassLayout.objectOffset(var)));
+            return builder.bitcast(fieldPtr, IrType.pointer(IrType.of(var.type)));
         }
-        
-        return args;
-    }
-
-    private String findVarType(String varName, String startScope) { // Given a variable name and a scope, return it's type if it exists, otherwise return null
 
-        if(startScope == null)
-            return null;
+        return slots.get(var);
+    }
 
-        Map<String, String> vars = scopeToVars.get(startScope);
-        String varType = vars.get(varName);
-        if ( varType == null)
-        {
-            String parentScope = inheritanceChain.get(startScope);
-            return findVarType(varName, parentScope);
-        }
+    private void checkBounds(IrValue array, IrValue index) {
+        IrLoad length = builder.load(array);
+        IrCompare inBounds = builder.compare(IrCompare.Pred.ULT, index, length); // Unsigned, so negative indices fail too
+        IrBlock ok = builder.createBlock("oob_ok");
+        builder.condBr(inBounds, ok, oobBlock());
+        builder.startBlock(ok);
+    }
 
-        return varType;
+    // Address of an array element; the length is stored in front of the elements
+    private IrValue elementAddress(IrValue array, IrValue index) {
+        IrBinary offset = builder.binary(IrBinary.Op.ADD, index, IrConst.i32(1));
+        return builder.gep(array, offset);
     }
 
     // Visit functions
@@ -269,14 +197,11 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f2 -> <EOF>
      */
     @Override
-    public String visit(Goal n, String argu) throws Exception {
+    public IrValue visit(Goal n, Scope argu) throws Exception {
         n.f0.accept(this, argu);
         if( n.f1.present() )
             n.f1.accept(this, argu);
 
-
-        // After the traversal of the AST, close the output file
-        llvmFos.close();
         return null;
     }
 
@@ -301,23 +226,21 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f17 -> "}"
      */
     @Override
-    public String visit(MainClass n, String argu) throws Exception {
-        String className = n.f1.accept(this, argu);
-        regCount = 0;
-        emit("define i32 @main() {\n");
+    public IrValue visit(MainClass n, Scope argu) throws Exception {
+        ClassSymbol cls = symbols.lookupClass(name(n.f1));
+        startFunction(module.function("main"));
 
-        increaseTabs();
+        if(gc != null)
+            gc.printReportAtExit(builder);
 
         if(n.f14.present())
-            n.f14.accept(this, className + ".main");
-            
+            n.f14.accept(this, cls.mainMethod);
+
         if(n.f15.present())
-            n.f15.accept(this, className + ".main");
-        
-        emit("ret i32 0");
+            n.f15.accept(this, cls.mainMethod);
 
-        decreaseTabs();
-        emit("}\n");
+        builder.ret(IrConst.i32(0));
+        finishFunction();
 
         return null;
     }
@@ -331,18 +254,11 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f5 -> "}"
      */
     @Override
-    public String visit(ClassDeclaration n, String argu) throws Exception {
-        String className = n.f1.accept(this, argu);
-        
-        if( n.f3.present() )
-            n.f3.accept(this, className);
-
-        //increaseTabs();
-        
+    public IrValue visit(ClassDeclaration n, Scope argu) throws Exception {
+        ClassSymbol cls = symbols.lookupClass(name(n.f1));
+
         if( n.f4.present() )
-            n.f4.accept(this, className);
-        
-        //decreaseTabs();
+            n.f4.accept(this, cls.scope);
 
         return null;
     }
@@ -358,18 +274,11 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f7 -> "}"
      */
     @Override
-    public String visit(ClassExtendsDeclaration n, String argu) throws Exception {
-        String className = n.f1.accept(this, argu);
+    public IrValue visit(ClassExtendsDeclaration n, Scope argu) throws Exception {
+        ClassSymbol cls = symbols.lookupClass(name(n.f1));
 
-        if( n.f5.present() )
-            n.f5.accept(this, className);
-
-        //increaseTabs();
-
-        if( n.f6.present() )    
-            n.f6.accept(this, className);
-        
-        //decreaseTabs();
+        if( n.f6.present() )
+            n.f6.accept(this, cls.scope);
 
         return null;
     }
@@ -380,14 +289,16 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f2 -> ";"
      */
     @Override
-    public String visit(VarDeclaration n, String argu) throws Exception {
+    public IrValue visit(VarDeclaration n, Scope argu) throws Exception {
 
-        if( !tabsToEmit.equals("") )
+        if( argu instanceof MethodSymbol ) // Fields live in the object, they are only declared by the layout
         {
-            String llvmType = javaToLlvmType(n.f0.accept(this, argu));
-            String varName = n.f1.accept(this, argu);
+            VarSymbol var = argu.vars.get(name(n.f1));
+            IrType type = IrType.of(var.type);
 
-            emit("%" + varName + " = alloca " + llvmType + "\n");
+            IrAlloca slot = builder.alloca(type, var.name);
+            builder.store(type.isPointer() ? IrConst.nullOf(type) : new IrConst(type, 0), slot); // Locals start out zeroed, like fields
+            slots.put(var, slot);
         }
 
         return null;
@@ -409,29 +320,16 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f12 -> "}"
      */
     @Override
-    public String visit(MethodDeclaration n, String argu) throws Exception {
-        regCount = 0;
-        String llvmMethodType = javaToLlvmType(n.f1.accept(this, argu));
-        String methodName = n.f2.accept(this, argu);
-
-        String currScope = argu + "." + methodName;
-
-        List<Argument> methodData = findMethodData(methodName, argu);
-        List<Argument> args = methodData.subList(1, methodData.size());
-        String argLlvmCode = "";
-
-        for (Argument arg : args) {
-            argLlvmCode += (", " + javaToLlvmType(arg.argumentType) + " %." + arg.argumentName);
-        }
-
-        emit("define " + llvmMethodType + " @" + currScope + "(i8* %this" + argLlvmCode + ") {");
-
-        increaseTabs();
+    public IrValue visit(MethodDeclaration n, Scope argu) throws Exception {
+        MethodSymbol currScope = argu.owner().methods.get(name(n.f2));
+        IrFunction function = module.functionOf(currScope);
+        startFunction(function);
 
-        for (Argument arg : args) {
-            String llvmType = javaToLlvmType(arg.argumentType);
-            emit("%" + arg.argumentName + " = alloca " + llvmType);
-            emit("store " + llvmType + "%." + arg.argumentName + ", " + llvmType + "* %" + arg.argumentName);
+        for (VarSymbol param : currScope.params) {
+            IrArgument arg = function.params.get(param.index + 1);
+            IrAlloca slot = builder.alloca(arg.type, param.name);
+            builder.store(arg, slot);
+            slots.put(param, slot);
         }
 
         if( n.f7.present() )
@@ -440,40 +338,13 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
         if( n.f8.present() )
             n.f8.accept(this, currScope);
 
-        String returnReg = n.f10.accept(this, currScope);
-        emit("ret " + llvmMethodType + " " + returnReg );
-        decreaseTabs();
-        emit("}\n");
+        IrValue returnValue = n.f10.accept(this, currScope);
+        builder.ret(returnValue);
+        finishFunction();
 
         return null;
     }
 
-    /**
-     * f0 -> "int"
-     * f1 -> "["
-     * f2 -> "]"
-     */
-    @Override
-    public String visit(ArrayType n, String argu) throws Exception {
-        return "array";
-    }
-
-    /**
-     * f0 -> "boolean"
-     */
-    @Override
-    public String visit(BooleanType n, String argu) throws Exception {
-        return "boolean";
-    }
-
-    /**
-     * f0 -> "int"
-     */
-    @Override
-    public String visit(IntegerType n, String argu) throws Exception {
-        return "int";
-    }
-
     /**
      * f0 -> Identifier()
      * f1 -> "="
@@ -481,30 +352,11 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f3 -> ";"
      */
     @Override
-    public String visit(AssignmentStatement n, String argu) throws Exception {
-
-        String varName = n.f0.accept(this, argu);
-        String varType = findVarType(varName, argu);
-        String llvmType = javaToLlvmType(varType);
-        String exprReg = n.f2.accept(this, argu);
+    public IrValue visit(AssignmentStatement n, Scope argu) throws Exception {
+        VarSymbol var = argu.lookupVar(name(n.f0));
+        IrValue value = n.f2.accept(this, argu);
 
-        String varReg;
-
-        if(!scopeToVars.get(argu).containsKey(varName))
-        {
-            String elementPtrReg = "%_" + nextReg();
-            String bitcastReg = "%_" + nextReg();
-
-            int varOffset = classToOffsetMap.get(argu.split("\\.")[0]).variableOffsets.get(varName).offset + 8;
-
-            emit(elementPtrReg + " = getelementptr i8, i8* %this, i32 " + varOffset);
-            emit(bitcastReg + " = bitcast i8* " + elementPtrReg + " to " + llvmType + "*");
-            varReg = bitcastReg;
-        }
-        else
-            varReg = "%" + varName;
-        
-        emit("store " + llvmType  + " " + exprReg + ", " + llvmType + "* " + varReg);
+        builder.store(value, addressOf(var));
 
         return null;
     }
@@ -519,55 +371,15 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f6 -> ";"
      */
     @Override
-    public String visit(ArrayAssignmentStatement n, String argu) throws Exception {
-
-        String varName = n.f0.accept(this, argu);
-
-        String indexExprReg = n.f2.accept(this, argu);
-        String exprReg = n.f5.accept(this, argu);
-
-
-        String arraySizeReg = "%_" + nextReg();
-        String icmpReg = "%_" + nextReg();
- 
-        String oobEntry = "oob" + nextReg();
-        String oobExit = "oob" + nextReg();
-
-        String arrayReg;
-        String lookupReg = "%_" + nextReg();
-
-        String lookupIndexReg = "%_" + nextReg();
-
-
-        if(!scopeToVars.get(argu).containsKey(varName))
-        {
-            String elementPtrReg = "%_" + nextReg();
-            String bitcastReg = "%_" + nextReg();
+    public IrValue visit(ArrayAssignmentStatement n, Scope argu) throws Exception {
+        VarSymbol var = argu.lookupVar(name(n.f0));
 
-            int varOffset = classToOffsetMap.get(argu.split("\\.")[0]).variableOffsets.get(varName).offset + 8;
+        IrValue index = n.f2.accept(this, argu);
+        IrValue value = n.f5.accept(this, argu);
 
-            emit(elementPtrReg + " = getelementptr i8, i8* %this, i32 " + varOffset);
-            emit(bitcastReg + " = bitcast i8* " + elementPtrReg + " to i32**");
-
-            arrayReg = "%_" + nextReg();
-            emit(arrayReg + " = load i32*, i32** " + bitcastReg);
-        }
-        else
-        {
-            String arrayRegPtr = "%" + varName;
-            arrayReg = "%_" + nextReg();
-            emit(arrayReg + " = load i32*, i32** " + arrayRegPtr);
-        }
-
-        emit(arraySizeReg + " = load i32, i32* " + arrayReg);
-        emit(icmpReg + " = icmp ult i32 " + indexExprReg + ", " + arraySizeReg);
-        emit("br i1 " + icmpReg + ", label %" + oobExit + ", label %" + oobEntry + "\n" + oobEntry + ":");
-        emit("call void @throw_oob()");
-        emit("br label %" + oobExit + "\n" + oobExit + ":");
-        emit(lookupIndexReg + " = add i32 " + indexExprReg + ", 1");
-        emit(lookupReg + " = getelementptr i32, i32* " + arrayReg + ", i32 " + lookupIndexReg);
-        // emit(lookupReg + " = getelementptr " + llvmType + ", " + llvmType + "*, i32 " + lookupIndexReg);
-        emit("store i32 " + exprReg + ", i32* " + lookupReg);
+        IrValue array = builder.load(addressOf(var));
+        checkBounds(array, index);
+        builder.store(value, elementAddress(array, index));
 
         return null;
     }
@@ -582,26 +394,22 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f6 -> Statement()
      */
     @Override
-    public String visit(IfStatement n, String argu) throws Exception {
-        pureEmit("\n");
-        String condExprRet = n.f2.accept(this, argu);
-
-        String ifEntry = "if" + nextReg();
-        String elseEntry = "if" + nextReg();
-        String totalExit = "if" + nextReg(); 
+    public IrValue visit(IfStatement n, Scope argu) throws Exception {
+        IrBlock ifEntry = builder.createBlock("if");
+        IrBlock elseEntry = builder.createBlock("else");
+        IrBlock totalExit = builder.createBlock("if_end");
 
-        emit("br i1 " + condExprRet + ", label %" + ifEntry + ", label %" + elseEntry + "\n" + ifEntry + ":\n");
+        branch(n.f2, ifEntry, elseEntry, argu);
 
-        increaseTabs();
+        builder.startBlock(ifEntry);
         n.f4.accept(this, argu);
+        builder.br(totalExit);
 
-        emit("br label %" + totalExit + "\n" + elseEntry +":\n");
-        decreaseTabs();      
-
-        increaseTabs();
+        builder.startBlock(elseEntry);
         n.f6.accept(this, argu);
-        emit("br label %" + totalExit + "\n" + totalExit +":\n");
-        decreaseTabs();
+        builder.br(totalExit);
+
+        builder.startBlock(totalExit);
 
         return null;
     }
@@ -614,27 +422,67 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f4 -> Statement()
      */
     @Override
-    public String visit(WhileStatement n, String argu) throws Exception {
-
-        String aboveLoop = "loop" + nextReg();
-        pureEmit("\n");
-        emit("br label %" + aboveLoop + "\n" + aboveLoop + ":");
+    public IrValue visit(WhileStatement n, Scope argu) throws Exception {
+        IrBlock aboveLoop = builder.createBlock("loop");
+        IrBlock loopEntry = builder.createBlock("loop_body");
+        IrBlock loopExit = builder.createBlock("loop_end");
 
-        String condExprRet = n.f2.accept(this, argu);
+        builder.br(aboveLoop);
+        builder.startBlock(aboveLoop);
 
-        String loopEntry = "loop" + nextReg();
-        String loopExit = "loop" + nextReg();
+        branch(n.f2, loopEntry, loopExit, argu);
 
-        emit("br i1 " + condExprRet + ", label %" + loopEntry + ", label %" + loopExit + "\n" + loopEntry + ":");
-
-        increaseTabs();
+        builder.startBlock(loopEntry);
         n.f4.accept(this, argu);
-        emit("br label %" + aboveLoop + "\n" + loopExit + ":");
-        decreaseTabs();
+        builder.br(aboveLoop);
+
+        builder.startBlock(loopExit);
 
         return null;
     }
 
+    // Jumps to ifTrue if cond holds and to ifFalse otherwise. && becomes a chain of branches and ! swaps the
+    // targets, so a condition only turns into an i1 value where it has to, like the result of a comparison.
+    private void branch(Expression cond, IrBlock ifTrue, IrBlock ifFalse, Scope argu) throws Exception {
+        Node choice = cond.f0.choice;
+
+        if(choice instanceof AndExpression)
+        {
+            AndExpression and = (AndExpression) choice;
+            IrBlock clause2Entry = builder.createBlock("and");
+
+            branch(and.f0, clause2Entry, ifFalse, argu); // Short circuit: the second clause is only evaluated if the first holds
+
+            builder.startBlock(clause2Entry);
+            branch(and.f2, ifTrue, ifFalse, argu);
+        }
+        else if(choice instanceof Clause)
+            branch((Clause) choice, ifTrue, ifFalse, argu);
+        else
+            builder.condBr(cond.accept(this, argu), ifTrue, ifFalse);
+    }
+
+    private void branch(Clause cond, IrBlock ifTrue, IrBlock ifFalse, Scope argu) throws Exception {
+        Node choice = cond.f0.choice;
+
+        if(choice instanceof NotExpression)
+        {
+            branch(((NotExpression) choice).f1, ifFalse, ifTrue, argu);
+            return;
+        }
+
+        Node primary = ((PrimaryExpression) choice).f0.choice;
+
+        if(primary instanceof BracketExpression)
+            branch(((BracketExpression) primary).f1, ifTrue, ifFalse, argu);
+        else if(primary instanceof TrueLiteral)
+            builder.br(ifTrue);
+        else if(primary instanceof FalseLiteral)
+            builder.br(ifFalse);
+        else
+            builder.condBr(cond.accept(this, argu), ifTrue, ifFalse);
+    }
+
     /**
      * f0 -> "System.out.println"
      * f1 -> "("
@@ -643,10 +491,10 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f4 -> ";"
      */
     @Override
-    public String visit(PrintStatement n, String argu) throws Exception {
-        String exprReg = n.f2.accept(this, argu);
+    public IrValue visit(PrintStatement n, Scope argu) throws Exception {
+        IrValue value = n.f2.accept(this, argu);
 
-        emit("call void (i32) @print_int(i32 " + exprReg + ")");
+        builder.call(printInt, value);
         return null;
     }
 
@@ -656,27 +504,26 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f2 -> Clause()
      */
     @Override
-    public String visit(AndExpression n, String argu) throws Exception {
-
-        String clause1 = n.f0.accept(this, argu);
-
-        String phiReg = "%_" + nextReg();
-        String and1 = "and" + nextReg();
-        String and2 = "and" + nextReg();
-        String and3 = "and" + nextReg();
-        String and4 = "and" + nextReg();
+    public IrValue visit(AndExpression n, Scope argu) throws Exception {
+        IrValue clause1 = n.f0.accept(this, argu);
+        IrBlock clause1End = builder.block;
 
-        emit("br label %" + and1 + "\n" + and1 + ":");
-        emit("br i1 " + clause1 + ", label %" + and2 + ", label %" + and4 + "\n" + and2 + ":");
+        IrBlock clause2Entry = builder.createBlock("and");
+        IrBlock andExit = builder.createBlock("and_end");
 
-        String clause2 = n.f2.accept(this, argu);
+        builder.condBr(clause1, clause2Entry, andExit); // Short circuit: the second clause is only evaluated if the first holds
 
-        emit("br label %" + and3 + "\n" + and3 + ":");
-        emit("br label %" + and4 + "\n" + and4 + ":");
+        builder.startBlock(clause2Entry);
+        IrValue clause2 = n.f2.accept(this, argu);
+        IrBlock clause2End = builder.block; // The second clause may have opened blocks of it's own
+        builder.br(andExit);
 
-        emit(phiReg + " = phi i1 [ 0, %" + and1 + "], [" + clause2 + ", %" + and3 + "]");     
+        builder.startBlock(andExit);
+        IrPhi result = builder.phi(IrType.I1);
+        result.addIncoming(IrConst.FALSE, clause1End);
+        result.addIncoming(clause2, clause2End);
 
-        return phiReg;
+        return result;
     }
 
     /**
@@ -685,13 +532,11 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f2 -> PrimaryExpression()
      */
     @Override
-    public String visit(CompareExpression n, String argu) throws Exception {
-        String expr1 = n.f0.accept(this, argu);
-        String expr2 = n.f2.accept(this, argu);
+    public IrValue visit(CompareExpression n, Scope argu) throws Exception {
+        IrValue expr1 = n.f0.accept(this, argu);
+        IrValue expr2 = n.f2.accept(this, argu);
 
-        emit("%_" + regCount + " = icmp slt i32 " + expr1 + ", " + expr2);
-
-        return "%_" + (regCount++);
+        return builder.compare(IrCompare.Pred.SLT, expr1, expr2);
     }
 
     /**
@@ -700,13 +545,11 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f2 -> PrimaryExpression()
      */
     @Override
-    public String visit(PlusExpression n, String argu) throws Exception {
-        String expr1 = n.f0.accept(this, argu);
-        String expr2 = n.f2.accept(this, argu);
-
-        emit("%_" + regCount + " = add i32 " + expr1 + ", " + expr2);
+    public IrValue visit(PlusExpression n, Scope argu) throws Exception {
+        IrValue expr1 = n.f0.accept(this, argu);
+        IrValue expr2 = n.f2.accept(this, argu);
 
-        return "%_" + (regCount++);
+        return builder.binary(IrBinary.Op.ADD, expr1, expr2);
     }
 
     /**
@@ -715,13 +558,11 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f2 -> PrimaryExpression()
      */
     @Override
-    public String visit(MinusExpression n, String argu) throws Exception {
-        String expr1 = n.f0.accept(this, argu);
-        String expr2 = n.f2.accept(this, argu);
-
-        emit("%_" + regCount + " = sub i32 " + expr1 + ", " + expr2);
+    public IrValue visit(MinusExpression n, Scope argu) throws Exception {
+        IrValue expr1 = n.f0.accept(this, argu);
+        IrValue expr2 = n.f2.accept(this, argu);
 
-        return "%_" + (regCount++);
+        return builder.binary(IrBinary.Op.SUB, expr1, expr2);
     }
 
     /**
@@ -730,14 +571,11 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f2 -> PrimaryExpression()
      */
     @Override
-    public String visit(TimesExpression n, String argu) throws Exception {
-        
-        String expr1 = n.f0.accept(this, argu);
-        String expr2 = n.f2.accept(this, argu);
+    public IrValue visit(TimesExpression n, Scope argu) throws Exception {
+        IrValue expr1 = n.f0.accept(this, argu);
+        IrValue expr2 = n.f2.accept(this, argu);
 
-        emit("%_" + regCount + " = mul i32 " + expr1 + ", " + expr2);
-
-        return "%_" + (regCount++);
+        return builder.binary(IrBinary.Op.MUL, expr1, expr2);
     }
 
     /**
@@ -747,30 +585,12 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f3 -> "]"
      */
     @Override
-    public String visit(ArrayLookup n, String argu) throws Exception {
-        String exprReg = n.f0.accept(this, argu);
-        String indexReg = n.f2.accept(this, argu);
-        
-        String arraySizeReg = "%_" + nextReg();
-        String icmpReg = "%_" + nextReg();
-
-        String oobEntry = "oob" + nextReg();
-        String oobExit = "oob" + nextReg();
-
-        String offsetReg = "%_" + nextReg();
-        String valuePtr = "%_" + nextReg();
-        String valueReg = "%_" + nextReg();
-
-        emit(arraySizeReg + " = load i32, i32* " + exprReg);
-        emit(icmpReg + " = icmp ult i32 " + indexReg + ", " + arraySizeReg); // Keep unsigned?
-        emit("br i1 " + icmpReg + ", label %" + oobExit + ", label %" + oobEntry + "\n" + oobEntry + ":");
-        emit("call void @throw_oob()");
-        emit("br label %" + oobExit + "\n" + oobExit + ":");
-        emit(offsetReg + " = add i32 1, " + indexReg);
-        emit(valuePtr + " = getelementptr i32, i32* " + exprReg + ", i32 " + offsetReg);
-        emit(valueReg + " = load i32, i32*" + valuePtr);
-        
-        return valueReg;
+    public IrValue visit(ArrayLookup n, Scope argu) throws Exception {
+        IrValue array = n.f0.accept(this, argu);
+        IrValue index = n.f2.accept(this, argu);
+
+        checkBounds(array, index);
+        return builder.load(elementAddress(array, index));
     }
 
     /**
@@ -779,13 +599,10 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f2 -> "length"
      */
     @Override
-    public String visit(ArrayLength n, String argu) throws Exception {
-        String exprReg = n.f0.accept(this, argu);
-        String returnReg = "%_" + nextReg();
-        //perhaps bitcast?
-        emit(returnReg + " = load i32, i32* " + exprReg);
+    public IrValue visit(ArrayLength n, Scope argu) throws Exception {
+        IrValue array = n.f0.accept(this, argu);
 
-        return returnReg;
+        return builder.load(array);
     }
 
     /**
@@ -797,53 +614,47 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f5 -> ")"
      */
     @Override
-    public String visit(MessageSend n, String argu) throws Exception {
-        String exprReg = n.f0.accept(this, argu);
-        String className;
+    public IrValue visit(MessageSend n, Scope argu) throws Exception {
+        IrValue receiver = n.f0.accept(this, argu);
+        ClassSymbol cls;
 
-        if(exprReg.equals("%this")) // if expr is this
-            className = argu.split("\\.")[0];
+        if(receiver == thisArg) // if expr is this
+            cls = argu.owner();
         else // if expr is AllocExpr or Identifier
-            className = getMeta();
+            cls = (ClassSymbol) getMeta();
 
-        
-        String methodName = n.f2.accept(this, argu);
-        emit("; Calling " + className + "." + methodName);
+        MethodSymbol method = cls.lookupMethod(name(n.f2));
 
-        List<Argument> methodData = findMethodData(methodName, className);
-        Integer methodOffset = classToOffsetMap.get(className).methodOffsets.get(methodName).offset;
-
-        String methodDataString = javaToLlvmType(methodData.get(0).argumentType) + " (i8*";
-        String methodCallString = "(i8* " + exprReg;
+        List<IrValue> args = new ArrayList<IrValue>();
+        List<IrType> argTypes = new ArrayList<IrType>();
+        args.add(receiver);
+        argTypes.add(IrType.I8_PTR);
 
         if( n.f4.present() )
         {
-            argListStack.push(new ArrayList<String>());
+            argListStack.push(args);
             n.f4.accept(this, argu);
-            
-            List<String> argList = argListStack.peek();
-            for(int i = 0; i < argList.size(); i++) {
-                String argType = javaToLlvmType(methodData.get(i + 1).argumentType);
-
-                methodDataString += (", " + argType);
-                methodCallString += (", " + argType + " " + argList.get(i));
-            }
-            
             argListStack.pop();
         }
 
-        methodDataString += ")*";
-        methodCallString += ")";
+        for (VarSymbol param : method.params)
+            argTypes.add(IrType.of(param.type));
+
+        IrType functionType = IrType.function(IrType.of(method.returnType), argTypes, false);
+
+        // Load the implementation from the receiver's vtable
+        IrValue vtablePtr = builder.bitcast(receiver, IrType.pointer(IrType.pointer(IrType.I8_PTR)));
+        IrValue vtable = builder.load(vtablePtr);
+        IrValue slot = builder.gep(vtable, IrConst.i32(method.vtableIndex));
+        IrValue implementation = builder.load(slot);
+        IrValue callee = builder.bitcast(implementation, IrType.pointer(functionType));
 
-        emit("%_" + (regCount++) + " = bitcast i8* " + exprReg + " to i8***");
-        emit("%_" + (regCount++) + " = load i8**, i8*** %_" + (regCount - 2));
-        emit("%_" + (regCount++) + " = getelementptr i8*, i8** %_" + (regCount - 2) + ", i32 " + (methodOffset/8));
-        emit("%_" + (regCount++) + " = load i8*, i8** %_" + (regCount - 2));
-        emit("%_" + (regCount++) + " = bitcast i8* %_" + (regCount - 2) + " to " + methodDataString);
-        emit("%_" + regCount + " = call " + javaToLlvmType(methodData.get(0).argumentType) + " %_" + (regCount - 1) + methodCallString);
+        IrCall call = builder.callIndirect(callee, functionType, args);
+        call.method = method;
+        call.receiverClass = cls;
 
-        this.metaVar = methodData.get(0).argumentType;
-        return "%_" + (regCount++);
+        this.metaType = method.returnType;
+        return call;
     }
 
     /**
@@ -851,8 +662,8 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f1 -> ExpressionTail()
      */
     @Override
-    public String visit(ExpressionList n, String argu) throws Exception {
-        List<String> argList = argListStack.peek();
+    public IrValue visit(ExpressionList n, Scope argu) throws Exception {
+        List<IrValue> argList = argListStack.peek();
         argList.add(n.f0.accept(this, argu));
         n.f1.accept(this, argu);
         return null;
@@ -863,8 +674,8 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f1 -> Expression()
      */
     @Override
-    public String visit(ExpressionTerm n, String argu) throws Exception {
-        List<String> argList = argListStack.peek();
+    public IrValue visit(ExpressionTerm n, Scope argu) throws Exception {
+        List<IrValue> argList = argListStack.peek();
         argList.add(n.f1.accept(this, argu));
         return null;
     }
@@ -875,40 +686,15 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * BracketExpression()
      */
     @Override
-    public String visit(PrimaryExpression n, String argu) throws Exception {
-        pureEmit("\n");
+    public IrValue visit(PrimaryExpression n, Scope argu) throws Exception {
         if( n.f0.which == 3 ) // If expression is an identifier (in this case a variable)
         {
-            String varName = n.f0.accept(this, argu);
-            String varType = findVarType(varName, argu);
-            String llvmType = javaToLlvmType(varType);
-            this.metaVar = new String(varType);
+            VarSymbol var = argu.lookupVar(name((Identifier) n.f0.choice));
+            this.metaType = var.type;
 
-            String varReg;
-
-            if(!scopeToVars.get(argu).containsKey(varName))
-            {
-                String elementPtrReg = "%_" + nextReg();
-                String bitcastReg = "%_" + nextReg();
-
-                int varOffset = classToOffsetMap.get(argu.split("\\.")[0]).variableOffsets.get(varName).offset + 8;
-
-                emit(elementPtrReg + " = getelementptr i8, i8* %this, i32 " + varOffset);
-                emit(bitcastReg + " = bitcast i8* " + elementPtrReg + " to " + llvmType + "*");
-                varReg = bitcastReg;
-            }
-            else
-                varReg = "%" + varName;
-
-            String returnReg = "%_" + nextReg();
-
-            emit(returnReg + " = load " + llvmType + ", " + llvmType + "* " + varReg);
-
-            return returnReg;
+            return builder.load(addressOf(var));
         }
 
-        
-
         return n.f0.accept(this, argu);
     }
 
@@ -916,40 +702,32 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f0 -> <INTEGER_LITERAL>
      */
     @Override
-    public String visit(IntegerLiteral n, String argu) throws Exception {
-        return n.f0.toString();
+    public IrValue visit(IntegerLiteral n, Scope argu) throws Exception {
+        return IrConst.i32(Long.parseLong(n.f0.toString()));
     }
 
     /**
      * f0 -> "true"
      */
     @Override
-    public String visit(TrueLiteral n, String argu) throws Exception {
-        return "1"; 
+    public IrValue visit(TrueLiteral n, Scope argu) throws Exception {
+        return IrConst.TRUE;
     }
 
     /**
      * f0 -> "false"
      */
     @Override
-    public String visit(FalseLiteral n, String argu) throws Exception {
-        return "0";
-    }
-
-    /**
-     * f0 -> <IDENTIFIER>
-     */
-    @Override
-    public String visit(Identifier n, String argu) throws Exception {
-        return n.f0.toString();
+    public IrValue visit(FalseLiteral n, Scope argu) throws Exception {
+        return IrConst.FALSE;
     }
 
     /**
      * f0 -> "this"
      */
     @Override
-    public String visit(ThisExpression n, String argu) throws Exception {
-        return "%this";
+    public IrValue visit(ThisExpression n, Scope argu) throws Exception {
+        return thisArg;
     }
 
     /**
@@ -960,27 +738,33 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f4 -> "]"
      */
     @Override
-    public String visit(ArrayAllocationExpression n, String argu) throws Exception {
-        String exprReg = n.f3.accept(this, argu);
-
-        String sizeReg = "%_" + nextReg();
-        String ptrReg = "%_" + nextReg();
-        String bitcastReg = "%_" + nextReg();
-        String icmpReg = "%_" + nextReg();
-
-        String oobEntry = "arr_alloc" + nextReg();
-        String oobExit = "arr_alloc" + nextReg();
-
-        emit(icmpReg + " = icmp slt i32 " + exprReg + ", 0");
-        emit("br i1 " + icmpReg + ", label %" + oobEntry + ", label %" + oobExit + "\n" + oobEntry + ":");
-        emit("call void @throw_oob()");
-        emit("br label %" + oobExit + "\n" + oobExit + ":");
-        emit(sizeReg + " = add i32 1, " + exprReg);
-        emit(ptrReg + " = call i8* @calloc(i32 4, i32 " + sizeReg +  ")");
-        emit(bitcastReg + " = bitcast i8* " + ptrReg + " to i32*");
-        emit("store i32 " + exprReg + ", i32* " + bitcastReg);
-        
-        return bitcastReg;
+    public IrValue visit(ArrayAllocationExpression n, Scope argu) throws Exception {
+        IrValue count = n.f3.accept(this, argu);
+
+        IrValue negative = builder.compare(IrCompare.Pred.SLT, count, IrConst.i32(0));
+        IrBlock ok = builder.createBlock("arr_alloc");
+        builder.condBr(negative, oobBlock(), ok);
+        builder.startBlock(ok);
+
+        IrValue memory;
+        if(arenaAlloc == null && gc == null)
+        {
+            IrValue size = builder.binary(IrBinary.Op.ADD, count, IrConst.i32(1)); // One more element for the length
+            memory = builder.call(calloc, IrConst.i32(4), size);
+        }
+        else
+        {
+            IrValue size = builder.binary(IrBinary.Op.ADD, builder.cast(IrCast.Op.ZEXT, count, IrType.I64), new IrConst(IrType.I64, 1));
+            size = builder.binary(IrBinary.Op.MUL, size, new IrConst(IrType.I64, 4));
+            if(gc == null)
+                memory = builder.call(arenaAlloc, size);
+            else
+                memory = builder.call(gc.alloc, size, IrConst.nullOf(IrType.I8_PTR)); // Ints only, nothing to scan
+        }
+        IrValue array = builder.bitcast(memory, IrType.I32_PTR);
+        builder.store(count, array);
+
+        return array;
     }
 
     /**
@@ -990,24 +774,24 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f3 -> ")"
      */
     @Override
-    public String visit(AllocationExpression n, String argu) throws Exception {
-        String className = n.f1.accept(this, argu);
+    public IrValue visit(AllocationExpression n, Scope argu) throws Exception {
+        ClassSymbol cls = symbols.lookupClass(name(n.f1));
 
-        this.metaVar = new String(className);
+        this.metaType = cls;
 
-        int objectSize = classToOffsetMap.get(className).totalVarOffset + 8;
-
-        emit("%_" + (regCount++) + " = call i8* @calloc(i32 " + objectSize + ", i32 1)");
-        emit("%_" + (regCount++) + " = bitcast i8* %_" + (regCount - 2) + " to i8***");
-
-        int vtableSize = classToOffsetMap.get(className).methodOffsets.size();
-        emit("%_" + (regCount++) + " = getelementptr [" + vtableSize  + " x i8*], [" + vtableSize + " x i8*]* @." + className +"_vtable, i32 0, i32 0");
-        emit("store i8** %_" + (regCount - 1)  + ", i8*** %_" + (regCount - 2));
-
-        
+        IrCall object;
+        if(gc != null)
+            object = builder.call(gc.alloc, new IrConst(IrType.I64, cls.layout.objectSize()), builder.bitcast(gc.pointerMap(cls), IrType.I8_PTR));
+        else if(arenaAlloc != null)
+            object = builder.call(arenaAlloc, new IrConst(IrType.I64, cls.layout.objectSize()));
+        else
+            object = builder.call(calloc, IrConst.i32(cls.layout.objectSize()), IrConst.i32(1));
+        object.allocatedClass = cls;
+        IrValue vtablePtr = builder.bitcast(object, IrType.pointer(IrType.pointer(IrType.I8_PTR)));
+        IrValue vtable = builder.gep(module.vtableOf(cls), IrConst.i32(0), IrConst.i32(0));
+        builder.store(vtable, vtablePtr);
 
-        return "%_" + (regCount - 3);
-        //return "%" + className;
+        return object;
     }
 
     /**
@@ -1015,12 +799,10 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f1 -> Clause()
      */
     @Override
-    public String visit(NotExpression n, String argu) throws Exception {
-        String exprReg = n.f1.accept(this, argu);
-
-        emit("%_" + regCount + " = xor i1 1, " + exprReg);
+    public IrValue visit(NotExpression n, Scope argu) throws Exception {
+        IrValue value = n.f1.accept(this, argu);
 
-        return "%_" + (regCount++);
+        return builder.binary(IrBinary.Op.XOR, value, IrConst.TRUE);
     }
 
     /**
@@ -1029,8 +811,7 @@ public class IntermediateCodeVisitor extends GJDepthFirst<String, String> {
      * f2 -> ")"
      */
     @Override
-    public String visit(BracketExpression n, String argu) throws Exception {
+    public IrValue visit(BracketExpression n, Scope argu) throws Exception {
         return n.f1.accept(this, argu);
     }
-    
-}
\ No newline at end of file
+}
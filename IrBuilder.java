@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Appends instructions to the end of the current block of a function.
+ */
+class IrBuilder {
+
+    public IrFunction function;
+    public IrBlock block;
+
+    IrBuilder(IrFunction function) {
+        this.function = function;
+        this.block = function.blocks.isEmpty() ? newBlock("entry") : function.entry();
+    }
+
+    // Creates an empty block at the end of the function; the current block stays the same
+    IrBlock newBlock(String hint) {
+        IrBlock newBlock = createBlock(hint);
+        function.blocks.add(newBlock);
+        return newBlock;
+    }
+
+    // Creates a block that is not part of the function yet, so it can be branched to before startBlock places it
+    IrBlock createBlock(String hint) {
+        return new IrBlock(hint, function);
+    }
+
+    // Places block at the end of the function and continues emitting into it
+    void startBlock(IrBlock block) {
+        function.blocks.add(block);
+        this.block = block;
+    }
+
+    void setBlock(IrBlock block) {
+        this.block = block;
+    }
+
+    // Whether the current block already ends with a branch or return
+    boolean isTerminated() {
+        return block.terminator() != null;
+    }
+
+    <T extends IrInstr> T add(T instr) {
+        block.add(instr);
+        return instr;
+    }
+
+    // Stack slots always go to the entry block, after the slots already there, so they are allocated once per call
+    IrAlloca alloca(IrType type, String name) {
+        IrAlloca alloca = new IrAlloca(type);
+        alloca.nameHint = name;
+
+        IrBlock entry = function.entry();
+        int index = 0;
+        while(index < entry.instrs.size() && entry.instrs.get(index) instanceof IrAlloca)
+            index++;
+
+        entry.add(index, alloca);
+        return alloca;
+    }
+
+    IrLoad load(IrValue pointer) {
+        return add(new IrLoad(pointer));
+    }
+
+    IrStore store(IrValue value, IrValue pointer) {
+        return add(new IrStore(value, pointer));
+    }
+
+    IrBinary binary(IrBinary.Op op, IrValue lhs, IrValue rhs) {
+        return add(new IrBinary(op, lhs, rhs));
+    }
+
+    IrCompare compare(IrCompare.Pred pred, IrValue lhs, IrValue rhs) {
+        return add(new IrCompare(pred, lhs, rhs));
+    }
+
+    IrGep gep(IrValue base, IrValue... indices) {
+        return add(new IrGep(base, indices));
+    }
+
+    IrCast cast(IrCast.Op op, IrValue value, IrType toType) {
+        return add(new IrCast(op, value, toType));
+    }
+
+    IrCast bitcast(IrValue value, IrType toType) {
+        return add(new IrCast(IrCast.Op.BITCAST, value, toType));
+    }
+
+    IrCall call(IrFunction callee, IrValue... args) {
+        return add(new IrCall(callee, callee.type, Arrays.asList(args)));
+    }
+
+    IrCall callIndirect(IrValue callee, IrType functionType, List<IrValue> args) {
+        return add(new IrCall(callee, functionType, new ArrayList<IrValue>(args)));
+    }
+
+    IrPhi phi(IrType type) {
+        return add(new IrPhi(type));
+    }
+
+    void br(IrBlock target) {
+        add(new IrBranch(target));
+    }
+
+    void condBr(IrValue cond, IrBlock ifTrue, IrBlock ifFalse) {
+        add(new IrCondBranch(cond, ifTrue, ifFalse));
+    }
+
+    void ret(IrValue value) {
+        add(new IrReturn(value));
+    }
+
+    void unreachable() {
+        add(new IrUnreachable());
+    }
+}
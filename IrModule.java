@@ -0,0 +1,800 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Type of an IR value. Types are structural, so two types are equal if they print the same.
+ */
+class IrType {
+
+    enum Kind { VOID, INT, POINTER, ARRAY, FUNCTION }
+
+    public static final IrType VOID = new IrType(Kind.VOID, 0, null, 0, null, false, "void");
+    public static final IrType I1 = integer(1);
+    public static final IrType I8 = integer(8);
+    public static final IrType I32 = integer(32);
+    public static final IrType I64 = integer(64);
+    public static final IrType I8_PTR = pointer(I8);
+    public static final IrType I32_PTR = pointer(I32);
+
+    public final Kind kind;
+    public final int bits;              // INT only
+    public final IrType element;        // Pointee, array element or function return type
+    public final int length;            // ARRAY only
+    public final List<IrType> params;   // FUNCTION only
+    public final boolean varargs;       // FUNCTION only
+
+    private final String text;
+
+    private IrType(Kind kind, int bits, IrType element, int length, List<IrType> params, boolean varargs, String text) {
+        this.kind = kind;
+        this.bits = bits;
+        this.element = element;
+        this.length = length;
+        this.params = params;
+        this.varargs = varargs;
+        this.text = text;
+    }
+
+    static IrType integer(int bits) {
+        return new IrType(Kind.INT, bits, null, 0, null, false, "i" + bits);
+    }
+
+    static IrType pointer(IrType pointee) {
+        return new IrType(Kind.POINTER, 0, pointee, 0, null, false, pointee.text + "*");
+    }
+
+    static IrType array(int length, IrType element) {
+        return new IrType(Kind.ARRAY, 0, element, length, null, false, "[" + length + " x " + element.text + "]");
+    }
+
+    static IrType function(IrType returnType, List<IrType> params, boolean varargs) {
+        StringBuilder text = new StringBuilder(returnType.text).append(" (");
+        for(int i = 0; i < params.size(); i++) {
+            if(i > 0)
+                text.append(", ");
+            text.append(params.get(i).text);
+        }
+        if(varargs)
+            text.append(params.isEmpty() ? "..." : ", ...");
+        text.append(")");
+
+        return new IrType(Kind.FUNCTION, 0, returnType, 0, Collections.unmodifiableList(new ArrayList<IrType>(params)), varargs, text.toString());
+    }
+
+    // The IR type that holds values of a MiniJava type
+    static IrType of(TypeSymbol type) {
+        if(type == TypeSymbol.INT)
+            return I32;
+        else if(type == TypeSymbol.BOOLEAN)
+            return I1;
+        else if(type == TypeSymbol.ARRAY)
+            return I32_PTR;
+        else
+            return I8_PTR;
+    }
+
+    boolean isPointer() {
+        return kind == Kind.POINTER;
+    }
+
+    boolean isVoid() {
+        return kind == Kind.VOID;
+    }
+
+    // In bytes. Fields are packed so every access to memory is aligned like this (see ClassLayout.pack)
+    int alignment() {
+        if(kind == Kind.POINTER)
+            return 8;
+        if(kind == Kind.ARRAY)
+            return element.alignment();
+
+        return Math.max(1, bits / 8);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof IrType && ((IrType) other).text.equals(text);
+    }
+
+    @Override
+    public int hashCode() {
+        return text.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
+
+/**
+ * Anything an instruction can use as an operand.
+ */
+abstract class IrValue {
+
+    public IrType type;
+
+    IrValue(IrType type) {
+        this.type = type;
+    }
+}
+
+class IrConst extends IrValue {
+
+    public static final IrConst TRUE = new IrConst(IrType.I1, 1);
+    public static final IrConst FALSE = new IrConst(IrType.I1, 0);
+
+    public final long value;
+
+    IrConst(IrType type, long value) {
+        super(type);
+        this.value = value;
+    }
+
+    static IrConst i32(long value) {
+        return new IrConst(IrType.I32, (int) value);
+    }
+
+    static IrConst i1(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    static IrConst nullOf(IrType pointerType) {
+        return new IrConst(pointerType, 0);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof IrConst && ((IrConst) other).value == value && ((IrConst) other).type.equals(type);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) value * 31 + type.hashCode();
+    }
+}
+
+/**
+ * A module level variable: a vtable or a string constant. It's value is the address of it's contents.
+ */
+class IrGlobal extends IrValue {
+
+    public final String name;
+    public final IrType contentType;
+    public final boolean constant;
+
+    public final String stringData;          // Contents of a string constant, without the terminating NUL
+    public final List<IrFunction> functions; // Contents of a vtable
+    public final ClassSymbol cls;            // Class of a vtable
+    public final int[] intData;              // Contents of an i32 table
+
+    private IrGlobal(String name, IrType contentType, boolean constant, String stringData, List<IrFunction> functions, ClassSymbol cls, int[] intData) {
+        super(IrType.pointer(contentType));
+        this.name = name;
+        this.contentType = contentType;
+        this.constant = constant;
+        this.stringData = stringData;
+        this.functions = functions;
+        this.cls = cls;
+        this.intData = intData;
+    }
+
+    static IrGlobal string(String name, String data) {
+        return new IrGlobal(name, IrType.array(data.length() + 1, IrType.I8), true, data, null, null, null);
+    }
+
+    // A zero initialized variable
+    static IrGlobal variable(String name, IrType type) {
+        return new IrGlobal(name, type, false, null, null, null, null);
+    }
+
+    static IrGlobal vtable(ClassSymbol cls, List<IrFunction> functions) {
+        return new IrGlobal("." + cls.name + "_vtable", IrType.array(functions.size(), IrType.I8_PTR), false, null, functions, cls, null);
+    }
+
+    static IrGlobal ints(String name, int[] data) {
+        return new IrGlobal(name, IrType.array(data.length, IrType.I32), true, null, null, null, data);
+    }
+}
+
+class IrArgument extends IrValue {
+
+    public final String name;
+    public final int index;
+    public IrFunction function;
+
+    IrArgument(String name, IrType type, int index) {
+        super(type);
+        this.name = name;
+        this.index = index;
+    }
+}
+
+class IrFunction extends IrValue {
+
+    public final String name;
+    public final IrType returnType;
+    public final List<IrArgument> params;
+    public final List<IrBlock> blocks;
+
+    public final MethodSymbol method; // null for main and the runtime library
+    public boolean isRuntime;         // Part of the runtime support code rather than the program
+    public boolean inlineAlways;      // A runtime fast path, copied into every caller once the program is optimized
+    public boolean mayCollect;        // A runtime function that can run the garbage collector
+
+    IrFunction(String name, IrType returnType, List<IrArgument> params, boolean varargs, MethodSymbol method) {
+        super(IrType.function(returnType, typesOf(params), varargs));
+        this.name = name;
+        this.returnType = returnType;
+        this.params = params;
+        this.blocks = new ArrayList<IrBlock>();
+        this.method = method;
+
+        for(IrArgument param : params)
+            param.function = this;
+    }
+
+    private static List<IrType> typesOf(List<IrArgument> params) {
+        List<IrType> types = new ArrayList<IrType>();
+        for(IrArgument param : params)
+            types.add(param.type);
+
+        return types;
+    }
+
+    boolean isDeclaration() {
+        return blocks.isEmpty();
+    }
+
+    IrBlock entry() {
+        return blocks.get(0);
+    }
+
+    // Rewrites every operand of the function found in replacements
+    void replaceUses(Map<? extends IrValue, ? extends IrValue> replacements) {
+        if(replacements.isEmpty())
+            return;
+
+        for(IrBlock block : blocks) {
+            for(IrInstr instr : block.instrs) {
+                for(int i = 0; i < instr.operands.size(); i++) {
+                    IrValue replacement = replacements.get(instr.operands.get(i));
+                    if(replacement != null)
+                        instr.operands.set(i, replacement);
+                }
+            }
+        }
+    }
+
+    void replaceUses(IrValue from, IrValue to) {
+        replaceUses(Collections.singletonMap(from, to));
+    }
+
+    // Deletes blocks that cannot be reached from the entry, along with the phi inputs they provide
+    boolean removeUnreachableBlocks() {
+        List<IrBlock> reachable = DominatorTree.reversePostorder(this);
+        if(reachable.size() == blocks.size())
+            return false;
+
+        Set<IrBlock> live = new HashSet<IrBlock>(reachable);
+        for(IrBlock block : blocks) {
+            if(live.contains(block))
+                continue;
+
+            for(IrBlock succ : block.successors()) {
+                for(IrInstr instr : succ.instrs) {
+                    if(instr instanceof IrPhi)
+                        ((IrPhi) instr).removeIncoming(block);
+                }
+            }
+        }
+
+        blocks.retainAll(live);
+        return true;
+    }
+
+    // Deletes instructions without side effects whose results are never used
+    boolean removeDeadInstructions() {
+        Map<IrValue, Integer> useCounts = new HashMap<IrValue, Integer>();
+        for(IrBlock block : blocks) {
+            for(IrInstr instr : block.instrs) {
+                for(IrValue operand : instr.operands) {
+                    Integer count = useCounts.get(operand);
+                    useCounts.put(operand, count == null ? 1 : count + 1);
+                }
+            }
+        }
+
+        List<IrInstr> worklist = new ArrayList<IrInstr>();
+        for(IrBlock block : blocks) {
+            for(IrInstr instr : block.instrs) {
+                if(!instr.hasSideEffects() && !useCounts.containsKey(instr))
+                    worklist.add(instr);
+            }
+        }
+
+        boolean changed = false;
+        Set<IrInstr> dead = new HashSet<IrInstr>();
+
+        while(!worklist.isEmpty()) {
+            IrInstr instr = worklist.remove(worklist.size() - 1);
+            if(!dead.add(instr))
+                continue;
+
+            changed = true;
+            for(IrValue operand : instr.operands) {
+                int count = useCounts.get(operand) - 1;
+                useCounts.put(operand, count);
+
+                if(count == 0 && operand instanceof IrInstr && !((IrInstr) operand).hasSideEffects())
+                    worklist.add((IrInstr) operand);
+            }
+        }
+
+        if(changed)
+        {
+            for(IrBlock block : blocks)
+                block.instrs.removeAll(dead);
+        }
+
+        return changed;
+    }
+
+    // Maps every block to the blocks that branch to it
+    Map<IrBlock, List<IrBlock>> predecessors() {
+        Map<IrBlock, List<IrBlock>> preds = new HashMap<IrBlock, List<IrBlock>>();
+        for(IrBlock block : blocks)
+            preds.put(block, new ArrayList<IrBlock>());
+
+        for(IrBlock block : blocks) {
+            for(IrBlock succ : block.successors()) {
+                List<IrBlock> list = preds.get(succ);
+                if(!list.contains(block))
+                    list.add(block);
+            }
+        }
+
+        return preds;
+    }
+}
+
+class IrBlock {
+
+    public final String hint; // Prefix of the printed label
+    public IrFunction function;
+    public final List<IrInstr> instrs;
+
+    IrBlock(String hint, IrFunction function) {
+        this.hint = hint;
+        this.function = function;
+        this.instrs = new ArrayList<IrInstr>();
+    }
+
+    IrTerminator terminator() {
+        if(instrs.isEmpty())
+            return null;
+
+        IrInstr last = instrs.get(instrs.size() - 1);
+        return last instanceof IrTerminator ? (IrTerminator) last : null;
+    }
+
+    List<IrBlock> successors() {
+        IrTerminator term = terminator();
+        return term == null ? Collections.<IrBlock>emptyList() : term.successors();
+    }
+
+    void add(IrInstr instr) {
+        instr.block = this;
+        instrs.add(instr);
+    }
+
+    void add(int index, IrInstr instr) {
+        instr.block = this;
+        instrs.add(index, instr);
+    }
+}
+
+/**
+ * An instruction. Instructions that produce a value are their own virtual register.
+ */
+abstract class IrInstr extends IrValue {
+
+    public IrBlock block;
+    public final List<IrValue> operands;
+    public String nameHint; // Printed name of the register, numbered if null
+
+    IrInstr(IrType type, IrValue... operands) {
+        super(type);
+        this.operands = new ArrayList<IrValue>(operands.length);
+        for(IrValue operand : operands)
+            this.operands.add(operand);
+    }
+
+    IrValue operand(int i) {
+        return operands.get(i);
+    }
+
+    // Whether removing the instruction could change what the program does, when it's result is unused
+    boolean hasSideEffects() {
+        return false;
+    }
+}
+
+class IrBinary extends IrInstr {
+
+    enum Op { ADD, SUB, MUL, AND, OR, XOR, SHL, ASHR }
+
+    public final Op op;
+
+    IrBinary(Op op, IrValue lhs, IrValue rhs) {
+        super(lhs.type, lhs, rhs);
+        this.op = op;
+    }
+}
+
+class IrCompare extends IrInstr {
+
+    enum Pred { EQ, NE, SLT, SLE, SGT, SGE, ULT, ULE, UGT, UGE }
+
+    public Pred pred;
+
+    IrCompare(Pred pred, IrValue lhs, IrValue rhs) {
+        super(IrType.I1, lhs, rhs);
+        this.pred = pred;
+    }
+}
+
+class IrAlloca extends IrInstr {
+
+    public final IrType allocatedType;
+
+    IrAlloca(IrType allocatedType) {
+        super(IrType.pointer(allocatedType));
+        this.allocatedType = allocatedType;
+    }
+}
+
+class IrLoad extends IrInstr {
+
+    IrLoad(IrValue pointer) {
+        super(pointer.type.element, pointer);
+    }
+
+    IrValue pointer() {
+        return operand(0);
+    }
+}
+
+class IrStore extends IrInstr {
+
+    IrStore(IrValue value, IrValue pointer) {
+        super(IrType.VOID, value, pointer);
+    }
+
+    IrValue value() {
+        return operand(0);
+    }
+
+    IrValue pointer() {
+        return operand(1);
+    }
+
+    @Override
+    boolean hasSideEffects() {
+        return true;
+    }
+}
+
+/**
+ * getelementptr. The first index steps over whole elements of the base pointer, later indices
+ * select array elements.
+ */
+class IrGep extends IrInstr {
+
+    public final IrType sourceType; // Pointee type of the base
+
+    IrGep(IrValue base, IrValue... indices) {
+        super(resultType(base.type.element, indices.length), prepend(base, indices));
+        this.sourceType = base.type.element;
+    }
+
+    private static IrType resultType(IrType sourceType, int indexCount) {
+        IrType type = sourceType;
+        for(int i = 1; i < indexCount; i++)
+            type = type.element;
+
+        return IrType.pointer(type);
+    }
+
+    private static IrValue[] prepend(IrValue base, IrValue[] indices) {
+        IrValue[] operands = new IrValue[indices.length + 1];
+        operands[0] = base;
+        System.arraycopy(indices, 0, operands, 1, indices.length);
+        return operands;
+    }
+
+    IrValue base() {
+        return operand(0);
+    }
+}
+
+class IrCast extends IrInstr {
+
+    enum Op { BITCAST, ZEXT, TRUNC, PTRTOINT, INTTOPTR }
+
+    public final Op op;
+
+    IrCast(Op op, IrValue value, IrType toType) {
+        super(toType, value);
+        this.op = op;
+    }
+}
+
+/**
+ * A call. Direct calls have an IrFunction as their callee, virtual calls a function pointer
+ * loaded from the vtable, annotated with the method it was resolved to at compile time.
+ */
+class IrCall extends IrInstr {
+
+    public final IrType functionType;
+    public MethodSymbol method;        // Virtual calls only: the statically resolved method
+    public ClassSymbol receiverClass;  // Virtual calls only: the static type of the receiver
+    public ClassSymbol allocatedClass; // Object allocations only: the class instantiated
+
+    IrCall(IrValue callee, IrType functionType, List<IrValue> args) {
+        super(functionType.element, prepend(callee, args));
+        this.functionType = functionType;
+    }
+
+    private static IrValue[] prepend(IrValue callee, List<IrValue> args) {
+        IrValue[] operands = new IrValue[args.size() + 1];
+        operands[0] = callee;
+        for(int i = 0; i < args.size(); i++)
+            operands[i + 1] = args.get(i);
+        return operands;
+    }
+
+    IrValue callee() {
+        return operand(0);
+    }
+
+    // null for indirect calls
+    IrFunction directCallee() {
+        return callee() instanceof IrFunction ? (IrFunction) callee() : null;
+    }
+
+    int argCount() {
+        return operands.size() - 1;
+    }
+
+    IrValue arg(int i) {
+        return operand(i + 1);
+    }
+
+    @Override
+    boolean hasSideEffects() {
+        return true;
+    }
+}
+
+class IrPhi extends IrInstr {
+
+    public final List<IrBlock> incomingBlocks;
+
+    IrPhi(IrType type) {
+        super(type);
+        this.incomingBlocks = new ArrayList<IrBlock>();
+    }
+
+    void addIncoming(IrValue value, IrBlock block) {
+        operands.add(value);
+        incomingBlocks.add(block);
+    }
+
+    IrValue incomingFor(IrBlock block) {
+        int index = incomingBlocks.indexOf(block);
+        return index < 0 ? null : operands.get(index);
+    }
+
+    void removeIncoming(IrBlock block) {
+        int index;
+        while((index = incomingBlocks.indexOf(block)) >= 0) {
+            incomingBlocks.remove(index);
+            operands.remove(index);
+        }
+    }
+}
+
+abstract class IrTerminator extends IrInstr {
+
+    IrTerminator(IrValue... operands) {
+        super(IrType.VOID, operands);
+    }
+
+    abstract List<IrBlock> successors();
+
+    abstract void replaceSuccessor(IrBlock from, IrBlock to);
+
+    @Override
+    boolean hasSideEffects() {
+        return true;
+    }
+}
+
+class IrBranch extends IrTerminator {
+
+    public IrBlock target;
+
+    IrBranch(IrBlock target) {
+        this.target = target;
+    }
+
+    @Override
+    List<IrBlock> successors() {
+        return Collections.singletonList(target);
+    }
+
+    @Override
+    void replaceSuccessor(IrBlock from, IrBlock to) {
+        if(target == from)
+            target = to;
+    }
+}
+
+class IrCondBranch extends IrTerminator {
+
+    public IrBlock ifTrue;
+    public IrBlock ifFalse;
+
+    IrCondBranch(IrValue cond, IrBlock ifTrue, IrBlock ifFalse) {
+        super(cond);
+        this.ifTrue = ifTrue;
+        this.ifFalse = ifFalse;
+    }
+
+    IrValue cond() {
+        return operand(0);
+    }
+
+    @Override
+    List<IrBlock> successors() {
+        List<IrBlock> succs = new ArrayList<IrBlock>(2);
+        succs.add(ifTrue);
+        succs.add(ifFalse);
+        return succs;
+    }
+
+    @Override
+    void replaceSuccessor(IrBlock from, IrBlock to) {
+        if(ifTrue == from)
+            ifTrue = to;
+        if(ifFalse == from)
+            ifFalse = to;
+    }
+}
+
+class IrReturn extends IrTerminator {
+
+    IrReturn(IrValue value) {
+        super(value == null ? new IrValue[0] : new IrValue[] { value });
+    }
+
+    // null for ret void
+    IrValue value() {
+        return operands.isEmpty() ? null : operand(0);
+    }
+
+    @Override
+    List<IrBlock> successors() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    void replaceSuccessor(IrBlock from, IrBlock to) {
+    }
+}
+
+class IrUnreachable extends IrTerminator {
+
+    @Override
+    List<IrBlock> successors() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    void replaceSuccessor(IrBlock from, IrBlock to) {
+    }
+}
+
+/**
+ * A whole program: the vtables and string constants, the runtime library and one function per method.
+ */
+class IrModule {
+
+    public final List<IrGlobal> globals;
+    public final List<IrFunction> functions;
+
+    private final Map<String, IrFunction> functionsByName;
+    private final Map<MethodSymbol, IrFunction> methodFunctions;
+    private final Map<ClassSymbol, IrGlobal> vtables;
+
+    IrModule() {
+        this.globals = new ArrayList<IrGlobal>();
+        this.functions = new ArrayList<IrFunction>();
+        this.functionsByName = new HashMap<String, IrFunction>();
+        this.methodFunctions = new HashMap<MethodSymbol, IrFunction>();
+        this.vtables = new LinkedHashMap<ClassSymbol, IrGlobal>();
+    }
+
+    // Instructions of every function, the runtime's included
+    int instructionCount() {
+        int count = 0;
+        for(IrFunction function : functions) {
+            for(IrBlock block : function.blocks)
+                count += block.instrs.size();
+        }
+
+        return count;
+    }
+
+    IrFunction addFunction(IrFunction function) {
+        functions.add(function);
+        functionsByName.put(function.name, function);
+        if(function.method != null)
+            methodFunctions.put(function.method, function);
+
+        return function;
+    }
+
+    IrGlobal addGlobal(IrGlobal global) {
+        globals.add(global);
+        if(global.cls != null)
+            vtables.put(global.cls, global);
+
+        return global;
+    }
+
+    IrFunction function(String name) {
+        return functionsByName.get(name);
+    }
+
+    IrFunction functionOf(MethodSymbol method) {
+        return methodFunctions.get(method);
+    }
+
+    IrGlobal vtableOf(ClassSymbol cls) {
+        return vtables.get(cls);
+    }
+
+    // Every function a call may run, or null if that is not known. The program is closed, so a virtual call
+    // runs the method of the receiver's static class or an override in one of it's subclasses.
+    Set<IrFunction> possibleTargets(IrCall call) {
+        Set<IrFunction> targets = new LinkedHashSet<IrFunction>();
+
+        if(call.directCallee() != null)
+        {
+            targets.add(call.directCallee());
+            return targets;
+        }
+
+        if(call.method == null || call.receiverClass == null)
+            return null;
+
+        List<ClassSymbol> classes = new ArrayList<ClassSymbol>();
+        classes.add(call.receiverClass);
+        for(int i = 0; i < classes.size(); i++) {
+            ClassSymbol cls = classes.get(i);
+            targets.add(functionOf(cls.layout.vtable.get(call.method.vtableIndex)));
+            classes.addAll(cls.subclasses);
+        }
+
+        return targets;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * A transformation of the IR of a whole program.
+ */
+interface IrPass {
+
+    String name();
+
+    void run(IrModule module);
+
+    // What the last run did, printed with --stats; null if there is nothing worth reporting
+    String report();
+}
+
+/**
+ * A pass that transforms every function of the program independently.
+ */
+abstract class FunctionPass implements IrPass {
+
+    @Override
+    public void run(IrModule module) {
+        for(IrFunction function : module.functions) {
+            if(!function.isDeclaration())
+                runOnFunction(function);
+        }
+    }
+
+    abstract void runOnFunction(IrFunction function);
+
+    @Override
+    public String report() {
+        return null;
+    }
+}
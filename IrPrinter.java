@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes an IrModule as LLVM assembly in a single pass over the module.
+ */
+class IrPrinter {
+
+    private final OutputSink out;
+
+    private final Map<Object, String> names; // Registers and labels of the function being printed
+    private final Set<String> usedNames;
+    private int regCount;
+
+    IrPrinter(OutputSink out) {
+        this.out = out;
+        this.names = new HashMap<Object, String>();
+        this.usedNames = new HashSet<String>();
+    }
+
+    void print(IrModule module) throws IOException {
+        for(IrGlobal global : module.globals)
+            printGlobal(global);
+
+        out.write('\n');
+
+        for(int i = 0; i < module.functions.size(); i++) {
+            IrFunction function = module.functions.get(i);
+            printFunction(function);
+
+            if(function.isDeclaration() && i + 1 < module.functions.size() && !module.functions.get(i + 1).isDeclaration())
+                out.write('\n');
+        }
+    }
+
+    private void printGlobal(IrGlobal global) throws IOException {
+        out.write("@");
+        out.write(global.name);
+        out.write(global.constant ? " = constant " : " = global ");
+        out.write(global.contentType.toString());
+
+        if(global.stringData != null)
+        {
+            out.write(" c\"");
+            for(int i = 0; i < global.stringData.length(); i++) {
+                char c = global.stringData.charAt(i);
+                if(c < 0x20 || c == '"' || c == '\\')
+                {
+                    out.write('\\');
+                    out.write(String.format("%02x", (int) c));
+                }
+                else
+                    out.write(c);
+            }
+            out.write("\\00\"\n");
+            return;
+        }
+
+        if(global.intData != null)
+        {
+            out.write(" [");
+            for(int i = 0; i < global.intData.length; i++) {
+                if(i > 0)
+                    out.write(", ");
+                out.write("i32 " + global.intData[i]);
+            }
+            out.write("]\n");
+            return;
+        }
+
+        if(global.functions == null)
+        {
+            out.write(" zeroinitializer\n");
+            return;
+        }
+
+        out.write(" [");
+        for(int i = 0; i < global.functions.size(); i++) {
+            IrFunction function = global.functions.get(i);
+            if(i > 0)
+                out.write(",\n\t");
+
+            out.write("i8* bitcast (");
+            out.write(function.type.toString());
+            out.write("* @");
+            out.write(function.name);
+            out.write(" to i8*)");
+        }
+        out.write("]\n");
+    }
+
+    private void printFunction(IrFunction function) throws IOException {
+        if(function.isDeclaration())
+        {
+            out.write("declare ");
+            out.write(function.returnType.toString());
+            out.write(" @");
+            out.write(function.name);
+            out.write("(");
+            for(int i = 0; i < function.params.size(); i++) {
+                if(i > 0)
+                    out.write(", ");
+                out.write(function.params.get(i).type.toString());
+            }
+            if(function.type.varargs)
+                out.write(function.params.isEmpty() ? "..." : ", ...");
+            out.write(")\n");
+            return;
+        }
+
+        names.clear();
+        usedNames.clear();
+        regCount = 0;
+
+        // Labels are named up front, since branches refer to blocks printed later
+        for(int i = 0; i < function.blocks.size(); i++) {
+            IrBlock block = function.blocks.get(i);
+            String label = i == 0 ? "entry" : block.hint + i;
+            names.put(block, label);
+            usedNames.add("%" + label); // Labels and registers share one namespace
+        }
+
+        out.write("define ");
+        out.write(function.returnType.toString());
+        out.write(" @");
+        out.write(function.name);
+        out.write("(");
+        for(int i = 0; i < function.params.size(); i++) {
+            IrArgument param = function.params.get(i);
+            if(i > 0)
+                out.write(", ");
+            out.write(param.type.toString());
+            out.write(" ");
+            out.write(nameOf(param, param.name));
+        }
+        out.write(") {\n");
+
+        for(IrBlock block : function.blocks) {
+            out.write(names.get(block));
+            out.write(":\n");
+
+            for(IrInstr instr : block.instrs) {
+                out.write('\t');
+                printInstr(instr);
+                out.write('\n');
+            }
+        }
+
+        out.write("}\n\n");
+    }
+
+    // Gives value a unique register name, based on hint when there is one
+    private String nameOf(IrValue value, String hint) {
+        String name = names.get(value);
+        if(name != null)
+            return name;
+
+        if(hint == null)
+            name = "%_" + (regCount++);
+        else
+        {
+            name = "%" + hint;
+            for(int i = 1; usedNames.contains(name); i++)
+                name = "%" + hint + "." + i;
+        }
+
+        usedNames.add(name);
+        names.put(value, name);
+        return name;
+    }
+
+    private String ref(IrValue value) {
+        if(value instanceof IrConst)
+        {
+            IrConst constant = (IrConst) value;
+            if(constant.type.isPointer())
+                return "null";
+            return Long.toString(constant.value);
+        }
+        else if(value instanceof IrGlobal)
+            return "@" + ((IrGlobal) value).name;
+        else if(value instanceof IrFunction)
+            return "@" + ((IrFunction) value).name;
+        else if(value instanceof IrArgument)
+            return nameOf(value, ((IrArgument) value).name);
+        else
+            return nameOf(value, ((IrInstr) value).nameHint);
+    }
+
+    private void typedRef(IrValue value) throws IOException {
+        out.write(value.type.toString());
+        if(value instanceof IrFunction) // A function is passed around as a pointer to it
+            out.write('*');
+        out.write(' ');
+        out.write(ref(value));
+    }
+
+    private void label(IrBlock block) throws IOException {
+        out.write("label %");
+        out.write(names.get(block));
+    }
+
+    private void printInstr(IrInstr instr) throws IOException {
+        if(!instr.type.isVoid())
+        {
+            out.write(ref(instr));
+            out.write(" = ");
+        }
+
+        if(instr instanceof IrBinary)
+        {
+            IrBinary binary = (IrBinary) instr;
+            out.write(binary.op.name().toLowerCase());
+            out.write(' ');
+            typedRef(binary.operand(0));
+            out.write(", ");
+            out.write(ref(binary.operand(1)));
+        }
+        else if(instr instanceof IrCompare)
+        {
+            IrCompare compare = (IrCompare) instr;
+            out.write("icmp ");
+            out.write(compare.pred.name().toLowerCase());
+            out.write(' ');
+            typedRef(compare.operand(0));
+            out.write(", ");
+            out.write(ref(compare.operand(1)));
+        }
+        else if(instr instanceof IrAlloca)
+        {
+            out.write("alloca ");
+            out.write(((IrAlloca) instr).allocatedType.toString());
+        }
+        else if(instr instanceof IrLoad)
+        {
+            out.write("load ");
+            out.write(instr.type.toString());
+            out.write(", ");
+            typedRef(((IrLoad) instr).pointer());
+            out.write(", align " + instr.type.alignment());
+        }
+        else if(instr instanceof IrStore)
+        {
+            IrStore store = (IrStore) instr;
+            out.write("store ");
+            typedRef(store.value());
+            out.write(", ");
+            typedRef(store.pointer());
+            out.write(", align " + store.value().type.alignment());
+        }
+        else if(instr instanceof IrGep)
+        {
+            IrGep gep = (IrGep) instr;
+            out.write("getelementptr ");
+            out.write(gep.sourceType.toString());
+            for(IrValue operand : gep.operands) {
+                out.write(", ");
+                typedRef(operand);
+            }
+        }
+        else if(instr instanceof IrCast)
+        {
+            IrCast cast = (IrCast) instr;
+            out.write(cast.op.name().toLowerCase());
+            out.write(' ');
+            typedRef(cast.operand(0));
+            out.write(" to ");
+            out.write(cast.type.toString());
+        }
+        else if(instr instanceof IrCall)
+        {
+            IrCall call = (IrCall) instr;
+            out.write("call ");
+            // Variadic callees need their full type, everything else only the return type
+            out.write(call.functionType.varargs ? call.functionType.toString() : call.type.toString());
+            out.write(' ');
+            out.write(ref(call.callee()));
+            out.write('(');
+            for(int i = 0; i < call.argCount(); i++) {
+                if(i > 0)
+                    out.write(", ");
+                typedRef(call.arg(i));
+            }
+            out.write(')');
+        }
+        else if(instr instanceof IrPhi)
+        {
+            IrPhi phi = (IrPhi) instr;
+            out.write("phi ");
+            out.write(phi.type.toString());
+            for(int i = 0; i < phi.operands.size(); i++) {
+                out.write(i == 0 ? " [" : ", [");
+                out.write(ref(phi.operand(i)));
+                out.write(", %");
+                out.write(names.get(phi.incomingBlocks.get(i)));
+                out.write(']');
+            }
+        }
+        else if(instr instanceof IrBranch)
+        {
+            out.write("br ");
+            label(((IrBranch) instr).target);
+        }
+        else if(instr instanceof IrCondBranch)
+        {
+            IrCondBranch branch = (IrCondBranch) instr;
+            out.write("br ");
+            typedRef(branch.cond());
+            out.write(", ");
+            label(branch.ifTrue);
+            out.write(", ");
+            label(branch.ifFalse);
+        }
+        else if(instr instanceof IrReturn)
+        {
+            IrValue value = ((IrReturn) instr).value();
+            out.write("ret ");
+            if(value == null)
+                out.write("void");
+            else
+                typedRef(value);
+        }
+        else if(instr instanceof IrUnreachable)
+        {
+            out.write("unreachable");
+        }
+        else
+            throw new IOException("Cannot print instruction " + instr.getClass().getName() + ".");
+    }
+}
@@ -0,0 +1,651 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import syntaxtree.*;
+import visitor.GJDepthFirst;
+
+/**
+ * Translates a checked program to JVM classes, for --jvm-run. Every MiniJava class becomes a class
+ * of the package minijava that extends it's superclass (or Object), fields become JVM fields and
+ * methods public instance methods, so a MessageSend is an invokevirtual and the JVM does the
+ * vtable dispatch. int[] is a JVM int[], booleans are Z fields and 0 or 1 on the stack. The main
+ * class gets a static main and the PrintStream every println writes to.
+ *
+ * Every visit of an expression leaves it's value on the operand stack and returns it's static type.
+ */
+public class JvmCodeVisitor extends GJDepthFirst<TypeSymbol, Scope> {
+
+    static final String PACKAGE = "minijava/";
+    static final String OUT_FIELD = "out"; // Of the main class, set by JvmLoader before main runs
+
+    SymbolTable symbols;
+
+    public final Map<String, byte[]> classes; // Binary name -> class file, in declaration order
+    public String mainClass;                  // Binary name of the class holding main
+
+    private ClassFile classFile;
+    private ClassFile.Code code;
+
+    public JvmCodeVisitor(SymbolTable symbols) {
+        super();
+
+        this.symbols = symbols;
+        this.classes = new LinkedHashMap<String, byte[]>();
+    }
+
+    // Utility Functions
+
+    private static String name(Identifier n) {
+        return n.f0.toString();
+    }
+
+    static String internalName(ClassSymbol cls) {
+        return PACKAGE + cls.name;
+    }
+
+    private static String descriptor(TypeSymbol type) {
+        if(type == TypeSymbol.INT)
+            return "I";
+        else if(type == TypeSymbol.BOOLEAN)
+            return "Z";
+        else if(type == TypeSymbol.ARRAY)
+            return "[I";
+
+        return "L" + internalName((ClassSymbol) type) + ";";
+    }
+
+    private static String descriptor(MethodSymbol method) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for(VarSymbol param : method.params)
+            descriptor.append(descriptor(param.type));
+
+        return descriptor.append(")").append(descriptor(method.returnType)).toString();
+    }
+
+    private static boolean isReference(TypeSymbol type) {
+        return type != TypeSymbol.INT && type != TypeSymbol.BOOLEAN;
+    }
+
+    private void startClass(ClassSymbol cls) {
+        String superName = cls.superclass == null ? "java/lang/Object" : internalName(cls.superclass);
+        classFile = new ClassFile(internalName(cls), superName);
+
+        // new only ever needs the no argument constructor, fields start out zeroed already
+        ClassFile.Code init = classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V");
+        init.local(ClassFile.ALOAD, 0);
+        init.invoke(ClassFile.INVOKESPECIAL, superName, "<init>", "()V");
+        init.op(ClassFile.RETURN, 0);
+    }
+
+    private void finishClass() throws Exception {
+        classes.put(classFile.name.replace('/', '.'), classFile.toByteArray());
+        classFile = null;
+    }
+
+    // Locals follow this (or the String[] of main) and are numbered parameters first
+    private static int slotOf(VarSymbol var) {
+        return var.index + 1;
+    }
+
+    private TypeSymbol load(VarSymbol var) {
+        if(var.isField())
+        {
+            code.local(ClassFile.ALOAD, 0);
+            code.field(ClassFile.GETFIELD, internalName(var.scope.owner()), var.name, descriptor(var.type));
+        }
+        else
+            code.local(isReference(var.type) ? ClassFile.ALOAD : ClassFile.ILOAD, slotOf(var));
+
+        return var.type;
+    }
+
+    // Jumps to target if cond evaluates to jumpIf and falls through otherwise. && becomes a chain of jumps and !
+    // flips jumpIf, so a condition is only pushed as a 0 or 1 where it has to, like a boolean variable.
+    private void branch(Node cond, ClassFile.Label target, boolean jumpIf, Scope argu) throws Exception {
+        while(cond instanceof Expression || cond instanceof Clause || cond instanceof PrimaryExpression || cond instanceof BracketExpression) {
+            if(cond instanceof Expression)
+                cond = ((Expression) cond).f0.choice;
+            else if(cond instanceof Clause)
+                cond = ((Clause) cond).f0.choice;
+            else if(cond instanceof PrimaryExpression)
+                cond = ((PrimaryExpression) cond).f0.choice;
+            else
+                cond = ((BracketExpression) cond).f1;
+        }
+
+        if(cond instanceof AndExpression)
+        {
+            AndExpression and = (AndExpression) cond;
+            if(jumpIf)
+            {
+                ClassFile.Label skip = new ClassFile.Label();
+                branch(and.f0, skip, false, argu); // Short circuit: the second clause is only evaluated if the first holds
+                branch(and.f2, target, true, argu);
+                code.place(skip);
+            }
+            else
+            {
+                branch(and.f0, target, false, argu);
+                branch(and.f2, target, false, argu);
+            }
+        }
+        else if(cond instanceof NotExpression)
+            branch(((NotExpression) cond).f1, target, !jumpIf, argu);
+        else if(cond instanceof CompareExpression)
+        {
+            CompareExpression compare = (CompareExpression) cond;
+            compare.f0.accept(this, argu);
+            compare.f2.accept(this, argu);
+            code.jump(jumpIf ? ClassFile.IF_ICMPLT : ClassFile.IF_ICMPGE, target);
+        }
+        else if(cond instanceof TrueLiteral || cond instanceof FalseLiteral)
+        {
+            if((cond instanceof TrueLiteral) == jumpIf)
+                code.jump(ClassFile.GOTO, target);
+        }
+        else
+        {
+            if(cond instanceof Identifier) // Reached through the PrimaryExpression, which is where variables are loaded
+                load(argu.lookupVar(name((Identifier) cond)));
+            else
+                cond.accept(this, argu);
+            code.jump(jumpIf ? ClassFile.IFNE : ClassFile.IFEQ, target);
+        }
+    }
+
+    // Pushes the value of a condition as 0 or 1
+    private TypeSymbol condition(Node cond, Scope argu) throws Exception {
+        ClassFile.Label isFalse = new ClassFile.Label();
+        ClassFile.Label end = new ClassFile.Label();
+
+        branch(cond, isFalse, false, argu);
+        code.pushInt(1);
+        code.jump(ClassFile.GOTO, end);
+        code.place(isFalse);
+        code.pushInt(0);
+        code.place(end);
+
+        return TypeSymbol.BOOLEAN;
+    }
+
+    // Visit functions
+
+    /**
+     * f0 -> MainClass()
+     * f1 -> ( TypeDeclaration() )*
+     * f2 -> <EOF>
+     */
+    @Override
+    public TypeSymbol visit(Goal n, Scope argu) throws Exception {
+        n.f0.accept(this, argu);
+        if( n.f1.present() )
+            n.f1.accept(this, argu);
+
+        return null;
+    }
+
+    /**
+     * f0 -> "class"
+     * f1 -> Identifier()
+     * f2 -> "{"
+     * f3 -> "public"
+     * f4 -> "static"
+     * f5 -> "void"
+     * f6 -> "main"
+     * f7 -> "("
+     * f8 -> "String"
+     * f9 -> "["
+     * f10 -> "]"
+     * f11 -> Identifier()
+     * f12 -> ")"
+     * f13 -> "{"
+     * f14 -> ( VarDeclaration() )*
+     * f15 -> ( Statement() )*
+     * f16 -> "}"
+     * f17 -> "}"
+     */
+    @Override
+    public TypeSymbol visit(MainClass n, Scope argu) throws Exception {
+        ClassSymbol cls = symbols.lookupClass(name(n.f1));
+        mainClass = internalName(cls).replace('/', '.');
+
+        startClass(cls);
+        classFile.addField(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, OUT_FIELD, "Ljava/io/PrintStream;");
+
+        code = classFile.addMethod(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "main", "([Ljava/lang/String;)V");
+
+        if(n.f14.present())
+            n.f14.accept(this, cls.mainMethod);
+
+        if(n.f15.present())
+            n.f15.accept(this, cls.mainMethod);
+
+        code.op(ClassFile.RETURN, 0);
+        finishClass();
+
+        return null;
+    }
+
+    /**
+     * f0 -> "class"
+     * f1 -> Identifier()
+     * f2 -> "{"
+     * f3 -> ( VarDeclaration() )*
+     * f4 -> ( MethodDeclaration() )*
+     * f5 -> "}"
+     */
+    @Override
+    public TypeSymbol visit(ClassDeclaration n, Scope argu) throws Exception {
+        ClassSymbol cls = symbols.lookupClass(name(n.f1));
+        startClass(cls);
+
+        if( n.f3.present() )
+            n.f3.accept(this, cls.scope);
+
+        if( n.f4.present() )
+            n.f4.accept(this, cls.scope);
+
+        finishClass();
+        return null;
+    }
+
+    /**
+     * f0 -> "class"
+     * f1 -> Identifier()
+     * f2 -> "extends"
+     * f3 -> Identifier()
+     * f4 -> "{"
+     * f5 -> ( VarDeclaration() )*
+     * f6 -> ( MethodDeclaration() )*
+     * f7 -> "}"
+     */
+    @Override
+    public TypeSymbol visit(ClassExtendsDeclaration n, Scope argu) throws Exception {
+        ClassSymbol cls = symbols.lookupClass(name(n.f1));
+        startClass(cls);
+
+        if( n.f5.present() )
+            n.f5.accept(this, cls.scope);
+
+        if( n.f6.present() )
+            n.f6.accept(this, cls.scope);
+
+        finishClass();
+        return null;
+    }
+
+    /**
+     * f0 -> Type()
+     * f1 -> Identifier()
+     * f2 -> ";"
+     */
+    @Override
+    public TypeSymbol visit(VarDeclaration n, Scope argu) throws Exception {
+        VarSymbol var = argu.vars.get(name(n.f1));
+
+        if( argu instanceof MethodSymbol ) // The verifier wants every local set before it is read, so locals start out zeroed, like fields
+        {
+            code.op(isReference(var.type) ? ClassFile.ACONST_NULL : ClassFile.ICONST_0, 1);
+            code.local(isReference(var.type) ? ClassFile.ASTORE : ClassFile.ISTORE, slotOf(var));
+        }
+        else
+            classFile.addField(0, var.name, descriptor(var.type));
+
+        return null;
+    }
+
+    /**
+     * f0 -> "public"
+     * f1 -> Type()
+     * f2 -> Identifier()
+     * f3 -> "("
+     * f4 -> ( FormalParameterList() )?
+     * f5 -> ")"
+     * f6 -> "{"
+     * f7 -> ( VarDeclaration() )*
+     * f8 -> ( Statement() )*
+     * f9 -> "return"
+     * f10 -> Expression()
+     * f11 -> ";"
+     * f12 -> "}"
+     */
+    @Override
+    public TypeSymbol visit(MethodDeclaration n, Scope argu) throws Exception {
+        MethodSymbol currScope = argu.owner().methods.get(name(n.f2));
+        code = classFile.addMethod(ClassFile.ACC_PUBLIC, currScope.methodName, descriptor(currScope));
+
+        if( n.f7.present() )
+            n.f7.accept(this, currScope);
+
+        if( n.f8.present() )
+            n.f8.accept(this, currScope);
+
+        n.f10.accept(this, currScope);
+        code.op(isReference(currScope.returnType) ? ClassFile.ARETURN : ClassFile.IRETURN, -1);
+
+        return null;
+    }
+
+    /**
+     * f0 -> Identifier()
+     * f1 -> "="
+     * f2 -> Expression()
+     * f3 -> ";"
+     */
+    @Override
+    public TypeSymbol visit(AssignmentStatement n, Scope argu) throws Exception {
+        VarSymbol var = argu.lookupVar(name(n.f0));
+
+        if(var.isField())
+        {
+            code.local(ClassFile.ALOAD, 0);
+            n.f2.accept(this, argu);
+            code.field(ClassFile.PUTFIELD, internalName(var.scope.owner()), var.name, descriptor(var.type));
+        }
+        else
+        {
+            n.f2.accept(this, argu);
+            code.local(isReference(var.type) ? ClassFile.ASTORE : ClassFile.ISTORE, slotOf(var));
+        }
+
+        return null;
+    }
+
+    /**
+     * f0 -> Identifier()
+     * f1 -> "["
+     * f2 -> Expression()
+     * f3 -> "]"
+     * f4 -> "="
+     * f5 -> Expression()
+     * f6 -> ";"
+     */
+    @Override
+    public TypeSymbol visit(ArrayAssignmentStatement n, Scope argu) throws Exception {
+        load(argu.lookupVar(name(n.f0)));
+        n.f2.accept(this, argu);
+        n.f5.accept(this, argu);
+        code.op(ClassFile.IASTORE, -3); // Out of bounds indices throw, see JvmLoader
+
+        return null;
+    }
+
+    /**
+     * f0 -> "if"
+     * f1 -> "("
+     * f2 -> Expression()
+     * f3 -> ")"
+     * f4 -> Statement()
+     * f5 -> "else"
+     * f6 -> Statement()
+     */
+    @Override
+    public TypeSymbol visit(IfStatement n, Scope argu) throws Exception {
+        ClassFile.Label elseEntry = new ClassFile.Label();
+        ClassFile.Label totalExit = new ClassFile.Label();
+
+        branch(n.f2, elseEntry, false, argu);
+        n.f4.accept(this, argu);
+        code.jump(ClassFile.GOTO, totalExit);
+
+        code.place(elseEntry);
+        n.f6.accept(this, argu);
+
+        code.place(totalExit);
+
+        return null;
+    }
+
+    /**
+     * f0 -> "while"
+     * f1 -> "("
+     * f2 -> Expression()
+     * f3 -> ")"
+     * f4 -> Statement()
+     */
+    @Override
+    public TypeSymbol visit(WhileStatement n, Scope argu) throws Exception {
+        ClassFile.Label loopEntry = new ClassFile.Label();
+        ClassFile.Label loopCond = new ClassFile.Label();
+
+        // The condition goes after the body, so each iteration takes a single jump
+        code.jump(ClassFile.GOTO, loopCond);
+        code.place(loopEntry);
+        n.f4.accept(this, argu);
+
+        code.place(loopCond);
+        branch(n.f2, loopEntry, true, argu);
+
+        return null;
+    }
+
+    /**
+     * f0 -> "System.out.println"
+     * f1 -> "("
+     * f2 -> Expression()
+     * f3 -> ")"
+     * f4 -> ";"
+     */
+    @Override
+    public TypeSymbol visit(PrintStatement n, Scope argu) throws Exception {
+        code.field(ClassFile.GETSTATIC, mainClass.replace('.', '/'), OUT_FIELD, "Ljava/io/PrintStream;");
+        n.f2.accept(this, argu);
+        code.invoke(ClassFile.INVOKEVIRTUAL, "java/io/PrintStream", "println", "(I)V");
+
+        return null;
+    }
+
+    /**
+     * f0 -> Clause()
+     * f1 -> "&&"
+     * f2 -> Clause()
+     */
+    @Override
+    public TypeSymbol visit(AndExpression n, Scope argu) throws Exception {
+        return condition(n, argu);
+    }
+
+    /**
+     * f0 -> PrimaryExpression()
+     * f1 -> "<"
+     * f2 -> PrimaryExpression()
+     */
+    @Override
+    public TypeSymbol visit(CompareExpression n, Scope argu) throws Exception {
+        return condition(n, argu);
+    }
+
+    /**
+     * f0 -> PrimaryExpression()
+     * f1 -> "+"
+     * f2 -> PrimaryExpression()
+     */
+    @Override
+    public TypeSymbol visit(PlusExpression n, Scope argu) throws Exception {
+        n.f0.accept(this, argu);
+        n.f2.accept(this, argu);
+        code.op(ClassFile.IADD, -1);
+
+        return TypeSymbol.INT;
+    }
+
+    /**
+     * f0 -> PrimaryExpression()
+     * f1 -> "-"
+     * f2 -> PrimaryExpression()
+     */
+    @Override
+    public TypeSymbol visit(MinusExpression n, Scope argu) throws Exception {
+        n.f0.accept(this, argu);
+        n.f2.accept(this, argu);
+        code.op(ClassFile.ISUB, -1);
+
+        return TypeSymbol.INT;
+    }
+
+    /**
+     * f0 -> PrimaryExpression()
+     * f1 -> "*"
+     * f2 -> PrimaryExpression()
+     */
+    @Override
+    public TypeSymbol visit(TimesExpression n, Scope argu) throws Exception {
+        n.f0.accept(this, argu);
+        n.f2.accept(this, argu);
+        code.op(ClassFile.IMUL, -1);
+
+        return TypeSymbol.INT;
+    }
+
+    /**
+     * f0 -> PrimaryExpression()
+     * f1 -> "["
+     * f2 -> PrimaryExpression()
+     * f3 -> "]"
+     */
+    @Override
+    public TypeSymbol visit(ArrayLookup n, Scope argu) throws Exception {
+        n.f0.accept(this, argu);
+        n.f2.accept(this, argu);
+        code.op(ClassFile.IALOAD, -1);
+
+        return TypeSymbol.INT;
+    }
+
+    /**
+     * f0 -> PrimaryExpression()
+     * f1 -> "."
+     * f2 -> "length"
+     */
+    @Override
+    public TypeSymbol visit(ArrayLength n, Scope argu) throws Exception {
+        n.f0.accept(this, argu);
+        code.op(ClassFile.ARRAYLENGTH, 0);
+
+        return TypeSymbol.INT;
+    }
+
+    /**
+     * f0 -> PrimaryExpression()
+     * f1 -> "."
+     * f2 -> Identifier()
+     * f3 -> "("
+     * f4 -> ( ExpressionList() )?
+     * f5 -> ")"
+     */
+    @Override
+    public TypeSymbol visit(MessageSend n, Scope argu) throws Exception {
+        ClassSymbol cls = (ClassSymbol) n.f0.accept(this, argu);
+        MethodSymbol method = cls.lookupMethod(name(n.f2));
+
+        if( n.f4.present() ) // Pushes the arguments in order
+            n.f4.accept(this, argu);
+
+        code.invoke(ClassFile.INVOKEVIRTUAL, internalName(cls), method.methodName, descriptor(method));
+
+        return method.returnType;
+    }
+
+    /**
+     * f0 -> IntegerLiteral() | TrueLiteral() | FalseLiteral() | Identifier() |
+     * ThisExpression() | ArrayAllocationExpression() | AllocationExpression() |
+     * BracketExpression()
+     */
+    @Override
+    public TypeSymbol visit(PrimaryExpression n, Scope argu) throws Exception {
+        if( n.f0.which == 3 ) // If expression is an identifier (in this case a variable)
+            return load(argu.lookupVar(name((Identifier) n.f0.choice)));
+
+        return n.f0.accept(this, argu);
+    }
+
+    /**
+     * f0 -> <INTEGER_LITERAL>
+     */
+    @Override
+    public TypeSymbol visit(IntegerLiteral n, Scope argu) throws Exception {
+        code.pushInt((int) Long.parseLong(n.f0.toString()));
+        return TypeSymbol.INT;
+    }
+
+    /**
+     * f0 -> "true"
+     */
+    @Override
+    public TypeSymbol visit(TrueLiteral n, Scope argu) throws Exception {
+        code.pushInt(1);
+        return TypeSymbol.BOOLEAN;
+    }
+
+    /**
+     * f0 -> "false"
+     */
+    @Override
+    public TypeSymbol visit(FalseLiteral n, Scope argu) throws Exception {
+        code.pushInt(0);
+        return TypeSymbol.BOOLEAN;
+    }
+
+    /**
+     * f0 -> "this"
+     */
+    @Override
+    public TypeSymbol visit(ThisExpression n, Scope argu) throws Exception {
+        code.local(ClassFile.ALOAD, 0);
+        return argu.owner();
+    }
+
+    /**
+     * f0 -> "new"
+     * f1 -> "int"
+     * f2 -> "["
+     * f3 -> Expression()
+     * f4 -> "]"
+     */
+    @Override
+    public TypeSymbol visit(ArrayAllocationExpression n, Scope argu) throws Exception {
+        n.f3.accept(this, argu);
+        code.newIntArray(); // A negative size throws, see JvmLoader
+
+        return TypeSymbol.ARRAY;
+    }
+
+    /**
+     * f0 -> "new"
+     * f1 -> Identifier()
+     * f2 -> "("
+     * f3 -> ")"
+     */
+    @Override
+    public TypeSymbol visit(AllocationExpression n, Scope argu) throws Exception {
+        ClassSymbol cls = symbols.lookupClass(name(n.f1));
+
+        code.newObject(internalName(cls));
+        code.op(ClassFile.DUP, 1);
+        code.invoke(ClassFile.INVOKESPECIAL, internalName(cls), "<init>", "()V");
+
+        return cls;
+    }
+
+    /**
+     * f0 -> "!"
+     * f1 -> Clause()
+     */
+    @Override
+    public TypeSymbol visit(NotExpression n, Scope argu) throws Exception {
+        n.f1.accept(this, argu);
+        code.pushInt(1);
+        code.op(ClassFile.IXOR, -1);
+
+        return TypeSymbol.BOOLEAN;
+    }
+
+    /**
+     * f0 -> "("
+     * f1 -> Expression()
+     * f2 -> ")"
+     */
+    @Override
+    public TypeSymbol visit(BracketExpression n, Scope argu) throws Exception {
+        return n.f1.accept(this, argu);
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.BufferedOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+
+/**
+ * Runs a program translated by JvmCodeVisitor inside the compiler's own JVM, for --jvm-run. The
+ * classes are defined by this loader, so every program gets a namespace of it's own and is unloaded
+ * with it. Failures the compiled code would report are turned into the same results: an out of
+ * bounds access or negative array size prints "Out of bounds" and exits with status 1.
+ */
+class JvmLoader extends ClassLoader {
+
+    private final Map<String, byte[]> classes;
+    private final String mainClass;
+
+    JvmLoader(JvmCodeVisitor program) {
+        super(JvmLoader.class.getClassLoader());
+        this.classes = program.classes;
+        this.mainClass = program.mainClass;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytes = classes.get(name);
+        if(bytes == null)
+            throw new ClassNotFoundException(name);
+
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    // Runs main on a thread with a stack deep enough for recursive programs, returns the exit status
+    int run(PrintStream out) throws Exception {
+        final PrintStream programOut = new PrintStream(new BufferedOutputStream(out, 1 << 16), false);
+        final int[] status = new int[1];
+        final Exception[] failure = new Exception[1];
+
+        Thread thread = new Thread(null, new Runnable() {
+            public void run() {
+                try{
+                    status[0] = runMain(programOut);
+                }
+                catch(Exception ex){
+                    failure[0] = ex;
+                }
+                catch(StackOverflowError ex){
+                    failure[0] = new Exception("Stack overflow.");
+                }
+                catch(LinkageError ex){ // Rejected by the verifier, a bug of JvmCodeVisitor
+                    failure[0] = new Exception("The JVM rejected the generated code: " + ex);
+                }
+            }
+        }, "minijava-jvm", VirtualMachine.STACK_SIZE);
+
+        thread.start();
+        thread.join();
+
+        programOut.flush();
+        if(failure[0] != null)
+            throw failure[0];
+
+        return status[0];
+    }
+
+    private int runMain(PrintStream programOut) throws Exception {
+        Class<?> main = loadClass(mainClass);
+        main.getField(JvmCodeVisitor.OUT_FIELD).set(null, programOut);
+
+        try{
+            main.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+        }
+        catch(InvocationTargetException ex){
+            Throwable cause = ex.getCause();
+            if(cause instanceof ArrayIndexOutOfBoundsException || cause instanceof NegativeArraySizeException)
+            {
+                programOut.println("Out of bounds");
+                return 1;
+            }
+            if(cause instanceof NullPointerException)
+                throw new Exception("Null pointer dereference.");
+            if(cause instanceof Error)
+                throw (Error) cause;
+
+            throw new Exception(cause);
+        }
+
+        return 0;
+    }
+}
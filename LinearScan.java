@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Linear scan register allocation (after Poletto and Sarkar), for X86Backend. Every value has a
+ * single live interval, from the first to the last position it is live at, and the intervals are
+ * visited in order of their start: each takes a free register, and when none is left whichever of
+ * it and the intervals holding a register ends last is spilled to the stack for all of it's life.
+ * Intervals that are live across a call only get registers the callee has to preserve; the others
+ * prefer the ones it does not, so they need not be saved in the prologue.
+ */
+class LinearScan {
+
+    static class Interval {
+        final IrValue value;
+        int start = Integer.MAX_VALUE;
+        int end = Integer.MIN_VALUE;
+        boolean crossesCall;
+        int register = -1;  // -1 when spilled
+        int spillSlot = -1;
+
+        Interval(IrValue value) {
+            this.value = value;
+        }
+
+        void cover(int from, int to) {
+            start = Math.min(start, from);
+            end = Math.max(end, to);
+        }
+    }
+
+    private final int[] callerSaved;
+    private final int[] calleeSaved;
+
+    public int spillSlots;                 // Stack slots the spilled intervals take, one each
+    public final List<Integer> usedCalleeSaved;
+
+    LinearScan(int[] callerSaved, int[] calleeSaved) {
+        this.callerSaved = callerSaved;
+        this.calleeSaved = calleeSaved;
+        this.usedCalleeSaved = new ArrayList<Integer>();
+    }
+
+    void allocate(List<Interval> intervals, List<Integer> calls) {
+        for(Interval interval : intervals) {
+            for(int call : calls) {
+                if(interval.start < call && call < interval.end)
+                {
+                    interval.crossesCall = true;
+                    break;
+                }
+            }
+        }
+
+        List<Interval> sorted = new ArrayList<Interval>(intervals);
+        Collections.sort(sorted, new Comparator<Interval>() {
+            public int compare(Interval a, Interval b) {
+                return Integer.compare(a.start, b.start);
+            }
+        });
+
+        List<Interval> active = new ArrayList<Interval>(); // Holding a register, by increasing end
+        List<Integer> free = new ArrayList<Integer>();
+        for(int register : callerSaved)
+            free.add(register);
+        for(int register : calleeSaved)
+            free.add(register);
+
+        for(Interval current : sorted) {
+            while(!active.isEmpty() && active.get(0).end < current.start)
+                free.add(active.remove(0).register);
+
+            int register = take(free, current);
+            if(register < 0)
+            {
+                // Spill the interval that ends last, among the ones whose register current could use
+                Interval victim = null;
+                for(int i = active.size() - 1; i >= 0 && victim == null; i--) {
+                    if(!current.crossesCall || isCalleeSaved(active.get(i).register))
+                        victim = active.get(i);
+                }
+
+                if(victim == null || victim.end <= current.end)
+                {
+                    current.spillSlot = spillSlots++;
+                    continue;
+                }
+
+                active.remove(victim);
+                register = victim.register;
+                victim.register = -1;
+                victim.spillSlot = spillSlots++;
+            }
+
+            current.register = register;
+            if(isCalleeSaved(register) && !usedCalleeSaved.contains(register))
+                usedCalleeSaved.add(register);
+
+            int at = 0;
+            while(at < active.size() && active.get(at).end <= current.end)
+                at++;
+            active.add(at, current);
+        }
+    }
+
+    // A free register for interval, or -1
+    private int take(List<Integer> free, Interval interval) {
+        int[] preferred = interval.crossesCall ? calleeSaved : callerSaved;
+        for(int register : preferred) {
+            if(free.remove((Integer) register))
+                return register;
+        }
+
+        if(!interval.crossesCall) // Fall back to one the prologue saves
+        {
+            for(int register : calleeSaved) {
+                if(free.remove((Integer) register))
+                    return register;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean isCalleeSaved(int register) {
+        for(int saved : calleeSaved) {
+            if(saved == register)
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -1,98 +1,381 @@
 import syntaxtree.*;
 import java.io.*;
-import java.util.LinkedHashMap;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
-class OffsetMapData {
-	Integer offset;
-	String className;
+class CompileResult {
+	String fileName;
+	boolean succeeded;
+	String diagnostics;
+	PhaseTimer timer;
 
-	OffsetMapData(Integer offset, String className) {
-		this.offset = offset;
-		this.className = className;
+	CompileResult(String fileName, boolean succeeded, String diagnostics, PhaseTimer timer) {
+		this.fileName = fileName;
+		this.succeeded = succeeded;
+		this.diagnostics = diagnostics;
+		this.timer = timer;
 	}
 }
 
-class OffsetMaps { // Essentially a Pair class
+class Main {
+
+    public static void main (String [] args){
+
+		CompilerOptions options = null;
 
-	public String className;
+		try{
+			options = CompilerOptions.parse(args);
+		}
+		catch(Exception ex){
+			System.err.println(ex.getMessage() + "\n" + CompilerOptions.USAGE);
+			System.exit(1);
+		}
 
-	public Map<String,OffsetMapData> variableOffsets;
-	public Map<String,OffsetMapData> methodOffsets;
+		if(options.help){
+			System.out.println(CompilerOptions.USAGE);
+			return;
+		}
 
-	public int totalVarOffset;
-	public int totalMethodOffset;
+		if(options.server != null){
+			try{
+				CompileServer.run(options);
+			}
+			catch(Exception ex){
+				System.err.println("Compile server stopped: " + ex.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
 
-	OffsetMaps(String className)
-	{
-		this.variableOffsets = new LinkedHashMap<String,OffsetMapData>();
-		this.methodOffsets = new LinkedHashMap<String,OffsetMapData>();
-		
-		this.totalMethodOffset = 0;
-		this.totalVarOffset = 0;
+		if(options.inputFiles.isEmpty()){
+			System.err.println("Usage: java Main [options] <inputFile1> <inputFile2> ... <inputFileN>\nUse --help for more info.");
+			System.exit(1);
+		}
+
+		if(!allSucceeded(compileAll(options, System.out)))
+			System.exit(1);
+    }
+
+	// Compiles every input file of options, printing diagnostics to out in input order
+	static List<CompileResult> compileAll(CompilerOptions options, PrintStream out) {
+		List<CompileResult> results;
+
+		if(options.jobs > 1 && options.inputFiles.size() > 1)
+			results = compileParallel(options, out);
+		else
+			results = compileSequential(options, out);
+
+		if(options.stats && options.cacheDir != null)
+		{
+			try{
+				out.println(CompileCache.forDirectory(options.cacheDir, options.cacheSize).stats());
+			}
+			catch(IOException ex){
+				out.println("Compile cache unavailable: " + ex.getMessage());
+			}
+		}
+
+		if(options.timePassesFile != null)
+		{
+			List<PhaseTimer> timers = new ArrayList<PhaseTimer>();
+			for(CompileResult result : results) {
+				if(result.timer != null)
+					timers.add(result.timer);
+			}
 
-		this.className = className;
+			try{
+				PhaseTimer.writeJson(options.timePassesFile, timers);
+			}
+			catch(IOException ex){
+				out.println("Could not write pass timings to " + options.timePassesFile + ": " + ex.getMessage());
+			}
+		}
+
+		return results;
 	}
-}
 
-class Main {
+	static boolean allSucceeded(List<CompileResult> results) {
+		for(CompileResult result : results) {
+			if(!result.succeeded)
+				return false;
+		}
 
-    public static void main (String [] args){
+		return true;
+	}
 
-		if(args.length == 0){
-			System.err.println("Usage: java Main [options] <inputFile1> <inputFile2> ... <inputFileN>\nUse --help for more info.");
-			System.exit(1);
+	private static List<CompileResult> compileSequential(CompilerOptions options, PrintStream out) {
+		List<CompileResult> results = new ArrayList<CompileResult>();
+
+		for(String fileName : options.inputFiles) {
+			PhaseTimer timer = new PhaseTimer(fileName, options);
+			boolean succeeded = compileFile(fileName, options, out, timer);
+			results.add(new CompileResult(fileName, succeeded, null, timer)); // Diagnostics were already printed
 		}
-	
-		FileInputStream fis = null;
-		
-		for(int i = 0; i < args.length; i++ ) {
 
-			Map<String, Map<String, List<Argument>>> classToMethods = new HashMap<String, Map<String, List<Argument>>>();
-			Map<String, Map<String, String>> scopeToVars = new HashMap<String, Map<String, String>>();
-			Map<String, String> inheritanceChain = new HashMap<String, String>();
+		return results;
+	}
+
+	private static List<CompileResult> compileParallel(final CompilerOptions options, PrintStream out) {
+		int workers = Math.min(options.jobs, options.inputFiles.size());
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		List<Future<CompileResult>> pending = new ArrayList<Future<CompileResult>>();
 
-			Map<String, OffsetMaps> classToOffsetMap = new LinkedHashMap<String, OffsetMaps>();
+		for(final String fileName : options.inputFiles) {
+			pending.add(pool.submit(new Callable<CompileResult>() {
+				public CompileResult call() {
+					// Diagnostics are buffered per file so they can be printed in input order
+					ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+					PrintStream fileOut = new PrintStream(diagnostics, true);
+					PhaseTimer timer = new PhaseTimer(fileName, options);
+					boolean succeeded = compileFile(fileName, options, fileOut, timer);
+					fileOut.close();
+					return new CompileResult(fileName, succeeded, diagnostics.toString(), timer);
+				}
+			}));
+		}
 
-			boolean found_error = false;
+		pool.shutdown();
 
+		List<CompileResult> results = new ArrayList<CompileResult>();
+
+		for(int i = 0; i < pending.size(); i++) {
+			String fileName = options.inputFiles.get(i);
 			try{
-				System.out.println("\nChecking file: " + args[i]);
-				fis = new FileInputStream(args[i]);
-				MiniJavaParser parser = new MiniJavaParser(fis);
-				MainVisitor mainVis = new MainVisitor(classToMethods, scopeToVars, inheritanceChain, classToOffsetMap);
-				ClassDefVisitor classDefVis = new ClassDefVisitor(classToMethods, scopeToVars, inheritanceChain);
-				Goal root = parser.Goal();
-				root.accept(classDefVis, null);
-				root.accept(mainVis, null);
-
-				IntermediateCodeVisitor intermediateCodeVis = new IntermediateCodeVisitor(args[i], classToOffsetMap, scopeToVars, inheritanceChain, classToMethods);
-				root.accept(intermediateCodeVis, null);
-				
-				//System.out.println("\n");
+				CompileResult result = pending.get(i).get();
+				out.print(result.diagnostics);
+				results.add(result);
+			}
+			catch(InterruptedException | ExecutionException ex){
+				out.println("Exception Encountered in file: " + fileName + "\n\t" + ex + "\n\n");
+				results.add(new CompileResult(fileName, false, null, null));
+			}
+		}
+
+		return results;
+	}
+
+	// Parsers are reused across files compiled on the same thread, so a long running process only builds one per thread
+	private static final ThreadLocal<MiniJavaParser> threadParser = new ThreadLocal<MiniJavaParser>();
+
+	static MiniJavaParser parserFor(InputStream in) {
+		MiniJavaParser parser = threadParser.get();
 
+		if(parser == null)
+		{
+			parser = new MiniJavaParser(in);
+			threadParser.set(parser);
+		}
+		else
+			parser.ReInit(in);
+
+		return parser;
+	}
+
+	// Where the generated code of a file goes: LLVM code, or assembly with --asm
+	static String codeFileName(String fileName, CompilerOptions options) {
+		return outputFileName(fileName, options.asm ? ".s" : ".ll");
+	}
+
+	static String offsetFileName(String fileName) {
+		return outputFileName(fileName, ".offset");
+	}
+
+	private static String outputFileName(String fileName, String extension) {
+		if(fileName.endsWith(".javaa") || fileName.endsWith(".java"))
+			return fileName.substring(0, fileName.lastIndexOf(".")) + extension;
+
+		return fileName + extension;
+	}
+
+	// Runs every compilation phase on a single file, writing diagnostics to out and measuring the phases with timer. Returns false if the file failed to compile.
+	static boolean compileFile(String fileName, CompilerOptions options, PrintStream out, PhaseTimer timer) {
+
+		SymbolTable symbols = new SymbolTable();
+
+		boolean found_error = false;
+
+		try{
+			out.println("\nChecking file: " + fileName);
+			byte[] source = Files.readAllBytes(Paths.get(fileName));
+
+			CompileCache cache = null;
+			String cacheKey = null;
+
+			if(options.cacheDir != null && !options.run && !options.jvmRun) // Running needs the program itself, not it's cached outputs
+			{
+				timer.start("cache lookup", null);
+				cache = CompileCache.forDirectory(options.cacheDir, options.cacheSize);
+				cacheKey = cache.key(source, options.signature());
+
+				CompileCache.Entry cached = cache.lookup(cacheKey);
+				if(cached != null) // Unchanged since it was last compiled, nothing to check or generate
+				{
+					timer.start("write", null);
+					writeOutputs(fileName, options, out, cached);
+					timer.output(cached.llvm.length + (cached.offsets == null ? 0 : cached.offsets.length));
+					return true;
+				}
 			}
-			catch(Exception ex) {
-				System.out.println("Exception Encountered in file: " + args[i] + "\n\t" + ex + "\n");
-				found_error = true;
+
+			MiniJavaParser parser = parserFor(new ByteArrayInputStream(source));
+			MainVisitor mainVis = new MainVisitor(symbols);
+			ClassDefVisitor classDefVis = new ClassDefVisitor(symbols);
+			timer.start("parse", null);
+			Goal root = parser.Goal();
+			timer.end();
+			timer.countNodes(root);
+			timer.start("ClassDefVisitor", symbols);
+			root.accept(classDefVis, null);
+			timer.start("MainVisitor", symbols);
+			root.accept(mainVis, null);
+			timer.end();
+
+			IrModule module = null;
+			List<IrPass> passes = new ArrayList<IrPass>();
+			if(!options.jvmRun) // The JVM backend works from the syntax tree
+			{
+				IntermediateCodeVisitor intermediateCodeVis = new IntermediateCodeVisitor(symbols, options);
+				timer.start("IntermediateCodeVisitor", symbols);
+				root.accept(intermediateCodeVis, null);
+				module = intermediateCodeVis.module;
+				timer.end();
+				timer.countInstructions(module);
+				passes = Optimizer.optimize(module, options, timer);
 			}
-			finally{
-				if(found_error)
-					System.out.println();
 
-				try{
-					if(fis != null)
-					{
-						fis.close();
+			if(options.run || options.jvmRun)
+			{
+				if(options.offsets)
+				{
+					timer.start("offsets", null);
+					try(OutputSink offsetOut = OutputSink.open(options.sink, offsetFileName(fileName), out)){
+						ClassLayout.dump(symbols, offsetOut, options.offsetsLayout);
+						timer.output(offsetOut.bytesWritten());
 					}
 				}
-				catch(IOException ex){
-				System.err.println("\t" + ex.getMessage());
+
+				int status;
+				if(options.jvmRun)
+				{
+					JvmCodeVisitor jvmCodeVis = new JvmCodeVisitor(symbols);
+					timer.start("JvmCodeVisitor", symbols);
+					root.accept(jvmCodeVis, null);
+					timer.end();
+					for(byte[] classFile : jvmCodeVis.classes.values())
+						timer.output(classFile.length);
+
+					timer.start("run", null);
+					status = new JvmLoader(jvmCodeVis).run(out);
+				}
+				else
+				{
+					timer.start("run", null);
+					status = new VirtualMachine(module, out).run();
+				}
+				timer.end();
+				if(status != 0)
+				{
+					out.println("Program exited with status " + status);
+					found_error = true;
 				}
 			}
+			else if(cache == null)
+			{
+				if(options.offsets)
+				{
+					timer.start("offsets", null);
+					try(OutputSink offsetOut = OutputSink.open(options.sink, offsetFileName(fileName), out)){
+						ClassLayout.dump(symbols, offsetOut, options.offsetsLayout);
+						timer.output(offsetOut.bytesWritten());
+					}
+				}
+
+				// The sink is closed (and flushed) as soon as code generation ends, even if it fails
+				timer.start("codegen", null);
+				try(OutputSink llvmOut = OutputSink.open(options.sink, codeFileName(fileName, options), out)){
+					printCode(module, options, llvmOut);
+					timer.output(llvmOut.bytesWritten());
+				}
+				timer.end();
+			}
+			else
+			{
+				// Generate in memory first, so the outputs can be both written and stored
+				MemorySink offsetOut = new MemorySink();
+				MemorySink llvmOut = new MemorySink();
+
+				if(options.offsets)
+				{
+					timer.start("offsets", null);
+					ClassLayout.dump(symbols, offsetOut, options.offsetsLayout);
+					timer.output(offsetOut.bytesWritten());
+				}
+
+				timer.start("codegen", null);
+				printCode(module, options, llvmOut);
+				timer.output(llvmOut.bytesWritten());
+
+				timer.start("write", null);
+				CompileCache.Entry entry = new CompileCache.Entry(llvmOut.toByteArray(), options.offsets ? offsetOut.toByteArray() : null);
+				writeOutputs(fileName, options, out, entry);
+				cache.store(cacheKey, entry);
+				timer.end();
+			}
+
+			if(options.stats)
+			{
+				out.println("Name resolution: " + symbols.resolutionStats());
+				for(IrPass pass : passes) {
+					String report = pass.report();
+					if(report != null)
+						out.println(pass.name() + ": " + report);
+				}
+			}
+
+			//System.out.println("\n");
+
 		}
-    }
+		catch(Exception | TokenMgrError ex) { // The token manager reports lexical errors with an Error
+			out.println("Exception Encountered in file: " + fileName + "\n\t" + ex + "\n");
+			found_error = true;
+		}
+		finally{
+			timer.finish();
+			if(options.timePasses)
+				timer.print(out);
+			if(found_error)
+				out.println();
+		}
+
+		return !found_error;
+	}
+
+	private static void printCode(IrModule module, CompilerOptions options, OutputSink sink) throws Exception {
+		if(options.asm)
+			new X86Backend(sink).print(module);
+		else
+			new IrPrinter(sink).print(module);
+	}
+
+	private static void writeOutputs(String fileName, CompilerOptions options, PrintStream out, CompileCache.Entry entry) throws IOException {
+		if(entry.offsets != null)
+		{
+			try(OutputSink offsetOut = OutputSink.open(options.sink, offsetFileName(fileName), out)){
+				offsetOut.write(new String(entry.offsets, StandardCharsets.UTF_8));
+			}
+		}
+
+		try(OutputSink llvmOut = OutputSink.open(options.sink, codeFileName(fileName, options), out)){
+			llvmOut.write(new String(entry.llvm, StandardCharsets.UTF_8));
+		}
+	}
 }
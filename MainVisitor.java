@@ -1,108 +1,28 @@
 import java.util.ArrayList;
-import java.util.Map;
 import java.util.Stack;
-import java.util.HashMap;
 import java.util.List;
 import syntaxtree.*;
 import visitor.GJDepthFirst;
 
 
-public class MainVisitor extends GJDepthFirst<String, String> {
+public class MainVisitor extends GJDepthFirst<TypeSymbol, Scope> {
 
-    Map<String, Map<String, List<Argument>>> classToMethods;
-    Map<String, Map<String, String>> scopeToVars;
-    Map<String, String> inheritanceChain;
+    SymbolTable symbols;
 
-    private HashMap<String, Integer> classToVarOffset;
-    private HashMap<String, Integer> classToMethodOffset;
+    private Stack<List<TypeSymbol>> argListStack;
 
-    private Integer currVarOffset;
-    private Integer currMethodOffset;
-
-    Map<String, OffsetMaps> classToOffsetMap;
-
-    private Stack<List<String>> argListStack;
-
-    public MainVisitor( Map<String, Map<String, List<Argument>>> classToMethods,
-                        Map<String, Map<String, String>> scopeToVars,
-                        Map<String, String> inheritanceChain,
-                        Map<String, OffsetMaps> classToOffsetMap ) throws Exception 
+    public MainVisitor( SymbolTable symbols ) throws Exception 
     {
         super();
-        this.classToMethods = classToMethods;
-        this.scopeToVars = scopeToVars;
-        this.inheritanceChain = inheritanceChain;
-
-        this.classToVarOffset = new HashMap<String, Integer>();
-        this.classToMethodOffset = new HashMap<String, Integer>();
-        this.classToOffsetMap = classToOffsetMap;
-
-        this.currMethodOffset = 0;
-        this.currVarOffset = 0;
+        this.symbols = symbols;
 
-        this.argListStack = new Stack<List<String>>();
+        this.argListStack = new Stack<List<TypeSymbol>>();
     }
 
     // Utility Functions
 
-    private String findVarType(String varName, String startScope) { // Given a variable name and a scope, return it's type if it exists, otherwise return null
-
-        if(startScope == null)
-            return null;
-
-        Map<String, String> vars = scopeToVars.get(startScope);
-        String varType = vars.get(varName);
-        if ( varType == null)
-        {
-            String parentScope = inheritanceChain.get(startScope);
-            return findVarType(varName, parentScope);
-        }
-
-        return varType;
-    }
-
-    private List<Argument> findMethodData(String methodName, String startScope) { // Given a method name and a scope, return it's data if it exists, otherwise return null
-
-        if(startScope == null)
-            return null;
-
-        Map<String, List<Argument>> methods = classToMethods.get(startScope);
-        List<Argument> args = methods.get(methodName);
-        if( args == null )
-        {
-            String parentClass = inheritanceChain.get(startScope);
-            return findMethodData(methodName, parentClass);
-        }
-        
-        return args;
-    }
-
-    private boolean isAncestorOf(String offspringClass, String ancestorClass) { // Check if offspringClass could be traced back to ancestorClass through inheritance
-
-        if(offspringClass.equals(ancestorClass))
-            return true;
-
-        String parent = inheritanceChain.get(offspringClass);
-        if( parent == null )
-            return false;
-        
-        if( parent.equals(ancestorClass) )
-            return true;
-        else
-            return isAncestorOf(parent, ancestorClass);
-    }
-
-    private boolean overrides(String methodName, String className) { // Check if method methodName would cause overriding if it were to be a member of class className 
-
-        String parentClass = inheritanceChain.get(className);
-
-        if(parentClass == null)
-            return false;
-
-        if(classToMethods.get(parentClass).containsKey(methodName))
-            return true;
-        else
-            return overrides(methodName, parentClass);
+    private static String name(Identifier n) {
+        return n.f0.toString();
     }
 
     // Visit functions
@@ -113,7 +33,7 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f2 -> <EOF>
      */
     @Override
-    public String visit(Goal n, String argu) throws Exception {
+    public TypeSymbol visit(Goal n, Scope argu) throws Exception {
         n.f0.accept(this, argu);
         if( n.f1.present() )
             n.f1.accept(this, argu);
@@ -142,18 +62,15 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f17 -> "}"
      */
     @Override
-    public String visit(MainClass n, String argu) throws Exception {
-        String className = n.f1.accept(this, argu);
-        classToVarOffset.put(className, 0);
-        classToMethodOffset.put(className, 0);
-
-        classToOffsetMap.put(className, new OffsetMaps(className));
+    public TypeSymbol visit(MainClass n, Scope argu) throws Exception {
+        ClassSymbol cls = symbols.lookupClass(name(n.f1));
+        cls.layout = new ClassLayout(cls, null);
 
         if(n.f14.present())
-            n.f14.accept(this, className + ".main");
+            n.f14.accept(this, cls.mainMethod);
             
         if(n.f15.present())
-            n.f15.accept(this, className + ".main");
+            n.f15.accept(this, cls.mainMethod);
 
         return null;
     }
@@ -167,24 +84,16 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f5 -> "}"
      */
     @Override
-    public String visit(ClassDeclaration n, String argu) throws Exception {
-        String className = n.f1.accept(this, argu);
-
-        // Init class offset
-        
-        currVarOffset = 0;
-        currMethodOffset = 0;
-
-        classToOffsetMap.put(className, new OffsetMaps(className));
+    public TypeSymbol visit(ClassDeclaration n, Scope argu) throws Exception {
+        ClassSymbol cls = symbols.lookupClass(name(n.f1));
+        cls.layout = new ClassLayout(cls, null);
 
         if( n.f3.present() )
-            n.f3.accept(this, className);
+            n.f3.accept(this, cls.scope);
+        cls.layout.pack();
 
         if( n.f4.present() )
-            n.f4.accept(this, className);
-
-        classToVarOffset.put(className, currVarOffset);
-        classToMethodOffset.put(className, currMethodOffset);
+            n.f4.accept(this, cls.scope);
 
         return null;
     }
@@ -200,24 +109,18 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f7 -> "}"
      */
     @Override
-    public String visit(ClassExtendsDeclaration n, String argu) throws Exception {
-        String className = n.f1.accept(this, argu);
-        String parentClass = n.f3.accept(this, argu);
-
-        int currVarOffset = classToVarOffset.get(parentClass);
-        int currMethodOffset = classToMethodOffset.get(parentClass);
+    public TypeSymbol visit(ClassExtendsDeclaration n, Scope argu) throws Exception {
+        ClassSymbol cls = symbols.lookupClass(name(n.f1));
 
-        classToOffsetMap.put(className, new OffsetMaps(className));
+        // The parent has already been visited, so it's layout is final and can be extended
+        cls.layout = new ClassLayout(cls, cls.superclass.layout);
 
         if( n.f5.present() )
-            n.f5.accept(this, className);
+            n.f5.accept(this, cls.scope);
+        cls.layout.pack();
 
         if( n.f6.present() )    
-            n.f6.accept(this, className);
-
-        // Init class offset, keeping in mind the parent offset
-        classToVarOffset.put(className, currVarOffset);
-        classToMethodOffset.put(className, currMethodOffset);
+            n.f6.accept(this, cls.scope);
 
         return null;
     }
@@ -228,39 +131,28 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f2 -> ";"
      */
     @Override
-    public String visit(VarDeclaration n, String argu) throws Exception {
-        String type = n.f0.accept(this, argu);
+    public TypeSymbol visit(VarDeclaration n, Scope argu) throws Exception {
+        TypeSymbol type = symbols.resolveType(n.f0);
 
         // Check if class TYPE already exists
-        if( type != "int" && type != "array" && type != "boolean" && classToMethods.get(type) == null )
+        if( type instanceof ClassSymbol && !((ClassSymbol) type).isDeclared() )
             throw new Exception("Scope: " + argu + "\n\tError: Class " + type + " has not been defined.");
 
-        String varName = n.f1.accept(this, argu);
-        Map<String, String> currScope = scopeToVars.get(argu);
-        String seekType = currScope.get(varName);
+        String varName = name(n.f1);
+        VarSymbol seek = argu.vars.get(varName);
 
-        if (seekType != null) {
+        if (seek != null) {
             throw new Exception("Scope: " + argu + "\n\tRedefinition Error: variable \"" + varName + "\" has already been defined as type "
-                    + seekType + ".");
+                    + seek.type + ".");
         } else {
-            currScope.put(varName, type);
-
             // Calculate offsets if at class variable declaration scope and not inside a method
-            if(!argu.contains("."))
+            if(argu instanceof ClassScope)
             {
-                String currClass = argu;
-
-                OffsetMaps mp = classToOffsetMap.get(currClass);
-                mp.variableOffsets.put(varName, new OffsetMapData(currVarOffset, argu.split("\\.")[0]));
-                switch(type)
-                {
-                    case "int": currVarOffset += 4; mp.totalVarOffset += 4; break;
-
-                    case "boolean": currVarOffset += 1; mp.totalVarOffset += 1; break;
-
-                    default: currVarOffset += 8; mp.totalVarOffset += 8; break;
-                }
+                ClassSymbol currClass = argu.owner();
+                currClass.layout.addField(symbols.declareField(currClass, varName, type));
             }
+            else
+                symbols.declareLocal((MethodSymbol) argu, varName, type);
         }
 
         return null;
@@ -282,62 +174,31 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f12 -> "}"
      */
     @Override
-    public String visit(MethodDeclaration n, String argu) throws Exception {
-        String methodType = n.f1.accept(this, argu);
-        String methodName = n.f2.accept(this, argu);
+    public TypeSymbol visit(MethodDeclaration n, Scope argu) throws Exception {
+        ClassSymbol cls = argu.owner();
+        String methodName = name(n.f2);
+
+        MethodSymbol currScope = cls.methods.get(methodName);
+        TypeSymbol methodType = currScope.returnType;
 
-        String currScope = argu + "." + methodName;
-        
         if( n.f7.present() )
             n.f7.accept(this, currScope);
 
         if( n.f8.present() )
             n.f8.accept(this, currScope);
 
-        String returnExprType = n.f10.accept(this, currScope);
+        TypeSymbol returnExprType = n.f10.accept(this, currScope);
 
         // Check for if return type is correct (also checks for polymorphism)
-        if( !isAncestorOf(returnExprType, methodType) )
+        if( !returnExprType.isSubtypeOf(methodType) )
             throw new Exception("Scope: " + currScope + "\n\tError: Cannot return value of type " + returnExprType + " when expecting type " +  methodType + ".");
 
-        // Check if the method declared will override another method in order to calculate the offsets correctly
-        if( !overrides(methodName, argu) )
-        {
-            OffsetMaps mp = classToOffsetMap.get(argu);
-            mp.methodOffsets.put(methodName, new OffsetMapData(currMethodOffset, argu.split("\\.")[0]));
-            mp.totalMethodOffset += 8;
-            currMethodOffset += 8;
-        }
+        // Overriding methods reuse the vtable slot of the method they override
+        cls.layout.addMethod(currScope);
 
         return null;
     }
 
-    /**
-     * f0 -> "int"
-     * f1 -> "["
-     * f2 -> "]"
-     */
-    @Override
-    public String visit(ArrayType n, String argu) throws Exception {
-        return "array";
-    }
-
-    /**
-     * f0 -> "boolean"
-     */
-    @Override
-    public String visit(BooleanType n, String argu) throws Exception {
-        return "boolean";
-    }
-
-    /**
-     * f0 -> "int"
-     */
-    @Override
-    public String visit(IntegerType n, String argu) throws Exception {
-        return "int";
-    }
-
     /**
      * f0 -> Identifier()
      * f1 -> "="
@@ -345,18 +206,20 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f3 -> ";"
      */
     @Override
-    public String visit(AssignmentStatement n, String argu) throws Exception {
-        String varName = n.f0.accept(this, argu);
-        String soughtVarType = findVarType(varName, argu);
+    public TypeSymbol visit(AssignmentStatement n, Scope argu) throws Exception {
+        String varName = name(n.f0);
+        VarSymbol soughtVar = argu.lookupVar(varName);
 
-        if (soughtVarType == null)
+        if (soughtVar == null)
             throw new Exception("Scope: " + argu + "\n\tError: Variable " + varName + " has not been declared.");
 
+        TypeSymbol soughtVarType = soughtVar.type;
+
 
-        String exprType = n.f2.accept(this, argu);
+        TypeSymbol exprType = n.f2.accept(this, argu);
 
         // Check if assignment type is correct (checks for polymorphism)
-        if (!isAncestorOf(exprType, soughtVarType))
+        if (!exprType.isSubtypeOf(soughtVarType))
             throw new Exception("Scope: " + argu + "\n\tError: Cannot assign value of type " + exprType + " to variable " + varName
                     + " of type " + soughtVarType + ".");
 
@@ -373,19 +236,21 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f6 -> ";"
      */
     @Override
-    public String visit(ArrayAssignmentStatement n, String argu) throws Exception {
-        String varName = n.f0.accept(this, argu);
-        String soughtVarType = findVarType(varName, argu);
+    public TypeSymbol visit(ArrayAssignmentStatement n, Scope argu) throws Exception {
+        String varName = name(n.f0);
+        VarSymbol soughtVar = argu.lookupVar(varName);
 
-        if (soughtVarType == null)
+        if (soughtVar == null)
             throw new Exception("Scope: " + argu + "\n\tError: Array variable " + varName + " has not been declared.");
 
-        String indexExprType = n.f2.accept(this, argu);
-        if (indexExprType != "int")
+        TypeSymbol soughtVarType = soughtVar.type;
+
+        TypeSymbol indexExprType = n.f2.accept(this, argu);
+        if (indexExprType != TypeSymbol.INT)
             throw new Exception("Scope: " + argu + "\n\tError: Array index must be of integer type.");
 
-        String assignmentExprType = n.f5.accept(this, argu);
-        if (assignmentExprType != "int" || soughtVarType != "array")
+        TypeSymbol assignmentExprType = n.f5.accept(this, argu);
+        if (assignmentExprType != TypeSymbol.INT || soughtVarType != TypeSymbol.ARRAY)
             throw new Exception("Scope: " + argu + "\n\tError: Cannot assign value of type " + assignmentExprType + " to array variable "
                     + varName + " of type " + soughtVarType + ".");
 
@@ -402,10 +267,10 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f6 -> Statement()
      */
     @Override
-    public String visit(IfStatement n, String argu) throws Exception {
-        String condExprType = n.f2.accept(this, argu);
+    public TypeSymbol visit(IfStatement n, Scope argu) throws Exception {
+        TypeSymbol condExprType = n.f2.accept(this, argu);
 
-        if (condExprType != "boolean")
+        if (condExprType != TypeSymbol.BOOLEAN)
             throw new Exception("Scope: " + argu + "\n\tError: Condition value must be of boolean type.");
 
         n.f4.accept(this, argu);
@@ -422,10 +287,10 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f4 -> Statement()
      */
     @Override
-    public String visit(WhileStatement n, String argu) throws Exception {
-        String condExprType = n.f2.accept(this, argu);
+    public TypeSymbol visit(WhileStatement n, Scope argu) throws Exception {
+        TypeSymbol condExprType = n.f2.accept(this, argu);
 
-        if (condExprType != "boolean")
+        if (condExprType != TypeSymbol.BOOLEAN)
             throw new Exception("Scope: " + argu + "\n\tError: Condition value must be of boolean type.");
 
         n.f4.accept(this, argu);
@@ -440,10 +305,10 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f4 -> ";"
      */
     @Override
-    public String visit(PrintStatement n, String argu) throws Exception {
-        String exprType = n.f2.accept(this, argu);
+    public TypeSymbol visit(PrintStatement n, Scope argu) throws Exception {
+        TypeSymbol exprType = n.f2.accept(this, argu);
 
-        if( exprType != "int" && exprType != "boolean" )
+        if( exprType != TypeSymbol.INT && exprType != TypeSymbol.BOOLEAN )
             throw new Exception("Scope: " + argu + "\n\tError: Print statement can only have variables of primitive type as arguments.");
 
         return null;
@@ -455,14 +320,14 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f2 -> Clause()
      */
     @Override
-    public String visit(AndExpression n, String argu) throws Exception {
-        String clause1 = n.f0.accept(this, argu);
-        String clause2 = n.f2.accept(this, argu);
+    public TypeSymbol visit(AndExpression n, Scope argu) throws Exception {
+        TypeSymbol clause1 = n.f0.accept(this, argu);
+        TypeSymbol clause2 = n.f2.accept(this, argu);
 
-        if (clause1 != "boolean" || clause2 != "boolean")
+        if (clause1 != TypeSymbol.BOOLEAN || clause2 != TypeSymbol.BOOLEAN)
             throw new Exception("Scope: " + argu + "\n\tError: && operator supports only arguments of type boolean.");
 
-        return "boolean";
+        return TypeSymbol.BOOLEAN;
     }
 
     /**
@@ -471,14 +336,14 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f2 -> PrimaryExpression()
      */
     @Override
-    public String visit(CompareExpression n, String argu) throws Exception {
-        String expr1 = n.f0.accept(this, argu);
-        String expr2 = n.f2.accept(this, argu);
+    public TypeSymbol visit(CompareExpression n, Scope argu) throws Exception {
+        TypeSymbol expr1 = n.f0.accept(this, argu);
+        TypeSymbol expr2 = n.f2.accept(this, argu);
 
-        if (expr1 != "int" || expr2 != "int")
+        if (expr1 != TypeSymbol.INT || expr2 != TypeSymbol.INT)
             throw new Exception("Scope: " + argu + "\n\tError: < operator supports only arguments of type integer.");
 
-        return "boolean";
+        return TypeSymbol.BOOLEAN;
     }
 
     /**
@@ -487,13 +352,13 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f2 -> PrimaryExpression()
      */
     @Override
-    public String visit(PlusExpression n, String argu) throws Exception {
-        String expr1 = n.f0.accept(this, argu);
-        String expr2 = n.f2.accept(this, argu);
+    public TypeSymbol visit(PlusExpression n, Scope argu) throws Exception {
+        TypeSymbol expr1 = n.f0.accept(this, argu);
+        TypeSymbol expr2 = n.f2.accept(this, argu);
 
-        if (expr1 != "int" || expr2 != "int")
+        if (expr1 != TypeSymbol.INT || expr2 != TypeSymbol.INT)
             throw new Exception("Scope: " + argu + "\n\tError: + operator supports only arguments of type integer.");
-        return "int";
+        return TypeSymbol.INT;
     }
 
     /**
@@ -502,13 +367,13 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f2 -> PrimaryExpression()
      */
     @Override
-    public String visit(MinusExpression n, String argu) throws Exception {
-        String expr1 = n.f0.accept(this, argu);
-        String expr2 = n.f2.accept(this, argu);
+    public TypeSymbol visit(MinusExpression n, Scope argu) throws Exception {
+        TypeSymbol expr1 = n.f0.accept(this, argu);
+        TypeSymbol expr2 = n.f2.accept(this, argu);
 
-        if (expr1 != "int" || expr2 != "int")
+        if (expr1 != TypeSymbol.INT || expr2 != TypeSymbol.INT)
             throw new Exception("Scope: " + argu + "\n\tError: - operator supports only arguments of type integer.");
-        return "int";
+        return TypeSymbol.INT;
     }
 
     /**
@@ -517,15 +382,15 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f2 -> PrimaryExpression()
      */
     @Override
-    public String visit(TimesExpression n, String argu) throws Exception {
+    public TypeSymbol visit(TimesExpression n, Scope argu) throws Exception {
         
-        String expr1 = n.f0.accept(this, argu);
-        String expr2 = n.f2.accept(this, argu);
+        TypeSymbol expr1 = n.f0.accept(this, argu);
+        TypeSymbol expr2 = n.f2.accept(this, argu);
 
-        if (expr1 != "int" || expr2 != "int")
+        if (expr1 != TypeSymbol.INT || expr2 != TypeSymbol.INT)
             throw new Exception("Scope: " + argu + "\n\tError: * operator supports only arguments of type integer.");
         
-        return "int";
+        return TypeSymbol.INT;
     }
 
     /**
@@ -535,16 +400,16 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f3 -> "]"
      */
     @Override
-    public String visit(ArrayLookup n, String argu) throws Exception {
-        String arrayExpr = n.f0.accept(this, argu);
-        if( arrayExpr != "array")
+    public TypeSymbol visit(ArrayLookup n, Scope argu) throws Exception {
+        TypeSymbol arrayExpr = n.f0.accept(this, argu);
+        if( arrayExpr != TypeSymbol.ARRAY)
             throw new Exception("Scope: " + argu + "\n\tError: [] operator can only be applied to an array variable.");
         
-        String indexExpr = n.f2.accept(this, argu);
-        if( indexExpr != "int")
+        TypeSymbol indexExpr = n.f2.accept(this, argu);
+        if( indexExpr != TypeSymbol.INT)
             throw new Exception("Scope: " + argu + "\n\tError: Array index must be of integer type.");
 
-        return "int";
+        return TypeSymbol.INT;
     }
 
     /**
@@ -553,12 +418,12 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f2 -> "length"
      */
     @Override
-    public String visit(ArrayLength n, String argu) throws Exception {
-        String varType = n.f0.accept(this, argu);
-        if( varType != "array" )
+    public TypeSymbol visit(ArrayLength n, Scope argu) throws Exception {
+        TypeSymbol varType = n.f0.accept(this, argu);
+        if( varType != TypeSymbol.ARRAY )
             throw new Exception("Scope: " + argu + "\n\tError: .length operator can only be used on an array variable.");
 
-        return "int";
+        return TypeSymbol.INT;
     }
 
     /**
@@ -570,32 +435,34 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f5 -> ")"
      */
     @Override
-    public String visit(MessageSend n, String argu) throws Exception {
-        String classType = n.f0.accept(this, argu);
-        String methodName = n.f2.accept(this, argu);
-        List<Argument> methodData = findMethodData(methodName, classType); // methodData have a strict format: at index 0, the return type resides and at all other indexes, the argument types are placed
+    public TypeSymbol visit(MessageSend n, Scope argu) throws Exception {
+        TypeSymbol classType = n.f0.accept(this, argu);
+        String methodName = name(n.f2);
+        MethodSymbol method = null;
+
+        if(classType instanceof ClassSymbol)
+            method = ((ClassSymbol) classType).lookupMethod(methodName);
         
-        if(methodData == null)
+        if(method == null)
             throw new Exception("Scope: " + argu + "\n\tError: Method " + methodName + " not defined in class " + classType + " or any of it's superclasses.");
         
         if( n.f4.present() )
         {
             n.f4.accept(this, argu);
-            List<String> argList = argListStack.peek();
-            List<Argument> methodArgs = methodData.subList(1, methodData.size()); // Get only the argument types and not the return type
-            List<String> methodArgTypes = Argument.typeList(methodArgs);
+            List<TypeSymbol> argList = argListStack.peek();
+            List<VarSymbol> methodArgs = method.params;
 
-            if(methodArgTypes.size() != argList.size())
+            if(methodArgs.size() != argList.size())
                 throw new Exception("Scope: " + argu + "\n\tError: No method " + argu + "." + methodName + " with " + argList.size() + " argument(s) has been defined.");
 
-            for(int i = 0; i < methodArgTypes.size(); i++)
-                if( !isAncestorOf(argList.get(i), methodArgTypes.get(i)) ) // O(1) time complexity on List.get() due to using ArrayList
-                    throw new Exception("Scope: " + argu + "\n\tError: Method " + classType + "." + methodName + " expects argument of type " + methodArgTypes.get(i) + " at argument index " + i + ".");
+            for(int i = 0; i < methodArgs.size(); i++)
+                if( !argList.get(i).isSubtypeOf(methodArgs.get(i).type) ) // O(1) time complexity on List.get() due to using ArrayList
+                    throw new Exception("Scope: " + argu + "\n\tError: Method " + classType + "." + methodName + " expects argument of type " + methodArgs.get(i).type + " at argument index " + i + ".");
             
             argListStack.pop();
         }
 
-        return methodData.get(0).argumentType; // If all checks have been successful, then return the method return type as this expression's type
+        return method.returnType; // If all checks have been successful, then return the method return type as this expression's type
     }
 
     /**
@@ -603,8 +470,8 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f1 -> ExpressionTail()
      */
     @Override
-    public String visit(ExpressionList n, String argu) throws Exception {
-        argListStack.add(new ArrayList<String>());
+    public TypeSymbol visit(ExpressionList n, Scope argu) throws Exception {
+        argListStack.add(new ArrayList<TypeSymbol>());
         argListStack.peek().add(n.f0.accept(this, argu));
         n.f1.accept(this, argu);
         return null;
@@ -615,7 +482,7 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f1 -> Expression()
      */
     @Override
-    public String visit(ExpressionTerm n, String argu) throws Exception {
+    public TypeSymbol visit(ExpressionTerm n, Scope argu) throws Exception {
         argListStack.peek().add(n.f1.accept(this, argu));
         return null;
     }
@@ -626,16 +493,16 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * BracketExpression()
      */
     @Override
-    public String visit(PrimaryExpression n, String argu) throws Exception {
+    public TypeSymbol visit(PrimaryExpression n, Scope argu) throws Exception {
         if( n.f0.which == 3 ) // If expression is an identifier (in this case a variable), return the variable's type
         {
-            String varName = n.f0.accept(this, argu);
-            String varType = findVarType(varName, argu);
+            String varName = name((Identifier) n.f0.choice);
+            VarSymbol var = argu.lookupVar(varName);
 
-            if(varType == null)
+            if(var == null)
                 throw new Exception("Scope: " + argu + "\n\tError: Identifier " + varName + " not found.");
 
-            return varType;
+            return var.type;
         }
 
         return n.f0.accept(this, argu);
@@ -645,40 +512,32 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f0 -> <INTEGER_LITERAL>
      */
     @Override
-    public String visit(IntegerLiteral n, String argu) throws Exception {
-        return "int";
+    public TypeSymbol visit(IntegerLiteral n, Scope argu) throws Exception {
+        return TypeSymbol.INT;
     }
 
     /**
      * f0 -> "true"
      */
     @Override
-    public String visit(TrueLiteral n, String argu) throws Exception {
-        return "boolean"; 
+    public TypeSymbol visit(TrueLiteral n, Scope argu) throws Exception {
+        return TypeSymbol.BOOLEAN; 
     }
 
     /**
      * f0 -> "false"
      */
     @Override
-    public String visit(FalseLiteral n, String argu) throws Exception {
-        return "boolean"; 
-    }
-
-    /**
-     * f0 -> <IDENTIFIER>
-     */
-    @Override
-    public String visit(Identifier n, String argu) throws Exception {
-        return n.f0.toString();
+    public TypeSymbol visit(FalseLiteral n, Scope argu) throws Exception {
+        return TypeSymbol.BOOLEAN; 
     }
 
     /**
      * f0 -> "this"
      */
     @Override
-    public String visit(ThisExpression n, String argu) throws Exception {
-        return argu.split("\\.")[0];
+    public TypeSymbol visit(ThisExpression n, Scope argu) throws Exception {
+        return argu.owner();
     }
 
     /**
@@ -689,13 +548,13 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f4 -> "]"
      */
     @Override
-    public String visit(ArrayAllocationExpression n, String argu) throws Exception {
-        String countExpr = n.f3.accept(this, argu);
+    public TypeSymbol visit(ArrayAllocationExpression n, Scope argu) throws Exception {
+        TypeSymbol countExpr = n.f3.accept(this, argu);
 
-        if( countExpr != "int" )
+        if( countExpr != TypeSymbol.INT )
             throw new Exception("Scope: " + argu + "\n\tError: Array index must be of integer type.");
         //n.f4.accept(this, argu);
-        return "array";
+        return TypeSymbol.ARRAY;
     }
 
     /**
@@ -705,13 +564,14 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f3 -> ")"
      */
     @Override
-    public String visit(AllocationExpression n, String argu) throws Exception {
-        String className = n.f1.accept(this, argu);
+    public TypeSymbol visit(AllocationExpression n, Scope argu) throws Exception {
+        String className = name(n.f1);
+        ClassSymbol cls = symbols.lookupClass(className);
 
-        if(!classToMethods.containsKey(className) )
+        if(cls == null)
             throw new Exception("Scope: " + argu + "\n\tError: Class " + className + " has not been defined.");
 
-        return className;
+        return cls;
     }
 
     /**
@@ -719,11 +579,11 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f1 -> Clause()
      */
     @Override
-    public String visit(NotExpression n, String argu) throws Exception {
-        if(n.f1.accept(this, argu) != "boolean")
+    public TypeSymbol visit(NotExpression n, Scope argu) throws Exception {
+        if(n.f1.accept(this, argu) != TypeSymbol.BOOLEAN)
             throw new Exception("Scope: " + argu + "\n\tError: ! operator requires a boolean type argument.");
         
-        return "boolean";
+        return TypeSymbol.BOOLEAN;
     }
 
     /**
@@ -732,7 +592,7 @@ public class MainVisitor extends GJDepthFirst<String, String> {
      * f2 -> ")"
      */
     @Override
-    public String visit(BracketExpression n, String argu) throws Exception {
+    public TypeSymbol visit(BracketExpression n, Scope argu) throws Exception {
         return n.f1.accept(this, argu);
     }
 }
\ No newline at end of file
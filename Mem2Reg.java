@@ -0,0 +1,280 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Promotes stack slots that are only loaded and stored to SSA registers, inserting phis at the
+ * iterated dominance frontier of their stores (Cytron et al.). Afterwards every local and
+ * parameter that never has it's address taken lives in registers only.
+ */
+class Mem2Reg extends FunctionPass {
+
+    @Override
+    public String name() {
+        return "mem2reg";
+    }
+
+    @Override
+    void runOnFunction(IrFunction function) {
+        function.removeUnreachableBlocks();
+
+        Set<IrAlloca> promoted = promotableAllocas(function);
+        if(promoted.isEmpty())
+            return;
+
+        DominatorTree dom = new DominatorTree(function);
+        Map<IrPhi, IrAlloca> phiSlots = placePhis(function, dom, promoted);
+        Map<IrValue, IrValue> replacements = rename(function, dom, promoted, phiSlots);
+
+        // The slots and every access to them are gone now
+        for(IrBlock block : function.blocks) {
+            List<IrInstr> kept = new ArrayList<IrInstr>(block.instrs.size());
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrAlloca && promoted.contains(instr))
+                    continue;
+                if(instr instanceof IrLoad && promoted.contains(((IrLoad) instr).pointer()))
+                    continue;
+                if(instr instanceof IrStore && promoted.contains(((IrStore) instr).pointer()))
+                    continue;
+                kept.add(instr);
+            }
+            block.instrs.clear();
+            block.instrs.addAll(kept);
+        }
+
+        function.replaceUses(replacements);
+        simplifyPhis(function, phiSlots.keySet());
+    }
+
+    // Slots whose address is only ever used to load from or store to, in the order they are declared
+    private static Set<IrAlloca> promotableAllocas(IrFunction function) {
+        Set<IrAlloca> candidates = new LinkedHashSet<IrAlloca>(); // Phis are placed in this order, the output must not depend on identity hashes
+        for(IrInstr instr : function.entry().instrs) {
+            if(instr instanceof IrAlloca)
+                candidates.add((IrAlloca) instr);
+        }
+
+        for(IrBlock block : function.blocks) {
+            for(IrInstr instr : block.instrs) {
+                for(int i = 0; i < instr.operands.size(); i++) {
+                    IrValue operand = instr.operands.get(i);
+                    if(!candidates.contains(operand))
+                        continue;
+
+                    boolean isAccess = instr instanceof IrLoad || (instr instanceof IrStore && i == 1);
+                    if(!isAccess)
+                        candidates.remove(operand);
+                }
+            }
+        }
+
+        return candidates;
+    }
+
+    private static Map<IrPhi, IrAlloca> placePhis(IrFunction function, DominatorTree dom, Set<IrAlloca> promoted) {
+        Map<IrPhi, IrAlloca> phiSlots = new LinkedHashMap<IrPhi, IrAlloca>();
+
+        Map<IrAlloca, Set<IrBlock>> defBlocks = new HashMap<IrAlloca, Set<IrBlock>>();
+        for(IrAlloca alloca : promoted)
+            defBlocks.put(alloca, new HashSet<IrBlock>());
+
+        for(IrBlock block : function.blocks) {
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrStore && promoted.contains(((IrStore) instr).pointer()))
+                    defBlocks.get(((IrStore) instr).pointer()).add(block);
+            }
+        }
+
+        for(IrAlloca alloca : promoted) {
+            Set<IrBlock> hasPhi = new HashSet<IrBlock>();
+            List<IrBlock> worklist = new ArrayList<IrBlock>(defBlocks.get(alloca));
+
+            while(!worklist.isEmpty()) {
+                IrBlock block = worklist.remove(worklist.size() - 1);
+
+                for(IrBlock join : dom.frontier(block)) {
+                    if(!hasPhi.add(join))
+                        continue;
+
+                    IrPhi phi = new IrPhi(alloca.allocatedType);
+                    phi.nameHint = alloca.nameHint;
+                    join.add(0, phi);
+                    phiSlots.put(phi, alloca);
+
+                    if(!defBlocks.get(alloca).contains(join)) // The phi is a new definition of the variable
+                        worklist.add(join);
+                }
+            }
+        }
+
+        return phiSlots;
+    }
+
+    // Walks the dominator tree, replacing every load with the value most recently stored on the path to it
+    private static Map<IrValue, IrValue> rename(IrFunction function, DominatorTree dom, Set<IrAlloca> promoted, Map<IrPhi, IrAlloca> phiSlots) {
+        Map<IrValue, IrValue> replacements = new HashMap<IrValue, IrValue>();
+        Map<IrAlloca, List<IrValue>> current = new HashMap<IrAlloca, List<IrValue>>();
+        for(IrAlloca alloca : promoted)
+            current.put(alloca, new ArrayList<IrValue>());
+
+        // Each entry is a block to visit, or a list of slots whose definitions go out of scope
+        List<Object> work = new ArrayList<Object>();
+        work.add(function.entry());
+
+        while(!work.isEmpty()) {
+            Object item = work.remove(work.size() - 1);
+
+            if(item instanceof List)
+            {
+                for(Object alloca : (List<?>) item) {
+                    List<IrValue> stack = current.get(alloca);
+                    stack.remove(stack.size() - 1);
+                }
+                continue;
+            }
+
+            IrBlock block = (IrBlock) item;
+            List<IrAlloca> defined = new ArrayList<IrAlloca>();
+
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrPhi && phiSlots.containsKey(instr))
+                {
+                    IrAlloca alloca = phiSlots.get(instr);
+                    current.get(alloca).add(instr);
+                    defined.add(alloca);
+                }
+                else if(instr instanceof IrLoad && promoted.contains(((IrLoad) instr).pointer()))
+                {
+                    IrAlloca alloca = (IrAlloca) ((IrLoad) instr).pointer();
+                    replacements.put(instr, valueOf(alloca, current));
+                }
+                else if(instr instanceof IrStore && promoted.contains(((IrStore) instr).pointer()))
+                {
+                    IrAlloca alloca = (IrAlloca) ((IrStore) instr).pointer();
+                    current.get(alloca).add(resolve(((IrStore) instr).value(), replacements));
+                    defined.add(alloca);
+                }
+            }
+
+            Set<IrBlock> seen = new HashSet<IrBlock>();
+            for(IrBlock succ : block.successors()) {
+                if(!seen.add(succ))
+                    continue;
+
+                for(IrInstr instr : succ.instrs) {
+                    if(!(instr instanceof IrPhi))
+                        break;
+
+                    IrAlloca alloca = phiSlots.get(instr);
+                    if(alloca != null)
+                        ((IrPhi) instr).addIncoming(valueOf(alloca, current), block);
+                }
+            }
+
+            work.add(defined);
+            List<IrBlock> children = dom.children(block);
+            for(int i = children.size() - 1; i >= 0; i--)
+                work.add(children.get(i));
+        }
+
+        for(Map.Entry<IrValue, IrValue> entry : replacements.entrySet())
+            entry.setValue(resolve(entry.getValue(), replacements));
+
+        return replacements;
+    }
+
+    private static IrValue valueOf(IrAlloca alloca, Map<IrAlloca, List<IrValue>> current) {
+        List<IrValue> stack = current.get(alloca);
+        if(!stack.isEmpty())
+            return stack.get(stack.size() - 1);
+
+        // Read before any store; locals are zeroed on declaration, so this only happens on paths that never run
+        IrType type = alloca.allocatedType;
+        return type.isPointer() ? IrConst.nullOf(type) : new IrConst(type, 0);
+    }
+
+    private static IrValue resolve(IrValue value, Map<IrValue, IrValue> replacements) {
+        IrValue replacement;
+        while((replacement = replacements.get(value)) != null)
+            value = replacement;
+
+        return value;
+    }
+
+    // Removes phis that merge a single value, then phis whose result is never used
+    static void simplifyPhis(IrFunction function, Set<IrPhi> candidates) {
+        Set<IrPhi> remaining = new HashSet<IrPhi>(candidates);
+
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            Map<IrValue, IrValue> replacements = new HashMap<IrValue, IrValue>();
+
+            for(IrPhi phi : remaining) {
+                IrValue unique = null;
+                boolean trivial = true;
+
+                for(IrValue incoming : phi.operands) {
+                    if(incoming == phi || incoming == unique || (unique != null && incoming.equals(unique)))
+                        continue;
+                    if(unique != null)
+                    {
+                        trivial = false;
+                        break;
+                    }
+                    unique = incoming;
+                }
+
+                if(trivial && unique != null)
+                    replacements.put(phi, unique);
+            }
+
+            if(!replacements.isEmpty())
+            {
+                for(Map.Entry<IrValue, IrValue> entry : replacements.entrySet())
+                    entry.setValue(resolve(entry.getValue(), replacements));
+
+                function.replaceUses(replacements);
+                for(IrValue phi : replacements.keySet()) {
+                    ((IrPhi) phi).block.instrs.remove(phi);
+                    remaining.remove(phi);
+                }
+                changed = true;
+            }
+        }
+
+        // A phi is live if a non-phi instruction uses it, or a live phi does
+        Set<IrPhi> live = new HashSet<IrPhi>();
+        List<IrPhi> worklist = new ArrayList<IrPhi>();
+
+        for(IrBlock block : function.blocks) {
+            for(IrInstr instr : block.instrs) {
+                if(remaining.contains(instr))
+                    continue;
+
+                for(IrValue operand : instr.operands) {
+                    if(remaining.contains(operand) && live.add((IrPhi) operand))
+                        worklist.add((IrPhi) operand);
+                }
+            }
+        }
+
+        while(!worklist.isEmpty()) {
+            IrPhi phi = worklist.remove(worklist.size() - 1);
+            for(IrValue operand : phi.operands) {
+                if(remaining.contains(operand) && live.add((IrPhi) operand))
+                    worklist.add((IrPhi) operand);
+            }
+        }
+
+        for(IrPhi phi : remaining) {
+            if(!live.contains(phi))
+                phi.block.instrs.remove(phi);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses and runs the IR passes for an optimization level.
+ */
+class Optimizer {
+
+    static List<IrPass> pipeline(CompilerOptions options) {
+        List<IrPass> passes = new ArrayList<IrPass>();
+
+        if(options.optLevel >= 1)
+        {
+            passes.add(new Devirtualization());
+            passes.add(new Mem2Reg());
+            passes.add(new ConstantPropagation());
+            passes.add(new SimplifyCfg());
+
+            // Inlined bodies expose constants and array bounds of the caller, so fold and simplify again
+            if(options.inlineBudget > 0)
+            {
+                passes.add(Inliner.methods(options.inlineBudget));
+                passes.add(new ConstantPropagation());
+                passes.add(new SimplifyCfg());
+            }
+
+            // The collector only scans the heap, so an object moved to the stack would hide what it's fields point to
+            if(!options.allocator.equals("gc"))
+                passes.add(new EscapeAnalysis());
+            passes.add(Inliner.runtimeFastPaths());
+            passes.add(new ConstantPropagation()); // Allocation sizes are mostly constant
+            passes.add(new CommonSubexpressions());
+            passes.add(new BoundsCheckElimination());
+            passes.add(new SimplifyCfg());
+        }
+
+        if(options.allocator.equals("gc"))
+            passes.add(new ShadowStack());
+
+        return passes;
+    }
+
+    // Returns the passes that ran, for their reports
+    static List<IrPass> optimize(IrModule module, CompilerOptions options, PhaseTimer timer) {
+        List<IrPass> passes = pipeline(options);
+        for(IrPass pass : passes) {
+            timer.start(pass.name(), null);
+            pass.run(module);
+            timer.end();
+            timer.countInstructions(module);
+        }
+
+        return passes;
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Destination of the text produced by the code generator. All implementations encode
+ * straight into a byte buffer, so emitting a line costs no syscall and no temporary byte[].
+ */
+interface OutputSink extends Closeable {
+
+    void write(CharSequence code) throws IOException;
+
+    void write(char c) throws IOException;
+
+    void flush() throws IOException;
+
+    long bytesWritten();
+
+    // console receives the code for the stdout sink, so it stays in order with the file's diagnostics
+    static OutputSink open(String kind, String fileName, PrintStream console) throws IOException {
+        switch(kind)
+        {
+            case "file":
+                return new DirectBufferSink(fileName);
+
+            case "mapped":
+                return new MappedFileSink(fileName);
+
+            case "memory":
+                return new MemorySink();
+
+            case "stdout":
+                return new StdoutSink(console);
+
+            default:
+                throw new IOException("Unknown output sink " + kind + ".");
+        }
+    }
+}
+
+/**
+ * Common encoding loop. Subclasses only decide what happens when the buffer runs full.
+ */
+abstract class ByteBufferSink implements OutputSink {
+
+    protected ByteBuffer buffer;
+    protected long drainedBytes;
+
+    ByteBufferSink(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.drainedBytes = 0;
+    }
+
+    // Called when buffer has no room left; must leave at least one byte of space behind.
+    protected abstract void drain() throws IOException;
+
+    @Override
+    public void write(CharSequence code) throws IOException {
+        int length = code.length();
+        int i = 0;
+
+        while(i < length) {
+            if(!buffer.hasRemaining())
+                drain();
+
+            int chunkEnd = Math.min(length, i + buffer.remaining());
+            for(; i < chunkEnd; i++) {
+                char c = code.charAt(i);
+                if(c >= 0x80) // Identifiers may contain unicode escapes, everything else is ASCII
+                    break;
+                buffer.put((byte) c);
+            }
+
+            if(i < chunkEnd)
+            {
+                writeBytes(String.valueOf(code.charAt(i)).getBytes(StandardCharsets.UTF_8));
+                i++;
+            }
+        }
+    }
+
+    @Override
+    public void write(char c) throws IOException {
+        if(c >= 0x80)
+        {
+            write(String.valueOf(c));
+            return;
+        }
+
+        if(!buffer.hasRemaining())
+            drain();
+        buffer.put((byte) c);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        for(byte b : bytes) {
+            if(!buffer.hasRemaining())
+                drain();
+            buffer.put(b);
+        }
+    }
+
+    @Override
+    public long bytesWritten() {
+        return drainedBytes + buffer.position();
+    }
+}
+
+/**
+ * Writes to a file through a large direct buffer. Buffers are pooled per thread: an open sink
+ * owns one, and closing it gives the buffer back for the next file compiled on that thread.
+ */
+class DirectBufferSink extends ByteBufferSink {
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>> threadBuffers = new ThreadLocal<ArrayDeque<ByteBuffer>>() {
+        @Override
+        protected ArrayDeque<ByteBuffer> initialValue() {
+            return new ArrayDeque<ByteBuffer>();
+        }
+    };
+
+    private static ByteBuffer takeBuffer() {
+        ByteBuffer buffer = threadBuffers.get().poll();
+        if(buffer == null)
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        buffer.clear();
+        return buffer;
+    }
+
+    private FileOutputStream fos;
+    private FileChannel channel;
+
+    DirectBufferSink(String fileName) throws IOException {
+        super(takeBuffer());
+
+        try{
+            this.fos = new FileOutputStream(new File(fileName));
+        }
+        catch(IOException ex){
+            threadBuffers.get().push(buffer);
+            throw ex;
+        }
+        this.channel = fos.getChannel();
+    }
+
+    @Override
+    protected void drain() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining())
+            drainedBytes += channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(channel == null)
+            return;
+
+        try{
+            drain();
+        }
+        finally{
+            fos.close();
+            channel = null;
+            threadBuffers.get().push(buffer); // Closed on the thread that opened it, like every sink of a compilation
+        }
+    }
+}
+
+/**
+ * Keeps the whole output in memory. Used when the generated code is consumed in-process.
+ */
+class MemorySink extends ByteBufferSink {
+
+    static final int INITIAL_SIZE = 1 << 16;
+
+    MemorySink() {
+        super(ByteBuffer.allocate(INITIAL_SIZE));
+    }
+
+    @Override
+    protected void drain() {
+        ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+    }
+}
+
+/**
+ * Writes into a memory-mapped window of the output file, remapping the next window when the
+ * current one fills up. The file is truncated to the written size on close.
+ */
+class MappedFileSink extends ByteBufferSink {
+
+    static final int WINDOW_SIZE = 1 << 23;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    MappedFileSink(String fileName) throws IOException {
+        super(null);
+
+        this.file = new RandomAccessFile(fileName, "rw");
+        this.channel = file.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW_SIZE);
+    }
+
+    @Override
+    protected void drain() throws IOException {
+        drainedBytes += buffer.position();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, drainedBytes, WINDOW_SIZE);
+    }
+
+    @Override
+    public void flush() {
+        ((MappedByteBuffer) buffer).force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(channel == null)
+            return;
+
+        try{
+            long written = bytesWritten();
+            buffer = null;
+            channel.truncate(written);
+        }
+        finally{
+            file.close();
+            channel = null;
+        }
+    }
+}
+
+/**
+ * Writes to an already open stream, used for printing the generated code on the console.
+ * Closing the sink flushes it but leaves the stream open.
+ */
+class StdoutSink extends ByteBufferSink {
+
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private PrintStream out;
+
+    StdoutSink(PrintStream out) {
+        super(ByteBuffer.allocate(BUFFER_SIZE));
+        this.out = out;
+    }
+
+    @Override
+    protected void drain() {
+        out.write(buffer.array(), 0, buffer.position());
+        drainedBytes += buffer.position();
+        buffer.clear();
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import syntaxtree.Node;
+import syntaxtree.NodeChoice;
+import syntaxtree.NodeListInterface;
+import syntaxtree.NodeOptional;
+import syntaxtree.NodeToken;
+
+/**
+ * What every phase of compiling one file cost, for --time-passes and flight recordings: wall time,
+ * bytes allocated by the compiling thread, and what the phase produced (syntax tree nodes, symbol
+ * lookups, IR instructions, output bytes). Phases run one after the other on the same thread, so
+ * a phase is measured from the moment it starts until the next one does or the file is finished.
+ *
+ * Nothing is measured unless --time-passes is given or a recording enables CompilePhaseEvent, in
+ * which case every phase is also committed as one.
+ */
+class PhaseTimer {
+
+    static final long NONE = -1; // A count that does not apply to a phase
+
+    static class Phase {
+        final String name;
+        long nanos;
+        long allocatedBytes = NONE;
+        long outputBytes = NONE;
+        long nodes = NONE;
+        long lookups = NONE;
+        long instructions = NONE;
+
+        private final CompilePhaseEvent event; // null when not recording
+
+        Phase(String name, CompilePhaseEvent event) {
+            this.name = name;
+            this.event = event;
+        }
+    }
+
+    final String fileName;
+    final boolean enabled;
+    final List<Phase> phases;
+
+    private final boolean recording; // A flight recording wants CompilePhaseEvents
+
+    private Phase current;          // Running, or null
+    private long startNanos;
+    private long startAllocated;
+    private SymbolTable symbols;
+    private long startLookups;
+
+    PhaseTimer(String fileName, CompilerOptions options) {
+        this.fileName = fileName;
+        // Asking for the event type starts the flight recorder, which costs a fraction of a second unless it already runs
+        this.recording = FlightRecorder.isInitialized() && EventType.getEventType(CompilePhaseEvent.class).isEnabled();
+        this.enabled = options.timePasses || recording;
+        this.phases = new ArrayList<Phase>();
+    }
+
+    // Ends the running phase and starts the next, counting the lookups made in symbols if it is not null
+    void start(String name, SymbolTable symbols) {
+        if(!enabled)
+            return;
+
+        end();
+
+        CompilePhaseEvent event = null;
+        if(recording)
+        {
+            event = new CompilePhaseEvent();
+            event.begin();
+        }
+
+        current = new Phase(name, event);
+        phases.add(current);
+        this.symbols = symbols;
+        startLookups = symbols == null ? 0 : symbols.lookups();
+        startAllocated = allocatedBytes();
+        startNanos = System.nanoTime();
+    }
+
+    void end() {
+        if(current == null)
+            return;
+
+        current.nanos = System.nanoTime() - startNanos;
+        long allocated = allocatedBytes();
+        if(allocated != NONE)
+            current.allocatedBytes = allocated - startAllocated;
+        if(symbols != null)
+            current.lookups = symbols.lookups() - startLookups;
+        if(current.event != null)
+            current.event.end();
+
+        current = null;
+    }
+
+    // The counts below go to the last phase started, they are taken after it ends so they cost it nothing
+
+    void output(long bytes) {
+        Phase last = last();
+        if(last != null)
+            last.outputBytes = (last.outputBytes == NONE ? 0 : last.outputBytes) + bytes;
+    }
+
+    void countNodes(Node root) {
+        Phase last = last();
+        if(last != null)
+            last.nodes = nodesIn(root);
+    }
+
+    void countInstructions(IrModule module) {
+        Phase last = last();
+        if(last != null)
+            last.instructions = module.instructionCount();
+    }
+
+    private Phase last() {
+        return enabled && !phases.isEmpty() ? phases.get(phases.size() - 1) : null;
+    }
+
+    // Ends the last phase and commits the events of all of them, now that their counts are known
+    void finish() {
+        end();
+
+        for(Phase phase : phases) {
+            if(phase.event == null)
+                continue;
+
+            phase.event.file = fileName;
+            phase.event.phase = phase.name;
+            phase.event.allocatedBytes = phase.allocatedBytes;
+            phase.event.outputBytes = phase.outputBytes;
+            phase.event.nodes = phase.nodes;
+            phase.event.lookups = phase.lookups;
+            phase.event.instructions = phase.instructions;
+            phase.event.commit();
+        }
+    }
+
+    void print(PrintStream out) {
+        out.println(String.format("%-28s%12s%16s%14s%10s%10s%14s", "Phase", "Time (ms)", "Allocated (KB)", "Output (B)", "Nodes", "Lookups", "Instructions"));
+
+        long nanos = 0, allocated = 0;
+        for(Phase phase : phases) {
+            out.println(String.format("%-28s%12.3f%16s%14s%10s%10s%14s", phase.name, phase.nanos / 1e6,
+                phase.allocatedBytes == NONE ? "-" : "" + (phase.allocatedBytes + 512) / 1024,
+                count(phase.outputBytes), count(phase.nodes), count(phase.lookups), count(phase.instructions)));
+            nanos += phase.nanos;
+            allocated += Math.max(phase.allocatedBytes, 0);
+        }
+
+        out.println(String.format("%-28s%12.3f%16s", "Total", nanos / 1e6, AllocationCounter.THREADS == null ? "-" : "" + (allocated + 512) / 1024));
+    }
+
+    private static String count(long value) {
+        return value == NONE ? "-" : "" + value;
+    }
+
+    // Writes the phases of every file to fileName as JSON, counts that do not apply left out
+    static void writeJson(String fileName, List<PhaseTimer> timers) throws IOException {
+        StringBuilder json = new StringBuilder("{\n  \"files\": [");
+
+        for(int i = 0; i < timers.size(); i++) {
+            PhaseTimer timer = timers.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\n      \"file\": ").append(jsonString(timer.fileName)).append(",\n      \"phases\": [");
+
+            for(int j = 0; j < timer.phases.size(); j++) {
+                Phase phase = timer.phases.get(j);
+                json.append(j == 0 ? "\n" : ",\n");
+                json.append("        {\"phase\": ").append(jsonString(phase.name)).append(", \"nanos\": ").append(phase.nanos);
+                appendCount(json, "allocatedBytes", phase.allocatedBytes);
+                appendCount(json, "outputBytes", phase.outputBytes);
+                appendCount(json, "nodes", phase.nodes);
+                appendCount(json, "lookups", phase.lookups);
+                appendCount(json, "instructions", phase.instructions);
+                json.append("}");
+            }
+
+            json.append(timer.phases.isEmpty() ? "]\n    }" : "\n      ]\n    }");
+        }
+
+        json.append(timers.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        Files.write(Paths.get(fileName), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendCount(StringBuilder json, String key, long value) {
+        if(value != NONE)
+            json.append(", \"").append(key).append("\": ").append(value);
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if(c < 0x20)
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+
+        return quoted.append('"').toString();
+    }
+
+    // Loaded with the management classes on first use, so compiles that measure nothing do not pay for them
+    private static class AllocationCounter {
+        static final com.sun.management.ThreadMXBean THREADS = threads();
+
+        private static com.sun.management.ThreadMXBean threads() {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if(!(threads instanceof com.sun.management.ThreadMXBean))
+                return null;
+
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+            if(!counter.isThreadAllocatedMemorySupported())
+                return null;
+            if(!counter.isThreadAllocatedMemoryEnabled())
+                counter.setThreadAllocatedMemoryEnabled(true);
+
+            return counter;
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = AllocationCounter.THREADS;
+        return threads == null ? NONE : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Syntax tree classes by the fields holding their children
+    private static final Map<Class<?>, Field[]> childFields = new HashMap<Class<?>, Field[]>();
+
+    // Counts the nodes of a syntax tree, the generated visitors have no single place every visit goes through
+    static long nodesIn(Node root) {
+        long nodes = 0;
+        List<Node> work = new ArrayList<Node>();
+        work.add(root);
+
+        while(!work.isEmpty()) {
+            Node node = work.remove(work.size() - 1);
+            nodes++;
+
+            if(node instanceof NodeToken)
+                continue;
+            else if(node instanceof NodeListInterface)
+            {
+                for(Enumeration<Node> e = ((NodeListInterface) node).elements(); e.hasMoreElements(); )
+                    work.add(e.nextElement());
+            }
+            else if(node instanceof NodeOptional)
+            {
+                if(((NodeOptional) node).present())
+                    work.add(((NodeOptional) node).node);
+            }
+            else if(node instanceof NodeChoice)
+                work.add(((NodeChoice) node).choice);
+            else
+            {
+                try{
+                    for(Field field : childFields(node.getClass()))
+                        work.add((Node) field.get(node));
+                }
+                catch(IllegalAccessException ex){
+                    throw new IllegalStateException(ex);
+                }
+            }
+        }
+
+        return nodes;
+    }
+
+    private static Field[] childFields(Class<?> nodeClass) {
+        synchronized(childFields) {
+            Field[] fields = childFields.get(nodeClass);
+            if(fields == null)
+            {
+                List<Field> children = new ArrayList<Field>();
+                for(Field field : nodeClass.getFields()) {
+                    if(Node.class.isAssignableFrom(field.getType()))
+                        children.add(field);
+                }
+                fields = children.toArray(new Field[0]);
+                childFields.put(nodeClass, fields);
+            }
+
+            return fields;
+        }
+    }
+}
+
+/**
+ * One phase of compiling one file, see PhaseTimer. Counts that do not apply to the phase are -1.
+ */
+@Name("minijava.CompilePhase")
+@Label("Compile Phase")
+@Category({"MiniJava", "Compiler"})
+@Description("A phase or IR pass of compiling a MiniJava file")
+@StackTrace(false)
+class CompilePhaseEvent extends Event {
+
+    @Label("File")
+    String file;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+
+    @Label("Output")
+    @DataAmount
+    long outputBytes;
+
+    @Label("Syntax Tree Nodes")
+    long nodes;
+
+    @Label("Symbol Lookups")
+    long lookups;
+
+    @Label("IR Instructions")
+    long instructions;
+}
@@ -0,0 +1,476 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates MiniJava programs of a configurable size and shape, to find where the compiler scales
+ * badly. Classes C0, C1, ... come in extends chains, every class overrides the shared methods m0,
+ * m1, ... of it's chain and adds methods of it's own, and method bodies mix assignments, array
+ * stores, branches, bounded loops and prints over expressions nested to a given depth. Every
+ * method makes a given number of calls, to methods of any class through a receiver whose static
+ * type may be an ancestor of it's dynamic one. A fuel argument, one less on every call, bounds
+ * the call depth, so generated programs also run to completion.
+ *
+ * With --ill-typed one statement is replaced by an assignment of an incompatible type, in the
+ * style of tests/BadAssign, so the program must be rejected by MainVisitor.
+ */
+class ProgramGenerator {
+
+    public static final String USAGE =
+          "Usage: java ProgramGenerator [options] [outputFile]\n"
+        + "Writes a generated MiniJava program to outputFile, or to stdout.\n"
+        + "Options:\n"
+        + "\t--classes=<N>\t\tNumber of classes besides the main class (default: 20)\n"
+        + "\t--depth=<N>\t\tLength of the extends chains the classes are split in, 0 for no superclasses (default: 3)\n"
+        + "\t--methods=<N>\t\tMethods per class, half of them overridden along the chain (default: 4)\n"
+        + "\t--statements=<N>\tStatements per method, counting the ones in branches and loops (default: 8)\n"
+        + "\t--nesting=<N>\t\tMost parentheses expressions are nested in (default: 2)\n"
+        + "\t--fanout=<N>\t\tCalls every method makes (default: 2)\n"
+        + "\t--seed=<N>\t\tSeed of the random choices, the same options and seed give the same program (default: 1)\n"
+        + "\t--ill-typed\t\tAssign an incompatible type once, so the program does not type check\n"
+        + "\t--help\t\t\tPrint this message and exit";
+
+    static final int FUEL = 3;        // Call depth the program runs to, whatever it's call graph
+    static final int ARRAY_SIZE = 8;  // Length of every method's array, indices are constants below it
+    static final int INT_LOCALS = 3;  // v0, v1, ...
+    static final int LOOP_TRIPS = 3;
+    static final int MAX_LOOP_NESTING = 2;
+
+    public int classes;
+    public int depth;
+    public int methods;
+    public int statements;
+    public int nesting;
+    public int fanout;
+    public long seed;
+    public boolean illTyped;
+    public boolean help;
+
+    public String outputFile; // null for stdout
+
+    private Random random;
+    private StringBuilder out;
+
+    private int badClass;     // Where the ill-typed statement goes
+    private int badMethod;
+
+    // Per method
+    private int currentClass;
+    private List<String> receivers;
+
+    ProgramGenerator() {
+        this.classes = 20;
+        this.depth = 3;
+        this.methods = 4;
+        this.statements = 8;
+        this.nesting = 2;
+        this.fanout = 2;
+        this.seed = 1;
+        this.illTyped = false;
+        this.help = false;
+        this.outputFile = null;
+    }
+
+    public static void main(String[] args) {
+        try{
+            ProgramGenerator generator = parse(args);
+            if(generator.help)
+            {
+                System.out.println(USAGE);
+                return;
+            }
+
+            String program = generator.generate();
+            if(generator.outputFile == null)
+                System.out.print(program);
+            else
+                Files.write(Paths.get(generator.outputFile), program.getBytes(StandardCharsets.UTF_8));
+        }
+        catch(Exception ex){
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+    }
+
+    static ProgramGenerator parse(String[] args) throws Exception {
+        ProgramGenerator generator = new ProgramGenerator();
+
+        for(String arg : args) {
+            if(arg.equals("--help") || arg.equals("-h"))
+                generator.help = true;
+            else if(arg.startsWith("--classes="))
+                generator.classes = parseCount(arg, 1);
+            else if(arg.startsWith("--depth="))
+                generator.depth = parseCount(arg, 0);
+            else if(arg.startsWith("--methods="))
+                generator.methods = parseCount(arg, 1);
+            else if(arg.startsWith("--statements="))
+                generator.statements = parseCount(arg, 0);
+            else if(arg.startsWith("--nesting="))
+                generator.nesting = parseCount(arg, 0);
+            else if(arg.startsWith("--fanout="))
+                generator.fanout = parseCount(arg, 0);
+            else if(arg.startsWith("--seed="))
+            {
+                try{
+                    generator.seed = Long.parseLong(arg.substring("--seed=".length()));
+                }
+                catch(NumberFormatException ex){
+                    throw new Exception("Invalid seed " + arg.substring("--seed=".length()) + ".");
+                }
+            }
+            else if(arg.equals("--ill-typed"))
+                generator.illTyped = true;
+            else if(arg.startsWith("-"))
+                throw new Exception("Unknown option " + arg + ".");
+            else if(generator.outputFile != null)
+                throw new Exception("Only one output file can be given.");
+            else
+                generator.outputFile = arg;
+        }
+
+        return generator;
+    }
+
+    private static int parseCount(String arg, int min) throws Exception {
+        String value = arg.substring(arg.indexOf('=') + 1);
+        try{
+            int count = Integer.parseInt(value);
+            if(count >= min)
+                return count;
+        }
+        catch(NumberFormatException ex){
+        }
+
+        throw new Exception("Option " + arg.substring(0, arg.indexOf('=')) + " expects a number of at least " + min + ", not " + value + ".");
+    }
+
+    String generate() {
+        random = new Random(seed);
+        out = new StringBuilder();
+
+        out.append("// Generated by ProgramGenerator --classes=").append(classes).append(" --depth=").append(depth)
+           .append(" --methods=").append(methods).append(" --statements=").append(statements)
+           .append(" --nesting=").append(nesting).append(" --fanout=").append(fanout).append(" --seed=").append(seed);
+        if(illTyped)
+            out.append(" --ill-typed");
+        out.append("\n\n");
+
+        badClass = -1;
+        badMethod = -1;
+        if(illTyped)
+        {
+            badClass = random.nextInt(classes);
+            badMethod = random.nextInt(methods);
+        }
+
+        appendMainClass();
+        for(int i = 0; i < classes; i++)
+            appendClass(i);
+
+        return out.toString();
+    }
+
+    // The shape of the class hierarchy
+
+    private int chainPosition(int c) {
+        return c % (depth + 1);
+    }
+
+    private int superclass(int c) {
+        return chainPosition(c) == 0 ? -1 : c - 1;
+    }
+
+    private int sharedMethods() {
+        return (methods + 1) / 2;
+    }
+
+    // c or one of it's superclasses, at random
+    private int ancestor(int c) {
+        return c - random.nextInt(chainPosition(c) + 1);
+    }
+
+    // A random method callable on a receiver of static type c
+    private String visibleMethod(int c) {
+        int ownMethods = methods - sharedMethods();
+        int declaring = ancestor(c);
+
+        if(ownMethods == 0 || random.nextBoolean())
+            return "m" + random.nextInt(sharedMethods());
+
+        return "c" + declaring + "m" + random.nextInt(ownMethods);
+    }
+
+    // Calls every chain through it's last class, so every override runs
+    private void appendMainClass() {
+        out.append("class Main {\n");
+        out.append("    public static void main(String[] a) {\n");
+
+        List<Integer> roots = new ArrayList<Integer>();
+        for(int c = 0; c < classes; c++) {
+            if(chainPosition(c) == 0)
+                roots.add(c);
+        }
+
+        for(int root : roots)
+            out.append("        C").append(root).append(" r").append(root).append(";\n");
+        for(int root : roots) {
+            int last = Math.min(root + depth, classes - 1);
+            out.append("        r").append(root).append(" = new C").append(last).append("();\n");
+            out.append("        System.out.println(r").append(root).append(".m0(").append(FUEL).append(", ").append(root).append("));\n");
+        }
+
+        out.append("    }\n");
+        out.append("}\n");
+    }
+
+    private void appendClass(int c) {
+        currentClass = c;
+
+        out.append("\nclass C").append(c);
+        if(superclass(c) >= 0)
+            out.append(" extends C").append(superclass(c));
+        out.append(" {\n");
+        out.append("    int f").append(c).append(";\n");
+
+        for(int k = 0; k < methods; k++) {
+            String name = k < sharedMethods() ? "m" + k : "c" + c + "m" + (k - sharedMethods());
+            appendMethod(name, c == badClass && k == badMethod);
+        }
+
+        out.append("}\n");
+    }
+
+    private void appendMethod(String name, boolean badAssignment) {
+        receivers = new ArrayList<String>();
+
+        // The body is generated first, it decides the receivers to declare
+        StringBuilder body = new StringBuilder();
+        StringBuilder saved = out;
+        out = body;
+
+        List<String> calls = new ArrayList<String>();
+        for(int i = 0; i < fanout; i++)
+            calls.add(call());
+        if(badAssignment)
+            calls.add(illTypedStatement());
+
+        appendStatements(statements, 3, 0, calls);
+        out = saved;
+
+        out.append("\n    public int ").append(name).append("(int fuel, int x) {\n");
+        for(int i = 0; i < INT_LOCALS; i++)
+            out.append("        int v").append(i).append(";\n");
+        for(int i = 0; i < MAX_LOOP_NESTING; i++)
+            out.append("        int k").append(i).append(";\n");
+        out.append("        boolean b;\n");
+        out.append("        int[] arr;\n");
+        out.append("        int r;\n");
+        for(String receiver : receivers)
+            out.append("        ").append(receiver).append(";\n");
+
+        out.append("        if(fuel < 1)\n");
+        out.append("            r = x;\n");
+        out.append("        else\n");
+        out.append("        {\n");
+        out.append("            arr = new int[").append(ARRAY_SIZE).append("];\n");
+        for(int i = 0; i < INT_LOCALS; i++)
+            out.append("            v").append(i).append(" = ").append(i == 0 ? "x" : "" + i).append(";\n");
+        out.append("            b = false;\n");
+        out.append(body);
+        out.append("            r = v0 + v1;\n");
+        out.append("        }\n");
+        out.append("        return r;\n");
+        out.append("    }\n");
+    }
+
+    // Statements
+
+    // Appends count statements with the given calls spread among them
+    private void appendStatements(int count, int indent, int loopDepth, List<String> calls) {
+        int left = count;
+        int callsLeft = calls.size();
+
+        while(left > 0 || callsLeft > 0) {
+            if(callsLeft > 0 && (left == 0 || random.nextInt(left + callsLeft) < callsLeft))
+            {
+                line(indent, calls.get(calls.size() - callsLeft));
+                callsLeft--;
+                continue;
+            }
+
+            left -= appendStatement(left, indent, loopDepth);
+        }
+    }
+
+    // Appends a statement of at most budget statements, returns how many it has
+    private int appendStatement(int budget, int indent, int loopDepth) {
+        int kind = random.nextInt(20);
+
+        if(kind < 2 && budget >= 3) // A branch
+        {
+            int thenCount = 1 + random.nextInt(Math.min(budget - 2, 4));
+            int elseCount = random.nextInt(Math.min(budget - 1 - thenCount, 4) + 1);
+
+            line(indent, "if(" + boolExpression(nesting) + ")");
+            block(indent, thenCount, loopDepth);
+            line(indent, "else");
+            block(indent, elseCount, loopDepth);
+            return 1 + thenCount + elseCount;
+        }
+        if(kind < 4 && budget >= 2 && loopDepth < MAX_LOOP_NESTING) // A loop of LOOP_TRIPS trips
+        {
+            String counter = "k" + loopDepth;
+            int bodyCount = 1 + random.nextInt(Math.min(budget - 1, 4));
+
+            line(indent, counter + " = 0;");
+            line(indent, "while(" + counter + " < " + LOOP_TRIPS + ")");
+            line(indent, "{");
+            appendStatements(bodyCount, indent + 1, loopDepth + 1, new ArrayList<String>());
+            line(indent + 1, counter + " = " + counter + " + 1;");
+            line(indent, "}");
+            return 1 + bodyCount;
+        }
+
+        if(kind < 5)
+            line(indent, "System.out.println(" + intExpression(nesting) + ");");
+        else if(kind < 7)
+            line(indent, "b = " + boolExpression(nesting) + ";");
+        else if(kind < 9)
+            line(indent, "arr[" + random.nextInt(ARRAY_SIZE) + "] = " + intExpression(nesting) + ";");
+        else if(kind < 11)
+            line(indent, "f" + ancestor(currentClass) + " = " + intExpression(nesting) + ";");
+        else
+            line(indent, "v" + random.nextInt(INT_LOCALS) + " = " + intExpression(nesting) + ";");
+
+        return 1;
+    }
+
+    private void block(int indent, int count, int loopDepth) {
+        line(indent, "{");
+        appendStatements(count, indent + 1, loopDepth, new ArrayList<String>());
+        line(indent, "}");
+    }
+
+    private String call() {
+        String argument = intExpression(nesting);
+        String local = "v" + random.nextInt(INT_LOCALS);
+
+        int kind = random.nextInt(3);
+        if(kind == 0)
+            return local + " = this." + visibleMethod(currentClass) + "(fuel - 1, " + argument + ");";
+
+        int target = random.nextInt(classes);
+        if(kind == 1)
+            return local + " = new C" + target + "()." + visibleMethod(target) + "(fuel - 1, " + argument + ");";
+
+        // Through a local of a supertype, so the call is dispatched on the dynamic type
+        int staticType = ancestor(target);
+        String receiver = "o" + receivers.size();
+        receivers.add("C" + staticType + " " + receiver);
+        return receiver + " = new C" + target + "();\n" + local + " = " + receiver + "." + visibleMethod(staticType) + "(fuel - 1, " + argument + ");";
+    }
+
+    // An assignment MainVisitor has to reject, like the ones of tests/BadAssign and BadAssign2
+    private String illTypedStatement() {
+        int target = random.nextInt(classes);
+        String receiver = "o" + receivers.size();
+
+        switch(random.nextInt(5)) {
+            case 0:
+                receivers.add("C" + target + " " + receiver);
+                return receiver + " = x;";
+            case 1:
+                return "v0 = new C" + target + "();";
+            case 2:
+                return "v0 = b;";
+            case 3:
+                return "v0 = arr;";
+            default:
+                // A superclass instance to a subclass, or else a class of another chain
+                int other = superclass(target) >= 0 ? superclass(target) : (target + depth + 1) % classes;
+                if(other == target)
+                    return "b = x;";
+
+                receivers.add("C" + target + " " + receiver);
+                return receiver + " = new C" + other + "();";
+        }
+    }
+
+    // Expressions, nested in at most levels parentheses
+
+    private String intExpression(int levels) {
+        int kind = random.nextInt(10);
+
+        if(kind < 5)
+            return intPrimary(levels) + " " + "+-*".charAt(random.nextInt(3)) + " " + intPrimary(levels);
+        if(kind < 6)
+            return "arr[" + random.nextInt(ARRAY_SIZE) + "]";
+        if(kind < 7)
+            return "arr.length";
+
+        return intPrimary(levels);
+    }
+
+    private String intPrimary(int levels) {
+        if(levels > 0 && random.nextInt(3) != 0)
+            return "(" + intExpression(levels - 1) + ")";
+
+        switch(random.nextInt(5)) {
+            case 0:
+                return "" + random.nextInt(100);
+            case 1:
+                return "x";
+            case 2:
+                return "fuel";
+            case 3:
+                return "f" + ancestor(currentClass);
+            default:
+                return "v" + random.nextInt(INT_LOCALS);
+        }
+    }
+
+    private String boolExpression(int levels) {
+        int kind = random.nextInt(4);
+
+        if(kind < 2)
+            return intPrimary(levels) + " < " + intPrimary(levels);
+        if(kind < 3)
+            return clause(levels) + " && " + clause(levels);
+
+        return clause(levels);
+    }
+
+    private String clause(int levels) {
+        if(random.nextInt(4) == 0)
+            return "!" + boolPrimary(levels);
+
+        return boolPrimary(levels);
+    }
+
+    private String boolPrimary(int levels) {
+        if(levels > 0 && random.nextInt(3) != 0)
+            return "(" + boolExpression(levels - 1) + ")";
+
+        switch(random.nextInt(3)) {
+            case 0:
+                return "true";
+            case 1:
+                return "false";
+            default:
+                return "b";
+        }
+    }
+
+    private void line(int indent, String text) {
+        for(String statement : text.split("\n")) {
+            for(int i = 0; i < indent; i++)
+                out.append("    ");
+            out.append(statement).append('\n');
+        }
+    }
+}
@@ -0,0 +1,279 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Gives the garbage collector (see GcRuntime) it's roots. Every function that holds objects or
+ * arrays across a call that may collect gets a shadow stack frame with a slot for each of them,
+ * pushed on entry and popped before it returns. Right before such a call the slots are set to the
+ * handles still needed after it and the rest to null, so the collector finds exactly what is live.
+ * Stack slots that hold handles (before Mem2Reg, or at -O0) are always rooted. Runs after every
+ * other pass, so the optimizations decide what stays live, and at every optimization level.
+ *
+ * A frame is an array of i8*: the frame of the caller, the number of slots, then the slots.
+ */
+class ShadowStack implements IrPass {
+
+    private int functions;
+    private int framed;
+    private int roots;
+
+    @Override
+    public String name() {
+        return "shadow-stack";
+    }
+
+    @Override
+    public String report() {
+        return "rooted " + roots + " handles in the frames of " + framed + " of " + functions + " functions";
+    }
+
+    @Override
+    public void run(IrModule module) {
+        IrGlobal top = null;
+        for(IrGlobal global : module.globals) {
+            if(global.name.equals(GcRuntime.SHADOW_STACK))
+                top = global;
+        }
+
+        for(IrFunction function : module.functions) {
+            if(!function.isDeclaration() && !function.isRuntime)
+                runOnFunction(function, top);
+        }
+    }
+
+    private void runOnFunction(IrFunction function, IrGlobal top) {
+        functions++;
+
+        List<IrAlloca> stackSlots = new ArrayList<IrAlloca>();
+        for(IrInstr instr : function.entry().instrs) {
+            if(instr instanceof IrAlloca && isHandleType(((IrAlloca) instr).allocatedType))
+                stackSlots.add((IrAlloca) instr);
+        }
+
+        // The handles live across each call that may collect
+        Map<IrCall, Set<IrValue>> liveAcross = new HashMap<IrCall, Set<IrValue>>();
+        Map<IrBlock, Set<IrValue>> liveOut = liveness(function);
+        for(IrBlock block : function.blocks)
+            transfer(block, liveOut.get(block), liveAcross);
+
+        if(liveAcross.isEmpty())
+            return;
+
+        Set<IrValue> rooted = new HashSet<IrValue>();
+        for(Set<IrValue> live : liveAcross.values())
+            rooted.addAll(live);
+
+        // Slots in definition order, so the output does not depend on hashing
+        List<IrValue> slots = new ArrayList<IrValue>(stackSlots);
+        for(IrArgument param : function.params) {
+            if(rooted.contains(param))
+                slots.add(param);
+        }
+        for(IrBlock block : function.blocks) {
+            for(IrInstr instr : block.instrs) {
+                if(rooted.contains(instr))
+                    slots.add(instr);
+            }
+        }
+
+        if(slots.isEmpty())
+            return;
+
+        framed++;
+        roots += slots.size();
+
+        IrAlloca frame = new IrAlloca(IrType.array(slots.size() + 2, IrType.I8_PTR));
+        frame.nameHint = "gc_frame";
+
+        // Push the frame once the stack slots are allocated
+        IrBlock entry = function.entry();
+        int index = 0;
+        while(index < entry.instrs.size() && entry.instrs.get(index) instanceof IrAlloca)
+            index++;
+        entry.add(index++, frame);
+
+        List<IrInstr> push = new ArrayList<IrInstr>();
+        IrLoad caller = new IrLoad(top);
+        push.add(caller);
+        push.add(new IrStore(caller, slotAddress(push, frame, 0)));
+        IrCast count = new IrCast(IrCast.Op.INTTOPTR, new IrConst(IrType.I64, slots.size()), IrType.I8_PTR);
+        push.add(count);
+        push.add(new IrStore(count, slotAddress(push, frame, 1)));
+        List<IrGep> addresses = new ArrayList<IrGep>(); // Computed once, written at every call
+        for(int s = 0; s < slots.size(); s++)
+            addresses.add(slotAddress(push, frame, s + 2));
+        for(IrAlloca slot : stackSlots) // Handles are only written to the stack slots later, the collector must not see garbage
+            push.add(new IrStore(IrConst.nullOf(slot.allocatedType), slot));
+        IrCast framePointer = new IrCast(IrCast.Op.BITCAST, frame, IrType.I8_PTR);
+        push.add(framePointer);
+        push.add(new IrStore(framePointer, top));
+        insert(entry, index, push);
+
+        for(IrBlock block : function.blocks) {
+            for(int i = 0; i < block.instrs.size(); i++) {
+                IrInstr instr = block.instrs.get(i);
+
+                List<IrInstr> code = new ArrayList<IrInstr>();
+                if(instr instanceof IrReturn)
+                    code.add(new IrStore(caller, top));
+                else if(instr instanceof IrCall && liveAcross.containsKey(instr))
+                {
+                    Set<IrValue> live = liveAcross.get(instr);
+                    for(int s = 0; s < slots.size(); s++) {
+                        IrValue value = slots.get(s);
+                        if(value instanceof IrAlloca)
+                        {
+                            value = new IrLoad(value);
+                            code.add((IrInstr) value);
+                        }
+                        else if(!live.contains(value))
+                            value = IrConst.nullOf(IrType.I8_PTR);
+
+                        if(!value.type.equals(IrType.I8_PTR))
+                        {
+                            value = new IrCast(IrCast.Op.BITCAST, value, IrType.I8_PTR);
+                            code.add((IrInstr) value);
+                        }
+                        code.add(new IrStore(value, addresses.get(s)));
+                    }
+                }
+
+                i = insert(block, i, code);
+            }
+        }
+    }
+
+    private static IrGep slotAddress(List<IrInstr> code, IrAlloca frame, int slot) {
+        IrGep address = new IrGep(frame, IrConst.i32(0), IrConst.i32(slot));
+        code.add(address);
+        return address;
+    }
+
+    // Inserts code before the instruction at index and returns the instruction's new index
+    private static int insert(IrBlock block, int index, List<IrInstr> code) {
+        for(IrInstr instr : code)
+            block.add(index++, instr);
+
+        return index;
+    }
+
+    // The handles live at the end of each block
+    private static Map<IrBlock, Set<IrValue>> liveness(IrFunction function) {
+        Map<IrBlock, Set<IrValue>> liveIn = new HashMap<IrBlock, Set<IrValue>>();
+        Map<IrBlock, Set<IrValue>> liveOut = new HashMap<IrBlock, Set<IrValue>>();
+        for(IrBlock block : function.blocks)
+            liveIn.put(block, new HashSet<IrValue>());
+
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+
+            for(int b = function.blocks.size() - 1; b >= 0; b--) {
+                IrBlock block = function.blocks.get(b);
+
+                Set<IrValue> out = new HashSet<IrValue>();
+                for(IrBlock succ : block.successors()) {
+                    for(IrValue value : liveIn.get(succ)) {
+                        if(!(value instanceof IrPhi && ((IrPhi) value).block == succ))
+                            out.add(value);
+                    }
+
+                    for(IrInstr instr : succ.instrs) {
+                        if(!(instr instanceof IrPhi))
+                            break;
+
+                        IrPhi phi = (IrPhi) instr;
+                        for(int i = 0; i < phi.operands.size(); i++) {
+                            IrValue base = base(phi.operand(i));
+                            if(phi.incomingBlocks.get(i) == block && base != null)
+                                out.add(base);
+                        }
+                    }
+                }
+                liveOut.put(block, out);
+
+                Set<IrValue> in = transfer(block, out, null);
+                if(!in.equals(liveIn.get(block)))
+                {
+                    liveIn.put(block, in);
+                    changed = true;
+                }
+            }
+        }
+
+        return liveOut;
+    }
+
+    // Walks block backwards from the handles live at it's end; returns the ones live at it's start (it's phis
+    // included) and records the ones live across each call that may collect in liveAcross, if given
+    private static Set<IrValue> transfer(IrBlock block, Set<IrValue> liveOut, Map<IrCall, Set<IrValue>> liveAcross) {
+        Set<IrValue> live = new LinkedHashSet<IrValue>(liveOut);
+
+        for(int i = block.instrs.size() - 1; i >= 0; i--) {
+            IrInstr instr = block.instrs.get(i);
+            live.remove(instr);
+
+            if(instr instanceof IrPhi)
+                continue;
+
+            if(liveAcross != null && instr instanceof IrCall && maySafepoint((IrCall) instr))
+                liveAcross.put((IrCall) instr, new HashSet<IrValue>(live));
+
+            for(IrValue operand : instr.operands) {
+                IrValue base = base(operand);
+                if(base != null)
+                    live.add(base);
+            }
+        }
+
+        for(IrInstr instr : block.instrs) {
+            if(instr instanceof IrPhi && isHandle(instr))
+                live.add(instr);
+        }
+
+        return live;
+    }
+
+    // Calls into the program can allocate, and so can the allocator; the rest of the runtime never collects
+    private static boolean maySafepoint(IrCall call) {
+        IrFunction callee = call.directCallee();
+        return callee == null || !callee.isRuntime || callee.mayCollect;
+    }
+
+    // The object or array an address points into, or null if it is not one
+    private static IrValue base(IrValue value) {
+        while(value instanceof IrGep || (value instanceof IrCast && ((IrCast) value).op == IrCast.Op.BITCAST))
+            value = ((IrInstr) value).operand(0);
+
+        return isHandle(value) ? value : null;
+    }
+
+    // Whether value is an object or array, rather than a global, a stack slot or a vtable entry
+    private static boolean isHandle(IrValue value) {
+        if(!isHandleType(value.type))
+            return false;
+
+        if(value instanceof IrArgument || value instanceof IrCall || value instanceof IrPhi)
+            return true;
+
+        if(value instanceof IrLoad) // Fields and stack slots hold handles, vtables hold functions
+        {
+            IrValue pointer = ((IrLoad) value).pointer();
+            while(pointer instanceof IrGep || (pointer instanceof IrCast && ((IrCast) pointer).op == IrCast.Op.BITCAST))
+                pointer = ((IrInstr) pointer).operand(0);
+
+            return pointer instanceof IrAlloca || isHandleType(pointer.type);
+        }
+
+        return false;
+    }
+
+    private static boolean isHandleType(IrType type) {
+        return type.equals(IrType.I8_PTR) || type.equals(IrType.I32_PTR);
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges every block into it's predecessor when it is that predecessor's only successor and has no
+ * other way in, which removes the chains of unconditional branches that statements and folded
+ * conditions leave behind.
+ */
+class SimplifyCfg extends FunctionPass {
+
+    @Override
+    public String name() {
+        return "simplifycfg";
+    }
+
+    @Override
+    void runOnFunction(IrFunction function) {
+        function.removeUnreachableBlocks();
+        Map<IrBlock, List<IrBlock>> preds = function.predecessors();
+
+        for(int i = 0; i < function.blocks.size(); i++) {
+            IrBlock block = function.blocks.get(i);
+            IrTerminator term = block.terminator();
+
+            // Keep absorbing the successor while the block ends in a branch to a block only it reaches
+            while(term instanceof IrBranch) {
+                IrBlock succ = ((IrBranch) term).target;
+                if(succ == block || succ == function.entry() || preds.get(succ).size() != 1)
+                    break;
+
+                block.instrs.remove(term);
+
+                for(IrInstr instr : succ.instrs) {
+                    if(instr instanceof IrPhi) // A single way in, so every phi has exactly one input
+                        function.replaceUses(instr, instr.operand(0));
+                    else
+                        block.add(instr);
+                }
+
+                // Whatever succ branched to is now reached from block
+                for(IrBlock next : succ.successors()) {
+                    for(IrInstr instr : next.instrs) {
+                        if(!(instr instanceof IrPhi))
+                            break;
+
+                        IrPhi phi = (IrPhi) instr;
+                        for(int k = 0; k < phi.incomingBlocks.size(); k++) {
+                            if(phi.incomingBlocks.get(k) == succ)
+                                phi.incomingBlocks.set(k, block);
+                        }
+                    }
+
+                    List<IrBlock> nextPreds = preds.get(next);
+                    nextPreds.remove(succ);
+                    if(!nextPreds.contains(block))
+                        nextPreds.add(block);
+                }
+
+                function.blocks.remove(succ);
+                i = function.blocks.indexOf(block); // succ may have come before block
+
+                term = block.terminator();
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A MiniJava type. Every type exists exactly once, so types are compared with ==.
+ */
+abstract class TypeSymbol {
+
+    public static final TypeSymbol INT = new PrimitiveType("int", "i32");
+    public static final TypeSymbol BOOLEAN = new PrimitiveType("boolean", "i1");
+    public static final TypeSymbol ARRAY = new PrimitiveType("array", "i32*");
+
+    public final String name;
+    public final String llvmType;
+
+    TypeSymbol(String name, String llvmType) {
+        this.name = name;
+        this.llvmType = llvmType;
+    }
+
+    // Check if a value of this type can be used where a value of type ancestor is expected (checks for polymorphism)
+    boolean isSubtypeOf(TypeSymbol ancestor) {
+        return this == ancestor;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
+
+class PrimitiveType extends TypeSymbol {
+
+    PrimitiveType(String name, String llvmType) {
+        super(name, llvmType);
+    }
+}
+
+/**
+ * A lexical scope: a class body or a method body. Variables that are not found in a scope are
+ * looked up in its parent, which is the owner class for a method and the superclass for a class.
+ *
+ * Resolved names are cached per scope and reused by every later pass. Only successful lookups are
+ * cached: a name can only be shadowed by a declaration in a closer scope, and every pass finishes
+ * the declarations of a scope before it resolves names inside it.
+ */
+abstract class Scope {
+
+    public final String name;
+    public final Map<String, VarSymbol> vars;
+
+    private final Map<String, VarSymbol> resolvedVars;
+    public int varHits;
+    public int varMisses;
+
+    Scope(String name) {
+        this.name = name;
+        this.vars = new HashMap<String, VarSymbol>();
+        this.resolvedVars = new HashMap<String, VarSymbol>();
+    }
+
+    abstract Scope parent();
+
+    abstract ClassSymbol owner(); // The class whose "this" is visible in this scope
+
+    VarSymbol lookupVar(String varName) { // Given a variable name, return it's symbol if it is visible from this scope, otherwise return null
+        VarSymbol cached = resolvedVars.get(varName);
+        if(cached != null)
+        {
+            varHits++;
+            return cached;
+        }
+
+        varMisses++;
+        for(Scope scope = this; scope != null; scope = scope.parent()) {
+            VarSymbol var = scope.vars.get(varName);
+            if(var != null)
+            {
+                resolvedVars.put(varName, var);
+                return var;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
+
+class ClassSymbol extends TypeSymbol {
+
+    public int id; // Dense, in declaration order. -1 while the class has only been referenced.
+
+    public ClassSymbol superclass;
+    public boolean isMainClass;
+    public MethodSymbol mainMethod;
+
+    public final ClassScope scope;
+    public ClassLayout layout; // Built by MainVisitor
+
+    public final List<VarSymbol> fields;
+    public final Map<String, MethodSymbol> methods;
+    public final List<ClassSymbol> subclasses;
+
+    private final Map<String, MethodSymbol> resolvedMethods; // Same caching rules as Scope.lookupVar
+    public int methodHits;
+    public int methodMisses;
+
+    ClassSymbol(String name) {
+        super(name, "i8*");
+        this.id = -1;
+        this.scope = new ClassScope(this);
+        this.fields = new ArrayList<VarSymbol>();
+        this.methods = new LinkedHashMap<String, MethodSymbol>();
+        this.subclasses = new ArrayList<ClassSymbol>();
+        this.resolvedMethods = new HashMap<String, MethodSymbol>();
+    }
+
+    boolean isDeclared() {
+        return id >= 0;
+    }
+
+    @Override
+    boolean isSubtypeOf(TypeSymbol ancestor) {
+        for(ClassSymbol cls = this; cls != null; cls = cls.superclass) {
+            if(cls == ancestor)
+                return true;
+        }
+
+        return false;
+    }
+
+    MethodSymbol lookupMethod(String methodName) { // Given a method name, return it's symbol if it is declared in this class or any of it's superclasses, otherwise return null
+        MethodSymbol cached = resolvedMethods.get(methodName);
+        if(cached != null)
+        {
+            methodHits++;
+            return cached;
+        }
+
+        methodMisses++;
+        for(ClassSymbol cls = this; cls != null; cls = cls.superclass) {
+            MethodSymbol method = cls.methods.get(methodName);
+            if(method != null)
+            {
+                resolvedMethods.put(methodName, method);
+                return method;
+            }
+        }
+
+        return null;
+    }
+}
+
+class ClassScope extends Scope {
+
+    public final ClassSymbol cls;
+
+    ClassScope(ClassSymbol cls) {
+        super(cls.name);
+        this.cls = cls;
+    }
+
+    @Override
+    Scope parent() {
+        return cls.superclass == null ? null : cls.superclass.scope;
+    }
+
+    @Override
+    ClassSymbol owner() {
+        return cls;
+    }
+}
+
+class MethodSymbol extends Scope {
+
+    public final int id; // Dense over the whole program, in declaration order
+    public final String methodName;
+    public final ClassSymbol owner;
+    public final TypeSymbol returnType;
+
+    public final List<VarSymbol> params;
+    public final List<VarSymbol> locals;
+
+    public MethodSymbol overridden; // The superclass method this one overrides, if any
+    public int vtableIndex;
+
+    MethodSymbol(int id, String methodName, ClassSymbol owner, TypeSymbol returnType) {
+        super(owner.name + "." + methodName);
+        this.id = id;
+        this.methodName = methodName;
+        this.owner = owner;
+        this.returnType = returnType;
+        this.params = new ArrayList<VarSymbol>();
+        this.locals = new ArrayList<VarSymbol>();
+        this.vtableIndex = -1;
+    }
+
+    @Override
+    Scope parent() {
+        return owner.scope;
+    }
+
+    @Override
+    ClassSymbol owner() {
+        return owner;
+    }
+
+    boolean hasSameSignature(MethodSymbol other) {
+        if(returnType != other.returnType || params.size() != other.params.size())
+            return false;
+
+        for(int i = 0; i < params.size(); i++) {
+            if(params.get(i).type != other.params.get(i).type)
+                return false;
+        }
+
+        return true;
+    }
+}
+
+class VarSymbol {
+
+    enum Kind { FIELD, PARAM, LOCAL }
+
+    public final String name;
+    public final TypeSymbol type;
+    public final Kind kind;
+    public final Scope scope;
+    public final int index;    // Field index within it's class, or slot within it's method (parameters first)
+    public int offset;         // Fields only: byte offset after the object header
+    public int declaredOffset; // Fields only: the offset in declaration order, which --offsets reports
+
+    VarSymbol(String name, TypeSymbol type, Kind kind, Scope scope, int index) {
+        this.name = name;
+        this.type = type;
+        this.kind = kind;
+        this.scope = scope;
+        this.index = index;
+    }
+
+    boolean isField() {
+        return kind == Kind.FIELD;
+    }
+}
+
+/**
+ * Every class, method and variable of a program, shared by all compilation passes.
+ */
+class SymbolTable {
+
+    public final List<ClassSymbol> classes;
+    public final List<MethodSymbol> methods;
+
+    private final Map<String, ClassSymbol> classesByName;
+    public long classLookups;
+
+    SymbolTable() {
+        this.classes = new ArrayList<ClassSymbol>();
+        this.methods = new ArrayList<MethodSymbol>();
+        this.classesByName = new HashMap<String, ClassSymbol>();
+    }
+
+    // Returns the unique symbol of the named class. Classes may be referenced before they are declared.
+    ClassSymbol classType(String className) {
+        classLookups++;
+        ClassSymbol cls = classesByName.get(className);
+        if(cls == null)
+        {
+            cls = new ClassSymbol(className);
+            classesByName.put(className, cls);
+        }
+
+        return cls;
+    }
+
+    // Returns the declared class with the given name, or null
+    ClassSymbol lookupClass(String className) {
+        classLookups++;
+        ClassSymbol cls = classesByName.get(className);
+        return cls != null && cls.isDeclared() ? cls : null;
+    }
+
+    ClassSymbol declareClass(String className, ClassSymbol superclass) throws Exception {
+        ClassSymbol cls = classType(className);
+
+        if(cls.isDeclared()) // Check if class has already been defined.
+            throw new Exception("Redefinition Error: Class " + className + " already exists.");
+
+        cls.id = classes.size();
+        classes.add(cls);
+
+        if(superclass != null)
+        {
+            cls.superclass = superclass;
+            superclass.subclasses.add(cls);
+        }
+
+        return cls;
+    }
+
+    MethodSymbol declareMainMethod(ClassSymbol cls) {
+        cls.isMainClass = true;
+        cls.mainMethod = new MethodSymbol(methods.size(), "main", cls, null);
+        methods.add(cls.mainMethod);
+
+        return cls.mainMethod;
+    }
+
+    MethodSymbol declareMethod(ClassSymbol cls, String methodName, TypeSymbol returnType) {
+        MethodSymbol method = new MethodSymbol(methods.size(), methodName, cls, returnType);
+        methods.add(method);
+
+        return method;
+    }
+
+    VarSymbol declareField(ClassSymbol cls, String varName, TypeSymbol type) {
+        VarSymbol var = new VarSymbol(varName, type, VarSymbol.Kind.FIELD, cls.scope, cls.fields.size());
+        cls.fields.add(var);
+        cls.scope.vars.put(varName, var);
+
+        return var;
+    }
+
+    VarSymbol declareParam(MethodSymbol method, String varName, TypeSymbol type) {
+        VarSymbol var = new VarSymbol(varName, type, VarSymbol.Kind.PARAM, method, method.params.size());
+        method.params.add(var);
+        method.vars.put(varName, var);
+
+        return var;
+    }
+
+    VarSymbol declareLocal(MethodSymbol method, String varName, TypeSymbol type) {
+        VarSymbol var = new VarSymbol(varName, type, VarSymbol.Kind.LOCAL, method, method.params.size() + method.locals.size());
+        method.locals.add(var);
+        method.vars.put(varName, var);
+
+        return var;
+    }
+
+    // Hit and miss counts of the name resolution caches, summed over every scope
+    String resolutionStats() {
+        int varHits = 0, varMisses = 0, methodHits = 0, methodMisses = 0;
+
+        for (ClassSymbol cls : classes) {
+            varHits += cls.scope.varHits;
+            varMisses += cls.scope.varMisses;
+            methodHits += cls.methodHits;
+            methodMisses += cls.methodMisses;
+        }
+
+        for (MethodSymbol method : methods) {
+            varHits += method.varHits;
+            varMisses += method.varMisses;
+        }
+
+        return "Variables: " + formatRate(varHits, varMisses) + ", Methods: " + formatRate(methodHits, methodMisses);
+    }
+
+    // Every class, variable and method name resolved so far, for --time-passes
+    long lookups() {
+        long lookups = classLookups;
+
+        for (ClassSymbol cls : classes)
+            lookups += cls.scope.varHits + cls.scope.varMisses + cls.methodHits + cls.methodMisses;
+
+        for (MethodSymbol method : methods)
+            lookups += method.varHits + method.varMisses;
+
+        return lookups;
+    }
+
+    private static String formatRate(int hits, int misses) {
+        int total = hits + misses;
+        int percent = total == 0 ? 0 : (int) (100L * hits / total);
+        return hits + "/" + total + " cached (" + percent + "%)";
+    }
+
+    // Maps a Type() production to it's type symbol
+    TypeSymbol resolveType(syntaxtree.Type n) {
+        switch(n.f0.which)
+        {
+            case 0:
+                return TypeSymbol.ARRAY;
+
+            case 1:
+                return TypeSymbol.BOOLEAN;
+
+            case 2:
+                return TypeSymbol.INT;
+
+            default:
+                return classType(((syntaxtree.Identifier) n.f0.choice).f0.toString());
+        }
+    }
+}
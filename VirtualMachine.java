@@ -0,0 +1,435 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a compiled program without a native toolchain, for --run. The program's functions are
+ * compiled to Bytecode and interpreted on a byte addressed, little endian memory that holds the
+ * globals, the stack slots of every frame and the heap, so the IR runs exactly as it's LLVM
+ * translation would. The C library functions the runtime calls are built in (see nativeId);
+ * memory is never given back, free does nothing.
+ */
+class VirtualMachine {
+
+    static final long FUNCTION_BASE = 1L << 48; // Function pointers are this plus the function's index
+    static final int NULL_GUARD = 4096;         // Addresses below this are never valid
+    static final long STACK_SIZE = 1L << 28;    // Of the thread the program runs on, for deep recursion
+
+    static final int CALLOC = 0;
+    static final int FREE = 1;
+    static final int PRINTF = 2;
+    static final int DPRINTF = 3;
+    static final int EXIT = 4;
+    static final int ATEXIT = 5;
+
+    // Thrown by exit to unwind the program
+    private static class Exit extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        Exit(int status) {
+            super(null, null, false, false);
+            this.status = status;
+        }
+    }
+
+    private final Bytecode.Function[] functions;
+    private final Bytecode.Function main;
+    private final PrintStream out;
+    private final StringBuilder output;       // Written to out in large pieces
+    private final List<Long> exitHandlers;
+
+    private ByteBuffer memory;
+    private int top;                          // Everything from here on is free
+
+    VirtualMachine(IrModule module, PrintStream out) throws Exception {
+        this.out = out;
+        this.output = new StringBuilder();
+        this.exitHandlers = new ArrayList<Long>();
+        this.memory = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        this.top = NULL_GUARD;
+
+        Map<IrFunction, Bytecode.Function> compiled = new HashMap<IrFunction, Bytecode.Function>();
+        List<Bytecode.Function> list = new ArrayList<Bytecode.Function>();
+        for(IrFunction function : module.functions) {
+            if(function.isDeclaration())
+            {
+                nativeId(function.name); // Fail now rather than when it is called
+                continue;
+            }
+
+            Bytecode.Function target = new Bytecode.Function(function.name, list.size());
+            compiled.put(function, target);
+            list.add(target);
+        }
+        this.functions = list.toArray(new Bytecode.Function[list.size()]);
+
+        Map<IrGlobal, Long> addresses = new HashMap<IrGlobal, Long>();
+        for(IrGlobal global : module.globals)
+            addresses.put(global, (long) allocate(BytecodeCompiler.sizeOf(global.contentType), 16));
+
+        for(IrGlobal global : module.globals)
+            initialize(global, addresses.get(global), compiled);
+
+        BytecodeCompiler compiler = new BytecodeCompiler(addresses, compiled);
+        for(IrFunction function : compiled.keySet())
+            compiler.compile(function);
+
+        this.main = compiled.get(module.function("main"));
+    }
+
+    // The id NATIVE instructions use for a function of the C library
+    static int nativeId(String name) throws Exception {
+        switch(name)
+        {
+            case "calloc": return CALLOC;
+            case "free": return FREE;
+            case "printf": return PRINTF;
+            case "dprintf": return DPRINTF;
+            case "exit": return EXIT;
+            case "atexit": return ATEXIT;
+        }
+
+        throw new Exception("The virtual machine has no implementation of " + name + ".");
+    }
+
+    private void initialize(IrGlobal global, long address, Map<IrFunction, Bytecode.Function> compiled) {
+        int at = (int) address;
+
+        if(global.stringData != null)
+        {
+            byte[] bytes = global.stringData.getBytes(StandardCharsets.ISO_8859_1);
+            for(int i = 0; i < bytes.length; i++)
+                memory.put(at + i, bytes[i]);
+        }
+        else if(global.functions != null)
+        {
+            for(int i = 0; i < global.functions.size(); i++)
+                memory.putLong(at + 8 * i, FUNCTION_BASE + compiled.get(global.functions.get(i)).index);
+        }
+        else if(global.intData != null)
+        {
+            for(int i = 0; i < global.intData.length; i++)
+                memory.putInt(at + 4 * i, global.intData[i]);
+        }
+    }
+
+    // Runs main on a thread with a stack deep enough for recursive programs, returns the exit status
+    int run() throws Exception {
+        final int[] status = new int[1];
+        final Exception[] failure = new Exception[1];
+
+        Thread thread = new Thread(null, new Runnable() {
+            public void run() {
+                try{
+                    status[0] = runMain();
+                }
+                catch(Exception ex){
+                    failure[0] = ex;
+                }
+                catch(StackOverflowError ex){
+                    failure[0] = new Exception("Stack overflow.");
+                }
+            }
+        }, "minijava-vm", STACK_SIZE);
+
+        thread.start();
+        thread.join();
+
+        flush();
+        if(failure[0] != null)
+            throw failure[0];
+
+        return status[0];
+    }
+
+    private int runMain() throws Exception {
+        int status;
+        try{
+            status = (int) execute(main, enter(main));
+            main.depth--;
+        }
+        catch(Exit exit){
+            status = exit.status;
+        }
+
+        for(int i = exitHandlers.size() - 1; i >= 0; i--) {
+            Bytecode.Function handler = function(exitHandlers.get(i));
+            execute(handler, enter(handler));
+            handler.depth--;
+        }
+
+        return status;
+    }
+
+    // A frame for a new call of f, reused from an earlier call at the same depth when possible
+    private long[] enter(Bytecode.Function f) {
+        if(f.depth == f.frames.length)
+        {
+            long[][] grown = new long[f.depth * 2][];
+            System.arraycopy(f.frames, 0, grown, 0, f.depth);
+            f.frames = grown;
+        }
+
+        long[] frame = f.frames[f.depth];
+        if(frame == null)
+        {
+            frame = new long[f.registers];
+            System.arraycopy(f.constants, 0, frame, f.constantsStart, f.constants.length);
+            for(int i = 0; i < f.allocaRegisters.length; i++)
+                frame[f.allocaRegisters[i]] = allocate(f.allocaSizes[i], 16);
+
+            f.frames[f.depth] = frame;
+        }
+
+        f.depth++;
+        return frame;
+    }
+
+    private long execute(Bytecode.Function f, long[] r) throws Exception {
+        int[] code = f.code;
+        int pc = 0;
+
+        while(true) {
+            switch(code[pc])
+            {
+                case Bytecode.MOV: r[code[pc + 1]] = r[code[pc + 2]]; pc += 3; break;
+
+                case Bytecode.ADD32: r[code[pc + 1]] = (int) (r[code[pc + 2]] + r[code[pc + 3]]); pc += 4; break;
+                case Bytecode.SUB32: r[code[pc + 1]] = (int) (r[code[pc + 2]] - r[code[pc + 3]]); pc += 4; break;
+                case Bytecode.MUL32: r[code[pc + 1]] = (int) (r[code[pc + 2]] * r[code[pc + 3]]); pc += 4; break;
+                case Bytecode.SHL32: r[code[pc + 1]] = (int) r[code[pc + 2]] << (int) r[code[pc + 3]]; pc += 4; break;
+                case Bytecode.ASHR32: r[code[pc + 1]] = (int) r[code[pc + 2]] >> (int) r[code[pc + 3]]; pc += 4; break;
+                case Bytecode.ADD64: r[code[pc + 1]] = r[code[pc + 2]] + r[code[pc + 3]]; pc += 4; break;
+                case Bytecode.SUB64: r[code[pc + 1]] = r[code[pc + 2]] - r[code[pc + 3]]; pc += 4; break;
+                case Bytecode.MUL64: r[code[pc + 1]] = r[code[pc + 2]] * r[code[pc + 3]]; pc += 4; break;
+                case Bytecode.SHL64: r[code[pc + 1]] = r[code[pc + 2]] << r[code[pc + 3]]; pc += 4; break;
+                case Bytecode.ASHR64: r[code[pc + 1]] = r[code[pc + 2]] >> r[code[pc + 3]]; pc += 4; break;
+                case Bytecode.AND: r[code[pc + 1]] = r[code[pc + 2]] & r[code[pc + 3]]; pc += 4; break;
+                case Bytecode.OR: r[code[pc + 1]] = r[code[pc + 2]] | r[code[pc + 3]]; pc += 4; break;
+                case Bytecode.XOR: r[code[pc + 1]] = r[code[pc + 2]] ^ r[code[pc + 3]]; pc += 4; break;
+                case Bytecode.ADDI: r[code[pc + 1]] = r[code[pc + 2]] + code[pc + 3]; pc += 4; break;
+                case Bytecode.GEP: r[code[pc + 1]] = r[code[pc + 2]] + r[code[pc + 3]] * code[pc + 4]; pc += 5; break;
+
+                case Bytecode.EQ: r[code[pc + 1]] = r[code[pc + 2]] == r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case Bytecode.NE: r[code[pc + 1]] = r[code[pc + 2]] != r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case Bytecode.SLT: r[code[pc + 1]] = r[code[pc + 2]] < r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case Bytecode.SLE: r[code[pc + 1]] = r[code[pc + 2]] <= r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case Bytecode.SGT: r[code[pc + 1]] = r[code[pc + 2]] > r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case Bytecode.SGE: r[code[pc + 1]] = r[code[pc + 2]] >= r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case Bytecode.ULT32: r[code[pc + 1]] = (r[code[pc + 2]] & 0xffffffffL) < (r[code[pc + 3]] & 0xffffffffL) ? 1 : 0; pc += 4; break;
+                case Bytecode.ULE32: r[code[pc + 1]] = (r[code[pc + 2]] & 0xffffffffL) <= (r[code[pc + 3]] & 0xffffffffL) ? 1 : 0; pc += 4; break;
+                case Bytecode.UGT32: r[code[pc + 1]] = (r[code[pc + 2]] & 0xffffffffL) > (r[code[pc + 3]] & 0xffffffffL) ? 1 : 0; pc += 4; break;
+                case Bytecode.UGE32: r[code[pc + 1]] = (r[code[pc + 2]] & 0xffffffffL) >= (r[code[pc + 3]] & 0xffffffffL) ? 1 : 0; pc += 4; break;
+                case Bytecode.ULT64: r[code[pc + 1]] = Long.compareUnsigned(r[code[pc + 2]], r[code[pc + 3]]) < 0 ? 1 : 0; pc += 4; break;
+                case Bytecode.ULE64: r[code[pc + 1]] = Long.compareUnsigned(r[code[pc + 2]], r[code[pc + 3]]) <= 0 ? 1 : 0; pc += 4; break;
+                case Bytecode.UGT64: r[code[pc + 1]] = Long.compareUnsigned(r[code[pc + 2]], r[code[pc + 3]]) > 0 ? 1 : 0; pc += 4; break;
+                case Bytecode.UGE64: r[code[pc + 1]] = Long.compareUnsigned(r[code[pc + 2]], r[code[pc + 3]]) >= 0 ? 1 : 0; pc += 4; break;
+
+                case Bytecode.ZEXT8: r[code[pc + 1]] = r[code[pc + 2]] & 0xff; pc += 3; break;
+                case Bytecode.ZEXT32: r[code[pc + 1]] = r[code[pc + 2]] & 0xffffffffL; pc += 3; break;
+                case Bytecode.TRUNC1: r[code[pc + 1]] = r[code[pc + 2]] & 1; pc += 3; break;
+                case Bytecode.TRUNC8: r[code[pc + 1]] = (byte) r[code[pc + 2]]; pc += 3; break;
+                case Bytecode.TRUNC32: r[code[pc + 1]] = (int) r[code[pc + 2]]; pc += 3; break;
+
+                case Bytecode.LOAD8: r[code[pc + 1]] = memory.get(address(r[code[pc + 2]] + code[pc + 3])); pc += 4; break;
+                case Bytecode.LOAD32: r[code[pc + 1]] = memory.getInt(address(r[code[pc + 2]] + code[pc + 3])); pc += 4; break;
+                case Bytecode.LOAD64: r[code[pc + 1]] = memory.getLong(address(r[code[pc + 2]] + code[pc + 3])); pc += 4; break;
+                case Bytecode.STORE8: memory.put(address(r[code[pc + 2]] + code[pc + 3]), (byte) r[code[pc + 1]]); pc += 4; break;
+                case Bytecode.STORE32: memory.putInt(address(r[code[pc + 2]] + code[pc + 3]), (int) r[code[pc + 1]]); pc += 4; break;
+                case Bytecode.STORE64: memory.putLong(address(r[code[pc + 2]] + code[pc + 3]), r[code[pc + 1]]); pc += 4; break;
+
+                case Bytecode.CALL:
+                {
+                    long result = call(functions[code[pc + 2]], r, code, pc + 3);
+                    if(code[pc + 1] >= 0)
+                        r[code[pc + 1]] = result;
+                    pc += 4 + code[pc + 3];
+                    break;
+                }
+                case Bytecode.CALLI:
+                {
+                    long result = call(function(r[code[pc + 2]]), r, code, pc + 3);
+                    if(code[pc + 1] >= 0)
+                        r[code[pc + 1]] = result;
+                    pc += 4 + code[pc + 3];
+                    break;
+                }
+                case Bytecode.VCALL:
+                {
+                    // The receiver's vtable decides the method; the last one seen at the site is cached with it's method
+                    long vtable = memory.getLong(address(r[code[pc + 2]]));
+                    int site = code[pc + 4];
+                    Bytecode.Function callee;
+                    if(f.siteVtables[site] == vtable)
+                        callee = f.siteTargets[site];
+                    else
+                    {
+                        callee = function(memory.getLong(address(vtable + 8L * code[pc + 3])));
+                        f.siteVtables[site] = vtable;
+                        f.siteTargets[site] = callee;
+                    }
+
+                    long result = call(callee, r, code, pc + 5);
+                    if(code[pc + 1] >= 0)
+                        r[code[pc + 1]] = result;
+                    pc += 6 + code[pc + 5];
+                    break;
+                }
+                case Bytecode.NATIVE:
+                {
+                    long result = callNative(code[pc + 2], r, code, pc + 3);
+                    if(code[pc + 1] >= 0)
+                        r[code[pc + 1]] = result;
+                    pc += 4 + code[pc + 3];
+                    break;
+                }
+
+                case Bytecode.RET: return r[code[pc + 1]];
+                case Bytecode.RETVOID: return 0;
+                case Bytecode.BR: pc = code[pc + 1]; break;
+                case Bytecode.CONDBR: pc = r[code[pc + 1]] != 0 ? code[pc + 2] : code[pc + 3]; break;
+
+                default:
+                    throw new Exception("Reached unreachable code in " + f.name + ".");
+            }
+        }
+    }
+
+    // Calls callee with the registers listed at code[at + 1 ...], code[at] being how many there are
+    private long call(Bytecode.Function callee, long[] r, int[] code, int at) throws Exception {
+        long[] frame = enter(callee);
+        for(int i = 0; i < code[at]; i++)
+            frame[i] = r[code[at + 1 + i]];
+
+        long result = execute(callee, frame);
+        callee.depth--;
+        return result;
+    }
+
+    private long callNative(int id, long[] r, int[] code, int at) throws Exception {
+        int count = code[at];
+        long[] args = new long[count];
+        for(int i = 0; i < count; i++)
+            args[i] = r[code[at + 1 + i]];
+
+        switch(id)
+        {
+            case CALLOC:
+                return allocate((int) args[0] * (int) args[1], 16);
+            case FREE:
+                return 0;
+            case PRINTF:
+                output.append(format(args, 0));
+                if(output.length() > 1 << 16)
+                    flush();
+                return 0;
+            case DPRINTF:
+                if(args[0] == 1)
+                    output.append(format(args, 1));
+                else
+                {
+                    flush();
+                    System.err.print(format(args, 1));
+                }
+                return 0;
+            case EXIT:
+                throw new Exit((int) args[0]);
+            default:
+                exitHandlers.add(args[0]);
+                return 0;
+        }
+    }
+
+    // printf: the format is args[first], the values follow it. Handles the conversions the runtime uses
+    private String format(long[] args, int first) throws Exception {
+        String format = string(args[first]);
+        StringBuilder text = new StringBuilder();
+        int next = first + 1;
+
+        for(int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if(c != '%')
+            {
+                text.append(c);
+                continue;
+            }
+
+            boolean wide = false;
+            while(format.charAt(++i) == 'l')
+                wide = true;
+
+            switch(format.charAt(i))
+            {
+                case 'd': text.append(wide ? args[next++] : (int) args[next++]); break;
+                case 's': text.append(string(args[next++])); break;
+                case 'c': text.append((char) args[next++]); break;
+                case '%': text.append('%'); break;
+                default: throw new Exception("Unsupported printf conversion %" + format.charAt(i) + ".");
+            }
+        }
+
+        return text.toString();
+    }
+
+    private String string(long address) throws Exception {
+        int start = address(address);
+        int end = start;
+        while(memory.get(end) != 0)
+            end++;
+
+        byte[] bytes = new byte[end - start];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = memory.get(start + i);
+
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private void flush() {
+        out.print(output);
+        out.flush();
+        output.setLength(0);
+    }
+
+    private Bytecode.Function function(long pointer) throws Exception {
+        long index = pointer - FUNCTION_BASE;
+        if(index < 0 || index >= functions.length)
+            throw new Exception("Call through an invalid function pointer.");
+
+        return functions[(int) index];
+    }
+
+    private int address(long address) throws Exception {
+        if(address < NULL_GUARD || address >= top)
+            throw new Exception(address < NULL_GUARD ? "Null pointer dereference." : "Access outside of allocated memory.");
+
+        return (int) address;
+    }
+
+    // Zeroed memory, which is all memory that was never handed out
+    private int allocate(int size, int alignment) {
+        int start = (top + alignment - 1) / alignment * alignment;
+        if((long) start + size > Integer.MAX_VALUE)
+            throw new OutOfMemoryError("The program ran out of memory.");
+
+        if(start + size > memory.capacity())
+        {
+            int capacity = memory.capacity();
+            while(capacity < start + size)
+                capacity = (int) Math.min(Integer.MAX_VALUE, capacity * 2L);
+
+            ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            grown.put(memory.array(), 0, top);
+            memory = grown;
+        }
+
+        top = start + size;
+        return start;
+    }
+}
@@ -0,0 +1,959 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates an IrModule to x86-64 assembly for the GNU assembler, for --asm: a native backend that
+ * needs no LLVM. Instructions are selected one IR instruction at a time, values get registers from
+ * LinearScan and functions follow the System V calling convention, so a method takes it's object in
+ * %rdi and the C library is called directly. Objects, arrays and vtables are laid out as in the
+ * LLVM code, since both are generated from the same IR.
+ *
+ * %rax and %rcx are never allocated, instructions use them as scratch registers. i1, i8 and i32
+ * values are kept in the low 32 bits of their register or stack slot, zero extended when they are
+ * narrower, so a comparison or a 32 bit move reads any of them. Stack slots are 8 bytes each.
+ */
+class X86Backend {
+
+    private static final String[] REG64 = { "rax", "rcx", "rdx", "rbx", "rsi", "rdi", "r8", "r9", "r10", "r11", "r12", "r13", "r14", "r15" };
+    private static final String[] REG32 = { "eax", "ecx", "edx", "ebx", "esi", "edi", "r8d", "r9d", "r10d", "r11d", "r12d", "r13d", "r14d", "r15d" };
+    private static final String[] REG8 = { "al", "cl", "dl", "bl", "sil", "dil", "r8b", "r9b", "r10b", "r11b", "r12b", "r13b", "r14b", "r15b" };
+
+    private static final int RAX = 0;
+    private static final int RCX = 1;
+    private static final int RDX = 2;
+    private static final int RBX = 3;
+    private static final int RSI = 4;
+    private static final int RDI = 5;
+    private static final int R8 = 6;
+    private static final int R9 = 7;
+    private static final int R10 = 8;
+    private static final int R11 = 9;
+    private static final int R12 = 10;
+    private static final int R13 = 11;
+    private static final int R14 = 12;
+    private static final int R15 = 13;
+
+    private static final int[] ARGUMENT_REGISTERS = { RDI, RSI, RDX, RCX, R8, R9 };
+    private static final int[] CALLER_SAVED = { RDX, RSI, RDI, R8, R9, R10, R11 };
+    private static final int[] CALLEE_SAVED = { RBX, R12, R13, R14, R15 };
+
+    private final OutputSink out;
+    private final StringBuilder text; // The function being translated, written out once it is done
+    private int functionCount;
+
+    // State of the function being translated
+    private Map<IrValue, List<IrInstr>> users;
+    private Set<IrCompare> fused;                 // Compares emitted along with the branch that reads them
+    private Map<IrValue, LinearScan.Interval> intervals;
+    private Map<IrAlloca, Integer> allocaOffsets; // From %rbp
+    private Map<IrBlock, String> labels;
+    private int spillBase;                        // Spill slot i is at -(spillBase + 8 * (i + 1))(%rbp)
+    private List<Integer> savedRegisters;
+    private int frameSize;
+
+    X86Backend(OutputSink out) {
+        this.out = out;
+        this.text = new StringBuilder();
+    }
+
+    void print(IrModule module) throws Exception {
+        text.append("\t.text\n");
+        for(IrFunction function : module.functions) {
+            if(!function.isDeclaration())
+                translate(function);
+
+            out.write(text);
+            text.setLength(0);
+        }
+
+        for(IrGlobal global : module.globals)
+            printGlobal(global);
+        text.append("\t.section .note.GNU-stack,\"\",@progbits\n");
+
+        out.write(text);
+        text.setLength(0);
+    }
+
+    private void printGlobal(IrGlobal global) {
+        text.append(global.constant ? "\t.section .rodata\n" : "\t.data\n");
+        text.append("\t.p2align 3\n").append(global.name).append(":\n");
+
+        if(global.stringData != null)
+        {
+            text.append("\t.asciz \"");
+            for(int i = 0; i < global.stringData.length(); i++) {
+                char c = global.stringData.charAt(i);
+                if(c < 0x20 || c == '"' || c == '\\')
+                    text.append(String.format("\\%03o", (int) c));
+                else
+                    text.append(c);
+            }
+            text.append("\"\n");
+        }
+        else if(global.intData != null)
+        {
+            for(int value : global.intData)
+                text.append("\t.long ").append(value).append('\n');
+        }
+        else if(global.functions != null)
+        {
+            for(IrFunction function : global.functions)
+                text.append("\t.quad ").append(function.name).append('\n');
+        }
+        else
+            text.append("\t.zero ").append(BytecodeCompiler.sizeOf(global.contentType)).append('\n');
+    }
+
+    // Function translation
+
+    private void translate(IrFunction function) throws Exception {
+        users = new HashMap<IrValue, List<IrInstr>>();
+        fused = new HashSet<IrCompare>();
+        intervals = new LinkedHashMap<IrValue, LinearScan.Interval>();
+        allocaOffsets = new HashMap<IrAlloca, Integer>();
+        labels = new HashMap<IrBlock, String>();
+
+        for(IrBlock block : function.blocks) {
+            labels.put(block, ".L" + functionCount + "_" + labels.size());
+            for(IrInstr instr : block.instrs) {
+                for(IrValue operand : instr.operands) {
+                    List<IrInstr> list = users.get(operand);
+                    if(list == null)
+                    {
+                        list = new ArrayList<IrInstr>();
+                        users.put(operand, list);
+                    }
+                    list.add(instr);
+                }
+            }
+        }
+        functionCount++;
+
+        for(IrBlock block : function.blocks) {
+            int size = block.instrs.size();
+            IrTerminator term = block.terminator();
+            if(size >= 2 && term instanceof IrCondBranch && block.instrs.get(size - 2) == ((IrCondBranch) term).cond()
+                    && block.instrs.get(size - 2) instanceof IrCompare && users.get(block.instrs.get(size - 2)).size() == 1)
+                fused.add((IrCompare) block.instrs.get(size - 2));
+        }
+
+        // Stack slots first, then the callee saved registers, then the spills
+        int frame = 0;
+        for(IrBlock block : function.blocks) {
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrAlloca)
+                {
+                    frame += (BytecodeCompiler.sizeOf(((IrAlloca) instr).allocatedType) + 7) & ~7;
+                    allocaOffsets.put((IrAlloca) instr, -frame);
+                }
+            }
+        }
+
+        List<Integer> calls = buildIntervals(function);
+        LinearScan allocator = new LinearScan(CALLER_SAVED, CALLEE_SAVED);
+        allocator.allocate(new ArrayList<LinearScan.Interval>(intervals.values()), calls);
+
+        savedRegisters = allocator.usedCalleeSaved;
+        spillBase = frame + 8 * savedRegisters.size();
+        frameSize = (spillBase + 8 * allocator.spillSlots + 15) & ~15;
+
+        emitFunction(function);
+    }
+
+    // Numbers the instructions and gives every value the interval it is live over; returns the positions of the calls
+    private List<Integer> buildIntervals(IrFunction function) {
+        Map<IrBlock, Integer> starts = new HashMap<IrBlock, Integer>();
+        Map<IrBlock, Integer> ends = new HashMap<IrBlock, Integer>();
+        List<Integer> calls = new ArrayList<Integer>();
+        int position = 0;
+        for(IrBlock block : function.blocks) {
+            starts.put(block, position);
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrCall)
+                    calls.add(position);
+                position++;
+            }
+            ends.put(block, position - 1);
+        }
+
+        for(IrArgument param : function.params)
+            interval(param).cover(-1, -1);
+
+        // Which values are live at the end of each block, as in ShadowStack
+        Map<IrBlock, Set<IrValue>> liveIn = new HashMap<IrBlock, Set<IrValue>>();
+        Map<IrBlock, Set<IrValue>> liveOut = new HashMap<IrBlock, Set<IrValue>>();
+        for(IrBlock block : function.blocks)
+            liveIn.put(block, new HashSet<IrValue>());
+
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+
+            for(int b = function.blocks.size() - 1; b >= 0; b--) {
+                IrBlock block = function.blocks.get(b);
+
+                Set<IrValue> live = new LinkedHashSet<IrValue>();
+                for(IrBlock succ : block.successors()) {
+                    for(IrValue value : liveIn.get(succ)) {
+                        if(!(value instanceof IrPhi && ((IrPhi) value).block == succ))
+                            live.add(value);
+                    }
+                    for(IrInstr instr : succ.instrs) {
+                        if(!(instr instanceof IrPhi))
+                            break;
+
+                        IrValue value = registerValue(((IrPhi) instr).incomingFor(block));
+                        if(value != null)
+                            live.add(value);
+                    }
+                }
+                liveOut.put(block, new HashSet<IrValue>(live));
+
+                for(int i = block.instrs.size() - 1; i >= 0; i--) {
+                    IrInstr instr = block.instrs.get(i);
+                    live.remove(instr);
+                    live.addAll(reads(instr));
+                }
+                for(IrInstr instr : block.instrs) {
+                    if(instr instanceof IrPhi)
+                        live.add(instr);
+                }
+
+                if(!live.equals(liveIn.get(block)))
+                {
+                    liveIn.put(block, live);
+                    changed = true;
+                }
+            }
+        }
+
+        for(IrBlock block : function.blocks) {
+            int start = starts.get(block);
+            int end = ends.get(block);
+
+            Set<IrValue> definedHere = new HashSet<IrValue>();
+            position = start;
+            for(IrInstr instr : block.instrs) {
+                for(IrValue value : reads(instr))
+                    interval(value).cover(definedHere.contains(value) ? position : start, position);
+
+                if(isRegisterValue(instr))
+                {
+                    definedHere.add(instr);
+                    interval(instr).cover(instr instanceof IrPhi ? start : position, position);
+                }
+                position++;
+            }
+
+            for(IrValue value : liveOut.get(block))
+                interval(value).cover(definedHere.contains(value) ? end : start, end);
+
+            // Phis are written at the end of every predecessor
+            for(IrBlock succ : block.successors()) {
+                for(IrInstr instr : succ.instrs) {
+                    if(!(instr instanceof IrPhi))
+                        break;
+                    interval(instr).cover(end, end);
+                }
+            }
+        }
+
+        return calls;
+    }
+
+    private LinearScan.Interval interval(IrValue value) {
+        LinearScan.Interval interval = intervals.get(value);
+        if(interval == null)
+        {
+            interval = new LinearScan.Interval(value);
+            intervals.put(value, interval);
+        }
+
+        return interval;
+    }
+
+    // The values an instruction reads from registers or spill slots
+    private List<IrValue> reads(IrInstr instr) {
+        List<IrValue> operands = new ArrayList<IrValue>();
+
+        if(instr instanceof IrPhi || instr instanceof IrAlloca || isAlias(instr) || fused.contains(instr) || (instr instanceof IrGep && isFolded(instr)))
+            return operands;
+
+        if(instr instanceof IrLoad)
+            operands.add(addressBase(((IrLoad) instr).pointer()));
+        else if(instr instanceof IrStore)
+        {
+            operands.add(((IrStore) instr).value());
+            operands.add(addressBase(((IrStore) instr).pointer()));
+        }
+        else if(instr instanceof IrCondBranch && fused.contains(((IrCondBranch) instr).cond()))
+            operands.addAll(((IrInstr) ((IrCondBranch) instr).cond()).operands);
+        else
+            operands.addAll(instr.operands);
+
+        List<IrValue> values = new ArrayList<IrValue>();
+        for(IrValue operand : operands) {
+            IrValue value = registerValue(operand);
+            if(value != null)
+                values.add(value);
+        }
+
+        return values;
+    }
+
+    // The value holding operand in a register or spill slot, or null for constants and addresses
+    private IrValue registerValue(IrValue operand) {
+        while(isAlias(operand))
+            operand = ((IrInstr) operand).operand(0);
+
+        return isRegisterValue(operand) ? operand : null;
+    }
+
+    private boolean isRegisterValue(IrValue value) {
+        if(value instanceof IrArgument)
+            return true;
+        if(!(value instanceof IrInstr) || value.type.isVoid())
+            return false;
+
+        return !(value instanceof IrAlloca || isAlias(value) || fused.contains(value) || (value instanceof IrGep && isFolded((IrInstr) value)));
+    }
+
+    private void emitFunction(IrFunction function) throws Exception {
+        if(function.name.equals("main"))
+            text.append("\t.globl main\n");
+        text.append("\t.p2align 4\n").append(function.name).append(":\n");
+        emit("pushq %rbp");
+        emit("movq %rsp, %rbp");
+        if(frameSize > 0)
+            emit("subq $" + frameSize + ", %rsp");
+        for(int i = 0; i < savedRegisters.size(); i++)
+            emit("movq %" + REG64[savedRegisters.get(i)] + ", " + savedSlot(i));
+
+        // Arguments come in registers and then on the stack, above the return address
+        List<String> sources = new ArrayList<String>();
+        List<IrValue> dests = new ArrayList<IrValue>();
+        for(IrArgument param : function.params) {
+            if(param.index < ARGUMENT_REGISTERS.length)
+                sources.add("%" + REG64[ARGUMENT_REGISTERS[param.index]]);
+            else
+                sources.add((16 + 8 * (param.index - ARGUMENT_REGISTERS.length)) + "(%rbp)");
+            dests.add(param);
+        }
+        parallelMove(sources, dests);
+
+        List<IrBlock[]> stubs = new ArrayList<IrBlock[]>(); // Edges of conditional branches that need moves
+        for(int b = 0; b < function.blocks.size(); b++) {
+            IrBlock block = function.blocks.get(b);
+            IrBlock next = b + 1 < function.blocks.size() ? function.blocks.get(b + 1) : null;
+            text.append(labels.get(block)).append(":\n");
+
+            for(IrInstr instr : block.instrs) {
+                if(instr instanceof IrBranch)
+                {
+                    IrBlock to = ((IrBranch) instr).target;
+                    emitMoves(block, to);
+                    if(to != next)
+                        emit("jmp " + labels.get(to));
+                }
+                else if(instr instanceof IrCondBranch)
+                {
+                    IrCondBranch branch = (IrCondBranch) instr;
+                    String condition = emitCondition(branch.cond());
+
+                    String trueLabel = labels.get(branch.ifTrue);
+                    if(hasMoves(block, branch.ifTrue))
+                    {
+                        trueLabel = ".L" + (functionCount - 1) + "_stub" + stubs.size();
+                        stubs.add(new IrBlock[] { block, branch.ifTrue });
+                    }
+                    emit("j" + condition + " " + trueLabel);
+
+                    emitMoves(block, branch.ifFalse);
+                    if(branch.ifFalse != next)
+                        emit("jmp " + labels.get(branch.ifFalse));
+                }
+                else if(instr instanceof IrReturn)
+                {
+                    IrValue value = ((IrReturn) instr).value();
+                    if(value != null)
+                        load(value, RAX);
+
+                    for(int i = 0; i < savedRegisters.size(); i++)
+                        emit("movq " + savedSlot(i) + ", %" + REG64[savedRegisters.get(i)]);
+                    emit("leave");
+                    emit("ret");
+                }
+                else if(instr instanceof IrUnreachable)
+                    emit("ud2");
+                else if(instr instanceof IrCall)
+                    emitCall((IrCall) instr);
+                else if(!(instr instanceof IrPhi || instr instanceof IrAlloca || !isRegisterValue(instr) && !(instr instanceof IrStore)))
+                    emitInstr(instr);
+            }
+        }
+
+        for(int i = 0; i < stubs.size(); i++) {
+            text.append(".L").append(functionCount - 1).append("_stub").append(i).append(":\n");
+            emitMoves(stubs.get(i)[0], stubs.get(i)[1]);
+            emit("jmp " + labels.get(stubs.get(i)[1]));
+        }
+    }
+
+    private void emitInstr(IrInstr instr) throws Exception {
+        if(instr instanceof IrBinary)
+        {
+            IrBinary binary = (IrBinary) instr;
+            boolean wide = isWide(binary.type);
+            String suffix = wide ? "q" : "l";
+
+            // Work in the result's register when the second operand is not in it
+            int target = RAX;
+            LinearScan.Interval result = intervals.get(instr);
+            IrValue rhs = registerValue(binary.operand(1));
+            if(result.register >= 0 && (rhs == null || intervals.get(rhs).register != result.register))
+                target = result.register;
+
+            load(binary.operand(0), target);
+            String dest = "%" + (wide ? REG64 : REG32)[target];
+            switch(binary.op)
+            {
+                case SHL:
+                case ASHR:
+                {
+                    String op = binary.op == IrBinary.Op.SHL ? "shl" : "sar";
+                    if(binary.operand(1) instanceof IrConst)
+                        emit(op + suffix + " $" + ((IrConst) binary.operand(1)).value + ", " + dest);
+                    else
+                    {
+                        load(binary.operand(1), RCX);
+                        emit(op + suffix + " %cl, " + dest);
+                    }
+                    break;
+                }
+                default:
+                {
+                    String op;
+                    switch(binary.op)
+                    {
+                        case ADD: op = "add"; break;
+                        case SUB: op = "sub"; break;
+                        case MUL: op = "imul"; break;
+                        case AND: op = "and"; break;
+                        case OR: op = "or"; break;
+                        default: op = "xor"; break;
+                    }
+                    emit(op + suffix + " " + source(binary.operand(1), RCX, wide) + ", " + dest);
+                    break;
+                }
+            }
+
+            // Wrap results narrower than 32 bits
+            if(binary.type.bits == 1 && binary.op != IrBinary.Op.AND && binary.op != IrBinary.Op.OR && binary.op != IrBinary.Op.XOR)
+                emit("andl $1, " + dest);
+            else if(binary.type.bits == 8)
+                emit("movzbl %" + REG8[target] + ", " + dest);
+
+            storeResult(instr, target);
+        }
+        else if(instr instanceof IrCompare)
+        {
+            emit("set" + emitCompare((IrCompare) instr) + " %al");
+            emit("movzbl %al, %eax");
+            storeResult(instr, RAX);
+        }
+        else if(instr instanceof IrCast)
+        {
+            IrCast cast = (IrCast) instr;
+            load(cast.operand(0), RAX); // Zero extends into 64 bits, and leaves what a truncation to 32 bits keeps
+            if(cast.op == IrCast.Op.TRUNC && cast.type.bits == 8)
+                emit("movzbl %al, %eax");
+            else if(cast.op == IrCast.Op.TRUNC && cast.type.bits == 1)
+                emit("andl $1, %eax");
+            storeResult(instr, RAX);
+        }
+        else if(instr instanceof IrGep)
+        {
+            IrGep gep = (IrGep) instr;
+            load(gep.operand(0), RAX);
+
+            long offset = 0;
+            IrType type = gep.sourceType;
+            for(int i = 1; i < gep.operands.size(); i++) {
+                IrValue index = gep.operand(i);
+                int scale = BytecodeCompiler.sizeOf(type);
+                if(index instanceof IrConst)
+                    offset += ((IrConst) index).value * scale;
+                else
+                {
+                    if(isWide(index.type))
+                        load(index, RCX);
+                    else
+                        emit("movslq " + source(index, RCX, false) + ", %rcx"); // Indices are signed
+                    if(scale == 1 || scale == 2 || scale == 4 || scale == 8)
+                        emit("leaq (%rax,%rcx," + scale + "), %rax");
+                    else
+                    {
+                        emit("imulq $" + scale + ", %rcx");
+                        emit("addq %rcx, %rax");
+                    }
+                }
+                type = type.element;
+            }
+
+            if(offset != 0)
+                emit("leaq " + immediate(offset) + "(%rax), %rax");
+            storeResult(instr, RAX);
+        }
+        else if(instr instanceof IrLoad)
+        {
+            IrLoad load = (IrLoad) instr;
+            LinearScan.Interval result = intervals.get(instr);
+            int target = result.register >= 0 ? result.register : RAX;
+
+            String address = address(load.pointer(), RCX);
+            int width = widthOf(load.type);
+            if(width == 8)
+                emit("movzbl " + address + ", %" + REG32[target]);
+            else if(width == 32)
+                emit("movl " + address + ", %" + REG32[target]);
+            else
+                emit("movq " + address + ", %" + REG64[target]);
+
+            storeResult(instr, target);
+        }
+        else if(instr instanceof IrStore)
+        {
+            IrStore store = (IrStore) instr;
+            int width = widthOf(store.value().type);
+            String suffix = width == 8 ? "b" : width == 32 ? "l" : "q";
+
+            String value;
+            IrValue stored = store.value();
+            while(isAlias(stored))
+                stored = ((IrInstr) stored).operand(0);
+            if(stored instanceof IrConst && fitsImmediate(((IrConst) stored).value))
+                value = "$" + (width == 8 ? ((IrConst) stored).value & 0xff : ((IrConst) stored).value);
+            else
+            {
+                IrValue register = registerValue(stored);
+                int source = register != null && intervals.get(register).register >= 0 ? intervals.get(register).register : RAX;
+                if(source == RAX)
+                    load(stored, RAX);
+                value = "%" + (width == 8 ? REG8 : width == 32 ? REG32 : REG64)[source];
+            }
+
+            emit("mov" + suffix + " " + value + ", " + address(store.pointer(), RCX));
+        }
+        else
+            throw new Exception("The x86-64 backend cannot translate " + instr.getClass().getName() + ".");
+    }
+
+    // Emits a compare and returns the condition code that holds when it is true
+    private String emitCompare(IrCompare compare) throws Exception {
+        IrValue lhs = compare.operand(0);
+        boolean wide = isWide(lhs.type);
+
+        String left;
+        IrValue register = registerValue(lhs);
+        if(register != null && intervals.get(register).register >= 0)
+            left = "%" + (wide ? REG64 : REG32)[intervals.get(register).register];
+        else
+        {
+            load(lhs, RAX);
+            left = wide ? "%rax" : "%eax";
+        }
+        emit("cmp" + (wide ? "q " : "l ") + source(compare.operand(1), RCX, wide) + ", " + left);
+
+        switch(compare.pred)
+        {
+            case EQ: return "e";
+            case NE: return "ne";
+            case SLT: return "l";
+            case SLE: return "le";
+            case SGT: return "g";
+            case SGE: return "ge";
+            case ULT: return "b";
+            case ULE: return "be";
+            case UGT: return "a";
+            default: return "ae";
+        }
+    }
+
+    // Sets the flags from a branch's condition and returns the condition code that holds when it is true
+    private String emitCondition(IrValue cond) throws Exception {
+        if(fused.contains(cond))
+            return emitCompare((IrCompare) cond);
+
+        if(cond instanceof IrConst)
+        {
+            emit("movl $" + ((IrConst) cond).value + ", %eax");
+            emit("testl %eax, %eax");
+        }
+        else
+        {
+            IrValue value = registerValue(cond);
+            if(intervals.get(value).register >= 0)
+                emit("testl %" + REG32[intervals.get(value).register] + ", %" + REG32[intervals.get(value).register]);
+            else
+                emit("cmpl $0, " + location(value, false));
+        }
+
+        return "ne";
+    }
+
+    private void emitCall(IrCall call) throws Exception {
+        IrFunction callee = call.directCallee();
+        int count = call.argCount();
+        int onStack = Math.max(0, count - ARGUMENT_REGISTERS.length);
+        int padding = onStack % 2 == 1 ? 8 : 0; // %rsp stays 16 byte aligned at the call
+
+        if(padding > 0)
+            emit("subq $8, %rsp");
+        for(int i = count - 1; i >= ARGUMENT_REGISTERS.length; i--)
+            emit("pushq " + pushSource(call.arg(i)));
+
+        // Register arguments are moved in order, unless one is kept where an earlier one goes; then they go through the stack
+        int inRegisters = Math.min(count, ARGUMENT_REGISTERS.length);
+        boolean overlap = false;
+        for(int i = 0; i < inRegisters; i++) {
+            IrValue value = registerValue(call.arg(i));
+            int register = value == null ? -1 : intervals.get(value).register;
+            for(int j = 0; j < i; j++)
+                overlap |= register == ARGUMENT_REGISTERS[j];
+        }
+
+        if(overlap)
+        {
+            for(int i = 0; i < inRegisters; i++)
+                emit("pushq " + pushSource(call.arg(i)));
+        }
+        if(callee == null)
+            load(call.callee(), RAX);
+        if(overlap)
+        {
+            for(int i = inRegisters - 1; i >= 0; i--)
+                emit("popq %" + REG64[ARGUMENT_REGISTERS[i]]);
+        }
+        else
+        {
+            for(int i = 0; i < inRegisters; i++)
+                load(call.arg(i), ARGUMENT_REGISTERS[i]);
+        }
+
+        if(callee == null)
+            emit("call *%rax");
+        else
+        {
+            if(call.functionType.varargs)
+                emit("xorl %eax, %eax"); // No vector registers hold arguments
+            emit("call " + callee.name + (callee.isDeclaration() ? "@PLT" : ""));
+        }
+
+        if(onStack + padding / 8 > 0)
+            emit("addq $" + (8 * onStack + padding) + ", %rsp");
+
+        List<IrInstr> uses = users.get(call);
+        if(!call.type.isVoid() && uses != null && !uses.isEmpty())
+            storeResult(call, RAX);
+    }
+
+    private boolean hasMoves(IrBlock from, IrBlock to) {
+        for(IrInstr instr : to.instrs) {
+            if(!(instr instanceof IrPhi))
+                break;
+
+            IrValue source = ((IrPhi) instr).incomingFor(from);
+            if(!sameLocation(source, instr))
+                return true;
+        }
+
+        return false;
+    }
+
+    // Sets the phis of to to the values they take coming from from
+    private void emitMoves(IrBlock from, IrBlock to) throws Exception {
+        List<String> sources = new ArrayList<String>();
+        List<IrValue> dests = new ArrayList<IrValue>();
+        List<IrPhi> addresses = new ArrayList<IrPhi>(); // Set from globals and stack slots, which read no location
+        for(IrInstr instr : to.instrs) {
+            if(!(instr instanceof IrPhi))
+                break;
+
+            IrValue source = ((IrPhi) instr).incomingFor(from);
+            if(sameLocation(source, instr))
+                continue;
+
+            IrValue value = source;
+            while(isAlias(value))
+                value = ((IrInstr) value).operand(0);
+            if(isRegisterValue(value) || (value instanceof IrConst && fitsImmediate(((IrConst) value).value)))
+            {
+                sources.add(pushSource(value));
+                dests.add(instr);
+            }
+            else
+                addresses.add((IrPhi) instr);
+        }
+
+        parallelMove(sources, dests);
+
+        // Only once every location has been read
+        for(IrPhi phi : addresses) {
+            LinearScan.Interval interval = intervals.get(phi);
+            load(phi.incomingFor(from), interval.register >= 0 ? interval.register : RAX);
+            storeResult(phi, interval.register >= 0 ? interval.register : RAX);
+        }
+    }
+
+    // Moves every source (something pushq takes) to the location of it's dest, as if all at once
+    private void parallelMove(List<String> sources, List<IrValue> dests) {
+        Set<String> written = new HashSet<String>();
+        for(IrValue dest : dests)
+            written.add(location(dest, true));
+
+        boolean overlap = false;
+        for(String source : sources)
+            overlap |= written.contains(source);
+
+        if(overlap) // Through the stack
+        {
+            for(String source : sources)
+                emit("pushq " + source);
+            for(int i = dests.size() - 1; i >= 0; i--)
+                emit("popq " + location(dests.get(i), true));
+            return;
+        }
+
+        for(int i = 0; i < dests.size(); i++) {
+            String dest = location(dests.get(i), true);
+            String source = sources.get(i);
+            if(source.startsWith("%") || dest.startsWith("%"))
+                emit("movq " + source + ", " + dest);
+            else
+            {
+                emit("movq " + source + ", %rax");
+                emit("movq %rax, " + dest);
+            }
+        }
+    }
+
+    private boolean sameLocation(IrValue source, IrValue dest) {
+        IrValue value = registerValue(source);
+        if(value == null)
+            return false;
+
+        return location(value, true).equals(location(dest, true));
+    }
+
+    // Operands
+
+    // Where a value is kept: it's register, or it's spill slot
+    private String location(IrValue value, boolean wide) {
+        LinearScan.Interval interval = intervals.get(value);
+        if(interval.register >= 0)
+            return "%" + (wide ? REG64 : REG32)[interval.register];
+
+        return -(spillBase + 8 * (interval.spillSlot + 1)) + "(%rbp)";
+    }
+
+    private String savedSlot(int i) {
+        return -(spillBase - 8 * (savedRegisters.size() - 1 - i)) + "(%rbp)";
+    }
+
+    // An operand for an instruction of the given width: an immediate, a register or a spill slot; anything else is loaded into scratch
+    private String source(IrValue operand, int scratch, boolean wide) throws Exception {
+        IrValue value = operand;
+        while(isAlias(value))
+            value = ((IrInstr) value).operand(0);
+
+        if(value instanceof IrConst && fitsImmediate(((IrConst) value).value))
+            return "$" + ((IrConst) value).value;
+        if(isRegisterValue(value))
+            return location(value, wide);
+
+        load(value, scratch);
+        return "%" + (wide ? REG64 : REG32)[scratch];
+    }
+
+    // An operand for pushq, which always moves 8 bytes
+    private String pushSource(IrValue operand) throws Exception {
+        return source(operand, RAX, true);
+    }
+
+    // Puts the value of an operand in a register, all 64 bits of it
+    private void load(IrValue operand, int register) throws Exception {
+        IrValue value = operand;
+        while(isAlias(value))
+            value = ((IrInstr) value).operand(0);
+
+        String dest = "%" + REG64[register];
+        if(value instanceof IrConst)
+        {
+            long constant = ((IrConst) value).value;
+            if(constant == 0)
+                emit("xorl %" + REG32[register] + ", %" + REG32[register]);
+            else if(!isWide(value.type))
+                emit("movl $" + (constant & 0xffffffffL) + ", %" + REG32[register]);
+            else if(fitsImmediate(constant))
+                emit("movq $" + constant + ", " + dest);
+            else
+                emit("movabsq $" + constant + ", " + dest);
+        }
+        else if(value instanceof IrGlobal)
+            emit("leaq " + ((IrGlobal) value).name + "(%rip), " + dest);
+        else if(value instanceof IrFunction)
+        {
+            IrFunction function = (IrFunction) value;
+            if(function.isDeclaration())
+                emit("movq " + function.name + "@GOTPCREL(%rip), " + dest);
+            else
+                emit("leaq " + function.name + "(%rip), " + dest);
+        }
+        else if(value instanceof IrAlloca)
+            emit("leaq " + allocaOffsets.get(value) + "(%rbp), " + dest);
+        else if(isRegisterValue(value))
+        {
+            String source = location(value, isWide(value.type));
+            String target = isWide(value.type) ? dest : "%" + REG32[register];
+            if(!source.equals(target))
+                emit((isWide(value.type) ? "movq " : "movl ") + source + ", " + target);
+        }
+        else
+        {
+            // A folded gep used as a value, through a cast that is not an address
+            emit("leaq " + address(value, register) + ", " + dest);
+        }
+    }
+
+    // Writes the result of instr, computed in register, to where it is kept
+    private void storeResult(IrInstr instr, int register) {
+        boolean wide = isWide(instr.type);
+        String dest = location(instr, wide);
+        String source = "%" + (wide ? REG64 : REG32)[register];
+        if(!dest.equals(source))
+            emit((wide ? "movq " : "movl ") + source + ", " + dest);
+    }
+
+    // A memory operand for the address pointer holds, with constant offsets folded in; scratch holds the base if it has to
+    private String address(IrValue pointer, int scratch) throws Exception {
+        IrValue base = addressBase(pointer);
+        long offset = addressOffset(pointer);
+
+        if(base instanceof IrAlloca)
+            return immediate(allocaOffsets.get(base) + offset) + "(%rbp)";
+        if(base instanceof IrGlobal)
+            return ((IrGlobal) base).name + (offset != 0 ? (offset > 0 ? "+" : "") + offset : "") + "(%rip)";
+
+        IrValue value = registerValue(base);
+        int register;
+        if(value != null && intervals.get(value).register >= 0)
+            register = intervals.get(value).register;
+        else
+        {
+            load(base, scratch);
+            register = scratch;
+        }
+
+        return (offset != 0 ? String.valueOf(immediate(offset)) : "") + "(%" + REG64[register] + ")";
+    }
+
+    // Casts that do not change a value's bits share the location of their operand
+    private static boolean isAlias(IrValue value) {
+        return value instanceof IrCast && ((IrCast) value).op != IrCast.Op.ZEXT && ((IrCast) value).op != IrCast.Op.TRUNC;
+    }
+
+    // A gep with constant indices that only loads and stores use (possibly after a cast) is folded into them
+    private boolean isFolded(IrInstr gep) {
+        for(IrValue index : gep.operands.subList(1, gep.operands.size())) {
+            if(!(index instanceof IrConst))
+                return false;
+        }
+
+        return onlyAddresses(gep);
+    }
+
+    private boolean onlyAddresses(IrValue pointer) {
+        List<IrInstr> uses = users.get(pointer);
+        if(uses == null)
+            return true;
+
+        for(IrInstr user : uses) {
+            if(user instanceof IrLoad)
+                continue;
+            if(user instanceof IrStore && ((IrStore) user).value() != pointer)
+                continue;
+            if(isAlias(user) && onlyAddresses(user))
+                continue;
+            if(user instanceof IrGep && isFolded(user) && user.operand(0) == pointer)
+                continue;
+
+            return false;
+        }
+
+        return true;
+    }
+
+    // The value a load or store address is computed from, after folding constant offsets
+    private IrValue addressBase(IrValue pointer) {
+        while(true) {
+            if(isAlias(pointer))
+                pointer = ((IrInstr) pointer).operand(0);
+            else if(pointer instanceof IrGep && isFolded((IrInstr) pointer))
+                pointer = ((IrInstr) pointer).operand(0);
+            else
+                return pointer;
+        }
+    }
+
+    private long addressOffset(IrValue pointer) {
+        long offset = 0;
+        while(true) {
+            if(isAlias(pointer))
+                pointer = ((IrInstr) pointer).operand(0);
+            else if(pointer instanceof IrGep && isFolded((IrInstr) pointer))
+            {
+                IrGep gep = (IrGep) pointer;
+                IrType type = gep.sourceType;
+                for(int i = 1; i < gep.operands.size(); i++) {
+                    offset += ((IrConst) gep.operand(i)).value * BytecodeCompiler.sizeOf(type);
+                    type = type.element;
+                }
+                pointer = gep.operand(0);
+            }
+            else
+                return offset;
+        }
+    }
+
+    private static boolean isWide(IrType type) {
+        return type.isPointer() || type.bits > 32;
+    }
+
+    private static int widthOf(IrType type) {
+        if(isWide(type))
+            return 64;
+
+        return type.bits > 8 ? 32 : 8;
+    }
+
+    private static boolean fitsImmediate(long value) {
+        return value == (int) value;
+    }
+
+    private static long immediate(long value) throws Exception {
+        if(!fitsImmediate(value))
+            throw new Exception("Offset " + value + " does not fit an instruction.");
+
+        return value;
+    }
+
+    private void emit(String instr) {
+        text.append('\t').append(instr).append('\n');
+    }
+}
@@ -0,0 +1,53 @@
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import syntaxtree.Goal;
+
+/**
+ * The compiler's phases, one call each, for minijava.benchmarks.PhaseBenchmark. The compiler lives
+ * in the unnamed package, which a named package cannot import and JMH does not accept benchmarks
+ * in, so the benchmark reaches these through reflection. Trees and symbol tables are passed around
+ * as Object for the same reason.
+ */
+public class Phases {
+
+    private Phases() {
+    }
+
+    // A program of the given number of classes, the rest of it's shape as ProgramGenerator defaults it
+    public static byte[] program(int classes) {
+        ProgramGenerator generator = new ProgramGenerator();
+        generator.classes = classes;
+        return generator.generate().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Lexical errors become exceptions too, the benchmark cannot name TokenMgrError from it's package
+    public static Object parse(byte[] source) throws Exception {
+        try{
+            return Main.parserFor(new ByteArrayInputStream(source)).Goal();
+        }
+        catch(TokenMgrError ex){
+            throw new Exception(ex.getMessage(), ex);
+        }
+    }
+
+    public static Object declareClasses(Object goal) throws Exception {
+        SymbolTable symbols = new SymbolTable();
+        ((Goal) goal).accept(new ClassDefVisitor(symbols), null);
+        return symbols;
+    }
+
+    public static void check(Object goal, Object symbols) throws Exception {
+        ((Goal) goal).accept(new MainVisitor((SymbolTable) symbols), null);
+    }
+
+    // Generates the unoptimized LLVM code into memory, returns it's size in bytes
+    public static int generate(Object goal, Object symbols) throws Exception {
+        IntermediateCodeVisitor intermediateCodeVis = new IntermediateCodeVisitor((SymbolTable) symbols, new CompilerOptions());
+        ((Goal) goal).accept(intermediateCodeVis, null);
+
+        MemorySink sink = new MemorySink();
+        new IrPrinter(sink).print(intermediateCodeVis.module);
+        return sink.toByteArray().length;
+    }
+}
@@ -0,0 +1,196 @@
+package minijava.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of each compiler phase on it's own: parsing, ClassDefVisitor, MainVisitor and
+ * IntermediateCodeVisitor (with the LLVM code printed to memory). Every phase gets the outputs of
+ * the ones before it ready made, so only it's own work is measured. An operation is one pass over
+ * the whole input, which is either the tests corpus or a synthetic program of some number of
+ * classes, so results of different inputs are not comparable with each other, only with themselves
+ * before and after a change.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseBenchmark {
+
+    private static final MethodHandle PROGRAM;
+    private static final MethodHandle PARSE;
+    private static final MethodHandle DECLARE_CLASSES;
+    private static final MethodHandle CHECK;
+    private static final MethodHandle GENERATE;
+
+    static {
+        try{
+            Class<?> phases = Class.forName("Phases");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            PROGRAM = lookup.findStatic(phases, "program", MethodType.methodType(byte[].class, int.class));
+            PARSE = lookup.findStatic(phases, "parse", MethodType.methodType(Object.class, byte[].class));
+            DECLARE_CLASSES = lookup.findStatic(phases, "declareClasses", MethodType.methodType(Object.class, Object.class));
+            CHECK = lookup.findStatic(phases, "check", MethodType.methodType(void.class, Object.class, Object.class));
+            GENERATE = lookup.findStatic(phases, "generate", MethodType.methodType(int.class, Object.class, Object.class));
+        }
+        catch(ReflectiveOperationException ex){
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    static final String SYNTHETIC = "synthetic:";
+
+    /**
+     * Either "tests", every program of the tests directory (the minijava.tests property, ../tests
+     * by default) that compiles, or "synthetic:N", a program of N classes from ProgramGenerator.
+     */
+    @State(Scope.Thread)
+    public static class Input {
+
+        @Param({"tests", "synthetic:10", "synthetic:100"})
+        public String input;
+
+        byte[][] sources;
+        Object[] goals;
+        Object[] checked;     // Classes declared and bodies checked, for IntermediateCodeVisitor
+
+        @Setup(Level.Trial)
+        public void load() throws Throwable {
+            List<byte[]> loaded = new ArrayList<byte[]>();
+            if(input.startsWith(SYNTHETIC))
+                loaded.add((byte[]) PROGRAM.invoke(Integer.parseInt(input.substring(SYNTHETIC.length()))));
+            else if(input.equals("tests"))
+                loaded.addAll(corpus(new File(System.getProperty("minijava.tests", "../tests"))));
+            else
+                throw new IllegalArgumentException("Unknown input: " + input);
+
+            // Programs that fail a phase would measure the error path, leave them out
+            List<byte[]> compiling = new ArrayList<byte[]>();
+            for(byte[] source : loaded) {
+                try{
+                    Object goal = PARSE.invoke(source);
+                    Object declared = DECLARE_CLASSES.invoke(goal);
+                    CHECK.invoke(goal, declared);
+                    GENERATE.invoke(goal, declared);
+                    compiling.add(source);
+                }
+                catch(Exception ex){
+                    // Not a valid program
+                }
+            }
+            if(compiling.isEmpty())
+                throw new IllegalStateException("No program of " + input + " compiles");
+
+            sources = compiling.toArray(new byte[0][]);
+            goals = new Object[sources.length];
+            checked = new Object[sources.length];
+            for(int i = 0; i < sources.length; i++) {
+                goals[i] = PARSE.invoke(sources[i]);
+                checked[i] = DECLARE_CLASSES.invoke(goals[i]);
+                CHECK.invoke(goals[i], checked[i]);
+            }
+        }
+    }
+
+    /**
+     * Symbol tables with only the classes declared, for MainVisitor. It fills them in, so they are
+     * made again before every call, apart from the other phases which do not pay for it.
+     */
+    @State(Scope.Thread)
+    public static class Declared {
+
+        Object[] symbols;
+
+        @Setup(Level.Invocation)
+        public void declare(Input input) throws Throwable {
+            symbols = new Object[input.goals.length];
+            for(int i = 0; i < input.goals.length; i++)
+                symbols[i] = DECLARE_CLASSES.invoke(input.goals[i]);
+        }
+    }
+
+    static List<byte[]> corpus(File tests) throws IOException {
+        File[] directories = tests.listFiles();
+        if(directories == null)
+            throw new IOException("No tests directory at " + tests.getAbsolutePath());
+        Arrays.sort(directories);
+
+        List<byte[]> sources = new ArrayList<byte[]>();
+        for(File directory : directories) {
+            File[] files = directory.listFiles();
+            if(files == null)
+                continue;
+            Arrays.sort(files);
+
+            for(File file : files) {
+                if(file.getName().endsWith(".javaa"))
+                    sources.add(Files.readAllBytes(file.toPath()));
+            }
+        }
+
+        return sources;
+    }
+
+    @Benchmark
+    public void parse(Input input, Blackhole blackhole) throws Throwable {
+        for(byte[] source : input.sources)
+            blackhole.consume(PARSE.invoke(source));
+    }
+
+    @Benchmark
+    public void classDefVisitor(Input input, Blackhole blackhole) throws Throwable {
+        for(Object goal : input.goals)
+            blackhole.consume(DECLARE_CLASSES.invoke(goal));
+    }
+
+    @Benchmark
+    public void mainVisitor(Input input, Declared declared) throws Throwable {
+        for(int i = 0; i < input.goals.length; i++)
+            CHECK.invoke(input.goals[i], declared.symbols[i]);
+    }
+
+    @Benchmark
+    public void intermediateCodeVisitor(Input input, Blackhole blackhole) throws Throwable {
+        for(int i = 0; i < input.goals.length; i++)
+            blackhole.consume((int) GENERATE.invoke(input.goals[i], input.checked[i]));
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder()
+            .parent(commandLine)
+            .addProfiler(GCProfiler.class);
+        if(commandLine.getIncludes().isEmpty())
+            options.include(PhaseBenchmark.class.getName());
+
+        new Runner(options.build()).run();
+    }
+}
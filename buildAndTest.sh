@@ -1,16 +1,42 @@
 #!/bin/bash
 make clean && make all && clear;
 
+# Every file is compiled and reported on it's own, even after one that fails (LexicalError), in the same way with --jobs
+SEQUENTIAL_OUTPUT=$(java Main ./tests/*/*.javaa);
+PARALLEL_OUTPUT=$(java Main --jobs 4 ./tests/*/*.javaa);
+if [ "$SEQUENTIAL_OUTPUT" != "$PARALLEL_OUTPUT" ]; then
+    echo "Compiling with --jobs reports differently than compiling one file at a time";
+fi
+
 for DIR_NAME in ./tests/*; do
 
     FILE_NAME=$DIR_NAME/${DIR_NAME#./tests/}.javaa;
-    java Main "$FILE_NAME";
+    OPTIONS_FILE=$DIR_NAME/${DIR_NAME#./tests/}.options;
+    java Main $(cat "$OPTIONS_FILE" 2>/dev/null) "$FILE_NAME" | tee $DIR_NAME/compile.txt;
     
     EXPECTED_OFFSET_FILE=$DIR_NAME/${DIR_NAME#./tests/}.txt;
+    EXPECTED_OUTPUT_FILE=$DIR_NAME/${DIR_NAME#./tests/}.expected;
+    EXPECTED_STATS_FILE=$DIR_NAME/${DIR_NAME#./tests/}.stats;
+
+    # Written when the options ask for it (e.g. --offsets=layout), in which case it must match
+    if [ -f $DIR_NAME/${DIR_NAME#./tests/}.offset ]; then
+        cmp -s "$EXPECTED_OFFSET_FILE" $DIR_NAME/${DIR_NAME#./tests/}.offset || echo "Unexpected offsets of $FILE_NAME";
+    fi
+
+    # Every line of it, e.g. a pass's --stats report, must be in the compiler's output
+    if [ -f "$EXPECTED_STATS_FILE" ]; then
+        while read -r LINE; do
+            grep -Fxq -- "$LINE" $DIR_NAME/compile.txt || echo "Compiling $FILE_NAME did not report: $LINE";
+        done < "$EXPECTED_STATS_FILE";
+    fi
 
     if [ -f "$EXPECTED_OFFSET_FILE" ]; then
         clang-4.0 -o $DIR_NAME/out.exe $DIR_NAME/${DIR_NAME#./tests/}.ll;
-        if [ "$1" == "-e" ]; then
+        if [ "$1" == "-e" ] && [ -f "$EXPECTED_OUTPUT_FILE" ]; then
+            # Both streams, the runtime reports errors and statistics on stderr
+            $DIR_NAME/out.exe > $DIR_NAME/out.txt 2>&1;
+            cmp -s "$EXPECTED_OUTPUT_FILE" $DIR_NAME/out.txt || echo "Unexpected output of $FILE_NAME";
+        elif [ "$1" == "-e" ]; then
             $DIR_NAME/out.exe;
         fi
     fi